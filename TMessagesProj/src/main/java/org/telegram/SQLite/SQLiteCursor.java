@@ -79,14 +79,14 @@ public class SQLiteCursor {
 	}
 
 	public boolean next() throws SQLiteException {
-		int res = preparedStatement.step(preparedStatement.getStatementHandle());
+		int res = preparedStatement.stepInternal();
 		if(res == -1) {
             int repeatCount = 6;
             while (repeatCount-- != 0) {
                 try {
                     FileLog.e("tmessages", "sqlite busy, waiting...");
                     Thread.sleep(500);
-                    res = preparedStatement.step();
+                    res = preparedStatement.stepInternal();
                     if (res == 0) {
                         break;
                     }
@@ -8,14 +8,44 @@
 
 package org.telegram.SQLite;
 
+import org.telegram.messenger.BuildVars;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.ApplicationLoader;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+
 public class SQLiteDatabase {
 	private final int sqliteHandle;
 
 	private boolean isOpen = false;
     private boolean inTransaction = false;
+    private boolean inBatch = false;
+    private volatile long lastCommitTime;
+
+    private final static int MAX_CACHED_STATEMENTS = 48;
+    private final static int[] IN_CHUNK_SIZES = new int[] {1, 4, 16, 64, 256};
+
+    private final LinkedHashMap<String, SQLitePreparedStatement> statementsCache = new LinkedHashMap<>(MAX_CACHED_STATEMENTS, 0.75f, true);
+    private final HashMap<String, String> inQueries = new HashMap<>();
+
+    private boolean statsEnabled = BuildVars.DEBUG_VERSION;
+    private final HashMap<String, QueryStats> queryStats = new HashMap<>();
+
+    public static class QueryStats {
+        public String sql;
+        public int count;
+        public long totalTime;
+        public long maxTime;
+        public int prepareCount;
+        public long prepareTime;
+    }
 
 	public int getSQLiteHandle() {
 		return sqliteHandle;
@@ -26,6 +56,44 @@ public class SQLiteDatabase {
 		isOpen = true;
 	}
 
+    /**
+     * Switches the database to write-ahead logging, so readers on other
+     * connections are not blocked by writes. {@code autoCheckpointPages} is
+     * only a safety limit, callers are expected to run {@link #checkpoint}
+     * when idle.
+     */
+    public void enableWriteAheadLogging(int autoCheckpointPages) throws SQLiteException {
+        executeFast("PRAGMA journal_mode = WAL").stepThis().dispose();
+        executeFast("PRAGMA synchronous = NORMAL").stepThis().dispose();
+        executeFast("PRAGMA wal_autocheckpoint = " + autoCheckpointPages).stepThis().dispose();
+    }
+
+    public void setReadOnly(int busyTimeout) throws SQLiteException {
+        executeFast("PRAGMA query_only = 1").stepThis().dispose();
+        executeFast("PRAGMA busy_timeout = " + busyTimeout).stepThis().dispose();
+    }
+
+    /**
+     * Copies committed pages from the log back into the database. Returns
+     * the number of frames left in the log, or -1 if a reader or writer
+     * prevented a full checkpoint.
+     */
+    public int checkpoint(boolean truncate) throws SQLiteException {
+        SQLiteCursor cursor = queryFinalized(truncate ? "PRAGMA wal_checkpoint(TRUNCATE)" : "PRAGMA wal_checkpoint(PASSIVE)");
+        try {
+            if (!cursor.next() || cursor.intValue(0) != 0) {
+                return -1;
+            }
+            return cursor.intValue(1) - cursor.intValue(2);
+        } finally {
+            cursor.dispose();
+        }
+    }
+
+    public long getLastCommitTime() {
+        return lastCommitTime;
+    }
+
 	public boolean tableExists(String tableName) throws SQLiteException {
 		checkOpened();
 		String s = "SELECT rowid FROM sqlite_master WHERE type='table' AND name=?;";
@@ -54,10 +122,206 @@ public class SQLiteDatabase {
 		return new SQLitePreparedStatement(this, sql, true).query(args);
 	}
 
+    /**
+     * Returns a prepared statement for {@code sql} from a per-database LRU
+     * cache. {@link SQLitePreparedStatement#dispose} resets it instead of
+     * finalizing it, so the SQL must not contain inlined values. If the
+     * cached statement is still in use, a new finalizing one is returned.
+     */
+    public SQLitePreparedStatement executeCached(String sql) throws SQLiteException {
+        checkOpened();
+        synchronized (statementsCache) {
+            SQLitePreparedStatement statement = statementsCache.get(sql);
+            if (statement == null) {
+                statement = new SQLitePreparedStatement(this, sql, false);
+                statement.cached = true;
+                statementsCache.put(sql, statement);
+                if (statementsCache.size() > MAX_CACHED_STATEMENTS) {
+                    Iterator<SQLitePreparedStatement> iterator = statementsCache.values().iterator();
+                    while (iterator.hasNext() && statementsCache.size() > MAX_CACHED_STATEMENTS) {
+                        SQLitePreparedStatement eldest = iterator.next();
+                        if (!eldest.inUse) {
+                            iterator.remove();
+                            eldest.finalizeQuery();
+                        }
+                    }
+                }
+            } else if (statement.inUse) {
+                return new SQLitePreparedStatement(this, sql, true);
+            }
+            statement.inUse = true;
+            return statement;
+        }
+    }
+
+    public SQLiteCursor queryCached(String sql, Object... args) throws SQLiteException {
+        SQLitePreparedStatement statement = executeCached(sql);
+        try {
+            return statement.query(args);
+        } catch (SQLiteException e) {
+            statement.dispose();
+            throw e;
+        }
+    }
+
+    /**
+     * Runs {@code sql}, whose single {@code %s} stands for the contents of an
+     * IN(...) list, for every id in {@code ids}. Ids are bound as parameters
+     * in chunks of a few fixed sizes, so only a handful of cached statements
+     * exist per query and nothing is formatted per call. Rows of all chunks
+     * are returned through one cursor; ordering across chunks is not
+     * preserved, so ORDER BY and LIMIT must not be used.
+     */
+    public SQLiteCursor queryIn(String sql, List<? extends Number> ids) throws SQLiteException {
+        checkOpened();
+        return new SQLiteInCursor(this, sql, ids);
+    }
+
+    SQLitePreparedStatement prepareInChunk(String sql, List<? extends Number> ids, int offset, int count) throws SQLiteException {
+        int size = IN_CHUNK_SIZES[IN_CHUNK_SIZES.length - 1];
+        for (int a = 0; a < IN_CHUNK_SIZES.length; a++) {
+            if (IN_CHUNK_SIZES[a] >= count) {
+                size = IN_CHUNK_SIZES[a];
+                break;
+            }
+        }
+        String key = sql + "#" + size;
+        String chunkSql;
+        synchronized (inQueries) {
+            chunkSql = inQueries.get(key);
+            if (chunkSql == null) {
+                StringBuilder builder = new StringBuilder(size * 2);
+                for (int a = 0; a < size; a++) {
+                    if (a != 0) {
+                        builder.append(',');
+                    }
+                    builder.append('?');
+                }
+                chunkSql = String.format(Locale.US, sql, builder.toString());
+                inQueries.put(key, chunkSql);
+            }
+        }
+        SQLitePreparedStatement statement = executeCached(chunkSql);
+        try {
+            statement.requery();
+            int last = Math.min(offset + size, ids.size()) - 1;
+            for (int a = 0; a < size; a++) {
+                int index = offset + a;
+                statement.bindLong(a + 1, ids.get(index <= last ? index : last).longValue());
+            }
+        } catch (SQLiteException e) {
+            statement.dispose();
+            throw e;
+        }
+        return statement;
+    }
+
+    static int getInChunkLimit() {
+        return IN_CHUNK_SIZES[IN_CHUNK_SIZES.length - 1];
+    }
+
+    public void setStatsEnabled(boolean value) {
+        synchronized (queryStats) {
+            statsEnabled = value;
+            if (!value) {
+                queryStats.clear();
+            }
+        }
+    }
+
+    QueryStats getQueryStats(String sql) {
+        if (!statsEnabled) {
+            return null;
+        }
+        String key = normalizeSql(sql);
+        synchronized (queryStats) {
+            QueryStats stats = queryStats.get(key);
+            if (stats == null) {
+                stats = new QueryStats();
+                stats.sql = key;
+                queryStats.put(key, stats);
+            }
+            return stats;
+        }
+    }
+
+    /**
+     * Returns collected statistics, slowest total execution time first.
+     */
+    public ArrayList<QueryStats> getSlowestQueries(int count) {
+        ArrayList<QueryStats> result;
+        synchronized (queryStats) {
+            result = new ArrayList<>(queryStats.values());
+        }
+        Collections.sort(result, new Comparator<QueryStats>() {
+            @Override
+            public int compare(QueryStats lhs, QueryStats rhs) {
+                long lhsTime = lhs.totalTime + lhs.prepareTime;
+                long rhsTime = rhs.totalTime + rhs.prepareTime;
+                if (lhsTime < rhsTime) {
+                    return 1;
+                } else if (lhsTime > rhsTime) {
+                    return -1;
+                }
+                return 0;
+            }
+        });
+        if (result.size() > count) {
+            return new ArrayList<>(result.subList(0, count));
+        }
+        return result;
+    }
+
+    public void dumpQueryStats(int count) {
+        ArrayList<QueryStats> result = getSlowestQueries(count);
+        for (int a = 0; a < result.size(); a++) {
+            QueryStats stats = result.get(a);
+            FileLog.d("tmessages", String.format(Locale.US, "sql %d: count = %d, total = %d ms, max = %d ms, prepares = %d, prepare = %d ms, %s", a, stats.count, stats.totalTime / 1000000, stats.maxTime / 1000000, stats.prepareCount, stats.prepareTime / 1000000, stats.sql));
+        }
+    }
+
+    private static String normalizeSql(String sql) {
+        StringBuilder builder = new StringBuilder(sql.length());
+        for (int a = 0, N = sql.length(); a < N; a++) {
+            char ch = sql.charAt(a);
+            boolean value = ch == '?' || Character.isDigit(ch) || ch == '-' && a + 1 < N && Character.isDigit(sql.charAt(a + 1));
+            int len = builder.length();
+            if (value && ch != '?' && len > 0) {
+                char prev = builder.charAt(len - 1);
+                if (Character.isLetterOrDigit(prev) || prev == '_') {
+                    value = false;
+                }
+            }
+            if (!value) {
+                builder.append(ch);
+                continue;
+            }
+            if (ch != '?') {
+                while (a + 1 < N && Character.isDigit(sql.charAt(a + 1))) {
+                    a++;
+                }
+            }
+            if (len >= 2 && builder.charAt(len - 1) == ',' && builder.charAt(len - 2) == '?') {
+                builder.setLength(len - 1);
+            } else if (len >= 3 && builder.charAt(len - 1) == ' ' && builder.charAt(len - 2) == ',' && builder.charAt(len - 3) == '?') {
+                builder.setLength(len - 2);
+            } else {
+                builder.append('?');
+            }
+        }
+        return builder.toString();
+    }
+
 	public void close() {
 		if (isOpen) {
 			try {
                 commitTransaction();
+                synchronized (statementsCache) {
+                    for (SQLitePreparedStatement statement : statementsCache.values()) {
+                        statement.finalizeQuery();
+                    }
+                    statementsCache.clear();
+                }
 				closedb(sqliteHandle);
 			} catch (SQLiteException e) {
                 FileLog.e("tmessages", e.getMessage(), e);
@@ -79,6 +343,9 @@ public class SQLiteDatabase {
 
     private StackTraceElement[] temp;
     public void beginTransaction() throws SQLiteException {
+        if (inBatch) {
+            return;
+        }
         if (inTransaction) {
             throw new SQLiteException("database already in transaction");
         }
@@ -87,11 +354,30 @@ public class SQLiteDatabase {
     }
 
     public void commitTransaction() {
-        if (!inTransaction) {
+        if (inBatch || !inTransaction) {
             return;
         }
         inTransaction = false;
         commitTransaction(sqliteHandle);
+        lastCommitTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts a transaction that begin/commitTransaction calls made before
+     * {@link #commitBatch} join instead of failing, so several writers can
+     * share a single commit.
+     */
+    public void beginBatch() throws SQLiteException {
+        beginTransaction();
+        inBatch = true;
+    }
+
+    public void commitBatch() {
+        if (!inBatch) {
+            return;
+        }
+        inBatch = false;
+        commitTransaction();
     }
 
 	native int opendb(String fileName, String tempDir) throws SQLiteException;
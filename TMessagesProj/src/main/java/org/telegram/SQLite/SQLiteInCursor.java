@@ -0,0 +1,58 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.SQLite;
+
+import java.util.List;
+
+class SQLiteInCursor extends SQLiteCursor {
+
+    private SQLiteDatabase database;
+    private String sql;
+    private List<? extends Number> ids;
+    private int offset;
+
+    SQLiteInCursor(SQLiteDatabase db, String query, List<? extends Number> list) throws SQLiteException {
+        super(null);
+        database = db;
+        sql = query;
+        ids = list;
+        prepareNextChunk();
+    }
+
+    private void prepareNextChunk() throws SQLiteException {
+        preparedStatement = null;
+        int count = ids.size() - offset;
+        if (count <= 0) {
+            return;
+        }
+        preparedStatement = database.prepareInChunk(sql, ids, offset, count);
+        offset += Math.min(count, SQLiteDatabase.getInChunkLimit());
+    }
+
+    @Override
+    public boolean next() throws SQLiteException {
+        while (preparedStatement != null) {
+            if (super.next()) {
+                return true;
+            }
+            preparedStatement.dispose();
+            prepareNextChunk();
+        }
+        inRow = false;
+        return false;
+    }
+
+    @Override
+    public void dispose() {
+        if (preparedStatement != null) {
+            preparedStatement.dispose();
+            preparedStatement = null;
+        }
+    }
+}
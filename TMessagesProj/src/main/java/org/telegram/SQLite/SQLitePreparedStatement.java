@@ -21,6 +21,12 @@ public class SQLitePreparedStatement {
 	private int queryArgsCount;
 	private boolean finalizeAfterQuery = false;
 
+    String sql;
+    boolean cached;
+    boolean inUse;
+    SQLiteDatabase.QueryStats stats;
+    private boolean executionStarted;
+
     private static HashMap<SQLitePreparedStatement, String> hashMap;
 
 	public int getStatementHandle() {
@@ -29,7 +35,14 @@ public class SQLitePreparedStatement {
 
 	public SQLitePreparedStatement(SQLiteDatabase db, String sql, boolean finalize) throws SQLiteException {
 		finalizeAfterQuery = finalize;
+		this.sql = sql;
+		stats = db.getQueryStats(sql);
+		long startTime = stats != null ? System.nanoTime() : 0;
 		sqliteStatementHandle = prepare(db.getSQLiteHandle(), sql);
+		if (stats != null) {
+			stats.prepareCount++;
+			stats.prepareTime += System.nanoTime() - startTime;
+		}
         /*if (BuildVars.DEBUG_VERSION) {
             if (hashMap == null) {
                 hashMap = new HashMap<>();
@@ -50,6 +63,7 @@ public class SQLitePreparedStatement {
         checkFinalized();
 
         reset(sqliteStatementHandle);
+        executionStarted = false;
 
         int i = 1;
         for (Object obj : args) {
@@ -57,6 +71,8 @@ public class SQLitePreparedStatement {
                 bindNull(sqliteStatementHandle, i);
             } else if (obj instanceof Integer) {
                 bindInt(sqliteStatementHandle, i, (Integer)obj);
+            } else if (obj instanceof Long) {
+                bindLong(sqliteStatementHandle, i, (Long)obj);
             } else if (obj instanceof Double) {
                 bindDouble(sqliteStatementHandle, i, (Double)obj);
             } else if (obj instanceof String) {
@@ -71,21 +87,52 @@ public class SQLitePreparedStatement {
     }
 
     public int step() throws SQLiteException {
-        return step(sqliteStatementHandle);
+        return stepInternal();
     }
 
     public SQLitePreparedStatement stepThis() throws SQLiteException {
-        step(sqliteStatementHandle);
+        stepInternal();
         return this;
     }
 
+    int stepInternal() throws SQLiteException {
+        if (stats == null) {
+            return step(sqliteStatementHandle);
+        }
+        long startTime = System.nanoTime();
+        try {
+            return step(sqliteStatementHandle);
+        } finally {
+            long time = System.nanoTime() - startTime;
+            if (!executionStarted) {
+                executionStarted = true;
+                stats.count++;
+            }
+            stats.totalTime += time;
+            if (time > stats.maxTime) {
+                stats.maxTime = time;
+            }
+        }
+    }
+
 	public void requery() throws SQLiteException {
 		checkFinalized();
 		reset(sqliteStatementHandle);
+		executionStarted = false;
 	}
 
 	public void dispose() {
-		if (finalizeAfterQuery) {
+		if (cached) {
+			try {
+				if (!isFinalized) {
+					reset(sqliteStatementHandle);
+				}
+			} catch (SQLiteException e) {
+				FileLog.e("tmessages", e.getMessage(), e);
+			}
+			executionStarted = false;
+			inUse = false;
+		} else if (finalizeAfterQuery) {
 			finalizeQuery();
 		}
 	}
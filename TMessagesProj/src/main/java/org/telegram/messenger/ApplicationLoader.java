@@ -104,7 +104,7 @@ public class ApplicationLoader extends Application {
                     }
                 }
             }
-        });
+        }, Utilities.QUEUE_KEY_WALLPAPER, DispatchQueue.PRIORITY_LOW);
     }
 
     public static Drawable getCachedWallpaper() {
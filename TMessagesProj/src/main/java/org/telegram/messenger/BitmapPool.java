@@ -0,0 +1,170 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import android.annotation.SuppressLint;
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+/**
+ * Bitmaps released by the memory cache and image receivers, kept to be
+ * decoded into through inBitmap instead of allocating a new one for every
+ * image. Works only where decodes are not purgeable, as from Lollipop on,
+ * where a bitmap can take any image that fits its allocation. Bitmaps of
+ * each config are pooled apart so a decode keeps the config it asked for.
+ */
+public class BitmapPool {
+
+    private ReusePool<Bitmap> argbPool;
+    private ReusePool<Bitmap> rgbPool;
+    private boolean enabled;
+
+    private static volatile BitmapPool Instance = null;
+
+    public static BitmapPool getInstance() {
+        BitmapPool localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (BitmapPool.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new BitmapPool();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public BitmapPool() {
+        enabled = Build.VERSION.SDK_INT >= 21;
+        int maxBytes = Math.min(8, ((ActivityManager) ApplicationLoader.applicationContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() / 14) * 1024 * 1024;
+        ReusePool.Allocator<Bitmap> allocator = new ReusePool.Allocator<Bitmap>() {
+            @SuppressLint("NewApi")
+            @Override
+            public int getSize(Bitmap item) {
+                return item.isRecycled() ? 0 : item.getAllocationByteCount();
+            }
+
+            @Override
+            public boolean canReuse(Bitmap item) {
+                return !item.isRecycled() && item.isMutable();
+            }
+
+            @Override
+            public void free(Bitmap item) {
+                if (!item.isRecycled()) {
+                    item.recycle();
+                }
+            }
+        };
+        argbPool = new ReusePool<>(maxBytes / 2, allocator);
+        rgbPool = new ReusePool<>(maxBytes / 2, allocator);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private ReusePool<Bitmap> getPool(Bitmap.Config config) {
+        if (config == null || config == Bitmap.Config.ARGB_8888) {
+            return argbPool;
+        } else if (config == Bitmap.Config.RGB_565) {
+            return rgbPool;
+        }
+        return null;
+    }
+
+    /**
+     * Gives a bitmap nobody draws anymore to the pool, or recycles it if it
+     * cannot be reused.
+     */
+    public void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+        ReusePool<Bitmap> pool = enabled ? getPool(bitmap.getConfig()) : null;
+        if (pool == null) {
+            bitmap.recycle();
+            return;
+        }
+        pool.put(bitmap);
+    }
+
+    /**
+     * Sets a pooled bitmap as inBitmap of {@code options} if one can take
+     * the image whose bounds were already decoded into them.
+     */
+    public void setInBitmap(BitmapFactory.Options options) {
+        if (!enabled || options.inPurgeable) {
+            return;
+        }
+        options.inMutable = true;
+        options.inBitmap = null;
+        ReusePool<Bitmap> pool = getPool(options.inPreferredConfig);
+        if (pool == null || options.outWidth <= 0 || options.outHeight <= 0) {
+            return;
+        }
+        int sampleSize = 1;
+        while (sampleSize * 2 <= options.inSampleSize) {
+            sampleSize *= 2;
+        }
+        long width = (options.outWidth + sampleSize - 1) / sampleSize;
+        long height = (options.outHeight + sampleSize - 1) / sampleSize;
+        long bytes = width * height * (options.inPreferredConfig == Bitmap.Config.RGB_565 ? 2 : 4);
+        if (bytes < Integer.MAX_VALUE) {
+            options.inBitmap = pool.get((int) bytes);
+        }
+    }
+
+    /**
+     * Decodes {@code path} into a pooled bitmap when possible, and again
+     * into a new one if the decoder refuses it.
+     */
+    public Bitmap decodeFile(String path, BitmapFactory.Options options) {
+        if (!enabled || options.inPurgeable) {
+            return BitmapFactory.decodeFile(path, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            options.inJustDecodeBounds = false;
+        }
+        setInBitmap(options);
+        Bitmap inBitmap = options.inBitmap;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } catch (IllegalArgumentException e) {
+            if (inBitmap == null) {
+                throw e;
+            }
+            options.inBitmap = null;
+            put(inBitmap);
+            inBitmap = null;
+            bitmap = BitmapFactory.decodeFile(path, options);
+        } finally {
+            options.inBitmap = null;
+        }
+        if (bitmap == null && inBitmap != null) {
+            put(inBitmap);
+        }
+        return bitmap;
+    }
+
+    public void clear() {
+        argbPool.clear();
+        rgbPool.clear();
+    }
+
+    public String getStats() {
+        return "argb: " + argbPool.getStats() + "; rgb565: " + rgbPool.getStats();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.tgnet.NativeByteBuffer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed format for TL blobs stored in the database. A packed blob
+ * starts with MAGIC, which is not a TL constructor, followed by a format
+ * version byte, the raw length and a raw deflate stream using the preset
+ * dictionary of that version. Anything else is a plain TL serialization, so
+ * rows written before packing was enabled stay readable. The dictionary of
+ * a released version must never change.
+ */
+public class BlobCodec {
+
+    public final static int MAGIC = 0xfee1b10b;
+    public final static int VERSION = 1;
+
+    private final static int HEADER_SIZE = 9;
+    private final static int MIN_PACK_SIZE = 96;
+
+    private final static int[] CONSTRUCTORS_V1 = new int[] {
+            0x15590068, 0x6c37c15c, 0x3a556302, 0xded218e0, 0x5910cccb, 0xf9a39f4f,
+            0xca820ed7, 0xa32dd600, 0xf3e02ea8, 0xc06b9607, 0x488a7337,
+            0xffb62b95, 0x9de7a269, 0x6153276a, 0xd91cdd54, 0x4b1b7506,
+            0xe26f42f1, 0x008c703f, 0xd559d8c8, 0xd10d979a,
+            0x6ed02538, 0xfa04579d, 0xbd610bc9, 0x76a6d327, 0x6f635b0d, 0x6cef8ac7,
+            0xe9a734fa, 0x77bfb61b, 0x53d69076, 0xcded42fe, 0x3d8ce53d, 0x3ded6320,
+            0x1cb5c415, 0xbad0e5bb, 0xbddde532, 0x9db1bc6d, 0xc992e15c
+    };
+    private final static String STRINGS_V1 = "application/octet-streamaudio/oggvideo/mp4image/webpimage/jpegsticker.webp.jpg.mp4.pdfhttps://telegram.me/https://t.me/http://www.https://www.";
+
+    private final static byte[][] DICTIONARIES = new byte[][] {
+            null,
+            buildDictionary(STRINGS_V1, CONSTRUCTORS_V1)
+    };
+
+    private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private static volatile boolean enabled = BuildVars.COMPRESS_DB_BLOBS;
+
+    private static byte[] buildDictionary(String strings, int[] constructors) {
+        byte[] prefix = strings.getBytes();
+        ByteBuffer buffer = ByteBuffer.allocate(prefix.length + constructors.length * 4);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(prefix);
+        for (int a = 0; a < constructors.length; a++) {
+            buffer.putInt(constructors[a]);
+        }
+        return buffer.array();
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static boolean isPacked(NativeByteBuffer data) {
+        return data.limit() >= HEADER_SIZE && data.buffer.getInt(0) == MAGIC;
+    }
+
+    /**
+     * Returns {@code data} packed into a new buffer and reuses {@code data},
+     * or returns {@code data} itself if packing is disabled or does not pay
+     * off. The result has to be reused by the caller as before.
+     */
+    public static NativeByteBuffer pack(NativeByteBuffer data) {
+        if (!enabled || data == null || data.limit() < MIN_PACK_SIZE || isPacked(data)) {
+            return data;
+        }
+        try {
+            byte[] raw = new byte[data.limit()];
+            int position = data.position();
+            data.position(0);
+            data.buffer.get(raw);
+            data.position(position);
+
+            byte[] packed = pack(raw);
+            if (packed == null) {
+                return data;
+            }
+            NativeByteBuffer result = NativeByteBuffer.obtain(packed.length);
+            result.writeBytes(packed);
+            result.position(0);
+            data.reuse();
+            return result;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        return data;
+    }
+
+    /**
+     * Returns the packed blob of {@code raw}, or null if it is too small or
+     * does not shrink by at least an eighth.
+     */
+    static byte[] pack(byte[] raw) {
+        int length = raw.length;
+        if (length < MIN_PACK_SIZE) {
+            return null;
+        }
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARIES[VERSION]);
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] packed = new byte[length - length / 8];
+        int size = deflater.deflate(packed, HEADER_SIZE, packed.length - HEADER_SIZE);
+        if (!deflater.finished()) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packed, 0, HEADER_SIZE);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putInt(length);
+        byte[] result = new byte[HEADER_SIZE + size];
+        System.arraycopy(packed, 0, result, 0, result.length);
+        return result;
+    }
+
+    /**
+     * Returns the plain TL serialization of a blob read from the database,
+     * positioned at 0. A packed {@code data} is reused and replaced by a new
+     * buffer; anything else is returned as is.
+     */
+    public static NativeByteBuffer unpack(NativeByteBuffer data) {
+        if (data == null || !isPacked(data)) {
+            return data;
+        }
+        try {
+            byte[] packed = new byte[data.limit()];
+            data.position(0);
+            data.buffer.get(packed);
+            data.position(0);
+
+            byte[] raw = unpack(packed);
+            if (raw == null) {
+                return data;
+            }
+            NativeByteBuffer result = NativeByteBuffer.obtain(raw.length);
+            result.writeBytes(raw);
+            result.position(0);
+            data.reuse();
+            return result;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        data.position(0);
+        return data;
+    }
+
+    /**
+     * Returns the raw bytes of the packed blob {@code packed}, or null if it
+     * is not one or cannot be inflated.
+     */
+    static byte[] unpack(byte[] packed) throws Exception {
+        if (packed.length < HEADER_SIZE) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(packed);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt(0) != MAGIC) {
+            return null;
+        }
+        int version = buffer.get(4);
+        int length = buffer.getInt(5);
+        if (version <= 0 || version >= DICTIONARIES.length || length <= 0) {
+            FileLog.e("tmessages", "unknown blob format " + version);
+            return null;
+        }
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setDictionary(DICTIONARIES[version]);
+        inflater.setInput(packed, HEADER_SIZE, packed.length - HEADER_SIZE);
+        byte[] raw = new byte[length];
+        int size = inflater.inflate(raw);
+        if (size != length || !inflater.finished()) {
+            FileLog.e("tmessages", "broken packed blob, " + size + " of " + length + " bytes");
+            return null;
+        }
+        return raw;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+import org.telegram.SQLite.SQLitePreparedStatement;
+import org.telegram.tgnet.NativeByteBuffer;
+
+import java.util.Locale;
+
+/**
+ * Rewrites TL blobs stored before packing was enabled in the BlobCodec
+ * format, one small batch per storage queue turn. Progress of every column
+ * is kept in keyvalue, so the work resumes after a restart and runs again
+ * for a new codec version. Must only be used on the storage queue.
+ */
+public class BlobCompactor {
+
+    private final static int BATCH = 200;
+    private final static int DELAY = 500;
+    private final static String DONE = "done";
+
+    private final static String[][] COLUMNS = new String[][] {
+            {"messages", "mid", "data"},
+            {"messages", "mid", "replydata"},
+            {"media_v2", "mid", "data"},
+            {"users", "uid", "data"},
+            {"chats", "uid", "data"}
+    };
+
+    private boolean running;
+    private int generation;
+    private long packedBytes;
+
+    public void clear() {
+        running = false;
+        generation++;
+    }
+
+    public void markDone(SQLiteDatabase database) {
+        try {
+            for (int a = 0; a < COLUMNS.length; a++) {
+                setState(database, a, DONE);
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    public void start(DispatchQueue queue, SQLiteDatabase database) {
+        if (running || !BlobCodec.isEnabled()) {
+            return;
+        }
+        running = true;
+        packedBytes = 0;
+        next(queue, database, 0, generation);
+    }
+
+    private void next(final DispatchQueue queue, final SQLiteDatabase database, final int column, final int currentGeneration) {
+        queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (!running || currentGeneration != generation) {
+                    return;
+                }
+                try {
+                    int index = column;
+                    String state = null;
+                    for (; index < COLUMNS.length; index++) {
+                        state = getState(database, index);
+                        if (!DONE.equals(state)) {
+                            break;
+                        }
+                    }
+                    if (index == COLUMNS.length) {
+                        running = false;
+                        FileLog.e("tmessages", "blob compaction done, saved " + packedBytes + " bytes");
+                        return;
+                    }
+                    long fromKey = state != null ? Long.parseLong(state) : Long.MIN_VALUE;
+                    database.beginTransaction();
+                    String[] info = COLUMNS[index];
+                    long lastKey = fromKey;
+                    int count = 0;
+                    SQLitePreparedStatement update = database.executeFast(String.format(Locale.US, "UPDATE %s SET %s = ? WHERE %s = ?", info[0], info[2], info[1]));
+                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT %s, %s FROM %s WHERE %s > %d ORDER BY %s ASC LIMIT %d", info[1], info[2], info[0], info[1], fromKey, info[1], BATCH));
+                    while (cursor.next()) {
+                        lastKey = cursor.longValue(0);
+                        count++;
+                        if (cursor.isNull(1)) {
+                            continue;
+                        }
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
+                        if (data != null && cursor.byteBufferValue(1, data) != 0 && !BlobCodec.isPacked(data)) {
+                            int length = data.limit();
+                            NativeByteBuffer packed = BlobCodec.pack(data);
+                            if (packed != data) {
+                                packedBytes += length - packed.limit();
+                                update.requery();
+                                update.bindByteBuffer(1, packed);
+                                update.bindLong(2, lastKey);
+                                update.step();
+                            }
+                            data = packed;
+                        }
+                        data.reuse();
+                    }
+                    cursor.dispose();
+                    update.dispose();
+                    setState(database, index, count < BATCH ? DONE : String.valueOf(lastKey));
+                    database.commitTransaction();
+                    next(queue, database, index, currentGeneration);
+                } catch (Exception e) {
+                    database.commitTransaction();
+                    running = false;
+                    FileLog.e("tmessages", e);
+                }
+            }
+        }, DELAY);
+    }
+
+    private String getKey(int column) {
+        String[] info = COLUMNS[column];
+        return "blob_v" + BlobCodec.VERSION + "_" + info[0] + "_" + info[2];
+    }
+
+    private String getState(SQLiteDatabase database, int column) throws Exception {
+        String state = null;
+        SQLiteCursor cursor = database.queryFinalized("SELECT value FROM keyvalue WHERE id = '" + getKey(column) + "'");
+        if (cursor.next()) {
+            state = cursor.stringValue(0);
+        }
+        cursor.dispose();
+        return state;
+    }
+
+    private void setState(SQLiteDatabase database, int column, String value) throws Exception {
+        SQLitePreparedStatement state = database.executeFast("REPLACE INTO keyvalue VALUES(?, ?)");
+        state.bindString(1, getKey(column));
+        state.bindString(2, value);
+        state.step();
+        state.dispose();
+    }
+}
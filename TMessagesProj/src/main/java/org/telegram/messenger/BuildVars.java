@@ -11,6 +11,7 @@ package org.telegram.messenger;
 public class BuildVars {
     public static boolean DEBUG_VERSION = false;
     public static int BUILD_VERSION = 719;
+    public static boolean COMPRESS_DB_BLOBS = false;
     public static int APP_ID = 36436; //obtain your own APP_ID at https://core.telegram.org/api/obtaining_api_id
     public static String APP_HASH = "ffdd4c20bafcb24133bc5dba27feccdb"; //obtain your own APP_HASH at https://core.telegram.org/api/obtaining_api_id
     public static String HOCKEY_APP_HASH = "bb9153fbaf884126acb9b55d733fbd87";
@@ -275,7 +275,7 @@ public class ContactsController {
                     ContactsController.getInstance().performSyncPhoneBook(ContactsController.getInstance().getContactsCopy(ContactsController.getInstance().contactsBook), true, false, true);
                 }
             }
-        });
+        }, Utilities.QUEUE_KEY_CONTACTS, DispatchQueue.PRIORITY_NORMAL);
     }
 
     private boolean checkContactsInternal() {
@@ -865,7 +865,7 @@ public class ContactsController {
                     }
                 }
             }
-        });
+        }, Utilities.QUEUE_KEY_CONTACTS, DispatchQueue.PRIORITY_NORMAL);
     }
 
     public boolean isLoadingContacts() {
@@ -1128,7 +1128,7 @@ public class ContactsController {
                                         public void run() {
                                             contactsByPhone = contactsByPhonesDictFinal;
                                         }
-                                    });
+                                    }, Utilities.QUEUE_KEY_CONTACTS, DispatchQueue.PRIORITY_NORMAL);
                                     if (contactsSyncInProgress) {
                                         return;
                                     }
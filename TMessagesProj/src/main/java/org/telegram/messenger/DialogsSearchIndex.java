@@ -0,0 +1,422 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+import org.telegram.SQLite.SQLitePreparedStatement;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Word index over the name columns of users, chats and enc_chats, kept in
+ * the search_tokens table. Rows are rewritten together with the names in
+ * MessagesStorage, so nothing is rebuilt at launch; a search only reads the
+ * tokens in its prefix range and the names of those dialogs. Must only be
+ * used on the storage queue.
+ */
+public class DialogsSearchIndex {
+
+    public final static int TYPE_USER = 0;
+    public final static int TYPE_CHAT = 1;
+    public final static int TYPE_BROADCAST = 2;
+    public final static int TYPE_ENCRYPTED = 3;
+
+    public final static int FOUND_NAME = 1;
+    public final static int FOUND_USERNAME = 2;
+
+    private static class Entry {
+        long did;
+        int type;
+        int id;
+        int date;
+        String name;
+        String tName;
+        String username;
+    }
+
+    public static class Match {
+        public long did;
+        public int type;
+        public int id;
+        public int date;
+        public int found;
+        public String query;
+    }
+
+    private final Comparator<Match> dateComparator = new Comparator<Match>() {
+        @Override
+        public int compare(Match lhs, Match rhs) {
+            if (lhs.date < rhs.date) {
+                return 1;
+            } else if (lhs.date > rhs.date) {
+                return -1;
+            }
+            return 0;
+        }
+    };
+
+    private boolean available;
+
+    public void clear() {
+        available = false;
+    }
+
+    public void createTable(SQLiteDatabase database) {
+        available = false;
+        try {
+            boolean exists = database.tableExists("search_tokens");
+            database.executeFast("CREATE TABLE IF NOT EXISTS search_tokens(token TEXT, did INTEGER, PRIMARY KEY(token, did)) WITHOUT ROWID").stepThis().dispose();
+            database.executeFast("CREATE INDEX IF NOT EXISTS did_idx_search_tokens ON search_tokens(did);").stepThis().dispose();
+            if (!exists) {
+                try {
+                    rebuild(database);
+                } catch (Exception e) {
+                    database.executeFast("DROP TABLE IF EXISTS search_tokens").stepThis().dispose();
+                    throw e;
+                }
+            }
+            available = true;
+        } catch (Exception e) {
+            available = false;
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    /**
+     * Tokenizes every stored name once, for databases created before the
+     * table existed.
+     */
+    private void rebuild(SQLiteDatabase database) throws Exception {
+        long time = System.currentTimeMillis();
+        int count = 0;
+        available = true;
+        database.beginTransaction();
+        try {
+            database.executeFast("DELETE FROM search_tokens").stepThis().dispose();
+            SQLiteCursor cursor = database.queryFinalized("SELECT uid, name FROM users WHERE 1");
+            while (cursor.next()) {
+                updateUserName(database, cursor.intValue(0), cursor.stringValue(1));
+                count++;
+            }
+            cursor.dispose();
+            cursor = database.queryFinalized("SELECT uid, name FROM chats WHERE 1");
+            while (cursor.next()) {
+                updateChatName(database, cursor.intValue(0), cursor.stringValue(1));
+                count++;
+            }
+            cursor.dispose();
+            cursor = database.queryFinalized("SELECT uid, name FROM enc_chats WHERE 1");
+            while (cursor.next()) {
+                updateEncryptedChatName(database, cursor.intValue(0), cursor.stringValue(1));
+                count++;
+            }
+            cursor.dispose();
+        } finally {
+            database.commitTransaction();
+        }
+        FileLog.d("tmessages", "search tokens built for " + count + " names in " + (System.currentTimeMillis() - time) + " ms");
+    }
+
+    public void updateUserName(SQLiteDatabase database, int uid, String name) throws Exception {
+        setName(database, uid, TYPE_USER, name);
+    }
+
+    public void updateChatName(SQLiteDatabase database, int chatId, String name) throws Exception {
+        setName(database, chatId > 0 ? (long) -chatId : AndroidUtilities.makeBroadcastId(chatId), TYPE_CHAT, name);
+    }
+
+    public void updateEncryptedChatName(SQLiteDatabase database, int chatId, String name) throws Exception {
+        setName(database, ((long) chatId) << 32, TYPE_ENCRYPTED, name);
+    }
+
+    public void removeName(SQLiteDatabase database, long did) throws Exception {
+        setName(database, did, TYPE_CHAT, null);
+    }
+
+    public ArrayList<Match> searchDialogs(SQLiteDatabase database, String[] queries, int dialogsType, int limit) throws Exception {
+        ArrayList<Match> result = new ArrayList<>();
+        if (!available) {
+            return result;
+        }
+        HashSet<Long> found = new HashSet<>();
+        for (String q : queries) {
+            String prefix = getPrefix(q);
+            if (prefix == null) {
+                continue;
+            }
+            HashMap<Long, Entry> candidates = new HashMap<>();
+            SQLiteCursor cursor = database.queryCached("SELECT DISTINCT t.did, d.date FROM search_tokens as t INNER JOIN dialogs as d ON d.did = t.did WHERE t.token >= ? AND t.token < ?", prefix, getUpperBound(prefix));
+            while (cursor.next()) {
+                long did = cursor.longValue(0);
+                if (found.contains(did)) {
+                    continue;
+                }
+                Entry entry = createEntry(did);
+                if (entry == null || entry.type == TYPE_USER && dialogsType == 2 || (entry.type == TYPE_BROADCAST || entry.type == TYPE_ENCRYPTED) && dialogsType != 0) {
+                    continue;
+                }
+                entry.date = cursor.intValue(1);
+                candidates.put(did, entry);
+            }
+            cursor.dispose();
+            loadNames(database, candidates);
+            for (Entry entry : candidates.values()) {
+                Match match = matchEntry(entry, q);
+                if (match != null) {
+                    found.add(entry.did);
+                    result.add(match);
+                }
+            }
+        }
+        Collections.sort(result, dateComparator);
+        if (result.size() > limit) {
+            result.subList(limit, result.size()).clear();
+        }
+        return result;
+    }
+
+    public ArrayList<Match> searchContacts(SQLiteDatabase database, String[] queries, int limit) throws Exception {
+        ArrayList<Match> result = new ArrayList<>();
+        if (!available) {
+            return result;
+        }
+        HashSet<Long> found = new HashSet<>();
+        for (String q : queries) {
+            String prefix = getPrefix(q);
+            if (prefix == null) {
+                continue;
+            }
+            HashMap<Long, Entry> candidates = new HashMap<>();
+            SQLiteCursor cursor = database.queryCached("SELECT DISTINCT t.did FROM search_tokens as t INNER JOIN contacts as c ON c.uid = t.did WHERE t.token >= ? AND t.token < ? AND NOT EXISTS (SELECT 1 FROM dialogs WHERE did = t.did)", prefix, getUpperBound(prefix));
+            while (cursor.next()) {
+                long did = cursor.longValue(0);
+                if (found.contains(did)) {
+                    continue;
+                }
+                Entry entry = createEntry(did);
+                if (entry != null && entry.type == TYPE_USER) {
+                    candidates.put(did, entry);
+                }
+            }
+            cursor.dispose();
+            loadNames(database, candidates);
+            for (Entry entry : candidates.values()) {
+                Match match = matchEntry(entry, q);
+                if (match != null) {
+                    found.add(entry.did);
+                    result.add(match);
+                    if (result.size() >= limit) {
+                        return result;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private Match matchEntry(Entry entry, String q) {
+        if (entry.name == null) {
+            return null;
+        }
+        int found = getFound(entry.name, entry.tName, entry.username, q);
+        if (found == 0) {
+            return null;
+        }
+        Match match = new Match();
+        match.did = entry.did;
+        match.type = entry.type;
+        match.id = entry.id;
+        match.date = entry.date;
+        match.found = found;
+        match.query = q;
+        return match;
+    }
+
+    /**
+     * Returns FOUND_NAME if a word of the name or its translit starts with
+     * {@code q}, FOUND_USERNAME if the username does, or 0.
+     */
+    static int getFound(String name, String tName, String username, String q) {
+        if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
+            return FOUND_NAME;
+        } else if (username != null && username.startsWith(q)) {
+            return FOUND_USERNAME;
+        }
+        return 0;
+    }
+
+    static String getPrefix(String q) {
+        int index = q.indexOf(' ');
+        String prefix = index == -1 ? q : q.substring(0, index);
+        return prefix.length() == 0 ? null : prefix;
+    }
+
+    /**
+     * Smallest string greater than every string starting with {@code prefix}.
+     * Incrementing the last char keeps the order in the UTF-8 encoding SQLite
+     * compares with, which appending U+FFFF would not for chars outside the BMP.
+     */
+    static String getUpperBound(String prefix) {
+        int last = prefix.length() - 1;
+        return prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+    }
+
+    private static Entry createEntry(long did) {
+        int lower_id = (int) did;
+        int high_id = (int) (did >> 32);
+        Entry entry = new Entry();
+        entry.did = did;
+        if (lower_id != 0) {
+            if (high_id == 1) {
+                entry.type = TYPE_BROADCAST;
+                entry.id = lower_id;
+            } else if (lower_id > 0) {
+                entry.type = TYPE_USER;
+                entry.id = lower_id;
+            } else {
+                entry.type = TYPE_CHAT;
+                entry.id = -lower_id;
+            }
+        } else if (high_id != 0) {
+            entry.type = TYPE_ENCRYPTED;
+            entry.id = high_id;
+        } else {
+            return null;
+        }
+        return entry;
+    }
+
+    private void loadNames(SQLiteDatabase database, HashMap<Long, Entry> candidates) throws Exception {
+        ArrayList<Integer> usersToLoad = new ArrayList<>();
+        ArrayList<Integer> chatsToLoad = new ArrayList<>();
+        ArrayList<Integer> encryptedToLoad = new ArrayList<>();
+        for (Entry entry : candidates.values()) {
+            if (entry.type == TYPE_USER) {
+                usersToLoad.add(entry.id);
+            } else if (entry.type == TYPE_ENCRYPTED) {
+                encryptedToLoad.add(entry.id);
+            } else {
+                chatsToLoad.add(entry.type == TYPE_CHAT ? entry.id : (int) entry.did);
+            }
+        }
+        if (!usersToLoad.isEmpty()) {
+            SQLiteCursor cursor = database.queryIn("SELECT uid, name FROM users WHERE uid IN(%s)", usersToLoad);
+            while (cursor.next()) {
+                readName(candidates.get((long) cursor.intValue(0)), cursor.stringValue(1));
+            }
+            cursor.dispose();
+        }
+        if (!chatsToLoad.isEmpty()) {
+            SQLiteCursor cursor = database.queryIn("SELECT uid, name FROM chats WHERE uid IN(%s)", chatsToLoad);
+            while (cursor.next()) {
+                int chatId = cursor.intValue(0);
+                readName(candidates.get(chatId > 0 ? (long) -chatId : AndroidUtilities.makeBroadcastId(chatId)), cursor.stringValue(1));
+            }
+            cursor.dispose();
+        }
+        if (!encryptedToLoad.isEmpty()) {
+            SQLiteCursor cursor = database.queryIn("SELECT uid, name FROM enc_chats WHERE uid IN(%s)", encryptedToLoad);
+            while (cursor.next()) {
+                readName(candidates.get(((long) cursor.intValue(0)) << 32), cursor.stringValue(1));
+            }
+            cursor.dispose();
+        }
+    }
+
+    private void readName(Entry entry, String name) {
+        if (entry == null) {
+            return;
+        }
+        if (name == null) {
+            name = "";
+        }
+        entry.name = name;
+        entry.tName = LocaleController.getInstance().getTranslitString(name);
+        if (name.equals(entry.tName)) {
+            entry.tName = null;
+        }
+        entry.username = getUsername(entry.type, name);
+    }
+
+    private void setName(SQLiteDatabase database, long did, int type, String name) throws Exception {
+        if (!available) {
+            return;
+        }
+        SQLitePreparedStatement state = database.executeCached("DELETE FROM search_tokens WHERE did = ?");
+        state.requery();
+        state.bindLong(1, did);
+        state.step();
+        state.dispose();
+        if (name == null || name.length() == 0) {
+            return;
+        }
+        String tName = LocaleController.getInstance().getTranslitString(name);
+        ArrayList<String> tokens = getTokens(name, name.equals(tName) ? null : tName, getUsername(type, name));
+        if (tokens.isEmpty()) {
+            return;
+        }
+        state = database.executeCached("REPLACE INTO search_tokens VALUES(?, ?)");
+        for (int a = 0; a < tokens.size(); a++) {
+            state.requery();
+            state.bindString(1, tokens.get(a));
+            state.bindLong(2, did);
+            state.step();
+        }
+        state.dispose();
+    }
+
+    static String getUsername(int type, String name) {
+        if (type == TYPE_USER || type == TYPE_ENCRYPTED) {
+            int usernamePos = name.lastIndexOf(";;;");
+            if (usernamePos != -1) {
+                return name.substring(usernamePos + 3);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Space separated words of {@code name} and {@code tName} plus the
+     * username, without duplicates.
+     */
+    static ArrayList<String> getTokens(String name, String tName, String username) {
+        ArrayList<String> tokens = new ArrayList<>();
+        addTokens(tokens, name);
+        if (tName != null) {
+            addTokens(tokens, tName);
+        }
+        if (username != null && username.length() != 0 && !tokens.contains(username)) {
+            tokens.add(username);
+        }
+        return tokens;
+    }
+
+    private static void addTokens(ArrayList<String> tokens, String name) {
+        int start = 0;
+        int length = name.length();
+        while (start < length) {
+            int end = name.indexOf(' ', start);
+            if (end == -1) {
+                end = length;
+            }
+            if (end > start) {
+                String token = name.substring(start, end);
+                if (!tokens.contains(token)) {
+                    tokens.add(token);
+                }
+            }
+            start = end + 1;
+        }
+    }
+}
@@ -11,19 +11,180 @@ package org.telegram.messenger;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.concurrent.CountDownLatch;
 
 public class DispatchQueue extends Thread {
 
+    public final static int PRIORITY_HIGH = 0;
+    public final static int PRIORITY_NORMAL = 1;
+    public final static int PRIORITY_LOW = 2;
+    private final static int PRIORITIES_COUNT = 3;
+
+    public final static long KEY_DEFAULT = 0;
+
     private volatile Handler handler = null;
     private CountDownLatch syncLatch = new CountDownLatch(1);
 
+    private final Object poolSync = new Object();
+    private Worker[] workers;
+    private HashMap<Long, Lane> lanes;
+    private ArrayDeque<Lane>[] readyLanes;
+    private boolean lifo;
+
+    private int queueDepth;
+    private int maxQueueDepth;
+    private long executedCount;
+    private long totalWaitTime;
+    private long maxWaitTime;
+    private long totalRunTime;
+
+    private static class Task {
+        Runnable runnable;
+        int priority;
+        long enqueueTime;
+    }
+
+    private static class Lane {
+        long key;
+        ArrayDeque<Task> tasks = new ArrayDeque<>();
+        int[] counts = new int[PRIORITIES_COUNT];
+        int priority;
+        boolean running;
+        boolean scheduled;
+    }
+
+    private class Worker extends Thread {
+
+        public Worker(String name) {
+            setName(name);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Lane lane;
+                Task task;
+                synchronized (poolSync) {
+                    lane = pollReadyLane();
+                    while (lane == null) {
+                        try {
+                            poolSync.wait();
+                        } catch (InterruptedException e) {
+                            //a late cancel of the previous task, keep serving
+                        }
+                        lane = pollReadyLane();
+                    }
+                    task = lane.tasks.poll();
+                    lane.counts[task.priority]--;
+                    lane.running = true;
+                    queueDepth--;
+                }
+                long startTime = SystemClock.elapsedRealtime();
+                Throwable error = null;
+                try {
+                    task.runnable.run();
+                } catch (Throwable e) {
+                    error = e;
+                }
+                Thread.interrupted();
+                long endTime = SystemClock.elapsedRealtime();
+                synchronized (poolSync) {
+                    long waitTime = startTime - task.enqueueTime;
+                    executedCount++;
+                    totalWaitTime += waitTime;
+                    totalRunTime += endTime - startTime;
+                    if (waitTime > maxWaitTime) {
+                        maxWaitTime = waitTime;
+                    }
+                    lane.running = false;
+                    if (lane.tasks.isEmpty()) {
+                        lanes.remove(lane.key);
+                    } else {
+                        scheduleLane(lane);
+                    }
+                }
+                if (error != null) {
+                    //crash as the looper thread did, but only once the lane is released
+                    getUncaughtExceptionHandler().uncaughtException(this, error);
+                }
+            }
+        }
+    }
+
     public DispatchQueue(final String threadName) {
         setName(threadName);
         start();
     }
 
+    public DispatchQueue(final String threadName, int workersCount) {
+        this(threadName, workersCount, false);
+    }
+
+    /**
+     * Creates a pool of {@code workersCount} threads. A {@code lifo} pool
+     * runs the latest lane of the highest priority first, which suits work
+     * for whatever was requested last, like images of a scrolled list.
+     */
+    @SuppressWarnings("unchecked")
+    public DispatchQueue(final String threadName, int workersCount, boolean lifo) {
+        this.lifo = lifo;
+        if (workersCount > 1) {
+            lanes = new HashMap<>();
+            readyLanes = new ArrayDeque[PRIORITIES_COUNT];
+            for (int a = 0; a < PRIORITIES_COUNT; a++) {
+                readyLanes[a] = new ArrayDeque<>();
+            }
+            workers = new Worker[workersCount];
+            for (int a = 0; a < workersCount; a++) {
+                workers[a] = new Worker(threadName + "_" + a);
+                workers[a].start();
+            }
+        }
+        setName(threadName);
+        start();
+    }
+
+    public boolean isPooled() {
+        return workers != null;
+    }
+
+    public void setWorkersPriority(int priority) {
+        if (workers == null) {
+            return;
+        }
+        for (int a = 0; a < workers.length; a++) {
+            workers[a].setPriority(priority);
+        }
+    }
+
+    /**
+     * Moves the waiting lane of {@code key} to the front of its priority, as
+     * if it was posted just now. Returns false if it is not waiting.
+     */
+    public boolean bumpRunnable(long key) {
+        if (workers == null) {
+            return false;
+        }
+        synchronized (poolSync) {
+            Lane lane = lanes.get(key);
+            if (lane == null || !lane.scheduled) {
+                return false;
+            }
+            readyLanes[lane.priority].remove(lane);
+            if (lifo) {
+                readyLanes[lane.priority].addLast(lane);
+            } else {
+                readyLanes[lane.priority].addFirst(lane);
+            }
+            return true;
+        }
+    }
+
     private void sendMessage(Message msg, int delay) {
         try {
             syncLatch.await();
@@ -40,7 +201,30 @@ public class DispatchQueue extends Thread {
     public void cancelRunnable(Runnable runnable) {
         try {
             syncLatch.await();
-            handler.removeCallbacks(runnable);
+            if (workers != null) {
+                handler.removeCallbacksAndMessages(runnable);
+                synchronized (poolSync) {
+                    Iterator<Lane> iterator = lanes.values().iterator();
+                    while (iterator.hasNext()) {
+                        Lane lane = iterator.next();
+                        Iterator<Task> tasks = lane.tasks.iterator();
+                        while (tasks.hasNext()) {
+                            Task task = tasks.next();
+                            if (task.runnable == runnable) {
+                                tasks.remove();
+                                lane.counts[task.priority]--;
+                                queueDepth--;
+                            }
+                        }
+                        if (lane.tasks.isEmpty() && !lane.running) {
+                            unscheduleLane(lane);
+                            iterator.remove();
+                        }
+                    }
+                }
+            } else {
+                handler.removeCallbacks(runnable);
+            }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
@@ -51,9 +235,28 @@ public class DispatchQueue extends Thread {
     }
 
     public void postRunnable(Runnable runnable, long delay) {
+        postRunnable(runnable, delay, KEY_DEFAULT, PRIORITY_NORMAL);
+    }
+
+    public void postRunnable(Runnable runnable, long key, int priority) {
+        postRunnable(runnable, 0, key, priority);
+    }
+
+    public void postRunnable(final Runnable runnable, long delay, final long key, final int priority) {
         try {
             syncLatch.await();
-            if (delay <= 0) {
+            if (workers != null) {
+                if (delay <= 0) {
+                    enqueue(runnable, key, priority);
+                } else {
+                    handler.postAtTime(new Runnable() {
+                        @Override
+                        public void run() {
+                            enqueue(runnable, key, priority);
+                        }
+                    }, runnable, SystemClock.uptimeMillis() + delay);
+                }
+            } else if (delay <= 0) {
                 handler.post(runnable);
             } else {
                 handler.postDelayed(runnable, delay);
@@ -67,11 +270,157 @@ public class DispatchQueue extends Thread {
         try {
             syncLatch.await();
             handler.removeCallbacksAndMessages(null);
+            if (workers != null) {
+                synchronized (poolSync) {
+                    Iterator<Lane> iterator = lanes.values().iterator();
+                    while (iterator.hasNext()) {
+                        Lane lane = iterator.next();
+                        queueDepth -= lane.tasks.size();
+                        lane.tasks.clear();
+                        for (int a = 0; a < PRIORITIES_COUNT; a++) {
+                            lane.counts[a] = 0;
+                        }
+                        if (!lane.running) {
+                            iterator.remove();
+                        }
+                    }
+                    for (int a = 0; a < PRIORITIES_COUNT; a++) {
+                        readyLanes[a].clear();
+                    }
+                }
+            }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
     }
 
+    public int getQueueDepth() {
+        if (workers == null) {
+            return 0;
+        }
+        synchronized (poolSync) {
+            return queueDepth;
+        }
+    }
+
+    public int getMaxQueueDepth() {
+        if (workers == null) {
+            return 0;
+        }
+        synchronized (poolSync) {
+            return maxQueueDepth;
+        }
+    }
+
+    public long getExecutedCount() {
+        if (workers == null) {
+            return 0;
+        }
+        synchronized (poolSync) {
+            return executedCount;
+        }
+    }
+
+    public long getAverageWaitTime() {
+        if (workers == null) {
+            return 0;
+        }
+        synchronized (poolSync) {
+            return executedCount != 0 ? totalWaitTime / executedCount : 0;
+        }
+    }
+
+    public long getMaxWaitTime() {
+        if (workers == null) {
+            return 0;
+        }
+        synchronized (poolSync) {
+            return maxWaitTime;
+        }
+    }
+
+    public long getAverageRunTime() {
+        if (workers == null) {
+            return 0;
+        }
+        synchronized (poolSync) {
+            return executedCount != 0 ? totalRunTime / executedCount : 0;
+        }
+    }
+
+    public void resetStats() {
+        if (workers == null) {
+            return;
+        }
+        synchronized (poolSync) {
+            maxQueueDepth = queueDepth;
+            executedCount = 0;
+            totalWaitTime = 0;
+            maxWaitTime = 0;
+            totalRunTime = 0;
+        }
+    }
+
+    private void enqueue(Runnable runnable, long key, int priority) {
+        if (priority < PRIORITY_HIGH || priority >= PRIORITIES_COUNT) {
+            priority = PRIORITY_NORMAL;
+        }
+        Task task = new Task();
+        task.runnable = runnable;
+        task.priority = priority;
+        task.enqueueTime = SystemClock.elapsedRealtime();
+        synchronized (poolSync) {
+            Lane lane = lanes.get(key);
+            if (lane == null) {
+                lane = new Lane();
+                lane.key = key;
+                lanes.put(key, lane);
+            }
+            lane.tasks.add(task);
+            lane.counts[priority]++;
+            queueDepth++;
+            if (queueDepth > maxQueueDepth) {
+                maxQueueDepth = queueDepth;
+            }
+            if (lane.scheduled && priority < lane.priority) {
+                unscheduleLane(lane);
+            }
+            if (!lane.running && !lane.scheduled) {
+                scheduleLane(lane);
+            }
+        }
+    }
+
+    private void scheduleLane(Lane lane) {
+        int priority = PRIORITY_HIGH;
+        while (priority < PRIORITY_LOW && lane.counts[priority] == 0) {
+            priority++;
+        }
+        lane.priority = priority;
+        lane.scheduled = true;
+        readyLanes[priority].add(lane);
+        poolSync.notify();
+    }
+
+    private void unscheduleLane(Lane lane) {
+        if (!lane.scheduled) {
+            return;
+        }
+        lane.scheduled = false;
+        readyLanes[lane.priority].remove(lane);
+    }
+
+    private Lane pollReadyLane() {
+        for (int a = 0; a < PRIORITIES_COUNT; a++) {
+            Lane lane = lifo ? readyLanes[a].pollLast() : readyLanes[a].poll();
+            if (lane != null) {
+                lane.scheduled = false;
+                return lane;
+            }
+        }
+        return null;
+    }
+
     @Override
     public void run() {
         Looper.prepare();
@@ -0,0 +1,362 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TreeSet;
+
+/**
+ * Decides which file downloads run and how many bytes they may have in
+ * flight. Every media class keeps its queue of waiting operations sorted by
+ * request order, visible (forced) requests first and the latest of them in
+ * front, so moving an operation is a tree removal and insertion. Running
+ * operations share a global in-flight byte budget: the first request of an
+ * operation is always let through, further ones wait while the budget is
+ * used up and are handed out in weighted fair order, by bytes already
+ * granted to the class divided by its weight. Thumbnails therefore keep
+ * loading while a large document has its window full. Admission runs on the
+ * file loader queue, the budget on the stage queue.
+ */
+public class DownloadScheduler {
+
+    public final static int CLASS_PHOTO = 0;
+    public final static int CLASS_AUDIO = 1;
+    public final static int CLASS_FILE = 2;
+    private final static int CLASSES_COUNT = 3;
+
+    private final static String[] NAMES = new String[] {"photo", "audio", "file"};
+    private final static int[] WEIGHTS = new int[] {8, 4, 1};
+    private final static int VISIBLE_WEIGHT = 2;
+    private final static int MAX_LOADS = 1;
+    private final static int MAX_FORCE_LOADS = 3;
+    private final static int IN_FLIGHT_BYTES = 1024 * 1024 * 3;
+    private final static int WAIT_SAMPLES = 64;
+
+    private static class Entry {
+        private FileLoadOperation operation;
+        private int type;
+        private boolean visible;
+        private long order;
+        private long enqueueTime;
+        private boolean running;
+        private int heldBytes;
+        private int reservedBytes;
+        private int requestedBytes;
+        private boolean waiting;
+    }
+
+    private static class ClassStats {
+        private long bytes;
+        private long activeTime;
+        private long activeStart;
+        private int inFlightBytes;
+        private int started;
+        private long totalWait;
+        private long maxWait;
+        private long[] waits = new long[WAIT_SAMPLES];
+        private int budgetStalls;
+        private double virtualTime;
+    }
+
+    private Comparator<Entry> comparator = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.order < rhs.order) {
+                return -1;
+            } else if (lhs.order > rhs.order) {
+                return 1;
+            }
+            return 0;
+        }
+    };
+
+    private ArrayList<TreeSet<Entry>> queues = new ArrayList<>(CLASSES_COUNT);
+    private HashMap<FileLoadOperation, Entry> entries = new HashMap<>();
+    private ArrayList<Entry> budgetWaiters = new ArrayList<>();
+    private ClassStats[] stats = new ClassStats[CLASSES_COUNT];
+    private int[] runningCount = new int[CLASSES_COUNT];
+    private int inFlightBytes;
+    private long lastOrder;
+
+    private static volatile DownloadScheduler Instance = null;
+
+    public static DownloadScheduler getInstance() {
+        DownloadScheduler localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (DownloadScheduler.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new DownloadScheduler();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    public DownloadScheduler() {
+        for (int a = 0; a < CLASSES_COUNT; a++) {
+            queues.add(new TreeSet<>(comparator));
+            stats[a] = new ClassStats();
+        }
+    }
+
+    private long nextOrder(boolean visible) {
+        lastOrder++;
+        return visible ? -lastOrder : lastOrder;
+    }
+
+    /**
+     * Registers a new operation and returns true if it may start right
+     * away; otherwise it is queued and handed out by {@link #onFinished}.
+     */
+    public synchronized boolean add(FileLoadOperation operation, int type, boolean visible) {
+        Entry entry = new Entry();
+        entry.operation = operation;
+        entry.type = type;
+        entry.visible = visible;
+        entry.order = nextOrder(visible);
+        entry.enqueueTime = System.currentTimeMillis();
+        entries.put(operation, entry);
+        if (runningCount[type] < (visible ? MAX_FORCE_LOADS : MAX_LOADS)) {
+            setRunning(entry);
+            return true;
+        }
+        queues.get(type).add(entry);
+        return false;
+    }
+
+    /**
+     * Moves a queued operation in front of its class as a visible request.
+     */
+    public synchronized boolean bump(FileLoadOperation operation) {
+        Entry entry = entries.get(operation);
+        if (entry == null || entry.running) {
+            return false;
+        }
+        TreeSet<Entry> queue = queues.get(entry.type);
+        queue.remove(entry);
+        entry.visible = true;
+        entry.order = nextOrder(true);
+        queue.add(entry);
+        return true;
+    }
+
+    /**
+     * Forgets a queued operation that was cancelled before it started.
+     */
+    public synchronized void remove(FileLoadOperation operation) {
+        Entry entry = entries.get(operation);
+        if (entry != null && !entry.running) {
+            queues.get(entry.type).remove(entry);
+            entries.remove(operation);
+        }
+    }
+
+    /**
+     * Called when {@code operation} finished or failed; returns the next
+     * operation of its class to start, already counted as running, or null.
+     */
+    public synchronized FileLoadOperation onFinished(FileLoadOperation operation) {
+        Entry entry = entries.remove(operation);
+        if (entry == null) {
+            return null;
+        }
+        int type = entry.type;
+        if (entry.running) {
+            runningCount[type]--;
+            releaseAll(entry);
+        } else {
+            queues.get(type).remove(entry);
+        }
+        TreeSet<Entry> queue = queues.get(type);
+        if (queue.isEmpty()) {
+            return null;
+        }
+        Entry next = queue.first();
+        if (runningCount[type] >= (next.visible ? MAX_FORCE_LOADS : MAX_LOADS)) {
+            return null;
+        }
+        queue.pollFirst();
+        setRunning(next);
+        return next.operation;
+    }
+
+    private void setRunning(Entry entry) {
+        entry.running = true;
+        runningCount[entry.type]++;
+        ClassStats classStats = stats[entry.type];
+        long wait = System.currentTimeMillis() - entry.enqueueTime;
+        classStats.waits[classStats.started % WAIT_SAMPLES] = wait;
+        classStats.started++;
+        classStats.totalWait += wait;
+        classStats.maxWait = Math.max(classStats.maxWait, wait);
+    }
+
+    /**
+     * Takes {@code bytes} of the in-flight budget for the next request of
+     * {@code operation}. Returns false if it has to wait, in which case
+     * {@link FileLoadOperation#onDownloadBudget} is called once the bytes
+     * are reserved for it.
+     */
+    public synchronized boolean acquire(FileLoadOperation operation, int bytes, boolean first) {
+        Entry entry = entries.get(operation);
+        if (entry == null || !entry.running) {
+            return true;
+        }
+        if (entry.reservedBytes != 0) {
+            inFlightBytes -= entry.reservedBytes;
+            entry.reservedBytes = 0;
+        } else if (!first && (inFlightBytes + bytes > IN_FLIGHT_BYTES || !budgetWaiters.isEmpty())) {
+            entry.requestedBytes = bytes;
+            if (!entry.waiting) {
+                entry.waiting = true;
+                budgetWaiters.add(entry);
+                stats[entry.type].budgetStalls++;
+            }
+            return false;
+        }
+        grant(entry, bytes);
+        return true;
+    }
+
+    private void grant(Entry entry, int bytes) {
+        ClassStats classStats = stats[entry.type];
+        if (classStats.inFlightBytes == 0) {
+            classStats.activeStart = System.currentTimeMillis();
+            double minTime = -1;
+            for (int a = 0; a < CLASSES_COUNT; a++) {
+                if (a != entry.type && stats[a].inFlightBytes != 0 && (minTime < 0 || stats[a].virtualTime < minTime)) {
+                    minTime = stats[a].virtualTime;
+                }
+            }
+            classStats.virtualTime = Math.max(classStats.virtualTime, minTime);
+        }
+        classStats.inFlightBytes += bytes;
+        classStats.bytes += bytes;
+        classStats.virtualTime += bytes / (double) getWeight(entry);
+        entry.heldBytes += bytes;
+        inFlightBytes += bytes;
+    }
+
+    private int getWeight(Entry entry) {
+        return WEIGHTS[entry.type] * (entry.visible ? VISIBLE_WEIGHT : 1);
+    }
+
+    /**
+     * Gives back bytes reserved for {@code operation} that it did not use
+     * when it was woken up.
+     */
+    public synchronized void unreserve(FileLoadOperation operation) {
+        Entry entry = entries.get(operation);
+        if (entry == null || entry.reservedBytes == 0) {
+            return;
+        }
+        inFlightBytes -= entry.reservedBytes;
+        entry.reservedBytes = 0;
+        dispatchWaiters();
+    }
+
+    /**
+     * Returns the budget of a request of {@code operation} that got its
+     * response or failed.
+     */
+    public synchronized void release(FileLoadOperation operation, int bytes) {
+        Entry entry = entries.get(operation);
+        if (entry == null) {
+            return;
+        }
+        bytes = Math.min(bytes, entry.heldBytes);
+        releaseBytes(entry, bytes);
+        dispatchWaiters();
+    }
+
+    private void releaseAll(Entry entry) {
+        if (entry.waiting) {
+            budgetWaiters.remove(entry);
+            entry.waiting = false;
+        }
+        inFlightBytes -= entry.reservedBytes;
+        entry.reservedBytes = 0;
+        releaseBytes(entry, entry.heldBytes);
+        dispatchWaiters();
+    }
+
+    private void releaseBytes(Entry entry, int bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        ClassStats classStats = stats[entry.type];
+        entry.heldBytes -= bytes;
+        inFlightBytes -= bytes;
+        classStats.inFlightBytes -= bytes;
+        if (classStats.inFlightBytes == 0) {
+            classStats.activeTime += System.currentTimeMillis() - classStats.activeStart;
+        }
+    }
+
+    private void dispatchWaiters() {
+        while (!budgetWaiters.isEmpty()) {
+            Entry best = null;
+            double bestTime = 0;
+            for (int a = 0; a < budgetWaiters.size(); a++) {
+                Entry entry = budgetWaiters.get(a);
+                double time = stats[entry.type].virtualTime + entry.requestedBytes / (double) getWeight(entry);
+                if (best == null || time < bestTime) {
+                    best = entry;
+                    bestTime = time;
+                }
+            }
+            if (inFlightBytes + best.requestedBytes > IN_FLIGHT_BYTES) {
+                return;
+            }
+            budgetWaiters.remove(best);
+            best.waiting = false;
+            best.reservedBytes = best.requestedBytes;
+            inFlightBytes += best.reservedBytes;
+            final FileLoadOperation operation = best.operation;
+            Utilities.stageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    operation.onDownloadBudget();
+                }
+            });
+        }
+    }
+
+    public synchronized String getStats() {
+        StringBuilder builder = new StringBuilder();
+        long currentTime = System.currentTimeMillis();
+        for (int a = 0; a < CLASSES_COUNT; a++) {
+            ClassStats classStats = stats[a];
+            long activeTime = classStats.activeTime;
+            if (classStats.inFlightBytes != 0) {
+                activeTime += currentTime - classStats.activeStart;
+            }
+            int count = Math.min(classStats.started, WAIT_SAMPLES);
+            long p95 = 0;
+            if (count != 0) {
+                long[] waits = Arrays.copyOf(classStats.waits, count);
+                Arrays.sort(waits);
+                p95 = waits[Math.min(count - 1, count * 95 / 100)];
+            }
+            if (builder.length() != 0) {
+                builder.append("; ");
+            }
+            builder.append(String.format(Locale.US, "%s: %d running %d queued, %d bytes at %d KB/s, wait avg %d p95 %d max %d ms, %d budget stalls",
+                    NAMES[a], runningCount[a], queues.get(a).size(), classStats.bytes, activeTime == 0 ? 0 : classStats.bytes / activeTime,
+                    classStats.started == 0 ? 0 : classStats.totalWait / classStats.started, p95, classStats.maxWait, classStats.budgetStalls));
+        }
+        builder.append(String.format(Locale.US, "; in flight %d of %d bytes", inFlightBytes, IN_FLIGHT_BYTES));
+        return builder.toString();
+    }
+}
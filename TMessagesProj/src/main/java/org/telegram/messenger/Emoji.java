@@ -253,7 +253,7 @@ public class Emoji {
                         loadEmoji(info.page, info.page2);
                         loadingEmoji[info.page][info.page2] = false;
                     }
-                });
+                }, Utilities.QUEUE_KEY_EMOJI, DispatchQueue.PRIORITY_HIGH);
                 canvas.drawRect(getBounds(), placeholderPaint);
                 return;
             }
@@ -0,0 +1,264 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.tgnet.AbstractSerializedData;
+import org.telegram.tgnet.SerializedData;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+/**
+ * Two-tier cache of users or chats. The live tier holds a bounded number of
+ * the shared objects MessagesController hands out, evicted LRU; objects
+ * evicted from it are loaded again through storage on their next use.
+ * The row tier keeps serialized rows as written to or read from the
+ * database, within a row count and a byte budget, so a storage read that
+ * hits costs a deserialization instead of a query. Every get from the row
+ * tier returns a fresh copy, like a read from SQLite, so changes made to the
+ * live objects never leak into storage reads. Writers must update or remove
+ * the rows they change. Safe to use from any thread; rows loaded on a
+ * reading connection may be older than the cached ones, so they never
+ * replace an entry and are dropped if anything was written since the load
+ * started. Rows with a write queued but not run yet are hidden between
+ * beginWrite and endWrite, so lookups fall through to the queue that runs
+ * the write.
+ */
+public class EntityCache<T> {
+
+    public interface Reader<T> {
+        T read(AbstractSerializedData data, int extra);
+    }
+
+    private static class Row {
+        private byte[] data;
+        private int extra;
+    }
+
+    private final Reader<T> reader;
+    private final int liveLimit;
+    private final int rowsLimit;
+    private final int bytesLimit;
+    private int size;
+    private int liveHits;
+    private int hits;
+    private int misses;
+    private int version;
+
+    private LinkedHashMap<Integer, T> live = new LinkedHashMap<>(16, 0.75f, true);
+    private HashSet<Integer> evicted = new HashSet<>();
+    private LinkedHashMap<Integer, Row> rows = new LinkedHashMap<>(16, 0.75f, true);
+    private HashMap<Integer, Integer> pendingWrites = new HashMap<>();
+
+    public EntityCache(Reader<T> reader, int liveLimit, int rowsLimit, int bytesLimit) {
+        this.reader = reader;
+        this.liveLimit = liveLimit;
+        this.rowsLimit = rowsLimit;
+        this.bytesLimit = bytesLimit;
+    }
+
+    public synchronized T getLive(int id) {
+        T object = live.get(id);
+        if (object != null) {
+            liveHits++;
+        }
+        return object;
+    }
+
+    /**
+     * Returns true if the live object of {@code id} was evicted and has not
+     * been put back since.
+     */
+    public synchronized boolean isEvicted(int id) {
+        return evicted.contains(id);
+    }
+
+    public synchronized void putLive(int id, T object) {
+        live.put(id, object);
+        evicted.remove(id);
+        if (live.size() > liveLimit) {
+            Iterator<Integer> iterator = live.keySet().iterator();
+            evicted.add(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    public synchronized void clearLive() {
+        live.clear();
+        evicted.clear();
+        liveHits = 0;
+    }
+
+    public T get(int id) {
+        Row row;
+        synchronized (this) {
+            row = pendingWrites.containsKey(id) ? null : rows.get(id);
+            if (row == null) {
+                misses++;
+                return null;
+            }
+        }
+        T object = null;
+        try {
+            SerializedData data = new SerializedData(row.data);
+            object = reader.read(data, row.extra);
+            data.cleanup();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        synchronized (this) {
+            if (object != null) {
+                hits++;
+            } else {
+                if (rows.get(id) == row) {
+                    removeRow(id);
+                }
+                misses++;
+            }
+        }
+        return object;
+    }
+
+    public synchronized int getVersion() {
+        return version;
+    }
+
+    /**
+     * Stores a row loaded from the database unless the entry is already
+     * cached or the cache was written to since {@code version}.
+     */
+    public synchronized void putLoaded(int id, byte[] data, int extra, int version) {
+        if (this.version != version || rows.containsKey(id) || pendingWrites.containsKey(id)) {
+            return;
+        }
+        store(id, data, extra);
+    }
+
+    /**
+     * Stores the serialized row {@code data} as written to the database, or
+     * drops a stale entry if it is null.
+     */
+    public synchronized void put(int id, byte[] data, int extra) {
+        version++;
+        store(id, data, extra);
+    }
+
+    private void store(int id, byte[] data, int extra) {
+        removeRow(id);
+        if (data != null && data.length <= bytesLimit / 16) {
+            Row row = new Row();
+            row.data = data;
+            row.extra = extra;
+            rows.put(id, row);
+            size += data.length;
+            Iterator<Row> iterator = rows.values().iterator();
+            while ((size > bytesLimit || rows.size() > rowsLimit) && iterator.hasNext()) {
+                size -= iterator.next().data.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Changes the extra column stored next to the row.
+     */
+    public synchronized void setExtra(int id, int extra) {
+        version++;
+        Row row = rows.get(id);
+        if (row != null) {
+            Row updated = new Row();
+            updated.data = row.data;
+            updated.extra = extra;
+            rows.put(id, updated);
+        }
+    }
+
+    /**
+     * Hides the entry of {@code id} until the matching {@link #endWrite}, for
+     * a write that is queued but has not run yet.
+     */
+    public synchronized void beginWrite(int id) {
+        version++;
+        Integer count = pendingWrites.get(id);
+        pendingWrites.put(id, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void endWrite(int id) {
+        Integer count = pendingWrites.get(id);
+        if (count == null) {
+            return;
+        }
+        if (count == 1) {
+            pendingWrites.remove(id);
+        } else {
+            pendingWrites.put(id, count - 1);
+        }
+    }
+
+    public synchronized void remove(int id) {
+        version++;
+        removeRow(id);
+    }
+
+    private void removeRow(int id) {
+        Row row = rows.remove(id);
+        if (row != null) {
+            size -= row.data.length;
+        }
+    }
+
+    /**
+     * Drops the older half of the live objects and of the rows.
+     */
+    public synchronized void trim() {
+        Iterator<Integer> ids = live.keySet().iterator();
+        int liveCount = live.size() / 2;
+        while (liveCount > 0 && ids.hasNext()) {
+            evicted.add(ids.next());
+            ids.remove();
+            liveCount--;
+        }
+        Iterator<Row> iterator = rows.values().iterator();
+        int count = rows.size() / 2;
+        while ((count > 0 || size > bytesLimit / 2) && iterator.hasNext()) {
+            size -= iterator.next().data.length;
+            iterator.remove();
+            count--;
+        }
+    }
+
+    /**
+     * Drops the rows. The live tier belongs to MessagesController and is
+     * cleared by clearLive.
+     */
+    public synchronized void clear() {
+        version++;
+        rows.clear();
+        pendingWrites.clear();
+        size = 0;
+        hits = 0;
+        misses = 0;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public synchronized float getHitRate() {
+        int total = hits + misses;
+        return total == 0 ? 0 : hits / (float) total;
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.US, "live %d/%d, evicted %d, live hits %d, rows %d/%d, bytes %d/%d, hits %d, misses %d", live.size(), liveLimit, evicted.size(), liveHits, rows.size(), rowsLimit, size, bytesLimit, hits, misses);
+    }
+}
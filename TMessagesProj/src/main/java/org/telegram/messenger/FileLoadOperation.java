@@ -15,6 +15,7 @@ import org.telegram.tgnet.TLRPC;
 
 import java.io.RandomAccessFile;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Scanner;
@@ -24,6 +25,8 @@ public class FileLoadOperation {
     private static class RequestInfo {
         private int requestToken;
         private int offset;
+        private int limit;
+        private long sendTime;
         private TLRPC.TL_upload_file response;
     }
 
@@ -38,6 +41,12 @@ public class FileLoadOperation {
     private final static int maxDownloadRequestsBig = 2;
     private final static int bigFileSizeFrom = 1024 * 1024;
 
+    private final static int downloadChunkSizeMax = 1024 * 512;
+    private final static int maxDownloadRequestsAdaptive = 8;
+    private final static int maxInFlightBytes = 1024 * 1024 * 2;
+    private final static int syncCheckpointBytes = 1024 * 1024;
+    private final static int speedMeasureInterval = 500;
+
     private int datacenter_id;
     private TLRPC.InputFileLocation location;
     private volatile int state = stateIdle;
@@ -51,6 +60,13 @@ public class FileLoadOperation {
     private int requestsCount;
     private int renameRetryCount;
 
+    private boolean adaptiveDownload;
+    private long smoothedRtt;
+    private float smoothedSpeed;
+    private long speedMeasureStartTime;
+    private int speedMeasureBytes;
+    private int lastSyncedBytes;
+
     private int nextDownloadOffset;
     private ArrayList<RequestInfo> requestInfos;
     private ArrayList<RequestInfo> delayedRequestInfos;
@@ -58,9 +74,12 @@ public class FileLoadOperation {
     private File cacheFileTemp;
     private File cacheFileFinal;
     private File cacheIvTemp;
+    private File cacheRangesTemp;
+    private PartialFile partialFile;
 
     private String ext;
     private RandomAccessFile fileOutputStream;
+    private FileChannel fileChannel;
     private RandomAccessFile fiv;
     private File storePath;
     private File tempPath;
@@ -177,14 +196,22 @@ public class FileLoadOperation {
         tempPath = temp;
     }
 
+    public void setPartialFile(PartialFile file) {
+        partialFile = file;
+    }
+
     public void start() {
         if (state != stateIdle) {
             return;
         }
-        currentDownloadChunkSize = totalBytesCount >= bigFileSizeFrom ? downloadChunkSizeBig : downloadChunkSize;
-        currentMaxDownloadRequests = totalBytesCount >= bigFileSizeFrom ? maxDownloadRequestsBig : maxDownloadRequests;
-        requestInfos = new ArrayList<>(currentMaxDownloadRequests);
-        delayedRequestInfos = new ArrayList<>(currentMaxDownloadRequests - 1);
+        adaptiveDownload = totalBytesCount >= bigFileSizeFrom;
+        currentDownloadChunkSize = adaptiveDownload ? downloadChunkSizeBig : downloadChunkSize;
+        currentMaxDownloadRequests = adaptiveDownload ? maxDownloadRequestsBig : maxDownloadRequests;
+        requestInfos = new ArrayList<>(maxDownloadRequestsAdaptive);
+        delayedRequestInfos = new ArrayList<>(maxDownloadRequestsAdaptive - 1);
+        if (key != null || totalBytesCount <= 0) {
+            partialFile = null;
+        }
         state = stateDownloading;
         if (location == null) {
             Utilities.stageQueue.postRunnable(new Runnable() {
@@ -198,8 +225,10 @@ public class FileLoadOperation {
         String fileNameFinal;
         String fileNameTemp;
         String fileNameIv = null;
+        String fileNameRanges;
         if (location.volume_id != 0 && location.local_id != 0) {
             fileNameTemp = location.volume_id + "_" + location.local_id + ".temp";
+            fileNameRanges = location.volume_id + "_" + location.local_id + ".ranges";
             fileNameFinal = location.volume_id + "_" + location.local_id + "." + ext;
             if (key != null) {
                 fileNameIv = location.volume_id + "_" + location.local_id + ".iv";
@@ -216,6 +245,7 @@ public class FileLoadOperation {
             }
         } else {
             fileNameTemp = datacenter_id + "_" + location.id + ".temp";
+            fileNameRanges = datacenter_id + "_" + location.id + ".ranges";
             fileNameFinal = datacenter_id + "_" + location.id + ext;
             if (key != null) {
                 fileNameIv = datacenter_id + "_" + location.id + ".iv";
@@ -242,7 +272,8 @@ public class FileLoadOperation {
             cacheFileTemp = new File(tempPath, fileNameTemp);
             if (cacheFileTemp.exists()) {
                 downloadedBytes = (int) cacheFileTemp.length();
-                nextDownloadOffset = downloadedBytes = downloadedBytes / currentDownloadChunkSize * currentDownloadChunkSize;
+                nextDownloadOffset = downloadedBytes = downloadedBytes / downloadChunkSize * downloadChunkSize;
+                lastSyncedBytes = downloadedBytes;
             }
 
             if (BuildVars.DEBUG_VERSION) {
@@ -252,7 +283,7 @@ public class FileLoadOperation {
             if (fileNameIv != null) {
                 cacheIvTemp = new File(tempPath, fileNameIv);
                 try {
-                    fiv = new RandomAccessFile(cacheIvTemp, "rws");
+                    fiv = new RandomAccessFile(cacheIvTemp, "rw");
                     long len = cacheIvTemp.length();
                     if (len > 0 && len % 32 == 0) {
                         fiv.read(iv, 0, 32);
@@ -265,10 +296,8 @@ public class FileLoadOperation {
                 }
             }
             try {
-                fileOutputStream = new RandomAccessFile(cacheFileTemp, "rws");
-                if (downloadedBytes != 0) {
-                    fileOutputStream.seek(downloadedBytes);
-                }
+                fileOutputStream = new RandomAccessFile(cacheFileTemp, "rw");
+                fileChannel = fileOutputStream.getChannel();
             } catch (Exception e) {
                 FileLog.e("tmessages", e);
             }
@@ -282,6 +311,27 @@ public class FileLoadOperation {
                 });
                 return;
             }
+            if (partialFile != null) {
+                cacheRangesTemp = new File(tempPath, fileNameRanges);
+                partialFile.setDelegate(new PartialFile.PartialFileDelegate() {
+                    @Override
+                    public void didRequestRange(final int offset) {
+                        Utilities.stageQueue.postRunnable(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (state != stateDownloading) {
+                                    return;
+                                }
+                                nextDownloadOffset = offset;
+                                startDownloadRequest();
+                            }
+                        });
+                    }
+                });
+                partialFile.open(cacheFileTemp, cacheRangesTemp, totalBytesCount, downloadedBytes);
+                lastSyncedBytes = downloadedBytes = partialFile.getLoadedBytes();
+                nextDownloadOffset = Math.max(0, partialFile.getMissing(0));
+            }
             Utilities.stageQueue.postRunnable(new Runnable() {
                 @Override
                 public void run() {
@@ -330,12 +380,16 @@ public class FileLoadOperation {
         try {
             if (fileOutputStream != null) {
                 try {
-                    fileOutputStream.getChannel().close();
+                    if (state == stateFinished || partialFile != null) {
+                        syncFiles();
+                    }
+                    fileChannel.close();
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
                 }
                 fileOutputStream.close();
                 fileOutputStream = null;
+                fileChannel = null;
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -371,8 +425,12 @@ public class FileLoadOperation {
             cacheIvTemp.delete();
             cacheIvTemp = null;
         }
+        if (cacheRangesTemp != null) {
+            cacheRangesTemp.delete();
+            cacheRangesTemp = null;
+        }
         if (cacheFileTemp != null) {
-            boolean renameResult = cacheFileTemp.renameTo(cacheFileFinal);
+            boolean renameResult = partialFile != null ? partialFile.moveTo(cacheFileFinal) : cacheFileTemp.renameTo(cacheFileFinal);
             if (!renameResult) {
                 if (BuildVars.DEBUG_VERSION) {
                     FileLog.e("tmessages", "unable to rename temp = " + cacheFileTemp + " to final = " + cacheFileFinal + " retry = " + renameRetryCount);
@@ -401,10 +459,92 @@ public class FileLoadOperation {
         delegate.didFinishLoadingFile(FileLoadOperation.this, cacheFileFinal);
     }
 
+    private void syncFiles() throws Exception {
+        if (fileChannel != null) {
+            fileChannel.force(false);
+        }
+        if (fiv != null) {
+            fiv.getChannel().force(false);
+        }
+        if (partialFile != null) {
+            partialFile.save();
+        }
+        lastSyncedBytes = downloadedBytes;
+    }
+
+    private void updateDownloadWindow(RequestInfo requestInfo) {
+        long currentTime = System.currentTimeMillis();
+        long rtt = Math.max(1, currentTime - requestInfo.sendTime);
+        smoothedRtt = smoothedRtt == 0 ? rtt : (smoothedRtt * 7 + rtt) / 8;
+        if (requestInfo.response.bytes != null) {
+            speedMeasureBytes += requestInfo.response.bytes.limit();
+        }
+        if (speedMeasureStartTime == 0) {
+            speedMeasureStartTime = requestInfo.sendTime;
+        }
+        long elapsed = currentTime - speedMeasureStartTime;
+        if (elapsed < speedMeasureInterval) {
+            return;
+        }
+        float speed = speedMeasureBytes / (float) elapsed;
+        smoothedSpeed = smoothedSpeed == 0 ? speed : smoothedSpeed * 0.7f + speed * 0.3f;
+        speedMeasureStartTime = currentTime;
+        speedMeasureBytes = 0;
+
+        int bandwidthDelay = (int) Math.min(Integer.MAX_VALUE, smoothedSpeed * smoothedRtt);
+        currentDownloadChunkSize = adaptChunkSize(currentDownloadChunkSize, bandwidthDelay);
+        currentMaxDownloadRequests = getMaxDownloadRequests(currentDownloadChunkSize, bandwidthDelay);
+        if (BuildVars.DEBUG_VERSION) {
+            FileLog.d("tmessages", "download window rtt = " + smoothedRtt + " speed = " + (int) (smoothedSpeed * 1000) + " chunk = " + currentDownloadChunkSize + " requests = " + currentMaxDownloadRequests);
+        }
+    }
+
+    /**
+     * Doubles the chunk size while the bandwidth-delay product holds four
+     * chunks and halves it when it cannot hold one, within 32..512 KB.
+     */
+    static int adaptChunkSize(int chunkSize, int bandwidthDelay) {
+        if (bandwidthDelay >= chunkSize * 4 && chunkSize < downloadChunkSizeMax) {
+            return chunkSize * 2;
+        } else if (bandwidthDelay < chunkSize && chunkSize > downloadChunkSize) {
+            return chunkSize / 2;
+        }
+        return chunkSize;
+    }
+
+    /**
+     * Number of chunks covering 1.5x the bandwidth-delay product, within
+     * 2..8 requests and the in-flight byte cap.
+     */
+    static int getMaxDownloadRequests(int chunkSize, int bandwidthDelay) {
+        long requests = (bandwidthDelay + (long) bandwidthDelay / 2) / chunkSize + 1;
+        requests = Math.min(requests, maxInFlightBytes / chunkSize);
+        return (int) Math.max(maxDownloadRequestsBig, Math.min(maxDownloadRequestsAdaptive, requests));
+    }
+
+    /**
+     * Largest chunk size not above {@code chunkSize} that {@code offset} is
+     * aligned to, so a request never crosses a 1 MB boundary.
+     */
+    static int alignChunkSize(int chunkSize, int offset) {
+        while (chunkSize > downloadChunkSize && offset % chunkSize != 0) {
+            chunkSize /= 2;
+        }
+        return chunkSize;
+    }
+
     private void processRequestResult(RequestInfo requestInfo, TLRPC.TL_error error) {
         requestInfos.remove(requestInfo);
         if (error == null) {
             try {
+                if (adaptiveDownload && requestInfo.sendTime != 0) {
+                    updateDownloadWindow(requestInfo);
+                    requestInfo.sendTime = 0;
+                }
+                if (partialFile != null) {
+                    processRangeResult(requestInfo);
+                    return;
+                }
                 if (downloadedBytes != requestInfo.offset) {
                     if (state == stateDownloading) {
                         delayedRequestInfos.add(requestInfo);
@@ -420,9 +560,12 @@ public class FileLoadOperation {
                 if (key != null) {
                     Utilities.aesIgeEncryption(requestInfo.response.bytes.buffer, key, iv, false, true, 0, requestInfo.response.bytes.limit());
                 }
-                if (fileOutputStream != null) {
-                    FileChannel channel = fileOutputStream.getChannel();
-                    channel.write(requestInfo.response.bytes.buffer);
+                if (fileChannel != null) {
+                    ByteBuffer buffer = requestInfo.response.bytes.buffer;
+                    long position = requestInfo.offset;
+                    while (buffer.hasRemaining()) {
+                        position += fileChannel.write(buffer, position);
+                    }
                 }
                 if (fiv != null) {
                     fiv.seek(0);
@@ -430,6 +573,9 @@ public class FileLoadOperation {
                 }
                 int currentBytesSize = requestInfo.response.bytes.limit();
                 downloadedBytes += currentBytesSize;
+                if (downloadedBytes - lastSyncedBytes >= syncCheckpointBytes) {
+                    syncFiles();
+                }
                 if (totalBytesCount > 0 && state == stateDownloading) {
                     delegate.didChangedLoadProgress(FileLoadOperation.this,  Math.min(1.0f, (float)downloadedBytes / (float)totalBytesCount));
                 }
@@ -445,10 +591,10 @@ public class FileLoadOperation {
                     }
                 }
 
-                if (currentBytesSize != currentDownloadChunkSize) {
+                if (currentBytesSize != requestInfo.limit) {
                     onFinishLoadingFile();
                 } else {
-                    if (totalBytesCount != downloadedBytes && downloadedBytes % currentDownloadChunkSize == 0 || totalBytesCount > 0 && totalBytesCount > downloadedBytes) {
+                    if (totalBytesCount != downloadedBytes && downloadedBytes % downloadChunkSize == 0 || totalBytesCount > 0 && totalBytesCount > downloadedBytes) {
                         startDownloadRequest();
                     } else {
                         onFinishLoadingFile();
@@ -479,7 +625,20 @@ public class FileLoadOperation {
                     startDownloadRequest();
                 }
             } else if (error.text.contains("OFFSET_INVALID")) {
-                if (downloadedBytes % currentDownloadChunkSize == 0) {
+                if (partialFile != null) {
+                    partialFile.truncate(requestInfo.offset);
+                    try {
+                        if (partialFile.isComplete()) {
+                            onFinishLoadingFile();
+                        } else {
+                            startDownloadRequest();
+                        }
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                        cleanup();
+                        delegate.didFailedLoadingFile(FileLoadOperation.this, 0);
+                    }
+                } else if (downloadedBytes % downloadChunkSize == 0) {
                     try {
                         onFinishLoadingFile();
                     } catch (Exception e) {
@@ -504,8 +663,104 @@ public class FileLoadOperation {
         }
     }
 
+    private void processRangeResult(RequestInfo requestInfo) throws Exception {
+        if (state != stateDownloading || fileChannel == null) {
+            return;
+        }
+        int currentBytesSize = requestInfo.response.bytes != null ? requestInfo.response.bytes.limit() : 0;
+        if (currentBytesSize != 0) {
+            ByteBuffer buffer = requestInfo.response.bytes.buffer;
+            long position = requestInfo.offset;
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+            partialFile.setLoaded(requestInfo.offset, currentBytesSize);
+        }
+        if (currentBytesSize != requestInfo.limit) {
+            partialFile.truncate(requestInfo.offset + currentBytesSize);
+        }
+        downloadedBytes = partialFile.getLoadedBytes();
+        if (downloadedBytes - lastSyncedBytes >= syncCheckpointBytes) {
+            syncFiles();
+        }
+        if (partialFile.isComplete()) {
+            onFinishLoadingFile();
+            return;
+        }
+        delegate.didChangedLoadProgress(FileLoadOperation.this, Math.min(1.0f, (float) downloadedBytes / (float) totalBytesCount));
+        startDownloadRequest();
+    }
+
+    private RequestInfo getRequestAt(int offset) {
+        for (int a = 0; a < requestInfos.size(); a++) {
+            RequestInfo requestInfo = requestInfos.get(a);
+            if (offset >= requestInfo.offset && offset < requestInfo.offset + requestInfo.limit) {
+                return requestInfo;
+            }
+        }
+        return null;
+    }
+
+    private boolean isRequested(int offset, int length) {
+        for (int a = 0; a < requestInfos.size(); a++) {
+            RequestInfo requestInfo = requestInfos.get(a);
+            if (offset < requestInfo.offset + requestInfo.limit && requestInfo.offset < offset + length) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the offset of the next request, or -1. Ranges are loaded from
+     * nextDownloadOffset on, skipping loaded and requested chunks, and then
+     * from the start of the file.
+     */
+    private int getNextOffset() {
+        if (partialFile == null) {
+            return totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount ? -1 : nextDownloadOffset;
+        }
+        int from = nextDownloadOffset;
+        boolean wrapped = false;
+        while (true) {
+            int offset = partialFile.getMissing(from);
+            if (offset < 0) {
+                if (wrapped || from == 0) {
+                    return -1;
+                }
+                wrapped = true;
+                from = 0;
+                continue;
+            }
+            RequestInfo requestInfo = getRequestAt(offset);
+            if (requestInfo == null) {
+                return offset;
+            }
+            from = requestInfo.offset + requestInfo.limit;
+        }
+    }
+
+    public void onDownloadBudget() {
+        startDownloadRequest();
+        DownloadScheduler.getInstance().unreserve(this);
+    }
+
+    private int getChunkSize(int offset) {
+        int chunkSize = alignChunkSize(currentDownloadChunkSize, offset);
+        if (partialFile != null) {
+            while (chunkSize > downloadChunkSize && (!partialFile.isMissing(offset, chunkSize) || isRequested(offset, chunkSize))) {
+                chunkSize /= 2;
+            }
+        }
+        return chunkSize;
+    }
+
     private void startDownloadRequest() {
-        if (state != stateDownloading || totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount || requestInfos.size() + delayedRequestInfos.size() >= currentMaxDownloadRequests) {
+        if (state != stateDownloading || requestInfos.size() + delayedRequestInfos.size() >= currentMaxDownloadRequests) {
+            return;
+        }
+        int offset = getNextOffset();
+        if (offset < 0) {
             return;
         }
         int count = 1;
@@ -513,23 +768,38 @@ public class FileLoadOperation {
             count = Math.max(0, currentMaxDownloadRequests - requestInfos.size() - delayedRequestInfos.size());
         }
 
+        DownloadScheduler scheduler = DownloadScheduler.getInstance();
+        boolean acquired = false;
         for (int a = 0; a < count; a++) {
-            if (totalBytesCount > 0 && nextDownloadOffset >= totalBytesCount) {
+            if (offset < 0) {
+                break;
+            }
+            int chunkSize = getChunkSize(offset);
+            if (!acquired && !scheduler.acquire(this, chunkSize, requestInfos.isEmpty() && delayedRequestInfos.isEmpty())) {
                 break;
             }
-            boolean isLast = totalBytesCount <= 0 || a == count - 1 || totalBytesCount > 0 && nextDownloadOffset + currentDownloadChunkSize >= totalBytesCount;
             TLRPC.TL_upload_getFile req = new TLRPC.TL_upload_getFile();
             req.location = location;
-            req.offset = nextDownloadOffset;
-            req.limit = currentDownloadChunkSize;
-            nextDownloadOffset += currentDownloadChunkSize;
+            req.offset = offset;
+            req.limit = chunkSize;
+            nextDownloadOffset = offset + chunkSize;
 
             final RequestInfo requestInfo = new RequestInfo();
             requestInfos.add(requestInfo);
             requestInfo.offset = req.offset;
+            requestInfo.limit = req.limit;
+            requestInfo.sendTime = System.currentTimeMillis();
+
+            offset = a == count - 1 ? -1 : getNextOffset();
+            boolean isLast = offset < 0;
+            if (!isLast) {
+                acquired = scheduler.acquire(this, getChunkSize(offset), false);
+                isLast = !acquired;
+            }
             requestInfo.requestToken = ConnectionsManager.getInstance().sendRequest(req, new RequestDelegate() {
                 @Override
                 public void run(TLObject response, TLRPC.TL_error error) {
+                    DownloadScheduler.getInstance().release(FileLoadOperation.this, requestInfo.limit);
                     requestInfo.response = (TLRPC.TL_upload_file) response;
                     processRequestResult(requestInfo, error);
                 }
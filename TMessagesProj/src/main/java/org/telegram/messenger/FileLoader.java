@@ -45,19 +45,15 @@ public class FileLoader {
 
     private LinkedList<FileUploadOperation> uploadOperationQueue = new LinkedList<>();
     private LinkedList<FileUploadOperation> uploadSmallOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> loadOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> audioLoadOperationQueue = new LinkedList<>();
-    private LinkedList<FileLoadOperation> photoLoadOperationQueue = new LinkedList<>();
+    private DownloadScheduler downloadScheduler = DownloadScheduler.getInstance();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPaths = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileUploadOperation> uploadOperationPathsEnc = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, FileLoadOperation> loadOperationPaths = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, PartialFile> partialFiles = new ConcurrentHashMap<>();
     private HashMap<String, Long> uploadSizes = new HashMap<>();
 
     private FileLoaderDelegate delegate = null;
 
-    private int currentLoadOperationsCount = 0;
-    private int currentAudioLoadOperationsCount = 0;
-    private int currentPhotoLoadOperationsCount = 0;
     private int currentUploadOperationsCount = 0;
     private int currentUploadSmallOperationsCount = 0;
 
@@ -78,6 +74,7 @@ public class FileLoader {
 
     public void setMediaDirs(HashMap<Integer, File> dirs) {
         mediaDirs = dirs;
+        MediaCacheIndex.getInstance().setMediaDirs(dirs);
     }
 
     public File checkDirectory(int type) {
@@ -315,13 +312,7 @@ public class FileLoader {
                 FileLoadOperation operation = loadOperationPaths.get(fileName);
                 if (operation != null) {
                     loadOperationPaths.remove(fileName);
-                    if (audio != null) {
-                        audioLoadOperationQueue.remove(operation);
-                    } else if (location != null) {
-                        photoLoadOperationQueue.remove(operation);
-                    } else {
-                        loadOperationQueue.remove(operation);
-                    }
+                    downloadScheduler.remove(operation);
                     operation.cancel();
                 }
             }
@@ -387,23 +378,8 @@ public class FileLoader {
                 FileLoadOperation operation;
                 operation = loadOperationPaths.get(fileName);
                 if (operation != null) {
-                    if (force) {
-                        LinkedList<FileLoadOperation> downloadQueue;
-                        if (audio != null) {
-                            downloadQueue = audioLoadOperationQueue;
-                        } else if (location != null) {
-                            downloadQueue = photoLoadOperationQueue;
-                        } else {
-                            downloadQueue = loadOperationQueue;
-                        }
-                        if (downloadQueue != null) {
-                            int index = downloadQueue.indexOf(operation);
-                            if (index != -1) {
-                                downloadQueue.remove(index);
-                                downloadQueue.add(0, operation);
-                                operation.setForceRequest(true);
-                            }
-                        }
+                    if (force && downloadScheduler.bump(operation)) {
+                        operation.setForceRequest(true);
                     }
                     return;
                 }
@@ -429,6 +405,8 @@ public class FileLoader {
                     storeDir = getDirectory(type);
                 }
                 operation.setPaths(storeDir, tempDir);
+                final PartialFile partialFile = location == null ? getPartialFile(fileName) : null;
+                operation.setPartialFile(partialFile);
 
                 final String finalFileName = fileName;
                 final int finalType = type;
@@ -436,15 +414,24 @@ public class FileLoader {
                 operation.setDelegate(new FileLoadOperation.FileLoadOperationDelegate() {
                     @Override
                     public void didFinishLoadingFile(FileLoadOperation operation, File finalFile) {
+                        if (partialFile != null) {
+                            partialFiles.remove(finalFileName, partialFile);
+                            partialFile.finish(finalFile);
+                        }
+                        MediaCacheIndex.getInstance().onFileLoaded(finalFile);
                         if (delegate != null) {
                             delegate.fileDidLoaded(finalFileName, finalFile, finalType);
                         }
-                        checkDownloadQueue(audio, location, finalFileName);
+                        checkDownloadQueue(operation, finalFileName);
                     }
 
                     @Override
                     public void didFailedLoadingFile(FileLoadOperation operation, int canceled) {
-                        checkDownloadQueue(audio, location, finalFileName);
+                        if (partialFile != null) {
+                            partialFiles.remove(finalFileName, partialFile);
+                            partialFile.fail();
+                        }
+                        checkDownloadQueue(operation, finalFileName);
                         if (delegate != null) {
                             delegate.fileDidFailedLoad(finalFileName, canceled);
                         }
@@ -457,95 +444,54 @@ public class FileLoader {
                         }
                     }
                 });
-                int maxCount = force ? 3 : 1;
+                int loadClass;
                 if (audio != null) {
-                    if (currentAudioLoadOperationsCount < maxCount) {
-                        currentAudioLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            audioLoadOperationQueue.add(0, operation);
-                        } else {
-                            audioLoadOperationQueue.add(operation);
-                        }
-                    }
+                    loadClass = DownloadScheduler.CLASS_AUDIO;
                 } else if (location != null) {
-                    if (currentPhotoLoadOperationsCount < maxCount) {
-                        currentPhotoLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            photoLoadOperationQueue.add(0, operation);
-                        } else {
-                            photoLoadOperationQueue.add(operation);
-                        }
-                    }
+                    loadClass = DownloadScheduler.CLASS_PHOTO;
                 } else {
-                    if (currentLoadOperationsCount < maxCount) {
-                        currentLoadOperationsCount++;
-                        operation.start();
-                    } else {
-                        if (force) {
-                            loadOperationQueue.add(0, operation);
-                        } else {
-                            loadOperationQueue.add(operation);
-                        }
-                    }
+                    loadClass = DownloadScheduler.CLASS_FILE;
+                }
+                if (downloadScheduler.add(operation, loadClass, force)) {
+                    operation.start();
                 }
             }
         });
     }
 
-    private void checkDownloadQueue(final TLRPC.Audio audio, final TLRPC.FileLocation location, final String arg1) {
+    private void checkDownloadQueue(final FileLoadOperation finishedOperation, final String arg1) {
         fileLoaderQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 loadOperationPaths.remove(arg1);
-                FileLoadOperation operation;
-                if (audio != null) {
-                    currentAudioLoadOperationsCount--;
-                    if (!audioLoadOperationQueue.isEmpty()) {
-                        operation = audioLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentAudioLoadOperationsCount < maxCount) {
-                            operation = audioLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentAudioLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
-                } else if (location != null) {
-                    currentPhotoLoadOperationsCount--;
-                    if (!photoLoadOperationQueue.isEmpty()) {
-                        operation = photoLoadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentPhotoLoadOperationsCount < maxCount) {
-                            operation = photoLoadOperationQueue.poll();
-                            if (operation != null) {
-                                currentPhotoLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
-                } else {
-                    currentLoadOperationsCount--;
-                    if (!loadOperationQueue.isEmpty()) {
-                        operation = loadOperationQueue.get(0);
-                        int maxCount = operation.isForceRequest() ? 3 : 1;
-                        if (currentLoadOperationsCount < maxCount) {
-                            operation = loadOperationQueue.poll();
-                            if (operation != null) {
-                                currentLoadOperationsCount++;
-                                operation.start();
-                            }
-                        }
-                    }
+                FileLoadOperation operation = downloadScheduler.onFinished(finishedOperation);
+                if (operation != null) {
+                    operation.start();
                 }
             }
         });
     }
 
+    /**
+     * Returns the ranges of {@code fileName} shared by its load operation and
+     * stream readers, creating them if the file is not loading yet.
+     */
+    public PartialFile getPartialFile(String fileName) {
+        PartialFile partialFile = partialFiles.get(fileName);
+        if (partialFile == null) {
+            partialFile = new PartialFile();
+            PartialFile current = partialFiles.putIfAbsent(fileName, partialFile);
+            if (current != null) {
+                partialFile = current;
+            }
+        }
+        return partialFile;
+    }
+
+    public String getDownloadStats() {
+        return downloadScheduler.getStats();
+    }
+
     public void setDelegate(FileLoaderDelegate delegate) {
         this.delegate = delegate;
     }
@@ -756,6 +702,7 @@ public class FileLoader {
             public void run() {
                 for (int a = 0; a < files.size(); a++) {
                     File file = files.get(a);
+                    MediaCacheIndex.getInstance().remove(file);
                     if (file.exists()) {
                         try {
                             if (!file.delete()) {
@@ -767,6 +714,7 @@ public class FileLoader {
                     }
                     try {
                         File qFile = new File(file.getParentFile(), "q_" + file.getName());
+                        MediaCacheIndex.getInstance().remove(qFile);
                         if (qFile.exists()) {
                             if (!qFile.delete()) {
                                 qFile.deleteOnExit();
@@ -0,0 +1,96 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.tgnet.TLRPC;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Random access reader of a document that may still be downloading. A read
+ * blocks only until its own range is loaded, and the load moves to that
+ * range first. Must not be used on the UI thread.
+ */
+public class FileStreamReader {
+
+    private PartialFile partialFile;
+    private RandomAccessFile file;
+    private int size;
+    private volatile boolean closed;
+
+    public FileStreamReader(TLRPC.Document document) {
+        size = document.size;
+        File cacheFile = FileLoader.getPathToAttach(document);
+        if (cacheFile.exists() && cacheFile.length() == size) {
+            partialFile = new PartialFile();
+            partialFile.finish(cacheFile);
+        } else {
+            partialFile = FileLoader.getInstance().getPartialFile(FileLoader.getAttachFileName(document));
+            FileLoader.getInstance().loadFile(document, true, false);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Reads up to {@code length} bytes at {@code position}, blocking until
+     * they are loaded. Returns -1 at the end of the file.
+     */
+    public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        length = (int) Math.min(length, size - position);
+        if (length <= 0) {
+            return 0;
+        }
+        while (!partialFile.waitFor((int) position, length)) {
+            if (closed) {
+                throw new IOException("reader closed");
+            }
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("reader closed");
+            }
+            if (file == null) {
+                file = partialFile.openFile();
+            }
+            file.seek(position);
+            int read = 0;
+            while (read < length) {
+                int count = file.read(buffer, offset + read, length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return read == 0 ? -1 : read;
+        }
+    }
+
+    public void close() {
+        closed = true;
+        partialFile.wakeUp();
+        synchronized (this) {
+            try {
+                if (file != null) {
+                    file.close();
+                    file = null;
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+    }
+}
@@ -10,6 +10,7 @@ package org.telegram.messenger;
 
 import android.app.Activity;
 import android.content.SharedPreferences;
+import android.util.SparseArray;
 
 import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.NativeByteBuffer;
@@ -22,22 +23,34 @@ import java.io.FileInputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Locale;
 
 public class FileUploadOperation {
+
+    private static class UploadPart {
+        private int partNum;
+        private int size;
+        private boolean isLast;
+        private byte[] ivChange;
+        private NativeByteBuffer buffer;
+        private int requestToken;
+    }
+
+    private final static int maxUploadRequests = 4;
+    private final static int maxReadAheadParts = 2;
+
+    private static final DispatchQueue uploadReadQueue = new DispatchQueue("uploadReadQueue", 2);
+
     private int uploadChunkSize = 1024 * 32;
     private String uploadingFilePath;
-    public int state = 0;
+    public volatile int state = 0;
     private byte[] readBuffer;
     public FileUploadOperationDelegate delegate;
-    private int requestToken = 0;
-    private int currentPartNum = 0;
     private long currentFileId;
-    private boolean isLastPart = false;
     private long totalFileSize = 0;
     private int totalPartsCount = 0;
-    private long currentUploaded = 0;
-    private int saveInfoTimes = 0;
     private byte[] key;
     private byte[] iv;
     private byte[] ivChange;
@@ -51,6 +64,18 @@ public class FileUploadOperation {
     private MessageDigest mdEnc = null;
     private boolean started = false;
 
+    private int nextPartNum;
+    private long readOffset;
+    private boolean readFinished;
+    private int readingPartsCount;
+    private int lastPartNum = -1;
+    private ArrayDeque<UploadPart> readyParts = new ArrayDeque<>();
+    private ArrayList<UploadPart> sendingParts = new ArrayList<>();
+    private SparseArray<UploadPart> uploadedParts = new SparseArray<>();
+    private int confirmedPartsCount;
+    private long confirmedBytes;
+    private long uploadedBytes;
+
     public interface FileUploadOperationDelegate {
         void didFinishUploadingFile(FileUploadOperation operation, TLRPC.InputFile inputFile, TLRPC.InputEncryptedFile inputEncryptedFile, byte[] key, byte[] iv);
         void didFailedUploadingFile(FileUploadOperation operation);
@@ -85,13 +110,29 @@ public class FileUploadOperation {
             return;
         }
         state = 2;
-        if (requestToken != 0) {
-            ConnectionsManager.getInstance().cancelRequest(requestToken, true);
-        }
+        Utilities.stageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                cancelRequests();
+            }
+        });
         delegate.didFailedUploadingFile(this);
         cleanup();
     }
 
+    private void cancelRequests() {
+        for (int a = 0; a < sendingParts.size(); a++) {
+            UploadPart part = sendingParts.get(a);
+            if (part.requestToken != 0) {
+                ConnectionsManager.getInstance().cancelRequest(part.requestToken, true);
+            }
+        }
+        sendingParts.clear();
+        while (!readyParts.isEmpty()) {
+            readyParts.poll().buffer.reuse();
+        }
+    }
+
     private void cleanup() {
         SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
         preferences.edit().remove(fileKey + "_time").
@@ -111,6 +152,16 @@ public class FileUploadOperation {
         }
     }
 
+    private void onUploadFailed() {
+        if (state != 1) {
+            return;
+        }
+        state = 2;
+        cancelRequests();
+        delegate.didFailedUploadingFile(this);
+        cleanup();
+    }
+
     protected void checkNewDataAvailable(final long finalSize) {
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
@@ -124,9 +175,7 @@ public class FileUploadOperation {
                         storeFileUploadInfo(preferences);
                     }
                 }
-                if (requestToken == 0) {
-                    startUploadRequest();
-                }
+                startUploadRequest();
             }
         });
     }
@@ -145,13 +194,21 @@ public class FileUploadOperation {
         editor.commit();
     }
 
+    private void storeUploadedInfo(byte[] confirmedIvChange) {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putLong(fileKey + "_uploaded", confirmedBytes);
+        if (isEncrypted && confirmedIvChange != null) {
+            editor.putString(fileKey + "_ivc", Utilities.bytesToHex(confirmedIvChange));
+        }
+        editor.commit();
+    }
+
     private void startUploadRequest() {
         if (state != 1) {
             return;
         }
 
-        TLObject finalRequest;
-
         try {
             started = true;
             if (stream == null) {
@@ -218,19 +275,16 @@ public class FileUploadOperation {
                         }
                         if (date != 0) {
                             if (uploadedSize > 0) {
-                                currentUploaded = uploadedSize;
-                                currentPartNum = (int) (uploadedSize / uploadChunkSize);
+                                readOffset = confirmedBytes = uploadedBytes = uploadedSize;
+                                nextPartNum = confirmedPartsCount = (int) (uploadedSize / uploadChunkSize);
                                 if (!isBigFile) {
-                                    for (int b = 0; b < currentUploaded / uploadChunkSize; b++) {
+                                    for (int b = 0; b < confirmedPartsCount; b++) {
                                         int read = stream.read(readBuffer);
                                         int toAdd = 0;
                                         if (isEncrypted && read % 16 != 0) {
                                             toAdd += 16 - read % 16;
                                         }
                                         NativeByteBuffer sendBuffer = new NativeByteBuffer(read + toAdd);
-                                        if (read != uploadChunkSize || totalPartsCount == currentPartNum + 1) {
-                                            isLastPart = true;
-                                        }
                                         sendBuffer.writeBytes(readBuffer, 0, read);
                                         if (isEncrypted) {
                                             for (int a = 0; a < toAdd; a++) {
@@ -250,13 +304,13 @@ public class FileUploadOperation {
                                             ivChange = Utilities.hexToBytes(ivcString);
                                             if (ivChange == null || ivChange.length != 32) {
                                                 rewrite = true;
-                                                currentUploaded = 0;
-                                                currentPartNum = 0;
+                                                readOffset = confirmedBytes = uploadedBytes = 0;
+                                                nextPartNum = confirmedPartsCount = 0;
                                             }
                                         } else {
                                             rewrite = true;
-                                            currentUploaded = 0;
-                                            currentPartNum = 0;
+                                            readOffset = confirmedBytes = uploadedBytes = 0;
+                                            nextPartNum = confirmedPartsCount = 0;
                                         }
                                     }
                                 }
@@ -299,123 +353,203 @@ public class FileUploadOperation {
                         FileLog.e("tmessages", e);
                     }
                 }
-            } else if (estimatedSize == 0) {
-                if (saveInfoTimes >= 4) {
-                    saveInfoTimes = 0;
-                }
-                if (isBigFile && currentUploaded % (1024 * 1024) == 0 || !isBigFile && saveInfoTimes == 0) {
-                    SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("uploadinfo", Activity.MODE_PRIVATE);
-                    SharedPreferences.Editor editor = preferences.edit();
-                    editor.putLong(fileKey + "_uploaded", currentUploaded);
-                    if (isEncrypted) {
-                        editor.putString(fileKey + "_ivc", Utilities.bytesToHex(ivChange));
-                    }
-                    editor.commit();
-                }
-                saveInfoTimes++;
             }
+            readNextParts();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            onUploadFailed();
+        }
+    }
 
+    private void readNextParts() throws Exception {
+        while (!readFinished && readingPartsCount + readyParts.size() + sendingParts.size() < maxUploadRequests + maxReadAheadParts) {
             if (estimatedSize != 0) {
                 long size = stream.getChannel().size();
-                if (currentUploaded + uploadChunkSize > size) {
-                    return;
+                if (readOffset + uploadChunkSize > size) {
+                    break;
                 }
+            } else if (nextPartNum >= totalPartsCount) {
+                break;
             }
-
-            int read = stream.read(readBuffer);
-            int toAdd = 0;
-            if (isEncrypted && read % 16 != 0) {
-                toAdd += 16 - read % 16;
-            }
-            NativeByteBuffer sendBuffer = new NativeByteBuffer(read + toAdd);
-            if (read != uploadChunkSize || estimatedSize == 0 && totalPartsCount == currentPartNum + 1) {
-                isLastPart = true;
+            boolean isLastByCount = estimatedSize == 0 && totalPartsCount == nextPartNum + 1;
+            readPart(nextPartNum, isLastByCount);
+            readingPartsCount++;
+            nextPartNum++;
+            readOffset += uploadChunkSize;
+            if (isLastByCount) {
+                readFinished = true;
             }
-            sendBuffer.writeBytes(readBuffer, 0, read);
-            if (isEncrypted) {
-                for (int a = 0; a < toAdd; a++) {
-                    sendBuffer.writeByte(0);
+        }
+    }
+
+    private void readPart(final int partNum, final boolean isLastByCount) {
+        uploadReadQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                UploadPart part = null;
+                if (state == 1) {
+                    try {
+                        int read = stream.read(readBuffer);
+                        if (read > 0) {
+                            int toAdd = 0;
+                            if (isEncrypted && read % 16 != 0) {
+                                toAdd += 16 - read % 16;
+                            }
+                            NativeByteBuffer sendBuffer = new NativeByteBuffer(read + toAdd);
+                            sendBuffer.writeBytes(readBuffer, 0, read);
+                            if (isEncrypted) {
+                                for (int a = 0; a < toAdd; a++) {
+                                    sendBuffer.writeByte(0);
+                                }
+                                Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, read + toAdd);
+                            }
+                            sendBuffer.rewind();
+                            if (!isBigFile) {
+                                mdEnc.update(sendBuffer.buffer);
+                                sendBuffer.rewind();
+                            }
+                            part = new UploadPart();
+                            part.partNum = partNum;
+                            part.size = read;
+                            part.isLast = read != uploadChunkSize || isLastByCount;
+                            part.buffer = sendBuffer;
+                            if (isEncrypted) {
+                                part.ivChange = new byte[32];
+                                System.arraycopy(ivChange, 0, part.ivChange, 0, 32);
+                            }
+                        }
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
                 }
-                Utilities.aesIgeEncryption(sendBuffer.buffer, key, ivChange, true, true, 0, read + toAdd);
+                final UploadPart finalPart = part;
+                Utilities.stageQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPartRead(finalPart);
+                    }
+                });
             }
-            sendBuffer.rewind();
-            if (!isBigFile) {
-                mdEnc.update(sendBuffer.buffer);
+        }, currentFileId, DispatchQueue.PRIORITY_NORMAL);
+    }
+
+    private void onPartRead(UploadPart part) {
+        readingPartsCount--;
+        if (state != 1) {
+            if (part != null) {
+                part.buffer.reuse();
             }
+            return;
+        }
+        if (part == null) {
+            onUploadFailed();
+            return;
+        }
+        if (part.isLast) {
+            readFinished = true;
+            lastPartNum = part.partNum;
+        }
+        readyParts.add(part);
+        sendParts();
+    }
+
+    private void sendParts() {
+        while (sendingParts.size() < maxUploadRequests && !readyParts.isEmpty()) {
+            final UploadPart part = readyParts.poll();
+            TLObject finalRequest;
             if (isBigFile) {
                 TLRPC.TL_upload_saveBigFilePart req = new TLRPC.TL_upload_saveBigFilePart();
-                req.file_part = currentPartNum;
+                req.file_part = part.partNum;
                 req.file_id = currentFileId;
                 if (estimatedSize != 0) {
                     req.file_total_parts = -1;
                 } else {
                     req.file_total_parts = totalPartsCount;
                 }
-                req.bytes = sendBuffer;
+                req.bytes = part.buffer;
                 finalRequest = req;
             } else {
                 TLRPC.TL_upload_saveFilePart req = new TLRPC.TL_upload_saveFilePart();
-                req.file_part = currentPartNum;
+                req.file_part = part.partNum;
                 req.file_id = currentFileId;
-                req.bytes = sendBuffer;
+                req.bytes = part.buffer;
                 finalRequest = req;
             }
-            currentUploaded += read;
+            part.buffer = null;
+            sendingParts.add(part);
+            part.requestToken = ConnectionsManager.getInstance().sendRequest(finalRequest, new RequestDelegate() {
+                @Override
+                public void run(TLObject response, TLRPC.TL_error error) {
+                    onPartUploaded(part, response, error);
+                }
+            }, 0, ConnectionsManager.ConnectionTypeUpload);
+        }
+        try {
+            readNextParts();
         } catch (Exception e) {
             FileLog.e("tmessages", e);
-            delegate.didFailedUploadingFile(this);
-            cleanup();
+            onUploadFailed();
+        }
+    }
+
+    private void onPartUploaded(UploadPart part, TLObject response, TLRPC.TL_error error) {
+        part.requestToken = 0;
+        if (!sendingParts.remove(part) || state != 1) {
             return;
         }
-        requestToken = ConnectionsManager.getInstance().sendRequest(finalRequest, new RequestDelegate() {
-            @Override
-            public void run(TLObject response, TLRPC.TL_error error) {
-                requestToken = 0;
-                if (error == null) {
-                    if (response instanceof TLRPC.TL_boolTrue) {
-                        currentPartNum++;
-                        delegate.didChangedUploadProgress(FileUploadOperation.this, currentUploaded / (float) totalFileSize);
-                        if (isLastPart) {
-                            state = 3;
-                            if (key == null) {
-                                TLRPC.InputFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputFileBig();
-                                } else {
-                                    result = new TLRPC.TL_inputFile();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
-                                cleanup();
-                            } else {
-                                TLRPC.InputEncryptedFile result;
-                                if (isBigFile) {
-                                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
-                                } else {
-                                    result = new TLRPC.TL_inputEncryptedFileUploaded();
-                                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
-                                }
-                                result.parts = currentPartNum;
-                                result.id = currentFileId;
-                                result.key_fingerprint = fingerprint;
-                                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
-                                cleanup();
-                            }
-                        } else {
-                            startUploadRequest();
-                        }
-                    } else {
-                        delegate.didFailedUploadingFile(FileUploadOperation.this);
-                        cleanup();
-                    }
+        if (error != null || !(response instanceof TLRPC.TL_boolTrue)) {
+            onUploadFailed();
+            return;
+        }
+        uploadedBytes += part.size;
+        uploadedParts.put(part.partNum, part);
+        byte[] confirmedIvChange = null;
+        boolean storeInfo = false;
+        UploadPart confirmedPart;
+        while ((confirmedPart = uploadedParts.get(confirmedPartsCount)) != null) {
+            uploadedParts.remove(confirmedPartsCount);
+            confirmedPartsCount++;
+            confirmedBytes += confirmedPart.size;
+            confirmedIvChange = confirmedPart.ivChange;
+            if (isBigFile && confirmedBytes % (1024 * 1024) == 0 || !isBigFile && confirmedPartsCount % 4 == 0) {
+                storeInfo = true;
+            }
+        }
+        delegate.didChangedUploadProgress(FileUploadOperation.this, uploadedBytes / (float) totalFileSize);
+        if (lastPartNum >= 0 && confirmedPartsCount == lastPartNum + 1) {
+            state = 3;
+            if (key == null) {
+                TLRPC.InputFile result;
+                if (isBigFile) {
+                    result = new TLRPC.TL_inputFileBig();
                 } else {
-                    delegate.didFailedUploadingFile(FileUploadOperation.this);
-                    cleanup();
+                    result = new TLRPC.TL_inputFile();
+                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
                 }
+                result.parts = confirmedPartsCount;
+                result.id = currentFileId;
+                result.name = uploadingFilePath.substring(uploadingFilePath.lastIndexOf("/") + 1);
+                delegate.didFinishUploadingFile(FileUploadOperation.this, result, null, null, null);
+                cleanup();
+            } else {
+                TLRPC.InputEncryptedFile result;
+                if (isBigFile) {
+                    result = new TLRPC.TL_inputEncryptedFileBigUploaded();
+                } else {
+                    result = new TLRPC.TL_inputEncryptedFileUploaded();
+                    result.md5_checksum = String.format(Locale.US, "%32s", new BigInteger(1, mdEnc.digest()).toString(16)).replace(' ', '0');
+                }
+                result.parts = confirmedPartsCount;
+                result.id = currentFileId;
+                result.key_fingerprint = fingerprint;
+                delegate.didFinishUploadingFile(FileUploadOperation.this, null, result, key, iv);
+                cleanup();
             }
-        }, 0, ConnectionsManager.ConnectionTypeUpload);
+            return;
+        }
+        if (storeInfo && estimatedSize == 0) {
+            storeUploadedInfo(confirmedIvChange);
+        }
+        sendParts();
     }
 }
@@ -0,0 +1,297 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+import org.telegram.SQLite.SQLitePreparedStatement;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * In-memory copy of the holes of recently used dialogs, loaded once per
+ * table and media type and written through to SQLite. Lookups are TreeMap
+ * floor/ceiling searches instead of queries. Holes of one dialog and type
+ * never overlap, apart from the (1, 1) end marker. Must only be used on the
+ * storage queue.
+ */
+public class HolesIndex {
+
+    public final static String MESSAGES = "messages_holes";
+    public final static String MESSAGES_IMP = "messages_imp_holes";
+    public final static String MEDIA = "media_holes_v2";
+
+    private final static int MAX_CACHED_DIALOGS = 32;
+
+    private static class Holes {
+        private TreeMap<Integer, Integer> starts = new TreeMap<>();
+        private TreeMap<Integer, Integer> ends = new TreeMap<>();
+
+        private void put(int start, int end) {
+            Integer oldEnd = starts.put(start, end);
+            if (oldEnd != null) {
+                removeEnd(oldEnd);
+            }
+            Integer count = ends.get(end);
+            ends.put(end, count == null ? 1 : count + 1);
+        }
+
+        private void remove(int start) {
+            Integer end = starts.remove(start);
+            if (end != null) {
+                removeEnd(end);
+            }
+        }
+
+        private void removeEnd(int end) {
+            Integer count = ends.get(end);
+            if (count == null) {
+                return;
+            }
+            if (count == 1) {
+                ends.remove(end);
+            } else {
+                ends.put(end, count - 1);
+            }
+        }
+
+        private void clear() {
+            starts.clear();
+            ends.clear();
+        }
+    }
+
+    private LinkedHashMap<Long, HashMap<String, Holes>> dialogs = new LinkedHashMap<Long, HashMap<String, Holes>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, HashMap<String, Holes>> eldest) {
+            return size() > MAX_CACHED_DIALOGS;
+        }
+    };
+
+    public void clear() {
+        dialogs.clear();
+    }
+
+    /**
+     * Drops the cached holes of {@code did}; must be called after its holes
+     * were changed without going through this index.
+     */
+    public void invalidate(long did) {
+        dialogs.remove(did);
+    }
+
+    private Holes getHoles(SQLiteDatabase database, String table, long did, int type) throws Exception {
+        HashMap<String, Holes> tables = dialogs.get(did);
+        if (tables == null) {
+            tables = new HashMap<>();
+            dialogs.put(did, tables);
+        }
+        boolean media = MEDIA.equals(table);
+        String key = media ? table + type : table;
+        Holes holes = tables.get(key);
+        if (holes == null) {
+            holes = new Holes();
+            SQLiteCursor cursor;
+            if (media) {
+                cursor = database.queryCached("SELECT start, end FROM media_holes_v2 WHERE uid = ? AND type = ?", did, type);
+            } else {
+                cursor = database.queryCached("SELECT start, end FROM " + table + " WHERE uid = ?", did);
+            }
+            while (cursor.next()) {
+                holes.put(cursor.intValue(0), cursor.intValue(1));
+            }
+            cursor.dispose();
+            tables.put(key, holes);
+        }
+        return holes;
+    }
+
+    /**
+     * Returns 0 if the history still has a hole at its beginning, 1 if it
+     * is known to be loaded up to the first message and -1 if neither is
+     * recorded yet.
+     */
+    public int getFirstStart(SQLiteDatabase database, String table, long did, int type) throws Exception {
+        Holes holes = getHoles(database, table, did, type);
+        if (holes.starts.containsKey(0)) {
+            return 0;
+        } else if (holes.starts.containsKey(1)) {
+            return 1;
+        }
+        return -1;
+    }
+
+    public boolean isInsideHole(SQLiteDatabase database, String table, long did, int type, int id) throws Exception {
+        Map.Entry<Integer, Integer> entry = getHoles(database, table, did, type).starts.lowerEntry(id);
+        return entry != null && entry.getValue() > id;
+    }
+
+    /**
+     * Returns the start of the first hole starting at or above {@code id},
+     * or 0 if there is none.
+     */
+    public int getStartAbove(SQLiteDatabase database, String table, long did, int type, int id, boolean skipEndMarker) throws Exception {
+        Holes holes = getHoles(database, table, did, type);
+        for (Map.Entry<Integer, Integer> entry : holes.starts.tailMap(id, true).entrySet()) {
+            if (skipEndMarker && (entry.getKey() == 1 || entry.getValue() == 1)) {
+                continue;
+            }
+            return entry.getKey();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the highest hole end at or below {@code id}, or 0 if there is
+     * none.
+     */
+    public int getEndBelow(SQLiteDatabase database, String table, long did, int type, int id) throws Exception {
+        Integer end = getHoles(database, table, did, type).ends.floorKey(id);
+        return end != null ? end : 0;
+    }
+
+    public int getMaxEnd(SQLiteDatabase database, String table, long did, int type) throws Exception {
+        Holes holes = getHoles(database, table, did, type);
+        return holes.ends.isEmpty() ? 0 : holes.ends.lastKey();
+    }
+
+    public void put(SQLiteDatabase database, String table, long did, int type, int start, int end) throws Exception {
+        Holes holes = getHoles(database, table, did, type);
+        ArrayList<Integer> added = new ArrayList<>(2);
+        added.add(start);
+        added.add(end);
+        write(database, table, did, type, null, added);
+        holes.put(start, end);
+    }
+
+    /**
+     * Marks the history of {@code did} as loaded up to its first message,
+     * dropping all holes if {@code maxId} is 0.
+     */
+    public void done(SQLiteDatabase database, String table, long did, int type, int maxId) throws Exception {
+        Holes holes = getHoles(database, table, did, type);
+        ArrayList<Integer> removed = new ArrayList<>();
+        if (maxId == 0) {
+            removed.addAll(holes.starts.keySet());
+        } else if (holes.starts.containsKey(0)) {
+            removed.add(0);
+        }
+        ArrayList<Integer> added = new ArrayList<>(2);
+        added.add(1);
+        added.add(1);
+        write(database, table, did, type, removed, added);
+        if (maxId == 0) {
+            holes.clear();
+        } else {
+            holes.remove(0);
+        }
+        holes.put(1, 1);
+    }
+
+    /**
+     * Removes the range from {@code minId} to {@code maxId} from the holes,
+     * shrinking or splitting the ones it partly covers.
+     */
+    public void close(SQLiteDatabase database, String table, long did, int type, int minId, int maxId) throws Exception {
+        Holes holes = getHoles(database, table, did, type);
+        ArrayList<Integer> removed = null;
+        ArrayList<Integer> added = null;
+        for (Map.Entry<Integer, Integer> entry : holes.starts.headMap(maxId, true).descendingMap().entrySet()) {
+            int start = entry.getKey();
+            int end = entry.getValue();
+            if (start == 1 && end == 1) {
+                continue;
+            }
+            if (end < minId) {
+                break;
+            }
+            if (removed == null) {
+                removed = new ArrayList<>();
+                added = new ArrayList<>();
+            }
+            if (maxId >= end - 1 && minId <= start + 1) {
+                removed.add(start);
+            } else if (maxId >= end - 1) {
+                if (end != minId) {
+                    added.add(start);
+                    added.add(minId);
+                }
+            } else if (minId <= start + 1) {
+                if (start != maxId) {
+                    removed.add(start);
+                    added.add(maxId);
+                    added.add(end);
+                }
+            } else {
+                added.add(start);
+                added.add(minId);
+                added.add(maxId);
+                added.add(end);
+            }
+        }
+        if (removed == null) {
+            return;
+        }
+        write(database, table, did, type, removed, added);
+        for (int a = 0; a < removed.size(); a++) {
+            holes.remove(removed.get(a));
+        }
+        for (int a = 0; a < added.size(); a += 2) {
+            holes.put(added.get(a), added.get(a + 1));
+        }
+    }
+
+    private void write(SQLiteDatabase database, String table, long did, int type, ArrayList<Integer> removed, ArrayList<Integer> added) throws Exception {
+        boolean media = MEDIA.equals(table);
+        try {
+            if (removed != null && !removed.isEmpty()) {
+                SQLitePreparedStatement state = database.executeCached(media ? "DELETE FROM media_holes_v2 WHERE uid = ? AND type = ? AND start = ?" : "DELETE FROM " + table + " WHERE uid = ? AND start = ?");
+                try {
+                    for (int a = 0; a < removed.size(); a++) {
+                        state.requery();
+                        int pointer = 1;
+                        state.bindLong(pointer++, did);
+                        if (media) {
+                            state.bindInteger(pointer++, type);
+                        }
+                        state.bindInteger(pointer, removed.get(a));
+                        state.step();
+                    }
+                } finally {
+                    state.dispose();
+                }
+            }
+            if (added != null && !added.isEmpty()) {
+                SQLitePreparedStatement state = database.executeCached(media ? "REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)" : "REPLACE INTO " + table + " VALUES(?, ?, ?)");
+                try {
+                    for (int a = 0; a < added.size(); a += 2) {
+                        state.requery();
+                        int pointer = 1;
+                        state.bindLong(pointer++, did);
+                        if (media) {
+                            state.bindInteger(pointer++, type);
+                        }
+                        state.bindInteger(pointer++, added.get(a));
+                        state.bindInteger(pointer, added.get(a + 1));
+                        state.step();
+                    }
+                } finally {
+                    state.dispose();
+                }
+            }
+        } catch (Exception e) {
+            invalidate(did);
+            throw e;
+        }
+    }
+}
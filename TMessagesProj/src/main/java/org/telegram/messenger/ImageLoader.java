@@ -24,6 +24,7 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
 import android.provider.MediaStore;
 
 import org.telegram.tgnet.ConnectionsManager;
@@ -51,11 +52,15 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class ImageLoader {
 
+    private final static int MAX_DECODE_THREADS = 4;
+    private final static String[] DECODE_STAGES = new String[] {"wait", "read", "decode", "post"};
+
     private HashMap<String, Integer> bitmapUseCounts = new HashMap<>();
     private LruCache memCache;
     private HashMap<String, CacheImage> imageLoadingByUrl = new HashMap<>();
@@ -64,17 +69,17 @@ public class ImageLoader {
     private HashMap<String, ThumbGenerateInfo> waitingForQualityThumb = new HashMap<>();
     private HashMap<Integer, String> waitingForQualityThumbByTag = new HashMap<>();
     private LinkedList<HttpImageTask> httpTasks = new LinkedList<>();
-    private DispatchQueue cacheOutQueue = new DispatchQueue("cacheOutQueue");
-    private DispatchQueue cacheThumbOutQueue = new DispatchQueue("cacheThumbOutQueue");
-    private DispatchQueue thumbGeneratingQueue = new DispatchQueue("thumbGeneratingQueue");
+    private DispatchQueue imageDecodeQueue = new DispatchQueue("imageDecodeQueue", Math.max(2, Math.min(MAX_DECODE_THREADS, Runtime.getRuntime().availableProcessors())), true);
     private DispatchQueue imageLoadQueue = new DispatchQueue("imageLoadQueue");
     private ConcurrentHashMap<String, Float> fileProgresses = new ConcurrentHashMap<>();
     private HashMap<String, ThumbGenerateTask> thumbGenerateTasks = new HashMap<>();
-    private static byte[] bytes;
-    private static byte[] bytesThumb;
-    private static byte[] header = new byte[12];
-    private static byte[] headerThumb = new byte[12];
+    private static final ThreadLocal<byte[]> decodeBuffers = new ThreadLocal<>();
     private int currentHttpTasksCount = 0;
+    private long lastDecodeKey;
+    private final Object decodeStatsSync = new Object();
+    private int decodeCount;
+    private long[] decodeStageTimes = new long[DECODE_STAGES.length];
+    private long[] decodeStageMaxTimes = new long[DECODE_STAGES.length];
 
     private LinkedList<HttpFileTask> httpFileLoadTasks = new LinkedList<>();
     private HashMap<String, HttpFileTask> httpFileLoadTasksByKeys = new HashMap<>();
@@ -374,6 +379,7 @@ public class ImageLoader {
                         cacheImage.finalFilePath = cacheImage.tempFilePath;
                     }
                 }
+                MediaCacheIndex.getInstance().onFileLoaded(cacheImage.finalFilePath);
             }
 
             return done;
@@ -511,6 +517,7 @@ public class ImageLoader {
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
                 }
+                MediaCacheIndex.getInstance().onFileLoaded(thumbFile);
                 final BitmapDrawable bitmapDrawable = new BitmapDrawable(originalBitmap);
                 AndroidUtilities.runOnUIThread(new Runnable() {
                     @Override
@@ -548,13 +555,29 @@ public class ImageLoader {
 
         private CacheImage cacheImage;
         private boolean isCancelled;
+        private long queueKey;
+        private long enqueueTime;
+        private long startTime;
+        private long readTime;
 
         public CacheOutTask(CacheImage image) {
             cacheImage = image;
+            queueKey = ++lastDecodeKey;
         }
 
         @Override
         public void run() {
+            startTime = SystemClock.elapsedRealtime();
+            try {
+                decode();
+            } finally {
+                synchronized (sync) {
+                    runningThread = null;
+                }
+            }
+        }
+
+        private void decode() {
             synchronized (sync) {
                 runningThread = Thread.currentThread();
                 Thread.interrupted();
@@ -582,14 +605,10 @@ public class ImageLoader {
 
                 if (Build.VERSION.SDK_INT < 19) {
                     RandomAccessFile randomAccessFile = null;
+                    long readStart = SystemClock.elapsedRealtime();
                     try {
                         randomAccessFile = new RandomAccessFile(cacheFileFinal, "r");
-                        byte[] bytes;
-                        if (cacheImage.thumb) {
-                            bytes = headerThumb;
-                        } else {
-                            bytes = header;
-                        }
+                        byte[] bytes = new byte[12];
                         randomAccessFile.readFully(bytes, 0, bytes.length);
                         String str = new String(bytes).toLowerCase();
                         str = str.toLowerCase();
@@ -608,6 +627,7 @@ public class ImageLoader {
                             }
                         }
                     }
+                    readTime += SystemClock.elapsedRealtime() - readStart;
                 }
 
                 if (cacheImage.thumb) {
@@ -650,18 +670,16 @@ public class ImageLoader {
                             file.close();
                         } else {
                             if (opts.inPurgeable) {
+                                long readStart = SystemClock.elapsedRealtime();
                                 RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                 int len = (int) f.length();
-                                byte[] data = bytesThumb != null && bytesThumb.length >= len ? bytesThumb : null;
-                                if (data == null) {
-                                    bytesThumb = data = new byte[len];
-                                }
+                                byte[] data = getDecodeBuffer(len);
                                 f.readFully(data, 0, len);
+                                f.close();
+                                readTime += SystemClock.elapsedRealtime() - readStart;
                                 image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                             } else {
-                                FileInputStream is = new FileInputStream(cacheFileFinal);
-                                image = BitmapFactory.decodeStream(is, null, opts);
-                                is.close();
+                                image = BitmapPool.getInstance().decodeFile(cacheFileFinal.getAbsolutePath(), opts);
                             }
                         }
 
@@ -810,18 +828,16 @@ public class ImageLoader {
                                 file.close();
                             } else {
                                 if (opts.inPurgeable) {
+                                    long readStart = SystemClock.elapsedRealtime();
                                     RandomAccessFile f = new RandomAccessFile(cacheFileFinal, "r");
                                     int len = (int) f.length();
-                                    byte[] data = bytes != null && bytes.length >= len ? bytes : null;
-                                    if (data == null) {
-                                        bytes = data = new byte[len];
-                                    }
+                                    byte[] data = getDecodeBuffer(len);
                                     f.readFully(data, 0, len);
+                                    f.close();
+                                    readTime += SystemClock.elapsedRealtime() - readStart;
                                     image = BitmapFactory.decodeByteArray(data, 0, len, opts);
                                 } else {
-                                    FileInputStream is = new FileInputStream(cacheFileFinal);
-                                    image = BitmapFactory.decodeStream(is, null, opts);
-                                    is.close();
+                                    image = BitmapPool.getInstance().decodeFile(cacheFileFinal.getAbsolutePath(), opts);
                                 }
                             }
                         }
@@ -838,7 +854,7 @@ public class ImageLoader {
                                     float scaleFactor = bitmapW / w_filter;
                                     Bitmap scaledBitmap = Bitmaps.createScaledBitmap(image, (int) w_filter, (int) (bitmapH / scaleFactor), true);
                                     if (image != scaledBitmap) {
-                                        image.recycle();
+                                        BitmapPool.getInstance().put(image);
                                         image = scaledBitmap;
                                     }
                                 }
@@ -866,9 +882,11 @@ public class ImageLoader {
         }
 
         private void onPostExecute(final BitmapDrawable bitmapDrawable) {
+            final long postTime = SystemClock.elapsedRealtime();
             AndroidUtilities.runOnUIThread(new Runnable() {
                 @Override
                 public void run() {
+                    addDecodeTimes(startTime - enqueueTime, readTime, postTime - startTime - readTime, SystemClock.elapsedRealtime() - postTime);
                     BitmapDrawable toSet = null;
                     if (bitmapDrawable instanceof AnimatedFileDrawable) {
                         toSet = bitmapDrawable;
@@ -882,7 +900,7 @@ public class ImageLoader {
                             if (runtimeHack != null) {
                                 runtimeHack.trackAlloc(image.getRowBytes() * image.getHeight());
                             }
-                            image.recycle();
+                            BitmapPool.getInstance().put(image);
                         }
                     }
                     final BitmapDrawable toSetFinal = toSet;
@@ -1013,11 +1031,7 @@ public class ImageLoader {
                     }
                 }
                 if (cacheTask != null) {
-                    if (thumb) {
-                        cacheThumbOutQueue.cancelRunnable(cacheTask);
-                    } else {
-                        cacheOutQueue.cancelRunnable(cacheTask);
-                    }
+                    imageDecodeQueue.cancelRunnable(cacheTask);
                     cacheTask.cancel();
                     cacheTask = null;
                 }
@@ -1093,9 +1107,7 @@ public class ImageLoader {
 
     public ImageLoader() {
 
-        cacheOutQueue.setPriority(Thread.MIN_PRIORITY);
-        cacheThumbOutQueue.setPriority(Thread.MIN_PRIORITY);
-        thumbGeneratingQueue.setPriority(Thread.MIN_PRIORITY);
+        imageDecodeQueue.setWorkersPriority(Thread.NORM_PRIORITY - 1);
         imageLoadQueue.setPriority(Thread.MIN_PRIORITY);
 
         int cacheSize = Math.min(15, ((ActivityManager) ApplicationLoader.applicationContext.getSystemService(Context.ACTIVITY_SERVICE)).getMemoryClass() / 7) * 1024 * 1024;
@@ -1110,8 +1122,10 @@ public class ImageLoader {
                 Bitmap b = value.getBitmap();
                 if (Build.VERSION.SDK_INT < 12) {
                     return b.getRowBytes() * b.getHeight();
-                } else {
+                } else if (Build.VERSION.SDK_INT < 19) {
                     return b.getByteCount();
+                } else {
+                    return b.getAllocationByteCount();
                 }
             }
 
@@ -1126,9 +1140,7 @@ public class ImageLoader {
                     if (runtimeHack != null) {
                         runtimeHack.trackAlloc(b.getRowBytes() * b.getHeight());
                     }
-                    if (!b.isRecycled()) {
-                        b.recycle();
-                    }
+                    BitmapPool.getInstance().put(b);
                 }
             }
         };
@@ -1233,7 +1245,7 @@ public class ImageLoader {
                 FileLog.e("tmessages", "file system changed");
                 Runnable r = new Runnable() {
                     public void run() {
-                        cacheOutQueue.postRunnable(new Runnable() {
+                        imageDecodeQueue.postRunnable(new Runnable() {
                             @Override
                             public void run() {
                                 final HashMap<Integer, File> paths = createMediaPaths();
@@ -1285,7 +1297,7 @@ public class ImageLoader {
         mediaDirs.put(FileLoader.MEDIA_DIR_CACHE, cachePath);
         FileLoader.getInstance().setMediaDirs(mediaDirs);
 
-        cacheOutQueue.postRunnable(new Runnable() {
+        imageDecodeQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 final HashMap<Integer, File> paths = createMediaPaths();
@@ -1481,6 +1493,7 @@ public class ImageLoader {
 
     public void clearMemory() {
         memCache.evictAll();
+        BitmapPool.getInstance().clear();
     }
 
     private void removeFromWaitingForThumb(Integer TAG) {
@@ -1594,7 +1607,7 @@ public class ImageLoader {
         ThumbGenerateTask task = thumbGenerateTasks.get(name);
         if (task == null) {
             task = new ThumbGenerateTask(mediaType, originalPath, thumbLocation, filter);
-            thumbGeneratingQueue.postRunnable(task);
+            imageDecodeQueue.postRunnable(task, DispatchQueue.KEY_DEFAULT, DispatchQueue.PRIORITY_LOW);
         }
     }
 
@@ -1635,6 +1648,9 @@ public class ImageLoader {
                         alreadyLoadingCache.addImageReceiver(imageReceiver);
                         added = true;
                     }
+                    if (added && alreadyLoadingCache != null && alreadyLoadingCache.cacheTask != null) {
+                        imageDecodeQueue.bumpRunnable(alreadyLoadingCache.cacheTask.queueKey);
+                    }
                     if (!added && alreadyLoadingUrl != null) {
                         alreadyLoadingUrl.addImageReceiver(imageReceiver);
                         added = true;
@@ -1724,13 +1740,10 @@ public class ImageLoader {
                         img.addImageReceiver(imageReceiver);
                         if (onlyCache || cacheFile.exists()) {
                             img.finalFilePath = cacheFile;
+                            MediaCacheIndex.getInstance().touch(cacheFile);
                             img.cacheTask = new CacheOutTask(img);
                             imageLoadingByKeys.put(key, img);
-                            if (thumb != 0) {
-                                cacheThumbOutQueue.postRunnable(img.cacheTask);
-                            } else {
-                                cacheOutQueue.postRunnable(img.cacheTask);
-                            }
+                            postCacheOutTask(img.cacheTask, img.thumb);
                         } else {
                             img.url = url;
                             img.location = imageLocation;
@@ -1878,6 +1891,47 @@ public class ImageLoader {
         });
     }
 
+    private void postCacheOutTask(CacheOutTask task, boolean thumb) {
+        task.enqueueTime = SystemClock.elapsedRealtime();
+        imageDecodeQueue.postRunnable(task, task.queueKey, thumb ? DispatchQueue.PRIORITY_HIGH : DispatchQueue.PRIORITY_NORMAL);
+    }
+
+    private static byte[] getDecodeBuffer(int length) {
+        byte[] data = decodeBuffers.get();
+        if (data == null || data.length < length) {
+            data = new byte[length];
+            decodeBuffers.set(data);
+        }
+        return data;
+    }
+
+    private void addDecodeTimes(long... times) {
+        synchronized (decodeStatsSync) {
+            decodeCount++;
+            for (int a = 0; a < times.length; a++) {
+                decodeStageTimes[a] += times[a];
+                decodeStageMaxTimes[a] = Math.max(decodeStageMaxTimes[a], times[a]);
+            }
+        }
+    }
+
+    /**
+     * Returns average and maximum times of the decode stages: waiting in the
+     * pool, explicit file reads, decoding (including reads done by the
+     * decoder itself) and delivery to the UI thread.
+     */
+    public String getDecodeStats() {
+        StringBuilder builder = new StringBuilder();
+        synchronized (decodeStatsSync) {
+            builder.append(String.format(Locale.US, "%d images", decodeCount));
+            for (int a = 0; a < DECODE_STAGES.length; a++) {
+                builder.append(String.format(Locale.US, ", %s avg %d max %d ms", DECODE_STAGES[a], decodeCount == 0 ? 0 : decodeStageTimes[a] / decodeCount, decodeStageMaxTimes[a]));
+            }
+        }
+        builder.append(String.format(Locale.US, ", %d queued, max %d", imageDecodeQueue.getQueueDepth(), imageDecodeQueue.getMaxQueueDepth()));
+        return builder.toString();
+    }
+
     private void fileDidLoaded(final String location, final File finalFile, final int type) {
         imageLoadQueue.postRunnable(new Runnable() {
             @Override
@@ -1911,11 +1965,7 @@ public class ImageLoader {
                     cacheImage.addImageReceiver(imageReceiver);
                 }
                 if (task != null) {
-                    if (img.thumb) {
-                        cacheThumbOutQueue.postRunnable(task);
-                    } else {
-                        cacheOutQueue.postRunnable(task);
-                    }
+                    postCacheOutTask(task, img.thumb);
                 }
             }
         });
@@ -2015,6 +2065,7 @@ public class ImageLoader {
                         httpFileLoadTasksByKeys.remove(oldTask.url);
                         File file = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), Utilities.MD5(oldTask.url) + "." + oldTask.ext);
                         String result = oldTask.tempFile.renameTo(file) ? file.toString() : oldTask.tempFile.toString();
+                        MediaCacheIndex.getInstance().onFileLoaded(new File(result));
                         NotificationCenter.getInstance().postNotificationName(NotificationCenter.httpFileDidLoaded, oldTask.url, result);
                     }
                 }
@@ -2107,15 +2158,17 @@ public class ImageLoader {
         Bitmap b = null;
         if (path != null) {
             try {
-                b = BitmapFactory.decodeFile(path, bmOptions);
+                b = BitmapPool.getInstance().decodeFile(path, bmOptions);
                 if (b != null) {
                     if (bmOptions.inPurgeable) {
                         Utilities.pinBitmap(b);
                     }
-                    Bitmap newBitmap = Bitmaps.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), matrix, true);
-                    if (newBitmap != b) {
-                        b.recycle();
-                        b = newBitmap;
+                    if (!b.isMutable() || matrix != null && !matrix.isIdentity()) {
+                        Bitmap newBitmap = Bitmaps.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), matrix, true);
+                        if (newBitmap != b) {
+                            BitmapPool.getInstance().put(b);
+                            b = newBitmap;
+                        }
                     }
                 }
             } catch (Throwable e) {
@@ -2123,15 +2176,15 @@ public class ImageLoader {
                 ImageLoader.getInstance().clearMemory();
                 try {
                     if (b == null) {
-                        b = BitmapFactory.decodeFile(path, bmOptions);
+                        b = BitmapPool.getInstance().decodeFile(path, bmOptions);
                         if (b != null && bmOptions.inPurgeable) {
                             Utilities.pinBitmap(b);
                         }
                     }
-                    if (b != null) {
+                    if (b != null && (!b.isMutable() || matrix != null && !matrix.isIdentity())) {
                         Bitmap newBitmap = Bitmaps.createBitmap(b, 0, 0, b.getWidth(), b.getHeight(), matrix, true);
                         if (newBitmap != b) {
-                            b.recycle();
+                            BitmapPool.getInstance().put(b);
                             b = newBitmap;
                         }
                     }
@@ -2226,6 +2279,7 @@ public class ImageLoader {
             size.size = (int) stream.getChannel().size();
         }
         stream.close();
+        MediaCacheIndex.getInstance().onFileLoaded(cacheFile);
         if (scaledBitmap != bitmap) {
             scaledBitmap.recycle();
         }
@@ -931,7 +931,7 @@ public class ImageReceiver implements NotificationCenter.NotificationCenterDeleg
                         ImageLoader.getInstance().runtimeHack.trackAlloc(bitmap.getRowBytes() * bitmap.getHeight());
                     }
                     if (canDelete) {
-                        bitmap.recycle();
+                        BitmapPool.getInstance().put(bitmap);
                     }
                 }
             }
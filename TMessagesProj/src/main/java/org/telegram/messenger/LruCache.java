@@ -10,26 +10,55 @@ package org.telegram.messenger;
 
 import android.graphics.drawable.BitmapDrawable;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Static library version of {@link android.util.LruCache}. Used to write apps
- * that run on API levels prior to 12. When running on API level 12 or above,
- * this implementation is still used; it does not try to switch to the
- * framework's implementation. See the framework SDK documentation for a class
- * overview.
+ * Size-bounded bitmap cache with lock-free reads. Entries live in a
+ * {@link ConcurrentHashMap}, so {@link #get} never blocks on writers. Instead
+ * of reordering an access list on every hit, a read only sets the entry's
+ * reference bit; writers evict with the CLOCK (second chance) policy under a
+ * single write lock, which approximates LRU at O(1) amortized cost.
+ *
+ * <p>Keys of the form {@code "key@filter"} are additionally indexed by
+ * {@code key}, so {@link #getFilterKeys} is a hash lookup.
  */
 public class LruCache {
-    private final LinkedHashMap<String, BitmapDrawable> map;
-    private final LinkedHashMap<String, ArrayList<String>> mapFilters;
+
+    private static class Entry {
+        final String key;
+        final BitmapDrawable value;
+        final int size;
+        volatile boolean referenced;
+        boolean removed;
+
+        Entry(String key, BitmapDrawable value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> map;
+    private final ConcurrentHashMap<String, Set<String>> mapFilters;
+    private final ArrayDeque<Entry> clock;
+    private final Object writeSync = new Object();
 
     /** Size of this cache in units. Not necessarily the number of elements. */
-    private int size;
+    private volatile int size;
     private int maxSize;
 
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private long putCount;
+    private long evictionCount;
+
     /**
      * @param maxSize for caches that do not override {@link #sizeOf}, this is
      *     the maximum number of entries in the cache. For all other caches,
@@ -40,42 +69,46 @@ public class LruCache {
             throw new IllegalArgumentException("maxSize <= 0");
         }
         this.maxSize = maxSize;
-        this.map = new LinkedHashMap<>(0, 0.75f, true);
-        this.mapFilters = new LinkedHashMap<>();
+        this.map = new ConcurrentHashMap<>(64, 0.75f, 4);
+        this.mapFilters = new ConcurrentHashMap<>(64, 0.75f, 4);
+        this.clock = new ArrayDeque<>();
     }
 
     /**
-     * Returns the value for {@code key} if it exists in the cache or can be
-     * created by {@code #create}. If a value was returned, it is moved to the
-     * head of the queue. This returns null if a value is not cached and cannot
-     * be created.
+     * Returns the value for {@code key} if it exists in the cache. A hit marks
+     * the entry as recently used. This returns null if a value is not cached.
      */
     public final BitmapDrawable get(String key) {
         if (key == null) {
             throw new NullPointerException("key == null");
         }
 
-        BitmapDrawable mapValue;
-        synchronized (this) {
-            mapValue = map.get(key);
-            if (mapValue != null) {
-                return mapValue;
+        Entry entry = map.get(key);
+        if (entry != null) {
+            if (!entry.referenced) {
+                entry.referenced = true;
             }
+            hitCount.incrementAndGet();
+            return entry.value;
         }
+        missCount.incrementAndGet();
         return null;
     }
 
     public ArrayList<String> getFilterKeys(String key) {
-        ArrayList<String> arr = mapFilters.get(key);
-        if (arr != null) {
-            return new ArrayList<>(arr);
+        Set<String> filters = mapFilters.get(key);
+        if (filters != null) {
+            ArrayList<String> arr = new ArrayList<>(filters);
+            if (!arr.isEmpty()) {
+                return arr;
+            }
         }
         return null;
     }
 
     /**
-     * Caches {@code value} for {@code key}. The value is moved to the head of
-     * the queue.
+     * Caches {@code value} for {@code key}. The value is marked as the most
+     * recently used one.
      *
      * @return the previous value mapped by {@code key}.
      */
@@ -84,33 +117,27 @@ public class LruCache {
             throw new NullPointerException("key == null || value == null");
         }
 
-        BitmapDrawable previous;
-        synchronized (this) {
-            size += safeSizeOf(key, value);
-            previous = map.put(key, value);
+        Entry entry = new Entry(key, value, safeSizeOf(key, value));
+        Entry previous;
+        synchronized (writeSync) {
+            putCount++;
+            previous = map.put(key, entry);
+            size += entry.size;
+            clock.add(entry);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
-            }
-        }
-
-        String[] args = key.split("@");
-        if (args.length > 1) {
-            ArrayList<String> arr = mapFilters.get(args[0]);
-            if (arr == null) {
-                arr = new ArrayList<>();
-                mapFilters.put(args[0], arr);
-            }
-            if (!arr.contains(args[1])) {
-                arr.add(args[1]);
+                previous.removed = true;
+                size -= previous.size;
+            } else {
+                addFilter(key);
             }
         }
 
         if (previous != null) {
-            entryRemoved(false, key, previous, value);
+            entryRemoved(false, key, previous.value, value);
         }
 
         trimToSize(maxSize, key);
-        return previous;
+        return previous != null ? previous.value : null;
     }
 
     /**
@@ -118,34 +145,40 @@ public class LruCache {
      *     to evict even 0-sized elements.
      */
     private void trimToSize(int maxSize, String justAdded) {
-        synchronized (this) {
-            Iterator<HashMap.Entry<String, BitmapDrawable>> iterator = map.entrySet().iterator();
-            while (iterator.hasNext()) {
-                if (size <= maxSize || map.isEmpty()) {
-                    break;
+        synchronized (writeSync) {
+            Entry skipped = null;
+            while (size > maxSize && !clock.isEmpty()) {
+                Entry entry = clock.poll();
+                if (entry.removed) {
+                    continue;
                 }
-                HashMap.Entry<String, BitmapDrawable> entry = iterator.next();
-
-                String key = entry.getKey();
-                if (justAdded != null && justAdded.equals(key)) {
+                if (justAdded != null && justAdded.equals(entry.key)) {
+                    skipped = entry;
                     continue;
                 }
-                BitmapDrawable value = entry.getValue();
-                size -= safeSizeOf(key, value);
-                iterator.remove();
-
-                String[] args = key.split("@");
-                if (args.length > 1) {
-                    ArrayList<String> arr = mapFilters.get(args[0]);
-                    if (arr != null) {
-                        arr.remove(args[1]);
-                        if (arr.isEmpty()) {
-                            mapFilters.remove(args[0]);
-                        }
-                    }
+                if (entry.referenced && maxSize >= 0) {
+                    entry.referenced = false;
+                    clock.add(entry);
+                    continue;
                 }
+                entry.removed = true;
+                map.remove(entry.key);
+                size -= entry.size;
+                removeFilter(entry.key);
+                evictionCount++;
 
-                entryRemoved(true, key, value, null);
+                entryRemoved(true, entry.key, entry.value, null);
+            }
+            if (skipped != null) {
+                clock.add(skipped);
+            }
+            if (clock.size() > map.size() * 2 + 16) {
+                Iterator<Entry> iterator = clock.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().removed) {
+                        iterator.remove();
+                    }
+                }
             }
         }
     }
@@ -160,34 +193,58 @@ public class LruCache {
             throw new NullPointerException("key == null");
         }
 
-        BitmapDrawable previous;
-        synchronized (this) {
+        Entry previous;
+        synchronized (writeSync) {
             previous = map.remove(key);
             if (previous != null) {
-                size -= safeSizeOf(key, previous);
+                previous.removed = true;
+                size -= previous.size;
+                removeFilter(key);
             }
         }
 
         if (previous != null) {
-            String[] args = key.split("@");
-            if (args.length > 1) {
-                ArrayList<String> arr = mapFilters.get(args[0]);
-                if (arr != null) {
-                    arr.remove(args[1]);
-                    if (arr.isEmpty()) {
-                        mapFilters.remove(args[0]);
-                    }
-                }
-            }
-
-            entryRemoved(false, key, previous, null);
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
         }
 
-        return previous;
+        return null;
     }
-    
+
     public boolean contains(String key){
-    	return map.containsKey(key);
+        return map.containsKey(key);
+    }
+
+    private void addFilter(String key) {
+        int index = key.indexOf('@');
+        if (index < 0 || index == key.length() - 1) {
+            return;
+        }
+        int end = key.indexOf('@', index + 1);
+        String name = key.substring(0, index);
+        String filter = key.substring(index + 1, end < 0 ? key.length() : end);
+        Set<String> filters = mapFilters.get(name);
+        if (filters == null) {
+            filters = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4, 0.75f, 1));
+            mapFilters.put(name, filters);
+        }
+        filters.add(filter);
+    }
+
+    private void removeFilter(String key) {
+        int index = key.indexOf('@');
+        if (index < 0 || index == key.length() - 1) {
+            return;
+        }
+        int end = key.indexOf('@', index + 1);
+        String name = key.substring(0, index);
+        Set<String> filters = mapFilters.get(name);
+        if (filters != null) {
+            filters.remove(key.substring(index + 1, end < 0 ? key.length() : end));
+            if (filters.isEmpty()) {
+                mapFilters.remove(name);
+            }
+        }
     }
 
     /**
@@ -196,8 +253,8 @@ public class LruCache {
      * {@link #remove}, or replaced by a call to {@link #put}. The default
      * implementation does nothing.
      *
-     * <p>The method is called without synchronization: other threads may
-     * access the cache while this method is executing.
+     * <p>Evictions are reported while holding the write lock; removals and
+     * replacements are reported without it. Readers are never blocked.
      *
      * @param evicted true if the entry is being removed to make space, false
      *     if the removal was caused by a {@link #put} or {@link #remove}.
@@ -238,7 +295,7 @@ public class LruCache {
      * of entries in the cache. For all other caches, this returns the sum of
      * the sizes of the entries in this cache.
      */
-    public synchronized final int size() {
+    public final int size() {
         return size;
     }
 
@@ -247,7 +304,35 @@ public class LruCache {
      * number of entries in the cache. For all other caches, this returns the
      * maximum sum of the sizes of the entries in this cache.
      */
-    public synchronized final int maxSize() {
+    public final int maxSize() {
         return maxSize;
     }
+
+    public final long hitCount() {
+        return hitCount.get();
+    }
+
+    public final long missCount() {
+        return missCount.get();
+    }
+
+    public final long putCount() {
+        synchronized (writeSync) {
+            return putCount;
+        }
+    }
+
+    public final long evictionCount() {
+        synchronized (writeSync) {
+            return evictionCount;
+        }
+    }
+
+    @Override
+    public final String toString() {
+        long hits = hitCount.get();
+        long accesses = hits + missCount.get();
+        int hitPercent = accesses != 0 ? (int) (100 * hits / accesses) : 0;
+        return String.format(Locale.US, "LruCache[size=%d,maxSize=%d,hits=%d,misses=%d,evictions=%d,hitRate=%d%%]", size, maxSize, hits, accesses - hits, evictionCount(), hitPercent);
+    }
 }
@@ -0,0 +1,572 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import android.app.Activity;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.system.Os;
+import android.system.StructStat;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Index of the downloaded media files, kept as an append-only log in the
+ * files dir and compacted when most of its records are stale. Every file is
+ * recorded with its size, last access and SHA-256 content hash, so the cache
+ * size is known and files are evicted in LRU order without walking the media
+ * dirs. A downloaded file whose content is already stored under another
+ * name, compared byte by byte, is replaced with a hard link to it, so the
+ * same media forwarded or used in several sticker packs takes its space
+ * once; items sharing a hash are always links of one file. Dirs are walked
+ * once, when they are first seen, to import files stored before the index
+ * existed. All work runs on its own queue.
+ */
+public class MediaCacheIndex {
+
+    private static class Item {
+        private String path;
+        private long size;
+        private String hash;
+        private long access;
+    }
+
+    private static class Content {
+        private long size;
+        private ArrayList<Item> items = new ArrayList<>(1);
+    }
+
+    private final static String RECORD_FILE = "F";
+    private final static String RECORD_TOUCH = "T";
+    private final static String RECORD_REMOVE = "R";
+    private final static String RECORD_DIR = "D";
+
+    private final static long TOUCH_INTERVAL = 60 * 60 * 1000;
+    private final static long MAX_HASH_SIZE = 64 * 1024 * 1024;
+    private final static int COMPACT_RECORDS = 4096;
+
+    private DispatchQueue cacheQueue = new DispatchQueue("mediaCacheQueue");
+    private LinkedHashMap<String, Item> items = new LinkedHashMap<>(16, 0.75f, true);
+    private HashMap<String, Content> contents = new HashMap<>();
+    private HashSet<String> importedDirs = new HashSet<>();
+    private File cacheDir;
+    private File indexFile;
+    private BufferedWriter writer;
+    private boolean loaded;
+    private int records;
+    private long totalBytes;
+    private long dedupedBytes;
+    private long budget;
+
+    private static volatile MediaCacheIndex Instance = null;
+
+    public static MediaCacheIndex getInstance() {
+        MediaCacheIndex localInstance = Instance;
+        if (localInstance == null) {
+            synchronized (MediaCacheIndex.class) {
+                localInstance = Instance;
+                if (localInstance == null) {
+                    Instance = localInstance = new MediaCacheIndex();
+                }
+            }
+        }
+        return localInstance;
+    }
+
+    /**
+     * Imports the files of the dirs not seen before and reads the byte
+     * budget, 0 meaning no limit, from the "cache_budget" preference.
+     */
+    public void setMediaDirs(final HashMap<Integer, File> dirs) {
+        cacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+                budget = preferences.getLong("cache_budget", 0);
+                cacheDir = dirs.get(FileLoader.MEDIA_DIR_CACHE);
+                for (File dir : dirs.values()) {
+                    if (dir != null && importedDirs.add(dir.getAbsolutePath())) {
+                        importDir(dir);
+                    }
+                }
+                checkBudget();
+            }
+        });
+    }
+
+    /**
+     * Sets the byte budget, 0 meaning no limit, and evicts down to it.
+     */
+    public void setBudget(final long budget) {
+        cacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                MediaCacheIndex.this.budget = budget;
+                checkBudget();
+            }
+        });
+    }
+
+    public void onFileLoaded(final File file) {
+        if (file == null) {
+            return;
+        }
+        cacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                addFile(file);
+                checkBudget();
+            }
+        });
+    }
+
+    public void touch(final File file) {
+        if (file == null) {
+            return;
+        }
+        final long time = System.currentTimeMillis();
+        cacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                Item item = items.get(file.getAbsolutePath());
+                if (item != null && time - item.access >= TOUCH_INTERVAL) {
+                    item.access = time;
+                    append(RECORD_TOUCH, item.path, String.valueOf(time));
+                }
+            }
+        });
+    }
+
+    public void remove(final File file) {
+        if (file == null) {
+            return;
+        }
+        cacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                Item item = items.remove(file.getAbsolutePath());
+                if (item != null) {
+                    removeItem(item);
+                    append(RECORD_REMOVE, item.path);
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the items of {@code dir} whose files were deleted outside of
+     * this index.
+     */
+    public void removeMissing(final File dir) {
+        if (dir == null) {
+            return;
+        }
+        cacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                String prefix = dir.getAbsolutePath() + File.separator;
+                Iterator<Item> iterator = items.values().iterator();
+                while (iterator.hasNext()) {
+                    Item item = iterator.next();
+                    if (item.path.startsWith(prefix) && !new File(item.path).exists()) {
+                        iterator.remove();
+                        removeItem(item);
+                        append(RECORD_REMOVE, item.path);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes files not used for {@code maxAge} ms, apart from the cache
+     * dir, and then the least recently used ones until the stored size fits
+     * the budget. A 0 argument disables that part.
+     */
+    public void evict(final long maxAge, final long budget) {
+        cacheQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                load();
+                MediaCacheIndex.this.budget = budget;
+                evictInternal(maxAge);
+            }
+        });
+    }
+
+    public long getTotalSize() {
+        return totalBytes;
+    }
+
+    public String getStats() {
+        return String.format(Locale.US, "%d files, %d bytes of %d budget, %d bytes deduplicated, %d log records", items.size(), totalBytes, budget, dedupedBytes, records);
+    }
+
+    private void checkBudget() {
+        if (budget > 0 && totalBytes > budget) {
+            evictInternal(0);
+        }
+    }
+
+    private void evictInternal(long maxAge) {
+        long time = System.currentTimeMillis();
+        String cachePrefix = cacheDir != null ? cacheDir.getAbsolutePath() + File.separator : null;
+        int count = 0;
+        long freed = totalBytes;
+        Iterator<Item> iterator = items.values().iterator();
+        while (iterator.hasNext()) {
+            Item item = iterator.next();
+            boolean overBudget = budget > 0 && totalBytes > budget;
+            boolean expired = maxAge > 0 && item.access + maxAge < time && (cachePrefix == null || !item.path.startsWith(cachePrefix));
+            if (!overBudget && !expired) {
+                if (maxAge <= 0) {
+                    break;
+                }
+                continue;
+            }
+            File file = new File(item.path);
+            if (file.exists() && !file.delete()) {
+                continue;
+            }
+            iterator.remove();
+            removeItem(item);
+            append(RECORD_REMOVE, item.path);
+            count++;
+        }
+        if (count != 0) {
+            FileLog.e("tmessages", "media cache evicted " + count + " files, " + (freed - totalBytes) + " bytes, " + getStats());
+        }
+    }
+
+    private void addFile(File file) {
+        long size = file.length();
+        if (size <= 0) {
+            return;
+        }
+        String path = file.getAbsolutePath();
+        Item item = items.remove(path);
+        if (item != null) {
+            removeItem(item);
+        }
+        item = new Item();
+        item.path = path;
+        item.size = size;
+        item.access = System.currentTimeMillis();
+        String hash = size <= MAX_HASH_SIZE ? computeHash(file) : null;
+        if (hash != null) {
+            Content content = contents.get(hash);
+            if (content == null) {
+                item.hash = hash;
+            } else if (content.size == size) {
+                for (int a = 0; a < content.items.size(); a++) {
+                    File source = new File(content.items.get(a).path);
+                    if (source.exists() && sameContent(source, file) && link(source, file)) {
+                        item.hash = hash;
+                        dedupedBytes += size;
+                        break;
+                    }
+                }
+            }
+        }
+        items.put(path, item);
+        addItem(item);
+        append(RECORD_FILE, path, String.valueOf(size), item.hash != null ? item.hash : "", String.valueOf(item.access));
+    }
+
+    private void addItem(Item item) {
+        if (item.hash != null) {
+            Content content = contents.get(item.hash);
+            if (content == null) {
+                content = new Content();
+                content.size = item.size;
+                contents.put(item.hash, content);
+                totalBytes += item.size;
+            }
+            content.items.add(item);
+        } else {
+            totalBytes += item.size;
+        }
+    }
+
+    private void removeItem(Item item) {
+        if (item.hash != null) {
+            Content content = contents.get(item.hash);
+            if (content != null) {
+                content.items.remove(item);
+                if (content.items.isEmpty()) {
+                    contents.remove(item.hash);
+                    totalBytes -= content.size;
+                }
+            }
+        } else {
+            totalBytes -= item.size;
+        }
+    }
+
+    private boolean link(File source, File target) {
+        if (Build.VERSION.SDK_INT < 21) {
+            return false;
+        }
+        File temp = new File(target.getPath() + ".link");
+        try {
+            temp.delete();
+            Os.link(source.getPath(), temp.getPath());
+            if (temp.renameTo(target)) {
+                return true;
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        temp.delete();
+        return false;
+    }
+
+    private String computeHash(File file) {
+        FileInputStream stream = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            stream = new FileInputStream(file);
+            byte[] buffer = new byte[1024 * 64];
+            int read;
+            while ((read = stream.read(buffer)) > 0) {
+                md.update(buffer, 0, read);
+            }
+            return Utilities.bytesToHex(md.digest());
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+        return null;
+    }
+
+    private boolean sameContent(File first, File second) {
+        if (first.length() != second.length()) {
+            return false;
+        }
+        FileInputStream firstStream = null;
+        FileInputStream secondStream = null;
+        try {
+            firstStream = new FileInputStream(first);
+            secondStream = new FileInputStream(second);
+            byte[] firstBuffer = new byte[1024 * 64];
+            byte[] secondBuffer = new byte[1024 * 64];
+            int read;
+            while ((read = firstStream.read(firstBuffer)) > 0) {
+                int offset = 0;
+                while (offset < read) {
+                    int count = secondStream.read(secondBuffer, offset, read - offset);
+                    if (count <= 0) {
+                        return false;
+                    }
+                    offset += count;
+                }
+                for (int a = 0; a < read; a++) {
+                    if (firstBuffer[a] != secondBuffer[a]) {
+                        return false;
+                    }
+                }
+            }
+            return secondStream.read() == -1;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            try {
+                if (firstStream != null) {
+                    firstStream.close();
+                }
+                if (secondStream != null) {
+                    secondStream.close();
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+        return false;
+    }
+
+    private long getAccessTime(File file) {
+        if (Build.VERSION.SDK_INT >= 21) {
+            try {
+                StructStat stat = Os.stat(file.getPath());
+                if (stat.st_atime != 0) {
+                    return stat.st_atime * 1000;
+                }
+                return stat.st_mtime * 1000;
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+        return file.lastModified();
+    }
+
+    private void importDir(File dir) {
+        File[] array = dir.listFiles();
+        int count = 0;
+        if (array != null) {
+            long time = System.currentTimeMillis();
+            for (int a = 0; a < array.length; a++) {
+                File file = array[a];
+                String path = file.getAbsolutePath();
+                if (!file.isFile() || items.containsKey(path) || path.indexOf('\t') != -1 || path.indexOf('\n') != -1) {
+                    continue;
+                }
+                Item item = new Item();
+                item.path = path;
+                item.size = file.length();
+                item.access = Math.min(time, getAccessTime(file));
+                items.put(path, item);
+                addItem(item);
+                append(RECORD_FILE, path, String.valueOf(item.size), "", String.valueOf(item.access));
+                count++;
+            }
+        }
+        append(RECORD_DIR, dir.getAbsolutePath());
+        FileLog.e("tmessages", "media cache imported " + count + " files from " + dir);
+    }
+
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        indexFile = new File(ApplicationLoader.getFilesDirFixed(), "media_index.log");
+        if (indexFile.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    records++;
+                    String[] args = line.split("\t", -1);
+                    if (RECORD_FILE.equals(args[0]) && args.length == 5) {
+                        Item item = items.remove(args[1]);
+                        if (item != null) {
+                            removeItem(item);
+                        }
+                        item = new Item();
+                        item.path = args[1];
+                        item.size = Long.parseLong(args[2]);
+                        item.hash = args[3].length() != 0 ? args[3] : null;
+                        item.access = Long.parseLong(args[4]);
+                        items.put(item.path, item);
+                        addItem(item);
+                    } else if (RECORD_TOUCH.equals(args[0]) && args.length == 3) {
+                        Item item = items.get(args[1]);
+                        if (item != null) {
+                            item.access = Long.parseLong(args[2]);
+                        }
+                    } else if (RECORD_REMOVE.equals(args[0]) && args.length == 2) {
+                        Item item = items.remove(args[1]);
+                        if (item != null) {
+                            removeItem(item);
+                        }
+                    } else if (RECORD_DIR.equals(args[0]) && args.length == 2) {
+                        importedDirs.add(args[1]);
+                    }
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            } finally {
+                try {
+                    if (reader != null) {
+                        reader.close();
+                    }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        }
+        if (records > COMPACT_RECORDS && records > items.size() * 2) {
+            compact();
+        }
+    }
+
+    private void compact() {
+        closeWriter();
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            records = 0;
+            for (String dir : importedDirs) {
+                append(RECORD_DIR, dir);
+            }
+            for (Map.Entry<String, Item> entry : items.entrySet()) {
+                Item item = entry.getValue();
+                append(RECORD_FILE, item.path, String.valueOf(item.size), item.hash != null ? item.hash : "", String.valueOf(item.access));
+            }
+            closeWriter();
+            if (!tempFile.renameTo(indexFile)) {
+                tempFile.delete();
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            closeWriter();
+            tempFile.delete();
+        }
+    }
+
+    private void closeWriter() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+            writer = null;
+        }
+    }
+
+    private void append(String type, String... args) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), "UTF-8"));
+            }
+            writer.write(type);
+            for (int a = 0; a < args.length; a++) {
+                writer.write('\t');
+                writer.write(args[a]);
+            }
+            writer.write('\n');
+            writer.flush();
+            records++;
+            if (records > COMPACT_RECORDS && records > items.size() * 2) {
+                compact();
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+}
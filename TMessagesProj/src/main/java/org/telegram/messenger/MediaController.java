@@ -34,6 +34,7 @@ import android.media.AudioTrack;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
+import android.media.MediaDataSource;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaPlayer;
@@ -59,6 +60,7 @@ import org.telegram.tgnet.TLRPC;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -202,6 +204,31 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         public TLRPC.Document document;
     }
 
+    @TargetApi(23)
+    private static class StreamDataSource extends MediaDataSource {
+
+        private FileStreamReader reader;
+
+        private StreamDataSource(FileStreamReader fileStreamReader) {
+            reader = fileStreamReader;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            return reader.read(position, buffer, offset, size);
+        }
+
+        @Override
+        public long getSize() throws IOException {
+            return reader.getSize();
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
     public final static String MIME_TYPE = "video/avc";
     private final static int PROCESSOR_TYPE_OTHER = 0;
     private final static int PROCESSOR_TYPE_QCOM = 1;
@@ -274,6 +301,8 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
     private ArrayList<MessageObject> shuffledPlaylist = new ArrayList<>();
     private int currentPlaylistNum;
     private boolean downloadingCurrentMessage;
+    private boolean streamingCurrentMessage;
+    private boolean preparingStream;
     private boolean playMusicAgain;
     private AudioInfo audioInfo;
 
@@ -617,7 +646,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                         AndroidUtilities.runOnUIThread(new Runnable() {
                             @Override
                             public void run() {
-                                if (playingMessageObject != null && (audioPlayer != null || audioTrackPlayer != null) && !isPaused) {
+                                if (playingMessageObject != null && (audioPlayer != null || audioTrackPlayer != null) && !isPaused && !preparingStream) {
                                     try {
                                         if (ignoreFirstProgress != 0) {
                                             ignoreFirstProgress--;
@@ -1461,7 +1490,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         buffersWrited = 0;
         isPaused = false;
         if (playingMessageObject != null) {
-            if (downloadingCurrentMessage) {
+            if (downloadingCurrentMessage || streamingCurrentMessage) {
                 FileLoader.getInstance().cancelLoadFile(playingMessageObject.messageOwner.media.document);
             }
             MessageObject lastFile = playingMessageObject;
@@ -1469,6 +1498,8 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             playingMessageObject.audioProgressSec = 0;
             playingMessageObject = null;
             downloadingCurrentMessage = false;
+            streamingCurrentMessage = false;
+            preparingStream = false;
             if (notify) {
                 NotificationCenter.getInstance().postNotificationName(NotificationCenter.audioDidReset, lastFile.getId(), stopService);
             }
@@ -1519,6 +1550,9 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         }
         try {
             if (audioPlayer != null) {
+                if (preparingStream) {
+                    return false;
+                }
                 int seekTo = (int) (audioPlayer.getDuration() * progress);
                 audioPlayer.seekTo(seekTo);
                 lastProgress = seekTo;
@@ -1709,7 +1743,11 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             }
         }
         final File cacheFile = file != null ? file : FileLoader.getPathToMessage(messageObject.messageOwner);
-        if (cacheFile != null && cacheFile != file && !cacheFile.exists() && messageObject.isMusic()) {
+        FileStreamReader streamReader = null;
+        if (cacheFile != null && cacheFile != file && !cacheFile.exists() && messageObject.isMusic() && Build.VERSION.SDK_INT >= 23 && messageObject.messageOwner.media.document.key == null) {
+            streamReader = new FileStreamReader(messageObject.messageOwner.media.document);
+            downloadingCurrentMessage = false;
+        } else if (cacheFile != null && cacheFile != file && !cacheFile.exists() && messageObject.isMusic()) {
             FileLoader.getInstance().loadFile(messageObject.messageOwner.media.document, false, false);
             downloadingCurrentMessage = true;
             isPaused = false;
@@ -1728,12 +1766,13 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             return true;
         } else {
             downloadingCurrentMessage = false;
+            MediaCacheIndex.getInstance().touch(cacheFile);
         }
         if (messageObject.isMusic()) {
             checkIsNextMusicFileDownloaded();
         }
 
-        if (isOpusFile(cacheFile.getAbsolutePath()) == 1) {
+        if (streamReader == null && isOpusFile(cacheFile.getAbsolutePath()) == 1) {
             playlist.clear();
             shuffledPlaylist.clear();
             synchronized (playerObjectSync) {
@@ -1789,7 +1828,11 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
             try {
                 audioPlayer = new MediaPlayer();
                 audioPlayer.setAudioStreamType(useFrontSpeaker ? AudioManager.STREAM_VOICE_CALL : AudioManager.STREAM_MUSIC);
-                audioPlayer.setDataSource(cacheFile.getAbsolutePath());
+                if (streamReader != null) {
+                    audioPlayer.setDataSource(new StreamDataSource(streamReader));
+                } else {
+                    audioPlayer.setDataSource(cacheFile.getAbsolutePath());
+                }
                 audioPlayer.setOnCompletionListener(new MediaPlayer.OnCompletionListener() {
                     @Override
                     public void onCompletion(MediaPlayer mediaPlayer) {
@@ -1800,14 +1843,43 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                         }
                     }
                 });
-                audioPlayer.prepare();
-                audioPlayer.start();
-                startProgressTimer();
+                if (streamReader != null) {
+                    streamingCurrentMessage = true;
+                    preparingStream = true;
+                    audioPlayer.setOnPreparedListener(new MediaPlayer.OnPreparedListener() {
+                        @Override
+                        public void onPrepared(MediaPlayer mediaPlayer) {
+                            if (audioPlayer != mediaPlayer || !preparingStream) {
+                                return;
+                            }
+                            preparingStream = false;
+                            try {
+                                if (playingMessageObject != null && playingMessageObject.audioProgress != 0) {
+                                    mediaPlayer.seekTo((int) (mediaPlayer.getDuration() * playingMessageObject.audioProgress));
+                                }
+                                if (!isPaused) {
+                                    mediaPlayer.start();
+                                    startProgressTimer();
+                                }
+                            } catch (Exception e) {
+                                FileLog.e("tmessages", e);
+                            }
+                        }
+                    });
+                    audioPlayer.prepareAsync();
+                } else {
+                    streamingCurrentMessage = false;
+                    audioPlayer.prepare();
+                    audioPlayer.start();
+                    startProgressTimer();
+                }
                 if (messageObject.messageOwner.media instanceof TLRPC.TL_messageMediaAudio) {
                     audioInfo = null;
                     playlist.clear();
                     shuffledPlaylist.clear();
                     startProximitySensor();
+                } else if (streamReader != null) {
+                    audioInfo = null;
                 } else {
                     try {
                         audioInfo = AudioInfo.getAudioInfo(cacheFile);
@@ -1825,6 +1897,11 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                     playingMessageObject = null;
                     downloadingCurrentMessage = false;
                 }
+                if (streamReader != null) {
+                    streamReader.close();
+                }
+                streamingCurrentMessage = false;
+                preparingStream = false;
                 return false;
             }
         }
@@ -1837,7 +1914,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
 
         if (audioPlayer != null) {
             try {
-                if (playingMessageObject.audioProgress != 0) {
+                if (!preparingStream && playingMessageObject.audioProgress != 0) {
                     int seekTo = (int) (audioPlayer.getDuration() * playingMessageObject.audioProgress);
                     audioPlayer.seekTo(seekTo);
                 }
@@ -1913,6 +1990,8 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         stopProgressTimer();
         playingMessageObject = null;
         downloadingCurrentMessage = false;
+        streamingCurrentMessage = false;
+        preparingStream = false;
         isPaused = false;
 
         Intent intent = new Intent(ApplicationLoader.applicationContext, MusicPlayerService.class);
@@ -1971,7 +2050,9 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         stopProgressTimer();
         try {
             if (audioPlayer != null) {
-                audioPlayer.pause();
+                if (!preparingStream) {
+                    audioPlayer.pause();
+                }
             } else if (audioTrackPlayer != null) {
                 audioTrackPlayer.pause();
             }
@@ -1995,7 +2076,9 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
         try {
             startProgressTimer();
             if (audioPlayer != null) {
-                audioPlayer.start();
+                if (!preparingStream) {
+                    audioPlayer.start();
+                }
             } else if (audioTrackPlayer != null) {
                 audioTrackPlayer.play();
                 checkPlayerQueue();
@@ -2131,6 +2214,7 @@ public class MediaController implements NotificationCenter.NotificationCenterDel
                             audioToSend.duration = (int) (duration / 1000);
                             if (duration > 700) {
                                 SendMessagesHelper.getInstance().sendMessage(audioToSend, recordingAudioFileToSend.getAbsolutePath(), recordDialogId, recordReplyingMessageObject, recordAsAdmin);
+                                MediaCacheIndex.getInstance().onFileLoaded(recordingAudioFileToSend);
                                 NotificationCenter.getInstance().postNotificationName(NotificationCenter.audioDidSent);
                             } else {
                                 recordingAudioFileToSend.delete();
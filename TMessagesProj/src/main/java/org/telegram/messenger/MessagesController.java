@@ -45,16 +45,27 @@ import java.util.concurrent.Semaphore;
 
 public class MessagesController implements NotificationCenter.NotificationCenterDelegate {
 
-    private ConcurrentHashMap<Integer, TLRPC.Chat> chats = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private EntityCache<TLRPC.Chat> chats = MessagesStorage.getInstance().getChatsCache();
     private ConcurrentHashMap<Integer, TLRPC.EncryptedChat> encryptedChats = new ConcurrentHashMap<>(10, 1.0f, 2);
-    private ConcurrentHashMap<Integer, TLRPC.User> users = new ConcurrentHashMap<>(100, 1.0f, 2);
-    private ConcurrentHashMap<String, TLRPC.User> usersByUsernames = new ConcurrentHashMap<>(100, 1.0f, 2);
+    private EntityCache<TLRPC.User> users = MessagesStorage.getInstance().getUsersCache();
+    private ConcurrentHashMap<String, Integer> usersByUsernames = new ConcurrentHashMap<>(100, 1.0f, 2);
 
     private ArrayList<Integer> joiningToChannels = new ArrayList<>();
 
     private HashMap<Integer, TLRPC.ExportedChatInvite> exportedChats = new HashMap<>();
 
     public ArrayList<TLRPC.Dialog> dialogs = new ArrayList<>();
+    final static Comparator<TLRPC.Dialog> dialogComparator = new Comparator<TLRPC.Dialog>() {
+        @Override
+        public int compare(TLRPC.Dialog dialog1, TLRPC.Dialog dialog2) {
+            if (dialog1.last_message_date != dialog2.last_message_date) {
+                return dialog1.last_message_date < dialog2.last_message_date ? 1 : -1;
+            } else if (dialog1.id != dialog2.id) {
+                return dialog1.id < dialog2.id ? 1 : -1;
+            }
+            return 0;
+        }
+    };
     public ArrayList<TLRPC.Dialog> dialogsServerOnly = new ArrayList<>();
     public ArrayList<TLRPC.Dialog> dialogsGroupsOnly = new ArrayList<>();
     public int nextDialogsCacheOffset;
@@ -461,9 +472,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         channelViewsToReload.clear();
         dialogsServerOnly.clear();
         dialogsGroupsOnly.clear();
-        users.clear();
+        users.clearLive();
         usersByUsernames.clear();
-        chats.clear();
+        chats.clearLive();
         dialogMessage.clear();
         printingUsers.clear();
         printingStrings.clear();
@@ -530,22 +541,43 @@ public class MessagesController implements NotificationCenter.NotificationCenter
     }
 
     public TLRPC.User getUser(Integer id) {
-        return users.get(id);
+        TLRPC.User user = users.getLive(id);
+        if (user == null && users.isEvicted(id)) {
+            user = MessagesStorage.getInstance().getUserSync(id);
+            if (user != null) {
+                putUser(user, true);
+                user = users.getLive(id);
+            }
+        }
+        return user;
     }
 
     public TLRPC.User getUser(String username) {
         if (username == null || username.length() == 0) {
             return null;
         }
-        return usersByUsernames.get(username.toLowerCase());
-    }
-
-    public ConcurrentHashMap<Integer, TLRPC.User> getUsers() {
-        return users;
+        username = username.toLowerCase();
+        Integer id = usersByUsernames.get(username);
+        if (id == null) {
+            return null;
+        }
+        TLRPC.User user = getUser(id);
+        if (user == null || user.username == null || !username.equals(user.username.toLowerCase())) {
+            return null;
+        }
+        return user;
     }
 
     public TLRPC.Chat getChat(Integer id) {
-        return chats.get(id);
+        TLRPC.Chat chat = chats.getLive(id);
+        if (chat == null && chats.isEvicted(id)) {
+            chat = MessagesStorage.getInstance().getChatSync(id);
+            if (chat != null) {
+                putChat(chat, true);
+                chat = chats.getLive(id);
+            }
+        }
+        return chat;
     }
 
     public TLRPC.EncryptedChat getEncryptedChat(Integer id) {
@@ -558,11 +590,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             Semaphore semaphore = new Semaphore(0);
             ArrayList<TLObject> result = new ArrayList<>();
             MessagesStorage.getInstance().getEncryptedChat(chat_id, semaphore, result);
-            try {
-                semaphore.acquire();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
-            }
+            MessagesStorage.getInstance().waitForStorage(semaphore, "getEncryptedChatDB");
             if (result.size() == 2) {
                 chat = (TLRPC.EncryptedChat) result.get(0);
                 TLRPC.User user = (TLRPC.User) result.get(1);
@@ -582,15 +610,15 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             return false;
         }
         fromCache = fromCache && user.id / 1000 != 333 && user.id != 777000;
-        TLRPC.User oldUser = users.get(user.id);
+        TLRPC.User oldUser = users.getLive(user.id);
         if (oldUser != null && oldUser.username != null && oldUser.username.length() > 0) {
             usersByUsernames.remove(oldUser.username);
         }
         if (user.username != null && user.username.length() > 0) {
-            usersByUsernames.put(user.username.toLowerCase(), user);
+            usersByUsernames.put(user.username.toLowerCase(), user.id);
         }
         if (!fromCache) {
-            users.put(user.id, user);
+            users.putLive(user.id, user);
             if (user.id == UserConfig.getClientUserId()) {
                 UserConfig.setCurrentUser(user);
                 UserConfig.saveConfig(true);
@@ -599,7 +627,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 return true;
             }
         } else if (oldUser == null) {
-            users.put(user.id, user);
+            users.putLive(user.id, user);
         }
         return false;
     }
@@ -630,14 +658,14 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         if (chat == null) {
             return;
         }
-        TLRPC.Chat oldChat = chats.get(chat.id);
+        TLRPC.Chat oldChat = chats.getLive(chat.id);
         if (!fromCache) {
             if (oldChat != null && chat.version != oldChat.version) {
                 loadedFullChats.remove((Integer) chat.id);
             }
-            chats.put(chat.id, chat);
+            chats.putLive(chat.id, chat);
         } else if (oldChat == null) {
-            chats.put(chat.id, chat);
+            chats.putLive(chat.id, chat);
         }
     }
 
@@ -2471,18 +2499,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         dialogsServerOnly.clear();
                         dialogsGroupsOnly.clear();
                         dialogs.addAll(dialogs_dict.values());
-                        Collections.sort(dialogs, new Comparator<TLRPC.Dialog>() {
-                            @Override
-                            public int compare(TLRPC.Dialog tl_dialog, TLRPC.Dialog tl_dialog2) {
-                                if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                                    return 0;
-                                } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                                    return 1;
-                                } else {
-                                    return -1;
-                                }
-                            }
-                        });
+                        Collections.sort(dialogs, dialogComparator);
                         for (int a = 0; a < dialogs.size(); a++) {
                             TLRPC.Dialog d = dialogs.get(a);
 
@@ -2753,18 +2770,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                         dialogsServerOnly.clear();
                         dialogsGroupsOnly.clear();
                         dialogs.addAll(dialogs_dict.values());
-                        Collections.sort(dialogs, new Comparator<TLRPC.Dialog>() {
-                            @Override
-                            public int compare(TLRPC.Dialog dialog, TLRPC.Dialog dialog2) {
-                                if (dialog.last_message_date == dialog2.last_message_date) {
-                                    return 0;
-                                } else if (dialog.last_message_date < dialog2.last_message_date) {
-                                    return 1;
-                                } else {
-                                    return -1;
-                                }
-                            }
-                        });
+                        Collections.sort(dialogs, dialogComparator);
                         for (int a = 0; a < dialogs.size(); a++) {
                             TLRPC.Dialog d = dialogs.get(a);
                             int high_id = (int) (d.id >> 32);
@@ -3029,7 +3035,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             newMsg.random_id = 0;
             newMsg.flags |= TLRPC.MESSAGE_FLAG_HAS_FROM_ID;
             UserConfig.saveConfig(false);
-            MessageObject newMsgObj = new MessageObject(newMsg, users, true);
+            MessageObject newMsgObj = new MessageObject(newMsg, null, true);
             newMsgObj.messageOwner.send_state = MessageObject.MESSAGE_SEND_STATE_SENT;
 
             ArrayList<MessageObject> objArr = new ArrayList<>();
@@ -5072,7 +5078,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
         } else {
             checkForUsers = false;
-            usersDict = users;
+            usersDict = new ConcurrentHashMap<>();
         }
         if (chatsArr != null) {
             chatsDict = new ConcurrentHashMap<>();
@@ -5081,7 +5087,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
         } else {
             checkForUsers = false;
-            chatsDict = chats;
+            chatsDict = new ConcurrentHashMap<>();
         }
 
         if (usersArr != null || chatsArr != null) {
@@ -5137,6 +5143,9 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 }
                 if (message.action instanceof TLRPC.TL_messageActionChatDeleteUser) {
                     TLRPC.User user = usersDict.get(message.action.user_id);
+                    if (user == null) {
+                        user = getUser(message.action.user_id);
+                    }
                     if (user != null && user.bot) {
                         message.reply_markup = new TLRPC.TL_replyKeyboardHide();
                     } else if (message.action.user_id == UserConfig.getClientUserId()) {
@@ -5283,7 +5292,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 interfaceUpdateMask |= UPDATE_MASK_PHONE;
                 updatesOnMainThread.add(update);
             } else if (update instanceof TLRPC.TL_updateContactRegistered) {
-                if (enableJoined && usersDict.containsKey(update.user_id) && !MessagesStorage.getInstance().isDialogHasMessages(update.user_id)) {
+                if (enableJoined && (usersDict.containsKey(update.user_id) || usersArr == null && getUser(update.user_id) != null) && !MessagesStorage.getInstance().isDialogHasMessages(update.user_id)) {
                     TLRPC.TL_messageService newMessage = new TLRPC.TL_messageService();
                     newMessage.action = new TLRPC.TL_messageActionUserJoined();
                     newMessage.local_id = newMessage.id = UserConfig.getNewMessageId();
@@ -5559,12 +5568,10 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             });
         }
 
-        if (!messagesArr.isEmpty()) {
-            MessagesStorage.getInstance().putMessages(messagesArr, true, true, false, MediaController.getInstance().getAutodownloadMask());
-        }
-
-        if (channelViews.size() != 0) {
-            MessagesStorage.getInstance().putChannelViews(channelViews, true);
+        if (!messagesArr.isEmpty() || channelViews.size() != 0 || !webPages.isEmpty() || markAsReadMessagesInbox.size() != 0 || markAsReadMessagesOutbox.size() != 0 ||
+                !markAsReadEncrypted.isEmpty() || !markAsReadMessages.isEmpty() || deletedMessages.size() != 0) {
+            MessagesStorage.getInstance().putUpdates(messagesArr, MediaController.getInstance().getAutodownloadMask(), channelViews, webPages,
+                    markAsReadMessagesInbox, markAsReadMessagesOutbox, markAsReadEncrypted, markAsReadMessages, deletedMessages);
         }
         if (channelsGroups.size() != 0) {
             //MessagesStorage.getInstance().applyNewChannelsGroups(channelsGroups); TODO
@@ -5615,7 +5622,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                                     usersByUsernames.remove(currentUser.username);
                                 }
                                 if (update.username != null && update.username.length() > 0) {
-                                    usersByUsernames.put(update.username, currentUser);
+                                    usersByUsernames.put(update.username, currentUser.id);
                                 }
                                 currentUser.username = update.username;
                             }
@@ -5845,26 +5852,6 @@ public class MessagesController implements NotificationCenter.NotificationCenter
             }
         });
 
-        if (!webPages.isEmpty()) {
-            MessagesStorage.getInstance().putWebPages(webPages);
-        }
-        if (markAsReadMessagesInbox.size() != 0 || markAsReadMessagesOutbox.size() != 0 || !markAsReadEncrypted.isEmpty()) {
-            if (markAsReadMessagesInbox.size() != 0) {
-                MessagesStorage.getInstance().updateDialogsWithReadMessages(markAsReadMessagesInbox, true);
-            }
-            MessagesStorage.getInstance().markMessagesAsRead(markAsReadMessagesInbox, markAsReadMessagesOutbox, markAsReadEncrypted, true);
-        }
-        if (!markAsReadMessages.isEmpty()) {
-            MessagesStorage.getInstance().markMessagesContentAsRead(markAsReadMessages);
-        }
-        if (deletedMessages.size() != 0) {
-            for (int a = 0; a < deletedMessages.size(); a++) {
-                int key = deletedMessages.keyAt(a);
-                ArrayList<Integer> arrayList = deletedMessages.get(key);
-                MessagesStorage.getInstance().markMessagesAsDeleted(arrayList, true, key);
-                MessagesStorage.getInstance().updateDialogsWithDeletedMessages(arrayList, true, key);
-            }
-        }
         if (!tasks.isEmpty()) {
             for (TLRPC.TL_updateEncryptedMessagesRead update : tasks) {
                 MessagesStorage.getInstance().createTaskForSecretChat(update.chat_id, update.max_date, update.date, 1, null);
@@ -5991,6 +5978,7 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
 
         boolean changed = false;
+        boolean isNew = false;
 
         if (dialog == null) {
             if (!isBroadcast) {
@@ -6008,13 +5996,13 @@ public class MessagesController implements NotificationCenter.NotificationCenter
                 dialog.top_message = lastMessage.getId();
                 dialog.last_message_date = lastMessage.messageOwner.date;
                 dialogs_dict.put(uid, dialog);
-                dialogs.add(dialog);
                 dialogMessage.put(uid, lastMessage);
                 if (lastMessage.messageOwner.to_id.channel_id == 0) {
                     dialogMessagesByIds.put(lastMessage.getId(), lastMessage);
                 }
                 nextDialogsCacheOffset++;
                 changed = true;
+                isNew = true;
             }
         } else {
             if ((dialog.top_message > 0 && lastMessage.getId() > 0 && lastMessage.getId() > dialog.top_message) ||
@@ -6033,41 +6021,41 @@ public class MessagesController implements NotificationCenter.NotificationCenter
         }
 
         if (changed) {
-            dialogsServerOnly.clear();
-            dialogsGroupsOnly.clear();
-            Collections.sort(dialogs, new Comparator<TLRPC.Dialog>() {
-                @Override
-                public int compare(TLRPC.Dialog tl_dialog, TLRPC.Dialog tl_dialog2) {
-                    if (tl_dialog.last_message_date == tl_dialog2.last_message_date) {
-                        return 0;
-                    } else if (tl_dialog.last_message_date < tl_dialog2.last_message_date) {
-                        return 1;
-                    } else {
-                        return -1;
-                    }
+            repositionDialog(dialog, isNew);
+        }
+    }
+
+    public void repositionDialog(TLRPC.Dialog dialog, boolean isNew) {
+        if (!isNew) {
+            dialogs.remove(dialog);
+            dialogsServerOnly.remove(dialog);
+            dialogsGroupsOnly.remove(dialog);
+        }
+        insertDialogSorted(dialogs, dialog);
+        int high_id = (int) (dialog.id >> 32);
+        if ((int) dialog.id != 0 && high_id != 1) {
+            insertDialogSorted(dialogsServerOnly, dialog);
+            if (dialog instanceof TLRPC.TL_dialog) {
+                if (dialog.id < 0) {
+                    insertDialogSorted(dialogsGroupsOnly, dialog);
                 }
-            });
-            for (int a = 0; a < dialogs.size(); a++) {
-                TLRPC.Dialog d = dialogs.get(a);
-                int high_id = (int) (d.id >> 32);
-                if ((int) d.id != 0 && high_id != 1) {
-                    dialogsServerOnly.add(d);
-                    if (d instanceof TLRPC.TL_dialog) {
-                        if (d.id < 0) {
-                            dialogsGroupsOnly.add(d);
-                        }
-                    } else if (d instanceof TLRPC.TL_dialogChannel) {
-                        int lower_id = (int) d.id;
-                        TLRPC.Chat chat = getChat(-lower_id);
-                        if (chat != null && (chat.megagroup && chat.editor || chat.creator)) {
-                            dialogsGroupsOnly.add(d);
-                        }
-                    }
+            } else if (dialog instanceof TLRPC.TL_dialogChannel) {
+                TLRPC.Chat chat = getChat(-(int) dialog.id);
+                if (chat != null && (chat.megagroup && chat.editor || chat.creator)) {
+                    insertDialogSorted(dialogsGroupsOnly, dialog);
                 }
             }
         }
     }
 
+    static void insertDialogSorted(ArrayList<TLRPC.Dialog> array, TLRPC.Dialog dialog) {
+        int index = Collections.binarySearch(array, dialog, dialogComparator);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        array.add(index, dialog);
+    }
+
     public static void openByUserName(String username, final BaseFragment fragment, final int type) {
         if (username == null || fragment == null) {
             return;
@@ -20,6 +20,7 @@ import org.telegram.SQLite.SQLiteDatabase;
 import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.query.BotQuery;
 import org.telegram.messenger.query.SharedMediaQuery;
+import org.telegram.tgnet.AbstractSerializedData;
 import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.NativeByteBuffer;
 import org.telegram.tgnet.TLClassStore;
@@ -33,12 +34,86 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Semaphore;
 
 public class MessagesStorage {
+
+    public interface ResultCallback<T> {
+        void run(T result);
+    }
     private DispatchQueue storageQueue = new DispatchQueue("storageQueue");
+    private DispatchQueue readQueue = new DispatchQueue("storageReadQueue");
     private SQLiteDatabase database;
+    private volatile SQLiteDatabase readDatabase;
+    private Runnable checkpointRunnable;
+    private volatile int dialogsPageDate;
+    private volatile long dialogsPageDid;
+    private DialogsSearchIndex dialogsSearchIndex = new DialogsSearchIndex();
+    private UnreadCounters unreadCounters = new UnreadCounters();
+    private HolesIndex holesIndex = new HolesIndex();
+    private BlobCompactor blobCompactor = new BlobCompactor();
+    private StorageMaintenance storageMaintenance = new StorageMaintenance();
+    private EntityCache<TLRPC.User> usersCache = new EntityCache<>(new EntityCache.Reader<TLRPC.User>() {
+        @Override
+        public TLRPC.User read(AbstractSerializedData data, int extra) {
+            TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+            if (user != null && user.status != null) {
+                user.status.expires = extra;
+            }
+            return user;
+        }
+    }, USERS_LIVE_SIZE, USERS_CACHE_SIZE, USERS_CACHE_BYTES);
+    private EntityCache<TLRPC.Chat> chatsCache = new EntityCache<>(new EntityCache.Reader<TLRPC.Chat>() {
+        @Override
+        public TLRPC.Chat read(AbstractSerializedData data, int extra) {
+            return TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
+        }
+    }, CHATS_LIVE_SIZE, CHATS_CACHE_SIZE, CHATS_CACHE_BYTES);
+    private ConcurrentHashMap<Long, int[]> dialogValues = new ConcurrentHashMap<>();
     private File cacheFile;
+    private volatile boolean convertingDatabase;
+
+    private final static int WAL_AUTOCHECKPOINT_PAGES = 4000;
+    private final static int CHECKPOINT_INTERVAL = 30000;
+    private final static int CHECKPOINT_IDLE_TIME = 5000;
+    private final static int READ_BUSY_TIMEOUT = 2000;
+    private final static int BLOCKING_WAIT_THRESHOLD = 50;
+    private final static int DIALOG_VALUES_CACHE_SIZE = 1000;
+    private final static int USERS_LIVE_SIZE = 5000;
+    private final static int USERS_CACHE_SIZE = 2000;
+    private final static int USERS_CACHE_BYTES = 1024 * 1024;
+    private final static int CHATS_LIVE_SIZE = 1000;
+    private final static int CHATS_CACHE_SIZE = 500;
+    private final static int CHATS_CACHE_BYTES = 512 * 1024;
+    private final static int MESSAGES_COLUMNS = 10;
+    private final static int MESSAGES_PER_INSERT = 32;
+    private final static String MESSAGES_BULK_INSERT;
+
+    static {
+        StringBuilder builder = new StringBuilder("REPLACE INTO messages VALUES");
+        for (int a = 0; a < MESSAGES_PER_INSERT; a++) {
+            if (a != 0) {
+                builder.append(", ");
+            }
+            builder.append("(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL, ?)");
+        }
+        MESSAGES_BULK_INSERT = builder.toString();
+    }
+
+    private Comparator<TLRPC.Message> messagesInsertComparator = new Comparator<TLRPC.Message>() {
+        @Override
+        public int compare(TLRPC.Message lhs, TLRPC.Message rhs) {
+            if (lhs.dialog_id != rhs.dialog_id) {
+                return lhs.dialog_id < rhs.dialog_id ? -1 : 1;
+            }
+            if (lhs.id != rhs.id) {
+                return lhs.id < rhs.id ? -1 : 1;
+            }
+            return 0;
+        }
+    };
+
     public static int lastDateValue = 0;
     public static int lastPtsValue = 0;
     public static int lastQtsValue = 0;
@@ -79,6 +154,134 @@ public class MessagesStorage {
         return storageQueue;
     }
 
+    public DispatchQueue getReadQueue() {
+        return readQueue;
+    }
+
+    /**
+     * Runs {@code runnable} on the read-only connection, so it does not wait
+     * behind write transactions on the storage queue. It sees the last
+     * committed state; writes still pending on the storage queue are not
+     * visible. Falls back to the storage queue while the read connection is
+     * not open.
+     */
+    public void postReadRunnable(final Runnable runnable) {
+        if (readDatabase == null) {
+            storageQueue.postRunnable(runnable);
+            return;
+        }
+        readQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (readDatabase == null) {
+                    storageQueue.postRunnable(runnable);
+                } else {
+                    runnable.run();
+                }
+            }
+        });
+    }
+
+    private SQLiteDatabase currentDatabase() {
+        if (Thread.currentThread() == readQueue) {
+            return readDatabase;
+        }
+        return database;
+    }
+
+    private void openReadDatabase() {
+        if (database == null || cacheFile == null) {
+            return;
+        }
+        try {
+            SQLiteDatabase db = new SQLiteDatabase(cacheFile.getPath());
+            db.setReadOnly(READ_BUSY_TIMEOUT);
+            readDatabase = db;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void closeReadDatabase() {
+        readQueue.cleanupQueue();
+        final Semaphore semaphore = new Semaphore(0);
+        readQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (readDatabase != null) {
+                    readDatabase.close();
+                    readDatabase = null;
+                }
+                semaphore.release();
+            }
+        });
+        try {
+            semaphore.acquire();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    private void scheduleCheckpoint() {
+        checkpointRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (checkpointRunnable != this) {
+                    return;
+                }
+                if (database != null && System.currentTimeMillis() - database.getLastCommitTime() >= CHECKPOINT_IDLE_TIME) {
+                    try {
+                        database.checkpoint(ApplicationLoader.mainInterfacePaused);
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+                scheduleCheckpoint();
+            }
+        };
+        storageQueue.postRunnable(checkpointRunnable, CHECKPOINT_INTERVAL);
+    }
+
+    public DialogsSearchIndex getDialogsSearchIndex() {
+        return dialogsSearchIndex;
+    }
+
+    public HolesIndex getHolesIndex() {
+        return holesIndex;
+    }
+
+    public EntityCache<TLRPC.User> getUsersCache() {
+        return usersCache;
+    }
+
+    public EntityCache<TLRPC.Chat> getChatsCache() {
+        return chatsCache;
+    }
+
+    public void setRetentionPolicy(final long did, final int maxMessages, final int maxMediaDays) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                storageMaintenance.setPolicy(database, did, maxMessages, maxMediaDays);
+            }
+        });
+    }
+
+    public void getStorageStats(final ResultCallback<StorageMaintenance.Stats> callback) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onResult(null, callback, storageMaintenance.getStats(database));
+            }
+        });
+    }
+
+    public void trimCaches() {
+        FileLog.e("tmessages", "trim users cache: " + usersCache.getStats() + ", chats cache: " + chatsCache.getStats());
+        usersCache.trim();
+        chatsCache.trim();
+    }
+
     public void openDatabase() {
         cacheFile = new File(ApplicationLoader.getFilesDirFixed(), "cache4.db");
 
@@ -89,8 +292,13 @@ public class MessagesStorage {
         }
         try {
             database = new SQLiteDatabase(cacheFile.getPath());
+            if (createTable) {
+                database.executeFast("PRAGMA auto_vacuum = INCREMENTAL").stepThis().dispose();
+            }
             database.executeFast("PRAGMA secure_delete = ON").stepThis().dispose();
             database.executeFast("PRAGMA temp_store = 1").stepThis().dispose();
+            database.executeFast("PRAGMA recursive_triggers = ON").stepThis().dispose();
+            database.enableWriteAheadLogging(WAL_AUTOCHECKPOINT_PAGES);
             if (createTable) {
                 database.executeFast("CREATE TABLE channel_group(uid INTEGER, start INTEGER, end INTEGER, count INTEGER, PRIMARY KEY(uid, start));").stepThis().dispose();
 
@@ -164,6 +372,12 @@ public class MessagesStorage {
                 database.executeFast("CREATE TABLE media_counts_v2(uid INTEGER, type INTEGER, count INTEGER, PRIMARY KEY(uid, type))").stepThis().dispose();
                 database.executeFast("CREATE TABLE keyvalue(id TEXT PRIMARY KEY, value TEXT)").stepThis().dispose();
                 database.executeFast("CREATE TABLE bot_info(uid INTEGER PRIMARY KEY, info BLOB)").stepThis().dispose();
+                if (BlobCodec.isEnabled()) {
+                    blobCompactor.markDone(database);
+                }
+                unreadCounters.createTable(database);
+                storageMaintenance.createTable(database);
+                dialogsSearchIndex.createTable(database);
 
                 //version
                 database.executeFast("PRAGMA user_version = 29").stepThis().dispose();
@@ -203,13 +417,69 @@ public class MessagesStorage {
                 if (version < 29) {
                     updateDbToLastVersion(version);
                 }
+                unreadCounters.createTable(database);
+                storageMaintenance.createTable(database);
+                dialogsSearchIndex.createTable(database);
+                if (storageMaintenance.needsConversion(database, cacheFile)) {
+                    storageQueue.postRunnable(new Runnable() {
+                        @Override
+                        public void run() {
+                            convertDatabase();
+                        }
+                    });
+                }
+                storageQueue.postRunnable(new Runnable() {
+                    @Override
+                    public void run() {
+                        blobCompactor.start(storageQueue, database);
+                    }
+                });
             }
+            storageQueue.postRunnable(new Runnable() {
+                @Override
+                public void run() {
+                    openReadDatabase();
+                    storageMaintenance.start(storageQueue, database, cacheFile);
+                }
+            });
+            scheduleCheckpoint();
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
         loadUnreadMessages();
     }
 
+    public boolean isConvertingDatabase() {
+        return convertingDatabase;
+    }
+
+    /**
+     * Converts a database created before incremental vacuum was enabled.
+     * The full VACUUM holds the storage queue until it is done, so it only
+     * runs once, right after the database is opened, while LaunchActivity
+     * shows a progress dialog.
+     */
+    private void convertDatabase() {
+        convertingDatabase = true;
+        postConversionState();
+        try {
+            storageMaintenance.convert(database, cacheFile);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        convertingDatabase = false;
+        postConversionState();
+    }
+
+    private void postConversionState() {
+        AndroidUtilities.runOnUIThread(new Runnable() {
+            @Override
+            public void run() {
+                NotificationCenter.getInstance().postNotificationName(NotificationCenter.databaseConversionStateChanged);
+            }
+        });
+    }
+
     public void updateDbToLastVersion(final int currentVersion) {
         storageQueue.postRunnable(new Runnable() {
             @Override
@@ -296,7 +566,7 @@ public class MessagesStorage {
                         if (cursor.next()) {
                             int date = cursor.intValue(0);
                             int length;
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
                             if ((length = cursor.byteBufferValue(1, data)) != 0) {
                                 for (int a = 0; a < length / 4; a++) {
                                     state.requery();
@@ -416,7 +686,7 @@ public class MessagesStorage {
                         SQLitePreparedStatement state = database.executeFast("REPLACE INTO chat_settings_v2 VALUES(?, ?)");
                         while (cursor.next()) {
                             int chat_id = cursor.intValue(0);
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
                             if (data != null && cursor.byteBufferValue(1, data) != 0) {
                                 TLRPC.ChatParticipants participants = TLRPC.ChatParticipants.TLdeserialize(data, data.readInt32(false), false);
                                 if (participants != null) {
@@ -514,12 +784,26 @@ public class MessagesStorage {
 
                 secretPBytes = null;
                 secretG = 0;
+                dialogsSearchIndex.clear();
+                blobCompactor.clear();
+                storageMaintenance.clear();
+                unreadCounters.clear();
+                holesIndex.clear();
+                usersCache.clear();
+                chatsCache.clear();
+                dialogValues.clear();
+                checkpointRunnable = null;
+                dialogsPageDate = 0;
+                dialogsPageDid = 0;
+                closeReadDatabase();
                 if (database != null) {
                     database.close();
                     database = null;
                 }
                 if (cacheFile != null) {
                     cacheFile.delete();
+                    new File(cacheFile.getPath() + "-wal").delete();
+                    new File(cacheFile.getPath() + "-shm").delete();
                     cacheFile = null;
                 }
                 openDatabase();
@@ -559,6 +843,7 @@ public class MessagesStorage {
     }
 
     public void saveChannelPts(final int channelId, final int pts) {
+        dialogValues.remove((long) -channelId);
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
@@ -568,6 +853,7 @@ public class MessagesStorage {
                     state.bindInteger(2, -channelId);
                     state.step();
                     state.dispose();
+                    dialogValues.remove((long) -channelId);
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
                 }
@@ -646,8 +932,9 @@ public class MessagesStorage {
 
                         cursor = database.queryFinalized("SELECT read_state, data, send_state, mid, date, uid FROM messages WHERE uid IN (" + ids.toString() + ") AND out = 0 AND read_state IN(0,2) ORDER BY date DESC LIMIT 50");
                         while (cursor.next()) {
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
                             if (data != null && cursor.byteBufferValue(1, data) != 0) {
+                                data = BlobCodec.unpack(data);
                                 TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                                 MessageObject.setUnreadFlags(message, cursor.intValue(0));
                                 message.id = cursor.intValue(3);
@@ -687,15 +974,15 @@ public class MessagesStorage {
                         cursor.dispose();
 
                         if (!encryptedChatIds.isEmpty()) {
-                            getEncryptedChatsInternal(TextUtils.join(",", encryptedChatIds), encryptedChats, usersToLoad);
+                            getEncryptedChatsInternal(encryptedChatIds, encryptedChats, usersToLoad);
                         }
 
                         if (!usersToLoad.isEmpty()) {
-                            getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                            getUsersInternal(usersToLoad, users);
                         }
 
                         if (!chatsToLoad.isEmpty()) {
-                            getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                            getChatsInternal(chatsToLoad, chats);
                             for (int a = 0; a < chats.size(); a++) {
                                 TLRPC.Chat chat = chats.get(a);
                                 if (chat != null && (chat.left || chat.migrated_to != null)) {
@@ -776,7 +1063,7 @@ public class MessagesStorage {
                         searchImage.size = cursor.intValue(6);
                         searchImage.date = cursor.intValue(7);
                         if (!cursor.isNull(8)) {
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(8));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(8));
                             if (data != null && cursor.byteBufferValue(8, data) != 0) {
                                 searchImage.document = TLRPC.Document.TLdeserialize(data, data.readInt32(false), false);
                             }
@@ -920,7 +1207,7 @@ public class MessagesStorage {
                     SQLiteCursor cursor = database.queryFinalized("SELECT data FROM wallpapers WHERE 1");
                     final ArrayList<TLRPC.WallPaper> wallPapers = new ArrayList<>();
                     while (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
                             TLRPC.WallPaper wallPaper = TLRPC.WallPaper.TLdeserialize(data, data.readInt32(false), false);
                             wallPapers.add(wallPaper);
@@ -1022,8 +1309,9 @@ public class MessagesStorage {
                         ArrayList<File> filesToDelete = new ArrayList<>();
                         try {
                             while (cursor.next()) {
-                                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                                 if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                    data = BlobCodec.unpack(data);
                                     TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                                     if (message == null || message.media == null) {
                                         continue;
@@ -1071,6 +1359,7 @@ public class MessagesStorage {
 
                     if (messagesOnly == 0) {
                         database.executeFast("DELETE FROM dialogs WHERE did = " + did).stepThis().dispose();
+                        dialogValues.remove(did);
                         database.executeFast("DELETE FROM chat_settings_v2 WHERE uid = " + did).stepThis().dispose();
                         database.executeFast("DELETE FROM channel_users_v2 WHERE did = " + did).stepThis().dispose();
                         database.executeFast("DELETE FROM search_recent WHERE did = " + did).stepThis().dispose();
@@ -1079,11 +1368,14 @@ public class MessagesStorage {
                         if (lower_id != 0) {
                             if (high_id == 1) {
                                 database.executeFast("DELETE FROM chats WHERE uid = " + lower_id).stepThis().dispose();
+                                chatsCache.remove(lower_id);
+                                dialogsSearchIndex.removeName(database, did);
                             } else if (lower_id < 0) {
                                 //database.executeFast("DELETE FROM chats WHERE uid = " + (-lower_id)).stepThis().dispose();
                             }
                         } else {
                             database.executeFast("DELETE FROM enc_chats WHERE uid = " + high_id).stepThis().dispose();
+                            dialogsSearchIndex.removeName(database, did);
                             //database.executeFast("DELETE FROM secret_holes WHERE uid = " + high_id).stepThis().dispose();
                         }
                     } else if (messagesOnly == 2) {
@@ -1095,8 +1387,9 @@ public class MessagesStorage {
                             SQLiteCursor cursor2 = database.queryFinalized("SELECT data FROM messages WHERE uid = " + did + " AND mid IN (" + last_mid_i + "," + last_mid + ")");
                             try {
                                 while (cursor2.next()) {
-                                    NativeByteBuffer data = new NativeByteBuffer(cursor2.byteArrayLength(0));
+                                    NativeByteBuffer data = NativeByteBuffer.obtain(cursor2.byteArrayLength(0));
                                     if (data != null && cursor2.byteBufferValue(0, data) != 0) {
+                                        data = BlobCodec.unpack(data);
                                         TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                                         if (message == null) {
                                             continue;
@@ -1118,6 +1411,7 @@ public class MessagesStorage {
                             database.executeFast("DELETE FROM media_counts_v2 WHERE uid = " + did).stepThis().dispose();
                             database.executeFast("DELETE FROM media_v2 WHERE uid = " + did).stepThis().dispose();
                             database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
+                            holesIndex.invalidate(did);
                             BotQuery.clearBotKeyboard(did, null);
 
                             SQLitePreparedStatement state5 = database.executeFast("REPLACE INTO messages_holes VALUES(?, ?, ?)");
@@ -1143,6 +1437,7 @@ public class MessagesStorage {
                     database.executeFast("DELETE FROM messages_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages_imp_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
+                    holesIndex.invalidate(did);
                     BotQuery.clearBotKeyboard(did, null);
                     AndroidUtilities.runOnUIThread(new Runnable() {
                         @Override
@@ -1173,7 +1468,7 @@ public class MessagesStorage {
                     final TLRPC.photos_Photos res = new TLRPC.photos_Photos();
 
                     while (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
                             TLRPC.Photo photo = TLRPC.Photo.TLdeserialize(data, data.readInt32(false), false);
                             res.photos.add(photo);
@@ -1292,8 +1587,7 @@ public class MessagesStorage {
                     if (random_ids == null) {
                         cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid, ttl FROM messages WHERE uid = %d AND out = %d AND read_state != 0 AND ttl > 0 AND date <= %d AND send_state = 0 AND media != 1", ((long) chat_id) << 32, isOut, time));
                     } else {
-                        String ids = TextUtils.join(",", random_ids);
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.mid, m.ttl FROM messages as m INNER JOIN randoms as r ON m.mid = r.mid WHERE r.random_id IN (%s)", ids));
+                        cursor = database.queryIn("SELECT m.mid, m.ttl FROM messages as m INNER JOIN randoms as r ON m.mid = r.mid WHERE r.random_id IN (%s)", random_ids);
                     }
                     while (cursor.next()) {
                         int ttl = cursor.intValue(1);
@@ -1345,8 +1639,7 @@ public class MessagesStorage {
             HashMap<Long, Integer> dialogsToUpdate = new HashMap<>();
 
             if (messages != null && !messages.isEmpty()) {
-                String ids = TextUtils.join(",", messages);
-                SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT uid, read_state, out FROM messages WHERE mid IN(%s)", ids));
+                SQLiteCursor cursor = database.queryIn("SELECT uid, read_state, out FROM messages WHERE mid IN(%s)", messages);
                 while (cursor.next()) {
                     int out = cursor.intValue(2);
                     if (out != 0) {
@@ -1369,12 +1662,16 @@ public class MessagesStorage {
                 for (int b = 0; b < inbox.size(); b++) {
                     int key = inbox.keyAt(b);
                     long messageId = inbox.get(key);
-                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(mid) FROM messages WHERE uid = %d AND mid > %d AND read_state IN(0,2) AND out = 0", key, messageId));
-                    if (cursor.next()) {
-                        int count = cursor.intValue(0);
+                    int count = unreadCounters.getUnreadCount(database, key, false);
+                    if (count >= 0) {
                         dialogsToUpdate.put((long) key, count);
+                    } else {
+                        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(mid) FROM messages WHERE uid = %d AND mid > %d AND read_state IN(0,2) AND out = 0", key, messageId));
+                        if (cursor.next()) {
+                            dialogsToUpdate.put((long) key, cursor.intValue(0));
+                        }
+                        cursor.dispose();
                     }
-                    cursor.dispose();
 
                     SQLitePreparedStatement state = database.executeFast("UPDATE dialogs SET inbox_max = max((SELECT inbox_max FROM dialogs WHERE did = ?), ?) WHERE did = ?");
                     state.requery();
@@ -1383,6 +1680,7 @@ public class MessagesStorage {
                     state.bindLong(3, key);
                     state.step();
                     state.dispose();
+                    dialogValues.remove((long) key);
                 }
             }
 
@@ -1432,7 +1730,7 @@ public class MessagesStorage {
                     TLRPC.ChatFull info = null;
                     ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
                     if (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
                             info = TLRPC.ChatFull.TLdeserialize(data, data.readInt32(false), false);
                         }
@@ -1546,6 +1844,7 @@ public class MessagesStorage {
                             state.bindInteger(10, dialog_date_i);
                             state.step();
                             state.dispose();
+                            dialogValues.remove((long) -info.id);
                         }
                         cursor.dispose();
                     }
@@ -1565,7 +1864,7 @@ public class MessagesStorage {
                     TLRPC.ChatFull info = null;
                     ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
                     if (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
                             info = TLRPC.ChatFull.TLdeserialize(data, data.readInt32(false), false);
                         }
@@ -1650,7 +1949,7 @@ public class MessagesStorage {
                     TLRPC.ChatFull info = null;
                     ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
                     if (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
                             info = TLRPC.ChatFull.TLdeserialize(data, data.readInt32(false), false);
                         }
@@ -1670,11 +1969,7 @@ public class MessagesStorage {
                 }
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        waitForStorage(semaphore, "isMigratedChat");
         return result[0];
     }
 
@@ -1687,7 +1982,7 @@ public class MessagesStorage {
                     TLRPC.ChatFull info = null;
                     ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
                     if (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
                             info = TLRPC.ChatFull.TLdeserialize(data, data.readInt32(false), false);
                         }
@@ -1712,9 +2007,10 @@ public class MessagesStorage {
                         info.participants = new TLRPC.TL_chatParticipants();
                         while (cursor.next()) {
                             try {
-                                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                                NativeByteBuffer data2 = new NativeByteBuffer(cursor.byteArrayLength(2));
+                                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
+                                NativeByteBuffer data2 = NativeByteBuffer.obtain(cursor.byteArrayLength(2));
                                 if (data != null && cursor.byteBufferValue(0, data) != 0 && data2 != null && cursor.byteBufferValue(2, data2) != 0) {
+                                    data = BlobCodec.unpack(data);
                                     TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
                                     TLRPC.ChannelParticipant participant = TLRPC.ChannelParticipant.TLdeserialize(data2, data2.readInt32(false), false);
                                     if (user != null && participant != null) {
@@ -1813,6 +2109,7 @@ public class MessagesStorage {
                         state.bindLong(2, dialog_id);
                         state.step();
                         state.dispose();
+                        dialogValues.remove(dialog_id);
 
                         database.commitTransaction();
                     }
@@ -2023,8 +2320,9 @@ public class MessagesStorage {
                     ArrayList<Integer> encryptedChatIds = new ArrayList<>();
                     SQLiteCursor cursor = database.queryFinalized("SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.uid, s.seq_in, s.seq_out, m.ttl FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid LEFT JOIN messages_seq as s ON m.mid = s.mid WHERE m.mid < 0 AND m.send_state = 1 ORDER BY m.mid DESC LIMIT " + count);
                     while (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
                         if (data != null && cursor.byteBufferValue(1, data) != 0) {
+                            data = BlobCodec.unpack(data);
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             if (!messageHashMap.containsKey(message.id)) {
                                 MessageObject.setUnreadFlags(message, cursor.intValue(0));
@@ -2082,11 +2380,11 @@ public class MessagesStorage {
 
 
                     if (!encryptedChatIds.isEmpty()) {
-                        getEncryptedChatsInternal(TextUtils.join(",", encryptedChatIds), encryptedChats, usersToLoad);
+                        getEncryptedChatsInternal(encryptedChatIds, encryptedChats, usersToLoad);
                     }
 
                     if (!usersToLoad.isEmpty()) {
-                        getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                        getUsersInternal(usersToLoad, users);
                     }
 
                     if (!chatsToLoad.isEmpty() || !broadcastIds.isEmpty()) {
@@ -2148,7 +2446,7 @@ public class MessagesStorage {
                     int lower_id = (int) dialog_id;
                     if (lower_id != 0) {
                         String imp = important == 2 ? " AND imp = 1 " : "";
-                        String holesTable = important == 2 ? "messages_imp_holes" : "messages_holes";
+                        String holesTable = important == 2 ? HolesIndex.MESSAGES_IMP : HolesIndex.MESSAGES;
 
                         if (load_type != 1 && load_type != 3 && minDate == 0) {
                             if (load_type == 2) {
@@ -2171,11 +2469,15 @@ public class MessagesStorage {
                                     }
                                     cursor.dispose();
                                     if (min_unread_id != 0) {
-                                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid >= %d " + imp + "AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
-                                        if (cursor.next()) {
-                                            count_unread = cursor.intValue(0);
+                                        count_unread = unreadCounters.getUnreadCount(database, dialog_id, important == 2);
+                                        if (count_unread < 0) {
+                                            count_unread = 0;
+                                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid >= %d " + imp + "AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
+                                            if (cursor.next()) {
+                                                count_unread = cursor.intValue(0);
+                                            }
+                                            cursor.dispose();
                                         }
-                                        cursor.dispose();
                                     }
                                 }
                             }
@@ -2195,23 +2497,15 @@ public class MessagesStorage {
                             }
                         }
 
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM " + holesTable + " WHERE uid = %d AND start IN (0, 1)", dialog_id));
-                        if (cursor.next()) {
-                            isEnd = cursor.intValue(0) == 1;
-                            cursor.dispose();
+                        int firstStart = holesIndex.getFirstStart(database, holesTable, dialog_id, 0);
+                        if (firstStart != -1) {
+                            isEnd = firstStart == 1;
                         } else {
-                            cursor.dispose();
                             cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
                             if (cursor.next()) {
                                 int mid = cursor.intValue(0);
                                 if (mid != 0) {
-                                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO " + holesTable + " VALUES(?, ?, ?)");
-                                    state.requery();
-                                    state.bindLong(1, dialog_id);
-                                    state.bindInteger(2, 0);
-                                    state.bindInteger(3, mid);
-                                    state.step();
-                                    state.dispose();
+                                    holesIndex.put(database, holesTable, dialog_id, 0, 0, mid);
                                 }
                             }
                             cursor.dispose();
@@ -2224,27 +2518,21 @@ public class MessagesStorage {
                             }
                             cursor.dispose();
 
-                            boolean containMessage = true;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM " + holesTable + " WHERE uid = %d AND start < %d AND end > %d", dialog_id, max_id_query, max_id_query));
-                            if (cursor.next()) {
-                                containMessage = false;
-                            }
-                            cursor.dispose();
+                            boolean containMessage = !holesIndex.isInsideHole(database, holesTable, dialog_id, 0, max_id_query);
 
                             if (containMessage) {
                                 long holeMessageMaxId = 0;
                                 long holeMessageMinId = 1;
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM " + holesTable + " WHERE uid = %d AND start >= %d ORDER BY start ASC LIMIT 1", dialog_id, max_id_query));
-                                if (cursor.next()) {
-                                    holeMessageMaxId = cursor.intValue(0);
+                                int holeStart = holesIndex.getStartAbove(database, holesTable, dialog_id, 0, max_id_query, false);
+                                if (holeStart != 0) {
+                                    holeMessageMaxId = holeStart;
                                     if (channelId != 0) {
                                         holeMessageMaxId |= ((long) channelId) << 32;
                                     }
                                 }
-                                cursor.dispose();
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM " + holesTable + " WHERE uid = %d AND end <= %d ORDER BY end DESC LIMIT 1", dialog_id, max_id_query));
-                                if (cursor.next()) {
-                                    holeMessageMinId = cursor.intValue(0);
+                                int holeEnd = holesIndex.getEndBelow(database, holesTable, dialog_id, 0, max_id_query);
+                                if (holeEnd != 0) {
+                                    holeMessageMinId = holeEnd;
                                     if (channelId != 0) {
                                         holeMessageMinId |= ((long) channelId) << 32;
                                     }
@@ -2253,7 +2541,6 @@ public class MessagesStorage {
                                     holeMessageMaxId = 0;
                                     holeMessageMinId = 1;
                                 }*/
-                                cursor.dispose();
                                 if (holeMessageMaxId != 0 || holeMessageMinId != 1) {
                                     if (holeMessageMaxId == 0) {
                                         holeMessageMaxId = 1000000000;
@@ -2271,15 +2558,10 @@ public class MessagesStorage {
                                 cursor = null;
                             }
                         } else if (load_type == 1) {
-                            long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT start, end FROM " + holesTable + " WHERE uid = %d AND start >= %d AND start != 1 AND end != 1 ORDER BY start ASC LIMIT 1", dialog_id, max_id));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
-                                if (channelId != 0) {
-                                    holeMessageId |= ((long) channelId) << 32;
-                                }
+                            long holeMessageId = holesIndex.getStartAbove(database, holesTable, dialog_id, 0, max_id, true);
+                            if (holeMessageId != 0 && channelId != 0) {
+                                holeMessageId |= ((long) channelId) << 32;
                             }
-                            cursor.dispose();
                             if (holeMessageId != 0) {
                                 cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date >= %d AND m.mid > %d AND m.mid <= %d " + imp + "ORDER BY m.date ASC, m.mid ASC LIMIT %d", dialog_id, minDate, messageMaxId, holeMessageId, count_query));
                             } else {
@@ -2287,22 +2569,17 @@ public class MessagesStorage {
                             }
                         } else if (minDate != 0) {
                             if (messageMaxId != 0) {
-                                long holeMessageId = 0;
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM " + holesTable + " WHERE uid = %d AND end <= %d ORDER BY end DESC LIMIT 1", dialog_id, max_id));
-                                if (cursor.next()) {
-                                    holeMessageId = cursor.intValue(0);
-                                    if (channelId != 0) {
-                                        holeMessageId |= ((long) channelId) << 32;
-                                    }
+                                long holeMessageId = holesIndex.getEndBelow(database, holesTable, dialog_id, 0, max_id);
+                                if (holeMessageId != 0 && channelId != 0) {
+                                    holeMessageId |= ((long) channelId) << 32;
                                 }
-                                cursor.dispose();
                                 if (holeMessageId != 0) {
                                     cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d AND m.mid < %d AND (m.mid >= %d OR m.mid < 0) " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, messageMaxId, holeMessageId, count_query));
                                 } else {
                                     cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d AND m.mid < %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, messageMaxId, count_query));
                                 }
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, minDate, count_query));
                             }
                         } else {
                             cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(mid) FROM messages WHERE uid = %d AND mid > 0", dialog_id));
@@ -2311,19 +2588,26 @@ public class MessagesStorage {
                             }
                             cursor.dispose();
 
-                            long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(end) FROM " + holesTable + " WHERE uid = %d", dialog_id));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
-                                if (channelId != 0) {
-                                    holeMessageId |= ((long) channelId) << 32;
+                            long holeMessageId = holesIndex.getMaxEnd(database, holesTable, dialog_id, 0);
+                            if (holeMessageId != 0 && channelId != 0) {
+                                holeMessageId |= ((long) channelId) << 32;
+                            }
+                            String hole = holeMessageId != 0 ? String.format(Locale.US, "AND (m.mid >= %d OR m.mid < 0) ", holeMessageId) : "";
+                            long anchorMid = 0;
+                            int anchorDate = 0;
+                            if (offset_query != 0) {
+                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid, date FROM messages WHERE uid = %d AND out = 0 AND read_state IN(0,2) AND mid > 0 " + imp + "ORDER BY mid ASC LIMIT 1", dialog_id));
+                                if (cursor.next()) {
+                                    anchorMid = cursor.longValue(0);
+                                    anchorDate = cursor.intValue(1);
                                 }
+                                cursor.dispose();
                             }
-                            cursor.dispose();
-                            if (holeMessageId != 0) {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND (m.mid >= %d OR m.mid < 0) " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, holeMessageId, offset_query, count_query));
+                            if (anchorMid != 0) {
+                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d " + hole + imp + "AND m.date >= %d AND (m.date > %d OR m.mid >= %d) ORDER BY m.date ASC, m.mid ASC LIMIT %d) UNION " +
+                                        "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d " + hole + imp + "AND m.date <= %d AND (m.date < %d OR m.mid < %d) ORDER BY m.date DESC, m.mid DESC LIMIT %d)", dialog_id, anchorDate, anchorDate, anchorMid, count_query - 10, dialog_id, anchorDate, anchorDate, anchorMid, 10));
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d " + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d,%d", dialog_id, offset_query, count_query));
+                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d " + hole + imp + "ORDER BY m.date DESC, m.mid DESC LIMIT %d", dialog_id, count_query));
                             }
                         }
                     } else {
@@ -2334,7 +2618,7 @@ public class MessagesStorage {
                             if (max_id != 0) {
                                 cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.mid ASC LIMIT %d", dialog_id, max_id, count_query));
                             } else {
-                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, minDate, offset_query, count_query));
+                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.date <= %d ORDER BY m.mid ASC LIMIT %d", dialog_id, minDate, count_query));
                             }
                         } else {
                             if (load_type == 2) {
@@ -2351,11 +2635,15 @@ public class MessagesStorage {
                                 }
                                 cursor.dispose();
                                 if (min_unread_id != 0) {
-                                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid <= %d AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
-                                    if (cursor.next()) {
-                                        count_unread = cursor.intValue(0);
+                                    count_unread = unreadCounters.getUnreadCount(database, dialog_id, false);
+                                    if (count_unread < 0) {
+                                        count_unread = 0;
+                                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(*) FROM messages WHERE uid = %d AND mid <= %d AND out = 0 AND read_state IN(0,2)", dialog_id, min_unread_id));
+                                        if (cursor.next()) {
+                                            count_unread = cursor.intValue(0);
+                                        }
+                                        cursor.dispose();
                                     }
-                                    cursor.dispose();
                                 }
                             }
 
@@ -2370,13 +2658,19 @@ public class MessagesStorage {
                                 offset_query = count_unread - count_query;
                                 count_query += 10;
                             }
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.mid ASC LIMIT %d,%d", dialog_id, offset_query, count_query));
+                            if (offset_query != 0) {
+                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid <= %d ORDER BY m.mid DESC LIMIT %d) UNION " +
+                                        "SELECT * FROM (SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d AND m.mid > %d ORDER BY m.mid ASC LIMIT %d)", dialog_id, min_unread_id, count_query - 10, dialog_id, min_unread_id, 10));
+                            } else {
+                                cursor = database.queryFinalized(String.format(Locale.US, "SELECT m.read_state, m.data, m.send_state, m.mid, m.date, r.random_id, m.replydata, m.media FROM messages as m LEFT JOIN randoms as r ON r.mid = m.mid WHERE m.uid = %d ORDER BY m.mid ASC LIMIT %d", dialog_id, count_query));
+                            }
                         }
                     }
                     if (cursor != null) {
                         while (cursor.next()) {
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
                             if (data != null && cursor.byteBufferValue(1, data) != 0) {
+                                data = BlobCodec.unpack(data);
                                 TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                                 MessageObject.setUnreadFlags(message, cursor.intValue(0));
                                 message.id = cursor.intValue(3);
@@ -2392,8 +2686,9 @@ public class MessagesStorage {
                                 if (message.reply_to_msg_id != 0) {
                                     boolean ok = false;
                                     if (!cursor.isNull(6)) {
-                                        NativeByteBuffer data2 = new NativeByteBuffer(cursor.byteArrayLength(6));
+                                        NativeByteBuffer data2 = NativeByteBuffer.obtain(cursor.byteArrayLength(6));
                                         if (data2 != null && cursor.byteBufferValue(6, data2) != 0) {
+                                            data2 = BlobCodec.unpack(data2);
                                             message.replyMessage = TLRPC.Message.TLdeserialize(data2, data2.readInt32(false), false);
                                             if (message.replyMessage != null) {
                                                 addUsersAndChatsFromMessage(message.replyMessage, usersToLoad, chatsToLoad);
@@ -2499,10 +2794,11 @@ public class MessagesStorage {
                     }
 
                     if (!replyMessages.isEmpty()) {
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", TextUtils.join(",", replyMessages)));
+                        cursor = database.queryIn("SELECT data, mid, date FROM messages WHERE mid IN(%s)", replyMessages);
                         while (cursor.next()) {
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                             if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                data = BlobCodec.unpack(data);
                                 TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                                 message.id = cursor.intValue(1);
                                 message.date = cursor.intValue(2);
@@ -2523,10 +2819,10 @@ public class MessagesStorage {
                     }
 
                     if (!usersToLoad.isEmpty()) {
-                        getUsersInternal(TextUtils.join(",", usersToLoad), res.users);
+                        getUsersInternal(usersToLoad, res.users);
                     }
                     if (!chatsToLoad.isEmpty()) {
-                        getChatsInternal(TextUtils.join(",", chatsToLoad), res.chats);
+                        getChatsInternal(chatsToLoad, res.chats);
                     }
                 } catch (Exception e) {
                     res.messages.clear();
@@ -2597,7 +2893,7 @@ public class MessagesStorage {
                     if (id != null) {
                         SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data FROM sent_files_v2 WHERE uid = '%s' AND type = %d", id, type));
                         if (cursor.next()) {
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                             if (data != null && cursor.byteBufferValue(0, data) != 0) {
                                 TLObject file = TLClassStore.Instance().TLdeserialize(data, data.readInt32(false), false);
                                 if (file != null) {
@@ -2615,11 +2911,7 @@ public class MessagesStorage {
                 }
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        waitForStorage(semaphore, "getSentFile");
         return !result.isEmpty() ? result.get(0) : null;
     }
 
@@ -2812,11 +3104,7 @@ public class MessagesStorage {
                 }
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        waitForStorage(semaphore, "isDialogHasMessages");
         return result[0];
     }
 
@@ -2833,7 +3121,7 @@ public class MessagesStorage {
                     getEncryptedChatsInternal("" + chat_id, encryptedChats, usersToLoad);
                     if (!encryptedChats.isEmpty() && !usersToLoad.isEmpty()) {
                         ArrayList<TLRPC.User> users = new ArrayList<>();
-                        getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                        getUsersInternal(usersToLoad, users);
                         if (!users.isEmpty()) {
                             result.add(encryptedChats.get(0));
                             result.add(users.get(0));
@@ -2871,7 +3159,9 @@ public class MessagesStorage {
                     chat.serializeToStream(data);
                     state.bindInteger(1, chat.id);
                     state.bindInteger(2, user.id);
-                    state.bindString(3, formatUserSearchName(user));
+                    String name = formatUserSearchName(user);
+                    state.bindString(3, name);
+                    dialogsSearchIndex.updateEncryptedChatName(database, chat.id, name);
                     state.bindByteBuffer(4, data);
                     if (chat.a_or_b != null) {
                         data2.writeBytes(chat.a_or_b);
@@ -2919,6 +3209,7 @@ public class MessagesStorage {
                         state.bindInteger(10, 0);
                         state.step();
                         state.dispose();
+                        dialogValues.remove(dialog.id);
                     }
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
@@ -2954,8 +3245,12 @@ public class MessagesStorage {
             state.requery();
             NativeByteBuffer data = new NativeByteBuffer(user.getObjectSize());
             user.serializeToStream(data);
+            byte[] bytes = toByteArray(data);
+            data = BlobCodec.pack(data);
             state.bindInteger(1, user.id);
-            state.bindString(2, formatUserSearchName(user));
+            String name = formatUserSearchName(user);
+            state.bindString(2, name);
+            dialogsSearchIndex.updateUserName(database, user.id, name);
             if (user.status != null) {
                 if (user.status instanceof TLRPC.TL_userStatusRecently) {
                     user.status.expires = -100;
@@ -2970,6 +3265,7 @@ public class MessagesStorage {
             }
             state.bindByteBuffer(4, data);
             state.step();
+            usersCache.put(user.id, bytes, user.status != null ? user.status.expires : 0);
             data.reuse();
         }
         state.dispose();
@@ -2984,35 +3280,93 @@ public class MessagesStorage {
             state.requery();
             NativeByteBuffer data = new NativeByteBuffer(chat.getObjectSize());
             chat.serializeToStream(data);
+            byte[] bytes = toByteArray(data);
+            data = BlobCodec.pack(data);
             state.bindInteger(1, chat.id);
             if (chat.title != null) {
                 String name = chat.title.toLowerCase();
                 state.bindString(2, name);
+                dialogsSearchIndex.updateChatName(database, chat.id, name);
             } else {
                 state.bindString(2, "");
+                dialogsSearchIndex.updateChatName(database, chat.id, "");
             }
             state.bindByteBuffer(3, data);
             state.step();
+            chatsCache.put(chat.id, bytes, 0);
             data.reuse();
         }
         state.dispose();
     }
 
+    private static byte[] toByteArray(NativeByteBuffer data) {
+        byte[] bytes = new byte[data.limit()];
+        int position = data.position();
+        data.position(0);
+        data.buffer.get(bytes);
+        data.position(position);
+        return bytes;
+    }
+
+    private static ArrayList<Integer> parseIds(String ids) {
+        String[] args = ids.split(",");
+        ArrayList<Integer> result = new ArrayList<>(args.length);
+        for (int a = 0; a < args.length; a++) {
+            result.add(Utilities.parseInt(args[a]));
+        }
+        return result;
+    }
+
+    private static <T> ArrayList<Integer> getFromCache(EntityCache<T> cache, ArrayList<Integer> ids, ArrayList<T> result) {
+        ArrayList<Integer> missing = new ArrayList<>();
+        HashMap<Integer, Boolean> added = new HashMap<>();
+        for (int a = 0; a < ids.size(); a++) {
+            Integer id = ids.get(a);
+            if (added.put(id, true) != null) {
+                continue;
+            }
+            T object = cache.get(id);
+            if (object != null) {
+                result.add(object);
+            } else {
+                missing.add(id);
+            }
+        }
+        return missing;
+    }
+
     public void getUsersInternal(String usersToLoad, ArrayList<TLRPC.User> result) throws Exception {
         if (usersToLoad == null || usersToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, status FROM users WHERE uid IN(%s)", usersToLoad));
+        getUsersInternal(parseIds(usersToLoad), result);
+    }
+
+    public void getUsersInternal(ArrayList<Integer> usersToLoad, ArrayList<TLRPC.User> result) throws Exception {
+        if (usersToLoad == null || usersToLoad.isEmpty() || result == null) {
+            return;
+        }
+        ArrayList<Integer> missing = getFromCache(usersCache, usersToLoad, result);
+        if (!missing.isEmpty()) {
+            int version = usersCache.getVersion();
+            readUsers(currentDatabase().queryIn("SELECT data, status, uid FROM users WHERE uid IN(%s)", missing), result, version);
+        }
+    }
+
+    private void readUsers(SQLiteCursor cursor, ArrayList<TLRPC.User> result, int version) throws Exception {
         while (cursor.next()) {
             try {
-                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                 if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                    data = BlobCodec.unpack(data);
                     TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
                     if (user != null) {
+                        int expires = cursor.intValue(1);
                         if (user.status != null) {
-                            user.status.expires = cursor.intValue(1);
+                            user.status.expires = expires;
                         }
                         result.add(user);
+                        usersCache.putLoaded(cursor.intValue(2), toByteArray(data), expires, version);
                     }
                 }
                 data.reuse();
@@ -3027,14 +3381,30 @@ public class MessagesStorage {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad));
+        getChatsInternal(parseIds(chatsToLoad), result);
+    }
+
+    public void getChatsInternal(ArrayList<Integer> chatsToLoad, ArrayList<TLRPC.Chat> result) throws Exception {
+        if (chatsToLoad == null || chatsToLoad.isEmpty() || result == null) {
+            return;
+        }
+        ArrayList<Integer> missing = getFromCache(chatsCache, chatsToLoad, result);
+        if (!missing.isEmpty()) {
+            int version = chatsCache.getVersion();
+            readChats(currentDatabase().queryIn("SELECT data, uid FROM chats WHERE uid IN(%s)", missing), result, version);
+        }
+    }
+
+    private void readChats(SQLiteCursor cursor, ArrayList<TLRPC.Chat> result, int version) throws Exception {
         while (cursor.next()) {
             try {
-                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                 if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                    data = BlobCodec.unpack(data);
                     TLRPC.Chat chat = TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
                     if (chat != null) {
                         result.add(chat);
+                        chatsCache.putLoaded(cursor.intValue(1), toByteArray(data), 0, version);
                     }
                 }
                 data.reuse();
@@ -3049,10 +3419,20 @@ public class MessagesStorage {
         if (chatsToLoad == null || chatsToLoad.length() == 0 || result == null) {
             return;
         }
-        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad));
+        readEncryptedChats(currentDatabase().queryFinalized(String.format(Locale.US, "SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad)), result, usersToLoad);
+    }
+
+    public void getEncryptedChatsInternal(ArrayList<Integer> chatsToLoad, ArrayList<TLRPC.EncryptedChat> result, ArrayList<Integer> usersToLoad) throws Exception {
+        if (chatsToLoad == null || chatsToLoad.isEmpty() || result == null) {
+            return;
+        }
+        readEncryptedChats(currentDatabase().queryIn("SELECT data, user, g, authkey, ttl, layer, seq_in, seq_out, use_count, exchange_id, key_date, fprint, fauthkey, khash FROM enc_chats WHERE uid IN(%s)", chatsToLoad), result, usersToLoad);
+    }
+
+    private void readEncryptedChats(SQLiteCursor cursor, ArrayList<TLRPC.EncryptedChat> result, ArrayList<Integer> usersToLoad) throws Exception {
         while (cursor.next()) {
             try {
-                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                 if (data != null && cursor.byteBufferValue(0, data) != 0) {
                     TLRPC.EncryptedChat chat = TLRPC.EncryptedChat.TLdeserialize(data, data.readInt32(false), false);
                     if (chat != null) {
@@ -3105,7 +3485,7 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postUsersAndChatsWrite(users, chats, new Runnable() {
                 @Override
                 public void run() {
                     putUsersAndChatsInternal(users, chats, withTransaction);
@@ -3116,6 +3496,43 @@ public class MessagesStorage {
         }
     }
 
+    /**
+     * Posts {@code write} to the storage queue and hides the cached rows of
+     * {@code users} and {@code chats} until it has run, so point lookups made
+     * meanwhile wait for the write instead of returning the old rows.
+     */
+    private void postUsersAndChatsWrite(final ArrayList<TLRPC.User> users, final ArrayList<TLRPC.Chat> chats, final Runnable write) {
+        if (users != null) {
+            for (int a = 0; a < users.size(); a++) {
+                usersCache.beginWrite(users.get(a).id);
+            }
+        }
+        if (chats != null) {
+            for (int a = 0; a < chats.size(); a++) {
+                chatsCache.beginWrite(chats.get(a).id);
+            }
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write.run();
+                } finally {
+                    if (users != null) {
+                        for (int a = 0; a < users.size(); a++) {
+                            usersCache.endWrite(users.get(a).id);
+                        }
+                    }
+                    if (chats != null) {
+                        for (int a = 0; a < chats.size(); a++) {
+                            chatsCache.endWrite(chats.get(a).id);
+                        }
+                    }
+                }
+            }
+        });
+    }
+
     public void removeFromDownloadQueue(final long id, final int type, final boolean move) {
         storageQueue.postRunnable(new Runnable() {
             @Override
@@ -3169,7 +3586,7 @@ public class MessagesStorage {
                         DownloadObject downloadObject = new DownloadObject();
                         downloadObject.type = cursor.intValue(1);
                         downloadObject.id = cursor.longValue(0);
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(2));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(2));
                         if (data != null && cursor.byteBufferValue(2, data) != 0) {
                             downloadObject.object = TLClassStore.Instance().TLdeserialize(data, data.readInt32(false), false);
                         }
@@ -3210,82 +3627,88 @@ public class MessagesStorage {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                try {
-                    String ids = TextUtils.join(",", webPages.keySet());
-                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid FROM webpage_pending WHERE id IN (%s)", ids));
-                    ArrayList<Long> mids = new ArrayList<>();
-                    while (cursor.next()) {
-                        mids.add(cursor.longValue(0));
-                    }
-                    cursor.dispose();
-
-                    if (mids.isEmpty()) {
-                        return;
-                    }
-                    final ArrayList<TLRPC.Message> messages = new ArrayList<>();
-                    cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid, data FROM messages WHERE mid IN (%s)", TextUtils.join(",", mids)));
-                    while (cursor.next()) {
-                        int mid = cursor.intValue(0);
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
-                        if (data != null && cursor.byteBufferValue(1, data) != 0) {
-                            TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
-                            if (message.media instanceof TLRPC.TL_messageMediaWebPage) {
-                                message.id = mid;
-                                message.media.webpage = webPages.get(message.media.webpage.id);
-                                messages.add(message);
-                            }
-                        }
-                        data.reuse();
-                    }
-                    cursor.dispose();
+                putWebPagesInternal(webPages);
+            }
+        });
+    }
 
-                    database.executeFast(String.format(Locale.US, "DELETE FROM webpage_pending WHERE id IN (%s)", ids)).stepThis().dispose();
+    private void putWebPagesInternal(final HashMap<Long, TLRPC.WebPage> webPages) {
+        try {
+            String ids = TextUtils.join(",", webPages.keySet());
+            SQLiteCursor cursor = database.queryIn("SELECT mid FROM webpage_pending WHERE id IN (%s)", new ArrayList<>(webPages.keySet()));
+            ArrayList<Long> mids = new ArrayList<>();
+            while (cursor.next()) {
+                mids.add(cursor.longValue(0));
+            }
+            cursor.dispose();
 
-                    if (messages.isEmpty()) {
-                        return;
+            if (mids.isEmpty()) {
+                return;
+            }
+            final ArrayList<TLRPC.Message> messages = new ArrayList<>();
+            cursor = database.queryIn("SELECT mid, data FROM messages WHERE mid IN (%s)", mids);
+            while (cursor.next()) {
+                int mid = cursor.intValue(0);
+                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
+                if (data != null && cursor.byteBufferValue(1, data) != 0) {
+                    data = BlobCodec.unpack(data);
+                    TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
+                    if (message.media instanceof TLRPC.TL_messageMediaWebPage) {
+                        message.id = mid;
+                        message.media.webpage = webPages.get(message.media.webpage.id);
+                        messages.add(message);
                     }
+                }
+                data.reuse();
+            }
+            cursor.dispose();
 
-                    database.beginTransaction();
+            database.executeFast(String.format(Locale.US, "DELETE FROM webpage_pending WHERE id IN (%s)", ids)).stepThis().dispose();
 
-                    SQLitePreparedStatement state = database.executeFast("UPDATE messages SET data = ? WHERE mid = ?");
-                    SQLitePreparedStatement state2 = database.executeFast("UPDATE media_v2 SET data = ? WHERE mid = ?");
-                    for (TLRPC.Message message : messages) {
-                        NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
-                        message.serializeToStream(data);
+            if (messages.isEmpty()) {
+                return;
+            }
 
-                        long messageId = message.id;
-                        if (message.to_id.channel_id != 0) {
-                            messageId |= ((long) message.to_id.channel_id) << 32;
-                        }
+            database.beginTransaction();
 
-                        state.requery();
-                        state.bindByteBuffer(1, data);
-                        state.bindLong(2, messageId);
-                        state.step();
+            SQLitePreparedStatement state = database.executeFast("UPDATE messages SET data = ? WHERE mid = ?");
+            SQLitePreparedStatement state2 = database.executeFast("UPDATE media_v2 SET data = ? WHERE mid = ?");
+            for (TLRPC.Message message : messages) {
+                NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
+                message.serializeToStream(data);
+                data = BlobCodec.pack(data);
 
-                        state2.requery();
-                        state2.bindByteBuffer(1, data);
-                        state2.bindLong(2, messageId);
-                        state2.step();
+                long messageId = message.id;
+                if (message.to_id.channel_id != 0) {
+                    messageId |= ((long) message.to_id.channel_id) << 32;
+                }
 
-                        data.reuse();
-                    }
-                    state.dispose();
-                    state2.dispose();
+                state.requery();
+                state.bindByteBuffer(1, data);
+                state.bindLong(2, messageId);
+                state.step();
 
-                    database.commitTransaction();
+                state2.requery();
+                state2.bindByteBuffer(1, data);
+                state2.bindLong(2, messageId);
+                state2.step();
 
-                    AndroidUtilities.runOnUIThread(new Runnable() {
-                        @Override
-                        public void run() {
-                            NotificationCenter.getInstance().postNotificationName(NotificationCenter.didReceivedWebpages, messages);
-                        }
-                    });
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
+                data.reuse();
             }
-        });
+            state.dispose();
+            state2.dispose();
+
+            database.commitTransaction();
+
+            AndroidUtilities.runOnUIThread(new Runnable() {
+                @Override
+                public void run() {
+                    NotificationCenter.getInstance().postNotificationName(NotificationCenter.didReceivedWebpages, messages);
+                }
+            });
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
     }
 
     public void overwriteChannel(final int channel_id, final TLRPC.TL_updates_channelDifferenceTooLong difference, final int newDialogType) {
@@ -3311,6 +3734,7 @@ public class MessagesStorage {
                     database.executeFast("DELETE FROM messages_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM messages_imp_holes WHERE uid = " + did).stepThis().dispose();
                     database.executeFast("DELETE FROM media_holes_v2 WHERE uid = " + did).stepThis().dispose();
+                    holesIndex.invalidate(did);
                     BotQuery.clearBotKeyboard(did, null);
 
                     TLRPC.TL_messages_dialogs dialogs = new TLRPC.TL_messages_dialogs();
@@ -3356,32 +3780,141 @@ public class MessagesStorage {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                try {
-                    database.beginTransaction();
-                    SQLitePreparedStatement state = database.executeFast("UPDATE messages SET media = max((SELECT media FROM messages WHERE mid = ?), ?) WHERE mid = ?");
-                    for (int a = 0; a < channelViews.size(); a++) {
-                        int peer = channelViews.keyAt(a);
-                        SparseIntArray messages = channelViews.get(peer);
-                        for (int b = 0; b < messages.size(); b++) {
-                            int views = messages.get(messages.keyAt(b));
-                            long messageId = messages.keyAt(b);
-                            if (isChannel) {
-                                messageId |= ((long) -peer) << 32;
-                            }
-                            state.requery();
-                            state.bindLong(1, messageId);
-                            state.bindInteger(2, views);
-                            state.bindLong(3, messageId);
-                            state.step();
-                        }
+                putChannelViewsInternal(channelViews, isChannel);
+            }
+        });
+    }
+
+    private void putChannelViewsInternal(final SparseArray<SparseIntArray> channelViews, final boolean isChannel) {
+        try {
+            database.beginTransaction();
+            SQLitePreparedStatement state = database.executeFast("UPDATE messages SET media = max((SELECT media FROM messages WHERE mid = ?), ?) WHERE mid = ?");
+            for (int a = 0; a < channelViews.size(); a++) {
+                int peer = channelViews.keyAt(a);
+                SparseIntArray messages = channelViews.get(peer);
+                for (int b = 0; b < messages.size(); b++) {
+                    int views = messages.get(messages.keyAt(b));
+                    long messageId = messages.keyAt(b);
+                    if (isChannel) {
+                        messageId |= ((long) -peer) << 32;
                     }
-                    state.dispose();
-                    database.commitTransaction();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
+                    state.requery();
+                    state.bindLong(1, messageId);
+                    state.bindInteger(2, views);
+                    state.bindLong(3, messageId);
+                    state.step();
                 }
             }
-        });
+            state.dispose();
+            database.commitTransaction();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    /**
+     * Writes rows into messages with multi-row REPLACE statements of
+     * {@link #MESSAGES_PER_INSERT} rows while enough rows are left, falling
+     * back to single rows for the tail. Exactly {@code count} rows must be
+     * put. A full batch is stepped by the next put or by dispose, so row
+     * data stays bound until then; callers hand it back with
+     * {@link #release} and it is reused once its batch has been stepped.
+     */
+    private class MessagesInsert {
+
+        private int remaining;
+        private int bulkRow;
+        private SQLitePreparedStatement state;
+        private SQLitePreparedStatement stateBulk;
+        private ArrayList<NativeByteBuffer> bulkData;
+        private ArrayList<NativeByteBuffer> releasedData;
+
+        public MessagesInsert(int count) {
+            remaining = count;
+        }
+
+        public void put(long mid, long uid, int readState, int sendState, int date, NativeByteBuffer data, int out, int ttl, int media, int imp) throws Exception {
+            if (bulkRow == MESSAGES_PER_INSERT) {
+                stepBulk();
+            }
+            SQLitePreparedStatement insert;
+            int offset;
+            if (bulkRow != 0 || remaining >= MESSAGES_PER_INSERT) {
+                if (stateBulk == null) {
+                    stateBulk = database.executeCached(MESSAGES_BULK_INSERT);
+                    bulkData = new ArrayList<>(MESSAGES_PER_INSERT);
+                    releasedData = new ArrayList<>(MESSAGES_PER_INSERT);
+                }
+                if (bulkRow == 0) {
+                    stateBulk.requery();
+                }
+                insert = stateBulk;
+                offset = bulkRow * MESSAGES_COLUMNS;
+            } else {
+                if (state == null) {
+                    state = database.executeCached("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL, ?)");
+                }
+                state.requery();
+                insert = state;
+                offset = 0;
+            }
+            remaining--;
+            insert.bindLong(offset + 1, mid);
+            insert.bindLong(offset + 2, uid);
+            insert.bindInteger(offset + 3, readState);
+            insert.bindInteger(offset + 4, sendState);
+            insert.bindInteger(offset + 5, date);
+            insert.bindByteBuffer(offset + 6, data);
+            insert.bindInteger(offset + 7, out);
+            insert.bindInteger(offset + 8, ttl);
+            insert.bindInteger(offset + 9, media);
+            insert.bindInteger(offset + 10, imp);
+            if (insert == stateBulk) {
+                bulkData.add(data);
+                bulkRow++;
+            } else {
+                state.step();
+            }
+        }
+
+        public void release(NativeByteBuffer data) {
+            if (bulkData != null && bulkData.contains(data)) {
+                releasedData.add(data);
+            } else {
+                data.reuse();
+            }
+        }
+
+        private void stepBulk() throws Exception {
+            stateBulk.step();
+            for (int a = 0; a < bulkData.size(); a++) {
+                NativeByteBuffer data = bulkData.get(a);
+                if (releasedData.remove(data)) {
+                    data.reuse();
+                }
+            }
+            bulkData.clear();
+            bulkRow = 0;
+        }
+
+        public void dispose() throws Exception {
+            if (bulkRow == MESSAGES_PER_INSERT) {
+                stepBulk();
+            }
+            if (bulkData != null) {
+                for (int a = 0; a < releasedData.size(); a++) {
+                    releasedData.get(a).reuse();
+                }
+                releasedData.clear();
+                bulkData.clear();
+            }
+            if (state != null) {
+                state.dispose();
+            }
+            if (stateBulk != null) {
+                stateBulk.dispose();
+            }
+        }
     }
 
     private void putMessagesInternal(final ArrayList<TLRPC.Message> messages, final boolean withTransaction, final boolean doNotUpdateDialogDate, final int downloadMask) {
@@ -3397,23 +3930,15 @@ public class MessagesStorage {
             HashMap<Long, TLRPC.Message> botKeyboards = new HashMap<>();
 
             HashMap<Long, Long> messagesMediaIdsMap = null;
-            StringBuilder messageMediaIds = null;
+            ArrayList<Long> messageMediaIds = null;
             HashMap<Long, Integer> mediaTypes = null;
-            StringBuilder messageIds = new StringBuilder();
-            HashMap<Long, Integer> dialogsReadMax = new HashMap<>();
+            ArrayList<Long> messageIds = new ArrayList<>();
             HashMap<Long, Long> messagesIdsMap = new HashMap<>();
             HashMap<Long, Long> messagesIdsMapNotImportant = new HashMap<>();
 
-            SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL, ?)");
-            SQLitePreparedStatement state2 = null;
-            SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO randoms VALUES(?, ?)");
-            SQLitePreparedStatement state4 = database.executeFast("REPLACE INTO download_queue VALUES(?, ?, ?, ?)");
-            SQLitePreparedStatement state5 = database.executeFast("REPLACE INTO webpage_pending VALUES(?, ?)");
-
+            ArrayList<Long> dids = new ArrayList<>();
             for (int a = 0; a < messages.size(); a++) {
                 TLRPC.Message message = messages.get(a);
-
-                long messageId = message.id;
                 if (message.dialog_id == 0) {
                     if (message.to_id.user_id != 0) {
                         message.dialog_id = message.to_id.user_id;
@@ -3423,27 +3948,40 @@ public class MessagesStorage {
                         message.dialog_id = -message.to_id.channel_id;
                     }
                 }
+                if (!dids.contains(message.dialog_id)) {
+                    dids.add(message.dialog_id);
+                }
+            }
+            HashMap<Long, int[]> dialogRows = new HashMap<>();
+            SQLiteCursor dialogsCursor = database.queryIn("SELECT did, date, unread_count, last_mid_i, unread_count_i, pts, date_i, last_mid, inbox_max FROM dialogs WHERE did IN(%s)", dids);
+            while (dialogsCursor.next()) {
+                int[] row = new int[8];
+                for (int b = 0; b < row.length; b++) {
+                    row[b] = dialogsCursor.intValue(b + 1);
+                }
+                dialogRows.put(dialogsCursor.longValue(0), row);
+            }
+            dialogsCursor.dispose();
+
+            MessagesInsert state = new MessagesInsert(messages.size());
+            SQLitePreparedStatement state2 = null;
+            SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO randoms VALUES(?, ?)");
+            SQLitePreparedStatement state4 = database.executeFast("REPLACE INTO download_queue VALUES(?, ?, ?, ?)");
+            SQLitePreparedStatement state5 = database.executeFast("REPLACE INTO webpage_pending VALUES(?, ?)");
+
+            for (int a = 0; a < messages.size(); a++) {
+                TLRPC.Message message = messages.get(a);
+
+                long messageId = message.id;
                 if (message.to_id.channel_id != 0) {
                     messageId |= ((long) message.to_id.channel_id) << 32;
                 }
 
                 if ((message.to_id.channel_id == 0 && MessageObject.isUnread(message) || MessageObject.isContentUnread(message)) && !MessageObject.isOut(message)) {
-                    Integer currentMaxId = dialogsReadMax.get(message.dialog_id);
-                    if (currentMaxId == null) {
-                        SQLiteCursor cursor = database.queryFinalized("SELECT inbox_max FROM dialogs WHERE did = " + message.dialog_id);
-                        if (cursor.next()) {
-                            currentMaxId = cursor.intValue(0);
-                        } else {
-                            currentMaxId = 0;
-                        }
-                        cursor.dispose();
-                        dialogsReadMax.put(message.dialog_id, currentMaxId);
-                    }
+                    int[] dialogRow = dialogRows.get(message.dialog_id);
+                    int currentMaxId = dialogRow != null ? dialogRow[7] : 0;
                     if (message.id < 0 || currentMaxId < message.id) {
-                        if (messageIds.length() > 0) {
-                            messageIds.append(",");
-                        }
-                        messageIds.append(messageId);
+                        messageIds.add(messageId);
                         if (message.to_id.channel_id == 0 || MessageObject.isMegagroup(message) || MessageObject.isImportant(message)) {
                             messagesIdsMap.put(messageId, message.dialog_id);
                         } else if (message.to_id.channel_id != 0) {
@@ -3453,14 +3991,11 @@ public class MessagesStorage {
                 }
                 if (SharedMediaQuery.canAddMessageToMedia(message)) {
                     if (messageMediaIds == null) {
-                        messageMediaIds = new StringBuilder();
+                        messageMediaIds = new ArrayList<>();
                         messagesMediaIdsMap = new HashMap<>();
                         mediaTypes = new HashMap<>();
                     }
-                    if (messageMediaIds.length() > 0) {
-                        messageMediaIds.append(",");
-                    }
-                    messageMediaIds.append(messageId);
+                    messageMediaIds.add(messageId);
                     messagesMediaIdsMap.put(messageId, message.dialog_id);
                     mediaTypes.put(messageId, SharedMediaQuery.getMediaType(message));
                 }
@@ -3477,7 +4012,7 @@ public class MessagesStorage {
             }
 
             if (messageMediaIds != null) {
-                SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM media_v2 WHERE mid IN(" + messageMediaIds.toString() + ")");
+                SQLiteCursor cursor = database.queryIn("SELECT mid FROM media_v2 WHERE mid IN(%s)", messageMediaIds);
                 while (cursor.next()) {
                     long mid = cursor.longValue(0);
                     messagesMediaIdsMap.remove(mid);
@@ -3503,8 +4038,8 @@ public class MessagesStorage {
                 }
             }
 
-            if (messageIds.length() > 0) {
-                SQLiteCursor cursor = database.queryFinalized("SELECT mid FROM messages WHERE mid IN(" + messageIds.toString() + ")");
+            if (!messageIds.isEmpty()) {
+                SQLiteCursor cursor = database.queryIn("SELECT mid FROM messages WHERE mid IN(%s)", messageIds);
                 while (cursor.next()) {
                     messagesIdsMap.remove(cursor.longValue(0));
                     messagesIdsMapNotImportant.remove(cursor.longValue(0));
@@ -3528,12 +4063,13 @@ public class MessagesStorage {
                 }
             }
 
+            ArrayList<TLRPC.Message> sortedMessages = new ArrayList<>(messages);
+            Collections.sort(sortedMessages, messagesInsertComparator);
             int downloadMediaMask = 0;
-            for (int a = 0; a < messages.size(); a++) {
-                TLRPC.Message message = messages.get(a);
+            for (int a = 0; a < sortedMessages.size(); a++) {
+                TLRPC.Message message = sortedMessages.get(a);
                 fixUnsupportedMedia(message);
 
-                state.requery();
                 long messageId = message.id;
                 if (message.local_id != 0) {
                     messageId = message.local_id;
@@ -3542,8 +4078,9 @@ public class MessagesStorage {
                     messageId |= ((long) message.to_id.channel_id) << 32;
                 }
 
-                NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
+                NativeByteBuffer data = NativeByteBuffer.obtain(message.getObjectSize());
                 message.serializeToStream(data);
+                data = BlobCodec.pack(data);
 
                 boolean updateDialog = true;
                 if (message.action != null && message.action instanceof TLRPC.TL_messageEncryptedAction && !(message.action.encryptedAction instanceof TLRPC.TL_decryptedMessageActionSetMessageTTL || message.action.encryptedAction instanceof TLRPC.TL_decryptedMessageActionScreenshotMessages)) {
@@ -3565,21 +4102,13 @@ public class MessagesStorage {
                     }
                 }
 
-                state.bindLong(1, messageId);
-                state.bindLong(2, message.dialog_id);
-                state.bindInteger(3, MessageObject.getUnreadFlags(message));
-                state.bindInteger(4, message.send_state);
-                state.bindInteger(5, message.date);
-                state.bindByteBuffer(6, data);
-                state.bindInteger(7, (MessageObject.isOut(message) ? 1 : 0));
-                state.bindInteger(8, message.ttl);
+                int media;
                 if ((message.flags & TLRPC.MESSAGE_FLAG_HAS_VIEWS) != 0) {
-                    state.bindInteger(9, message.views);
+                    media = message.views;
                 } else {
-                    state.bindInteger(9, getMessageMediaType(message));
+                    media = getMessageMediaType(message);
                 }
-                state.bindInteger(10, MessageObject.isImportant(message) ? 1 : 0);
-                state.step();
+                state.put(messageId, message.dialog_id, MessageObject.getUnreadFlags(message), message.send_state, message.date, data, MessageObject.isOut(message) ? 1 : 0, message.ttl, media, MessageObject.isImportant(message) ? 1 : 0);
 
                 if (message.random_id != 0) {
                     state3.requery();
@@ -3608,7 +4137,7 @@ public class MessagesStorage {
                     state5.step();
                 }
 
-                data.reuse();
+                state.release(data);
 
                 if ((message.to_id.channel_id == 0 || MessageObject.isImportant(message)) && message.date >= ConnectionsManager.getInstance().getCurrentTime() - 60 * 60 && downloadMask != 0) {
                     if (message.media instanceof TLRPC.TL_messageMediaAudio || message.media instanceof TLRPC.TL_messageMediaPhoto || message.media instanceof TLRPC.TL_messageMediaVideo || message.media instanceof TLRPC.TL_messageMediaDocument) {
@@ -3646,14 +4175,14 @@ public class MessagesStorage {
                         if (object != null) {
                             downloadMediaMask |= type;
                             state4.requery();
-                            data = new NativeByteBuffer(object.getObjectSize());
-                            object.serializeToStream(data);
+                            NativeByteBuffer objectData = NativeByteBuffer.obtain(object.getObjectSize());
+                            object.serializeToStream(objectData);
                             state4.bindLong(1, id);
                             state4.bindInteger(2, type);
                             state4.bindInteger(3, message.date);
-                            state4.bindByteBuffer(4, data);
+                            state4.bindByteBuffer(4, objectData);
                             state4.step();
-                            data.reuse();
+                            objectData.reuse();
                         }
                     }
                 }
@@ -3666,12 +4195,12 @@ public class MessagesStorage {
             state4.dispose();
             state5.dispose();
 
-            state = database.executeFast("REPLACE INTO dialogs VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-            HashMap<Long, TLRPC.Message> dids = new HashMap<>();
-            dids.putAll(messagesMap);
-            dids.putAll(messagesMapNotImportant);
+            SQLitePreparedStatement state7 = database.executeFast("REPLACE INTO dialogs VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+            HashMap<Long, TLRPC.Message> lastMessages = new HashMap<>();
+            lastMessages.putAll(messagesMap);
+            lastMessages.putAll(messagesMapNotImportant);
 
-            for (HashMap.Entry<Long, TLRPC.Message> pair : dids.entrySet()) {
+            for (HashMap.Entry<Long, TLRPC.Message> pair : lastMessages.entrySet()) {
                 Long key = pair.getKey();
                 if (key == 0) {
                     continue;
@@ -3687,7 +4216,6 @@ public class MessagesStorage {
                     channelId = messageNotImportant.to_id.channel_id;
                 }
 
-                SQLiteCursor cursor = database.queryFinalized("SELECT date, unread_count, last_mid_i, unread_count_i, pts, date_i, last_mid, inbox_max FROM dialogs WHERE did = " + key);
                 int dialog_date = 0;
                 int last_mid = 0;
                 int old_unread_count = 0;
@@ -3696,19 +4224,19 @@ public class MessagesStorage {
                 int pts = channelId != 0 ? 1 : 0;
                 int dialog_date_i = 0;
                 int inbox_max = 0;
-                if (cursor.next()) {
-                    dialog_date = cursor.intValue(0);
-                    old_unread_count = cursor.intValue(1);
-                    last_mid_i = cursor.intValue(2);
-                    old_unread_count_i = cursor.intValue(3);
-                    pts = cursor.intValue(4);
-                    dialog_date_i = cursor.intValue(5);
-                    last_mid = cursor.intValue(6);
-                    inbox_max = cursor.intValue(7);
+                int[] dialogRow = dialogRows.get(key);
+                if (dialogRow != null) {
+                    dialog_date = dialogRow[0];
+                    old_unread_count = dialogRow[1];
+                    last_mid_i = dialogRow[2];
+                    old_unread_count_i = dialogRow[3];
+                    pts = dialogRow[4];
+                    dialog_date_i = dialogRow[5];
+                    last_mid = dialogRow[6];
+                    inbox_max = dialogRow[7];
                 } else if (channelId != 0) {
                     MessagesController.getInstance().checkChannelInviter(channelId);
                 }
-                cursor.dispose();
 
                 Integer unread_count = messagesCounts.get(key);
                 if (unread_count == null) {
@@ -3740,28 +4268,29 @@ public class MessagesStorage {
                     messageIdNotImportant |= ((long) channelId) << 32;
                 }
 
-                state.requery();
-                state.bindLong(1, key);
+                state7.requery();
+                state7.bindLong(1, key);
+                int newDialogDate = dialog_date;
                 if (message != null && (!doNotUpdateDialogDate || dialog_date == 0)) {
-                    state.bindInteger(2, message.date);
-                } else {
-                    state.bindInteger(2, dialog_date);
-                }
-                state.bindInteger(3, old_unread_count + unread_count);
-                state.bindLong(4, messageId);
-                state.bindInteger(5, inbox_max);
-                state.bindInteger(6, 0);
-                state.bindLong(7, messageIdNotImportant);
-                state.bindInteger(8, unread_count_i + old_unread_count_i);
-                state.bindInteger(9, pts);
+                    newDialogDate = message.date;
+                }
+                state7.bindInteger(2, newDialogDate);
+                state7.bindInteger(3, old_unread_count + unread_count);
+                state7.bindLong(4, messageId);
+                state7.bindInteger(5, inbox_max);
+                state7.bindInteger(6, 0);
+                state7.bindLong(7, messageIdNotImportant);
+                state7.bindInteger(8, unread_count_i + old_unread_count_i);
+                state7.bindInteger(9, pts);
                 if (messageNotImportant != null && (!doNotUpdateDialogDate || dialog_date == 0)) {
-                    state.bindInteger(10, messageNotImportant.date);
+                    state7.bindInteger(10, messageNotImportant.date);
                 } else {
-                    state.bindInteger(10, dialog_date_i);
+                    state7.bindInteger(10, dialog_date_i);
                 }
-                state.step();
+                state7.step();
+                dialogValues.remove(key);
             }
-            state.dispose();
+            state7.dispose();
 
             if (mediaCounts != null) {
                 state3 = database.executeFast("REPLACE INTO media_counts_v2 VALUES(?, ?, ?)");
@@ -3771,7 +4300,7 @@ public class MessagesStorage {
                         long uid = pair.getKey();
                         int lower_part = (int) uid;
                         int count = -1;
-                        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT count FROM media_counts_v2 WHERE uid = %d AND type = %d LIMIT 1", uid, type));
+                        SQLiteCursor cursor = database.queryCached("SELECT count FROM media_counts_v2 WHERE uid = ? AND type = ? LIMIT 1", uid, type);
                         if (cursor.next()) {
                             count = cursor.intValue(0);
                         }
@@ -3823,6 +4352,55 @@ public class MessagesStorage {
         }
     }
 
+    /**
+     * Writes everything a batch of updates changed as one storage queue task
+     * in a single transaction, instead of posting every kind of change as
+     * its own task.
+     */
+    public void putUpdates(final ArrayList<TLRPC.Message> messages, final int downloadMask, final SparseArray<SparseIntArray> channelViews, final HashMap<Long, TLRPC.WebPage> webPages,
+                           final SparseArray<Long> inbox, final SparseIntArray outbox, final HashMap<Integer, Integer> encryptedMessages, final ArrayList<Long> contentRead, final SparseArray<ArrayList<Integer>> deletedMessages) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    database.beginBatch();
+                    if (!messages.isEmpty()) {
+                        putMessagesInternal(messages, true, false, downloadMask);
+                    }
+                    if (channelViews.size() != 0) {
+                        putChannelViewsInternal(channelViews, true);
+                    }
+                    if (!webPages.isEmpty()) {
+                        putWebPagesInternal(webPages);
+                    }
+                    if (inbox.size() != 0 || outbox.size() != 0 || !encryptedMessages.isEmpty()) {
+                        markMessagesAsReadInternal(inbox, outbox, encryptedMessages);
+                        if (inbox.size() != 0) {
+                            updateDialogsWithReadMessagesInternal(null, inbox);
+                        }
+                    }
+                    if (!contentRead.isEmpty()) {
+                        markMessagesContentAsReadInternal(contentRead);
+                    }
+                    for (int a = 0; a < deletedMessages.size(); a++) {
+                        int key = deletedMessages.keyAt(a);
+                        ArrayList<Integer> arrayList = deletedMessages.get(key);
+                        if (!arrayList.isEmpty()) {
+                            markMessagesAsDeletedInternal(arrayList, key);
+                        }
+                        if (!arrayList.isEmpty() || key != 0) {
+                            updateDialogsWithDeletedMessagesInternal(arrayList, key);
+                        }
+                    }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                } finally {
+                    database.commitBatch();
+                }
+            }
+        });
+    }
+
     public void markMessageAsSendError(final TLRPC.Message message) {
         storageQueue.postRunnable(new Runnable() {
             @Override
@@ -4065,6 +4643,7 @@ public class MessagesStorage {
                     }
                     state.bindInteger(2, user.id);
                     state.step();
+                    usersCache.setExtra(user.id, user.status != null ? user.status.expires : 0);
                 }
                 state.dispose();
                 if (withTransaction) {
@@ -4081,7 +4660,7 @@ public class MessagesStorage {
                     usersDict.put(user.id, user);
                 }
                 ArrayList<TLRPC.User> loadedUsers = new ArrayList<>();
-                getUsersInternal(ids.toString(), loadedUsers);
+                readUsers(database.queryFinalized(String.format(Locale.US, "SELECT data, status, uid FROM users WHERE uid IN(%s)", ids.toString())), loadedUsers, usersCache.getVersion());
                 for (TLRPC.User user : loadedUsers) {
                     TLRPC.User updateUser = usersDict.get(user.id);
                     if (updateUser != null) {
@@ -4119,7 +4698,7 @@ public class MessagesStorage {
             return;
         }
         if (useQueue) {
-            storageQueue.postRunnable(new Runnable() {
+            postUsersAndChatsWrite(users, null, new Runnable() {
                 @Override
                 public void run() {
                     updateUsersInternal(users, onlyStatus, withTransaction);
@@ -4170,15 +4749,19 @@ public class MessagesStorage {
         storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                try {
-                    database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = read_state | 2 WHERE mid IN (%s)", TextUtils.join(",", mids))).stepThis().dispose();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
+                markMessagesContentAsReadInternal(mids);
             }
         });
     }
 
+    private void markMessagesContentAsReadInternal(final ArrayList<Long> mids) {
+        try {
+            database.executeFast(String.format(Locale.US, "UPDATE messages SET read_state = read_state | 2 WHERE mid IN (%s)", TextUtils.join(",", mids))).stepThis().dispose();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
     public void markMessagesAsRead(final SparseArray<Long> inbox, final SparseIntArray outbox, final HashMap<Integer, Integer> encryptedMessages, boolean useQueue) {
         if (useQueue) {
             storageQueue.postRunnable(new Runnable() {
@@ -4200,8 +4783,7 @@ public class MessagesStorage {
             @Override
             public void run() {
                 try {
-                    String ids = TextUtils.join(",", messages);
-                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid FROM randoms WHERE random_id IN(%s)", ids));
+                    SQLiteCursor cursor = database.queryIn("SELECT mid FROM randoms WHERE random_id IN(%s)", messages);
                     final ArrayList<Integer> mids = new ArrayList<>();
                     while (cursor.next()) {
                         mids.add(cursor.intValue(0));
@@ -4254,8 +4836,9 @@ public class MessagesStorage {
                     if ((int) did != 0) {
                         continue;
                     }
-                    NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(1));
+                    NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(1));
                     if (data != null && cursor.byteBufferValue(1, data) != 0) {
+                        data = BlobCodec.unpack(data);
                         TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                         if (message == null || message.media == null) {
                             continue;
@@ -4384,8 +4967,9 @@ public class MessagesStorage {
 
                 dialogs.dialogs.add(dialog);
 
-                NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(4));
+                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(4));
                 if (data != null && cursor.byteBufferValue(4, data) != 0) {
+                    data = BlobCodec.unpack(data);
                     TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                     MessageObject.setUnreadFlags(message, cursor.intValue(5));
                     message.id = cursor.intValue(6);
@@ -4428,15 +5012,15 @@ public class MessagesStorage {
             cursor.dispose();
 
             if (!encryptedToLoad.isEmpty()) {
-                getEncryptedChatsInternal(TextUtils.join(",", encryptedToLoad), encryptedChats, usersToLoad);
+                getEncryptedChatsInternal(encryptedToLoad, encryptedChats, usersToLoad);
             }
 
             if (!chatsToLoad.isEmpty()) {
-                getChatsInternal(TextUtils.join(",", chatsToLoad), dialogs.chats);
+                getChatsInternal(chatsToLoad, dialogs.chats);
             }
 
             if (!usersToLoad.isEmpty()) {
-                getUsersInternal(TextUtils.join(",", usersToLoad), dialogs.users);
+                getUsersInternal(usersToLoad, dialogs.users);
             }
 
             if (!dialogs.dialogs.isEmpty() || !encryptedChats.isEmpty()) {
@@ -4498,134 +5082,27 @@ public class MessagesStorage {
     }
 
     private void doneHolesInTable(String table, long did, int max_id) throws Exception {
-        if (max_id == 0) {
-            database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d", did)).stepThis().dispose();
-        } else {
-            database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d AND start = 0", did)).stepThis().dispose();
-        }
-        SQLitePreparedStatement state = database.executeFast("REPLACE INTO " + table + " VALUES(?, ?, ?)");
-        state.requery();
-        state.bindLong(1, did);
-        state.bindInteger(2, 1);
-        state.bindInteger(3, 1);
-        state.step();
-        state.dispose();
+        holesIndex.done(database, table, did, 0, max_id);
     }
 
     public void doneHolesInMedia(long did, int max_id, int type) throws Exception {
         if (type == -1) {
-            if (max_id == 0) {
-                database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d", did)).stepThis().dispose();
-            } else {
-                database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND start = 0", did)).stepThis().dispose();
-            }
-            SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
             for (int a = 0; a < SharedMediaQuery.MEDIA_TYPES_COUNT; a++) {
-                state.requery();
-                state.bindLong(1, did);
-                state.bindInteger(2, a);
-                state.bindInteger(3, 1);
-                state.bindInteger(4, 1);
-                state.step();
+                holesIndex.done(database, HolesIndex.MEDIA, did, a, max_id);
             }
-            state.dispose();
         } else {
-            if (max_id == 0) {
-                database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d", did, type)).stepThis().dispose();
-            } else {
-                database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d AND start = 0", did, type)).stepThis().dispose();
-            }
-            SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
-            state.requery();
-            state.bindLong(1, did);
-            state.bindInteger(2, type);
-            state.bindInteger(3, 1);
-            state.bindInteger(4, 1);
-            state.step();
-            state.dispose();
-        }
-    }
-
-    private class Hole {
-
-        public Hole(int s, int e) {
-            start = s;
-            end = e;
+            holesIndex.done(database, HolesIndex.MEDIA, did, type, max_id);
         }
-
-        public Hole(int t, int s, int e) {
-            type = t;
-            start = s;
-            end = e;
-        }
-
-        public int start;
-        public int end;
-        public int type;
     }
 
     public void closeHolesInMedia(long did, int minId, int maxId, int type) throws Exception {
         try {
-            boolean ok = false;
-            SQLiteCursor cursor;
             if (type < 0) {
-                cursor = database.queryFinalized(String.format(Locale.US, "SELECT type, start, end FROM media_holes_v2 WHERE uid = %d AND type >= 0 AND ((end >= %d AND end <= %d) OR (start >= %d AND start <= %d) OR (start >= %d AND end <= %d) OR (start <= %d AND end >= %d))", did, minId, maxId, minId, maxId, minId, maxId, minId, maxId));
-            } else {
-                cursor = database.queryFinalized(String.format(Locale.US, "SELECT type, start, end FROM media_holes_v2 WHERE uid = %d AND type = %d AND ((end >= %d AND end <= %d) OR (start >= %d AND start <= %d) OR (start >= %d AND end <= %d) OR (start <= %d AND end >= %d))", did, type, minId, maxId, minId, maxId, minId, maxId, minId, maxId));
-            }
-            ArrayList<Hole> holes = null;
-            while (cursor.next()) {
-                if (holes == null) {
-                    holes = new ArrayList<>();
-                }
-                int holeType = cursor.intValue(0);
-                int start = cursor.intValue(1);
-                int end = cursor.intValue(2);
-                if (start == end && start == 1) {
-                    continue;
-                }
-                holes.add(new Hole(holeType, start, end));
-            }
-            cursor.dispose();
-            if (holes != null) {
-                for (int a = 0; a < holes.size(); a++) {
-                    Hole hole = holes.get(a);
-                    if (maxId >= hole.end - 1 && minId <= hole.start + 1) {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d AND start = %d AND end = %d", did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                    } else if (maxId >= hole.end - 1) {
-                        if (hole.end != minId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE media_holes_v2 SET end = %d WHERE uid = %d AND type = %d AND start = %d AND end = %d", minId, did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else if (minId <= hole.start + 1) {
-                        if (hole.start != maxId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE media_holes_v2 SET start = %d WHERE uid = %d AND type = %d AND start = %d AND end = %d", maxId, did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d AND start = %d AND end = %d", did, hole.type, hole.start, hole.end)).stepThis().dispose();
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, hole.type);
-                        state.bindInteger(3, hole.start);
-                        state.bindInteger(4, minId);
-                        state.step();
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, hole.type);
-                        state.bindInteger(3, maxId);
-                        state.bindInteger(4, hole.end);
-                        state.step();
-                        state.dispose();
-                    }
+                for (int a = 0; a < SharedMediaQuery.MEDIA_TYPES_COUNT; a++) {
+                    holesIndex.close(database, HolesIndex.MEDIA, did, a, minId, maxId);
                 }
+            } else {
+                holesIndex.close(database, HolesIndex.MEDIA, did, type, minId, maxId);
             }
         } catch (Exception e) {
             FileLog.e("tmessages", e);
@@ -4634,66 +5111,14 @@ public class MessagesStorage {
 
     private void closeHolesInTable(String table, long did, int minId, int maxId) throws Exception {
         try {
-            boolean ok = false;
-            SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT start, end FROM " + table + " WHERE uid = %d AND ((end >= %d AND end <= %d) OR (start >= %d AND start <= %d) OR (start >= %d AND end <= %d) OR (start <= %d AND end >= %d))", did, minId, maxId, minId, maxId, minId, maxId, minId, maxId));
-            ArrayList<Hole> holes = null;
-            while (cursor.next()) {
-                if (holes == null) {
-                    holes = new ArrayList<>();
-                }
-                int start = cursor.intValue(0);
-                int end = cursor.intValue(1);
-                if (start == end && start == 1) {
-                    continue;
-                }
-                holes.add(new Hole(start, end));
-            }
-            cursor.dispose();
-            if (holes != null) {
-                for (int a = 0; a < holes.size(); a++) {
-                    Hole hole = holes.get(a);
-                    if (maxId >= hole.end - 1 && minId <= hole.start + 1) {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d AND start = %d AND end = %d", did, hole.start, hole.end)).stepThis().dispose();
-                    } else if (maxId >= hole.end - 1) {
-                        if (hole.end != minId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE " + table + " SET end = %d WHERE uid = %d AND start = %d AND end = %d", minId, did, hole.start, hole.end)).stepThis().dispose();
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else if (minId <= hole.start + 1) {
-                        if (hole.start != maxId) {
-                            try {
-                                database.executeFast(String.format(Locale.US, "UPDATE " + table + " SET start = %d WHERE uid = %d AND start = %d AND end = %d", maxId, did, hole.start, hole.end)).stepThis().dispose();
-                            } catch (Exception e) {
-                                FileLog.e("tmessages", e);
-                            }
-                        }
-                    } else {
-                        database.executeFast(String.format(Locale.US, "DELETE FROM " + table + " WHERE uid = %d AND start = %d AND end = %d", did, hole.start, hole.end)).stepThis().dispose();
-                        SQLitePreparedStatement state = database.executeFast("REPLACE INTO " + table + " VALUES(?, ?, ?)");
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, hole.start);
-                        state.bindInteger(3, minId);
-                        state.step();
-                        state.requery();
-                        state.bindLong(1, did);
-                        state.bindInteger(2, maxId);
-                        state.bindInteger(3, hole.end);
-                        state.step();
-                        state.dispose();
-                    }
-                }
-            }
+            holesIndex.close(database, table, did, 0, minId, maxId);
         } catch (Exception e) {
             FileLog.e("tmessages", e);
         }
     }
 
     public void putMessages(final TLRPC.messages_Messages messages, final long dialog_id, final int load_type, final int max_id, final int important, final boolean createDialog) {
-        storageQueue.postRunnable(new Runnable() {
+        postUsersAndChatsWrite(messages.users, messages.chats, new Runnable() {
             @Override
             public void run() {
                 try {
@@ -4772,7 +5197,7 @@ public class MessagesStorage {
                     //load_type == 2 ? load from first unread
                     //load_type == 3 ? load around message
 
-                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO messages VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, NULL, ?)");
+                    MessagesInsert state = new MessagesInsert(count);
                     SQLitePreparedStatement state2 = database.executeFast("REPLACE INTO media_v2 VALUES(?, ?, ?, ?, ?)");
                     TLRPC.Message botKeyboard = null;
                     int countBeforeImportant = 0;
@@ -4806,6 +5231,7 @@ public class MessagesStorage {
                             state3.bindInteger(10, message.date);
                             state3.step();
                             state3.dispose();
+                            dialogValues.remove(dialog_id);
                         }
 
                         boolean isImportant = MessageObject.isImportant(message);
@@ -4832,24 +5258,10 @@ public class MessagesStorage {
                         }
 
                         fixUnsupportedMedia(message);
-                        state.requery();
-                        NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
+                        NativeByteBuffer data = NativeByteBuffer.obtain(message.getObjectSize());
                         message.serializeToStream(data);
-                        state.bindLong(1, messageId);
-                        state.bindLong(2, dialog_id);
-                        state.bindInteger(3, MessageObject.getUnreadFlags(message));
-                        state.bindInteger(4, message.send_state);
-                        state.bindInteger(5, message.date);
-                        state.bindByteBuffer(6, data);
-                        state.bindInteger(7, (MessageObject.isOut(message) ? 1 : 0));
-                        state.bindInteger(8, 0);
-                        if ((message.flags & TLRPC.MESSAGE_FLAG_HAS_VIEWS) != 0) {
-                            state.bindInteger(9, message.views);
-                        } else {
-                            state.bindInteger(9, 0);
-                        }
-                        state.bindInteger(10, isImportant ? 1 : 0);
-                        state.step();
+                        data = BlobCodec.pack(data);
+                        state.put(messageId, dialog_id, MessageObject.getUnreadFlags(message), message.send_state, message.date, data, MessageObject.isOut(message) ? 1 : 0, 0, (message.flags & TLRPC.MESSAGE_FLAG_HAS_VIEWS) != 0 ? message.views : 0, isImportant ? 1 : 0);
 
                         if (SharedMediaQuery.canAddMessageToMedia(message)) {
                             state2.requery();
@@ -4860,7 +5272,7 @@ public class MessagesStorage {
                             state2.bindByteBuffer(5, data);
                             state2.step();
                         }
-                        data.reuse();
+                        state.release(data);
 
                         if (load_type == 0 && message.reply_markup != null && (!message.reply_markup.selective || message.mentioned)) {
                             if (botKeyboard == null || botKeyboard.id < message.id) {
@@ -4904,7 +5316,7 @@ public class MessagesStorage {
                             }
                         }*/
                         if (!messages.collapsed.isEmpty()) {
-                            state = database.executeFast("REPLACE INTO channel_group VALUES(?, ?, ?, ?)");
+                            SQLitePreparedStatement state3 = database.executeFast("REPLACE INTO channel_group VALUES(?, ?, ?, ?)");
                             for (int a = 0; a < messages.collapsed.size(); a++) {
                                 TLRPC.TL_messageGroup group = messages.collapsed.get(a);
                                 if (group.min_id > group.max_id) {
@@ -4912,14 +5324,14 @@ public class MessagesStorage {
                                     group.min_id = group.max_id;
                                     group.max_id = temp;
                                 }
-                                state.requery();
-                                state.bindLong(1, dialog_id);
-                                state.bindInteger(2, group.min_id);
-                                state.bindInteger(3, group.max_id);
-                                state.bindInteger(4, group.count);
-                                state.step();
+                                state3.requery();
+                                state3.bindLong(1, dialog_id);
+                                state3.bindInteger(2, group.min_id);
+                                state3.bindInteger(3, group.max_id);
+                                state3.bindInteger(4, group.count);
+                                state3.step();
                             }
-                            state.dispose();
+                            state3.dispose();
                         }
                         if (important == 1) {
                             messages.collapsed.clear();
@@ -4999,8 +5411,13 @@ public class MessagesStorage {
         }
     }
 
+    /**
+     * Loads {@code count} dialogs newest first. A non-zero {@code offset}
+     * continues right after the last dialog of the previous page, seeking
+     * on (date, did) instead of skipping rows.
+     */
     public void getDialogs(final int offset, final int count) {
-        storageQueue.postRunnable(new Runnable() {
+        postReadRunnable(new Runnable() {
             @Override
             public void run() {
                 TLRPC.messages_Dialogs dialogs = new TLRPC.messages_Dialogs();
@@ -5010,11 +5427,23 @@ public class MessagesStorage {
                     usersToLoad.add(UserConfig.getClientUserId());
                     ArrayList<Integer> chatsToLoad = new ArrayList<>();
                     ArrayList<Integer> encryptedToLoad = new ArrayList<>();
-                    SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, s.flags, m.date, d.last_mid_i, d.unread_count_i, d.pts, d.inbox_max FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_settings as s ON d.did = s.did ORDER BY d.date DESC LIMIT %d,%d", offset, count));
+                    String page;
+                    if (offset == 0) {
+                        page = String.format(Locale.US, "ORDER BY d.date DESC, d.did DESC LIMIT %d", count);
+                    } else if (dialogsPageDid != 0) {
+                        page = String.format(Locale.US, "WHERE d.date <= %d AND (d.date < %d OR d.did < %d) ORDER BY d.date DESC, d.did DESC LIMIT %d", dialogsPageDate, dialogsPageDate, dialogsPageDid, count);
+                    } else {
+                        page = String.format(Locale.US, "ORDER BY d.date DESC, d.did DESC LIMIT %d,%d", offset, count);
+                    }
+                    int pageDate = 0;
+                    long pageDid = 0;
+                    SQLiteCursor cursor = currentDatabase().queryFinalized("SELECT d.did, d.last_mid, d.unread_count, d.date, m.data, m.read_state, m.mid, m.send_state, s.flags, m.date, d.last_mid_i, d.unread_count_i, d.pts, d.inbox_max FROM dialogs as d LEFT JOIN messages as m ON d.last_mid = m.mid LEFT JOIN dialog_settings as s ON d.did = s.did " + page);
                     while (cursor.next()) {
                         TLRPC.Dialog dialog;
                         int pts = cursor.intValue(12);
                         long id = cursor.longValue(0);
+                        pageDid = id;
+                        pageDate = cursor.intValue(3);
                         if (pts == 0 || (int) id > 0) {
                             dialog = new TLRPC.TL_dialog();
                         } else {
@@ -5039,8 +5468,9 @@ public class MessagesStorage {
                         }
                         dialogs.dialogs.add(dialog);
 
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(4));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(4));
                         if (data != null && cursor.byteBufferValue(4, data) != 0) {
+                            data = BlobCodec.unpack(data);
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             if (message != null) {
                                 MessageObject.setUnreadFlags(message, cursor.intValue(5));
@@ -5083,16 +5513,20 @@ public class MessagesStorage {
                         }
                     }
                     cursor.dispose();
+                    if (pageDid != 0) {
+                        dialogsPageDate = pageDate;
+                        dialogsPageDid = pageDid;
+                    }
 
                     if (!encryptedToLoad.isEmpty()) {
-                        getEncryptedChatsInternal(TextUtils.join(",", encryptedToLoad), encryptedChats, usersToLoad);
+                        getEncryptedChatsInternal(encryptedToLoad, encryptedChats, usersToLoad);
                     }
 
                     if (!chatsToLoad.isEmpty()) {
-                        getChatsInternal(TextUtils.join(",", chatsToLoad), dialogs.chats);
+                        getChatsInternal(chatsToLoad, dialogs.chats);
                     }
                     if (!usersToLoad.isEmpty()) {
-                        getUsersInternal(TextUtils.join(",", usersToLoad), dialogs.users);
+                        getUsersInternal(usersToLoad, dialogs.users);
                     }
                     MessagesController.getInstance().processLoadedDialogs(dialogs, encryptedChats, offset, count, true, false, false);
                 } catch (Exception e) {
@@ -5108,6 +5542,7 @@ public class MessagesStorage {
     }
 
     public static void createFirstHoles(long did, SQLitePreparedStatement state5, SQLitePreparedStatement state6, SQLitePreparedStatement state7, SQLitePreparedStatement state8, ArrayList<TLRPC.Message> arrayList) throws Exception {
+        getInstance().holesIndex.invalidate(did);
         int impMessageId = 0;
         int notImpMessageId = 0;
         for (int a = 0; a < arrayList.size(); a++) {
@@ -5253,6 +5688,7 @@ public class MessagesStorage {
                             fixUnsupportedMedia(message);
                             NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
                             message.serializeToStream(data);
+                            data = BlobCodec.pack(data);
 
                             long messageId = message.id;
                             if (message.to_id.channel_id != 0) {
@@ -5314,6 +5750,7 @@ public class MessagesStorage {
                     state2.bindInteger(9, dialog.pts);
                     state2.bindInteger(10, messageDateI);
                     state2.step();
+                    dialogValues.remove(dialog.id);
 
                     if (dialog.notify_settings != null) {
                         state4.requery();
@@ -5354,105 +5791,229 @@ public class MessagesStorage {
         });
     }
 
+    /**
+     * Blocks until {@code semaphore} is released by a storage task and logs
+     * the wait if it took longer than BLOCKING_WAIT_THRESHOLD ms. Prefer the
+     * *Async variants that never park the calling thread.
+     */
+    public void waitForStorage(Semaphore semaphore, String name) {
+        long start = System.currentTimeMillis();
+        try {
+            semaphore.acquire();
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        long time = System.currentTimeMillis() - start;
+        if (time > BLOCKING_WAIT_THRESHOLD) {
+            FileLog.e("tmessages", "thread " + Thread.currentThread().getName() + " waited " + time + " ms for storage in " + name);
+        }
+    }
+
+    private <T> void onResult(DispatchQueue queue, final ResultCallback<T> callback, final T result) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                callback.run(result);
+            }
+        };
+        if (queue == null) {
+            AndroidUtilities.runOnUIThread(runnable);
+        } else {
+            queue.postRunnable(runnable);
+        }
+    }
+
+    private int[] getDialogValues(long did) {
+        int[] values = dialogValues.get(did);
+        if (values != null) {
+            return values;
+        }
+        values = new int[2];
+        SQLiteCursor cursor = null;
+        try {
+            cursor = database.queryFinalized("SELECT pts, inbox_max FROM dialogs WHERE did = " + did);
+            if (cursor.next()) {
+                values[0] = cursor.intValue(0);
+                values[1] = cursor.intValue(1);
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return values;
+        } finally {
+            if (cursor != null) {
+                cursor.dispose();
+            }
+        }
+        if (dialogValues.size() >= DIALOG_VALUES_CACHE_SIZE) {
+            dialogValues.clear();
+        }
+        dialogValues.put(did, values);
+        return values;
+    }
+
+    public void getChannelReadInboxMaxAsync(final int channelId, final DispatchQueue queue, final ResultCallback<Integer> callback) {
+        int[] values = dialogValues.get((long) -channelId);
+        if (values != null) {
+            onResult(queue, callback, values[1]);
+            return;
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onResult(queue, callback, getDialogValues(-channelId)[1]);
+            }
+        });
+    }
+
     public int getChannelReadInboxMax(final int channelId) {
+        int[] values = dialogValues.get((long) -channelId);
+        if (values != null) {
+            return values[1];
+        }
         final Semaphore semaphore = new Semaphore(0);
         final Integer[] max = new Integer[] {0};
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+        storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                SQLiteCursor cursor = null;
-                try {
-                    cursor = database.queryFinalized("SELECT inbox_max FROM dialogs WHERE did = " + (-channelId));
-                    if (cursor.next()) {
-                        max[0] = cursor.intValue(0);
-                    }
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                } finally {
-                    if (cursor != null) {
-                        cursor.dispose();
-                    }
-                }
+                max[0] = getDialogValues(-channelId)[1];
                 semaphore.release();
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        waitForStorage(semaphore, "getChannelReadInboxMax");
         return max[0];
     }
 
+    public void getChannelPtsAsync(final int channelId, final DispatchQueue queue, final ResultCallback<Integer> callback) {
+        int[] values = dialogValues.get((long) -channelId);
+        if (values != null) {
+            onResult(queue, callback, values[0]);
+            return;
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onResult(queue, callback, getDialogValues(-channelId)[0]);
+            }
+        });
+    }
+
     public int getChannelPtsSync(final int channelId) {
+        int[] values = dialogValues.get((long) -channelId);
+        if (values != null) {
+            return values[0];
+        }
         final Semaphore semaphore = new Semaphore(0);
         final Integer[] pts = new Integer[] {0};
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+        storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                SQLiteCursor cursor = null;
-                try {
-                    cursor = database.queryFinalized("SELECT pts FROM dialogs WHERE did = " + (-channelId));
-                    if (cursor.next()) {
-                        pts[0] = cursor.intValue(0);
-                    }
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                } finally {
-                    if (cursor != null) {
-                        cursor.dispose();
-                    }
-                }
-                try {
-                    if (semaphore != null) {
-                        semaphore.release();
-                    }
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
+                pts[0] = getDialogValues(-channelId)[0];
+                semaphore.release();
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        waitForStorage(semaphore, "getChannelPtsSync");
         return pts[0];
     }
 
+    public void getUserAsync(final int user_id, final DispatchQueue queue, final ResultCallback<TLRPC.User> callback) {
+        TLRPC.User user = usersCache.get(user_id);
+        if (user != null) {
+            onResult(queue, callback, user);
+            return;
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onResult(queue, callback, getUser(user_id));
+            }
+        });
+    }
+
+    public void getUsersAsync(final ArrayList<Integer> uids, final DispatchQueue queue, final ResultCallback<ArrayList<TLRPC.User>> callback) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onResult(queue, callback, getUsers(uids));
+            }
+        });
+    }
+
     public TLRPC.User getUserSync(final int user_id) {
+        TLRPC.User cached = usersCache.get(user_id);
+        if (cached != null) {
+            return cached;
+        }
+        if (Thread.currentThread() == storageQueue) {
+            return getUser(user_id);
+        }
         final Semaphore semaphore = new Semaphore(0);
         final TLRPC.User[] user = new TLRPC.User[1];
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+        storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 user[0] = getUser(user_id);
                 semaphore.release();
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        waitForStorage(semaphore, "getUserSync");
         return user[0];
     }
 
-    public TLRPC.Chat getChatSync(final int user_id) {
+    public void getChatAsync(final int chat_id, final DispatchQueue queue, final ResultCallback<TLRPC.Chat> callback) {
+        TLRPC.Chat chat = chatsCache.get(chat_id);
+        if (chat != null) {
+            onResult(queue, callback, chat);
+            return;
+        }
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onResult(queue, callback, getChat(chat_id));
+            }
+        });
+    }
+
+    public TLRPC.Chat getChatSync(final int chat_id) {
+        TLRPC.Chat cached = chatsCache.get(chat_id);
+        if (cached != null) {
+            return cached;
+        }
+        if (Thread.currentThread() == storageQueue) {
+            return getChat(chat_id);
+        }
         final Semaphore semaphore = new Semaphore(0);
         final TLRPC.Chat[] chat = new TLRPC.Chat[1];
-        MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+        storageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
-                chat[0] = getChat(user_id);
+                chat[0] = getChat(chat_id);
                 semaphore.release();
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        waitForStorage(semaphore, "getChatSync");
+        return chat[0];
+    }
+
+    public void getEncryptedChatAsync(final int chat_id, final DispatchQueue queue, final ResultCallback<TLRPC.EncryptedChat> callback) {
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                onResult(queue, callback, getEncryptedChat(chat_id));
+            }
+        });
+    }
+
+    public TLRPC.EncryptedChat getEncryptedChatSync(final int chat_id) {
+        final Semaphore semaphore = new Semaphore(0);
+        final TLRPC.EncryptedChat[] chat = new TLRPC.EncryptedChat[1];
+        storageQueue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                chat[0] = getEncryptedChat(chat_id);
+                semaphore.release();
+            }
+        });
+        waitForStorage(semaphore, "getEncryptedChatSync");
         return chat[0];
     }
 
@@ -5473,7 +6034,7 @@ public class MessagesStorage {
     public ArrayList<TLRPC.User> getUsers(final ArrayList<Integer> uids) {
         ArrayList<TLRPC.User> users = new ArrayList<>();
         try {
-            getUsersInternal(TextUtils.join(",", uids), users);
+            getUsersInternal(uids, users);
         } catch (Exception e) {
             users.clear();
             FileLog.e("tmessages", e);
@@ -0,0 +1,304 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Byte ranges of a file being downloaded. Loaded chunks are tracked in a
+ * bitmap that is saved next to the temp file, so a load can continue from
+ * any set of ranges. Readers block in {@link #waitFor} until the range they
+ * need is present, and the range they wait for is passed to the delegate to
+ * be loaded first. Files that can only be loaded in order are never opened
+ * and become readable once finished.
+ */
+public class PartialFile {
+
+    public interface PartialFileDelegate {
+        void didRequestRange(int offset);
+    }
+
+    public final static int CHUNK_SIZE = 1024 * 32;
+
+    private final static int WAIT_TIME = 1000;
+
+    private PartialFileDelegate delegate;
+    private File file;
+    private File rangesFile;
+    private int totalBytes;
+    private int chunksCount;
+    private byte[] bitmap;
+    private int loadedChunks;
+    private boolean opened;
+    private boolean finished;
+    private boolean failed;
+    private boolean changed;
+    private int requestedOffset = -1;
+
+    /**
+     * Attaches the partial file to {@code temp}. The ranges are read from
+     * {@code ranges} if it was saved for the same size, otherwise the first
+     * {@code loadedPrefix} bytes left by an in-order load count as loaded.
+     */
+    public synchronized void open(File temp, File ranges, int size, int loadedPrefix) {
+        file = temp;
+        rangesFile = ranges;
+        totalBytes = size;
+        chunksCount = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        bitmap = new byte[(chunksCount + 7) / 8];
+        loadedChunks = 0;
+        if (ranges.exists()) {
+            RandomAccessFile randomAccessFile = null;
+            try {
+                randomAccessFile = new RandomAccessFile(ranges, "r");
+                if (randomAccessFile.length() == 4 + bitmap.length && randomAccessFile.readInt() == size) {
+                    randomAccessFile.readFully(bitmap);
+                    for (int a = 0; a < chunksCount; a++) {
+                        if (isChunkLoaded(a)) {
+                            loadedChunks++;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+                bitmap = new byte[bitmap.length];
+                loadedChunks = 0;
+            } finally {
+                try {
+                    if (randomAccessFile != null) {
+                        randomAccessFile.close();
+                    }
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        } else if (loadedPrefix > 0) {
+            setLoaded(0, loadedPrefix);
+        }
+        changed = true;
+        save();
+        opened = true;
+        notifyAll();
+    }
+
+    public synchronized void setDelegate(PartialFileDelegate partialFileDelegate) {
+        delegate = partialFileDelegate;
+    }
+
+    private boolean isChunkLoaded(int chunk) {
+        return (bitmap[chunk >> 3] & (1 << (chunk & 7))) != 0;
+    }
+
+    /**
+     * Marks {@code length} bytes written at {@code offset} as loaded. Only
+     * whole chunks count, except the last one of the file.
+     */
+    public synchronized void setLoaded(int offset, int length) {
+        if (bitmap == null || length <= 0) {
+            return;
+        }
+        int end = offset + length;
+        int first = (offset + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int last = end >= totalBytes ? chunksCount : end / CHUNK_SIZE;
+        for (int a = first; a < last; a++) {
+            if (!isChunkLoaded(a)) {
+                bitmap[a >> 3] |= 1 << (a & 7);
+                loadedChunks++;
+                changed = true;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Shrinks the file to {@code size} bytes when the server returns less
+     * data than expected.
+     */
+    public synchronized void truncate(int size) {
+        if (bitmap == null || size >= totalBytes) {
+            return;
+        }
+        totalBytes = size;
+        chunksCount = (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        byte[] newBitmap = new byte[(chunksCount + 7) / 8];
+        System.arraycopy(bitmap, 0, newBitmap, 0, newBitmap.length);
+        for (int a = chunksCount; a < newBitmap.length * 8; a++) {
+            newBitmap[a >> 3] &= ~(1 << (a & 7));
+        }
+        bitmap = newBitmap;
+        loadedChunks = 0;
+        for (int a = 0; a < chunksCount; a++) {
+            if (isChunkLoaded(a)) {
+                loadedChunks++;
+            }
+        }
+        changed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isLoaded(int offset, int length) {
+        if (bitmap == null) {
+            return false;
+        }
+        int last = Math.min(chunksCount, (offset + length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int a = offset / CHUNK_SIZE; a < last; a++) {
+            if (!isChunkLoaded(a)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean isMissing(int offset, int length) {
+        if (bitmap == null) {
+            return false;
+        }
+        int last = Math.min(chunksCount, (offset + length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int a = offset / CHUNK_SIZE; a < last; a++) {
+            if (isChunkLoaded(a)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the offset of the first chunk at or after {@code from} that is
+     * not loaded, or -1.
+     */
+    public synchronized int getMissing(int from) {
+        if (bitmap == null) {
+            return -1;
+        }
+        for (int a = Math.max(0, from) / CHUNK_SIZE; a < chunksCount; a++) {
+            if ((a & 7) == 0 && bitmap[a >> 3] == (byte) 0xff) {
+                a += 7;
+                continue;
+            }
+            if (!isChunkLoaded(a)) {
+                return a * CHUNK_SIZE;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized boolean isComplete() {
+        return bitmap != null && loadedChunks == chunksCount;
+    }
+
+    public synchronized int getLoadedBytes() {
+        if (bitmap == null || loadedChunks == 0) {
+            return 0;
+        }
+        int bytes = loadedChunks * CHUNK_SIZE;
+        if (isChunkLoaded(chunksCount - 1)) {
+            bytes -= chunksCount * CHUNK_SIZE - totalBytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the bitmap to disk. Must be called only after the data it
+     * covers was synced, so the saved ranges never claim lost bytes.
+     */
+    public synchronized void save() {
+        if (!changed || rangesFile == null || bitmap == null) {
+            return;
+        }
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(rangesFile, "rw");
+            randomAccessFile.writeInt(totalBytes);
+            randomAccessFile.write(bitmap);
+            randomAccessFile.setLength(4 + bitmap.length);
+            changed = false;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        } finally {
+            try {
+                if (randomAccessFile != null) {
+                    randomAccessFile.close();
+                }
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+        }
+    }
+
+    /**
+     * Renames the loaded temp file to {@code finalFile}, so no reader can
+     * open the old path in between.
+     */
+    public synchronized boolean moveTo(File finalFile) {
+        if (file == null || !file.renameTo(finalFile)) {
+            return false;
+        }
+        file = finalFile;
+        return true;
+    }
+
+    public synchronized void finish(File finalFile) {
+        file = finalFile;
+        finished = true;
+        delegate = null;
+        if (rangesFile != null) {
+            rangesFile.delete();
+            rangesFile = null;
+        }
+        notifyAll();
+    }
+
+    public synchronized void fail() {
+        if (finished) {
+            return;
+        }
+        failed = true;
+        delegate = null;
+        notifyAll();
+    }
+
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public synchronized RandomAccessFile openFile() throws IOException {
+        return new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Returns true if {@code length} bytes at {@code offset} can be read,
+     * otherwise asks the delegate to load them first and waits for a change.
+     */
+    public synchronized boolean waitFor(int offset, int length) throws IOException {
+        if (failed) {
+            throw new IOException("file load failed");
+        }
+        if (finished || opened && isLoaded(offset, length)) {
+            return true;
+        }
+        if (opened && delegate != null) {
+            int chunk = offset / CHUNK_SIZE * CHUNK_SIZE;
+            if (chunk != requestedOffset) {
+                requestedOffset = chunk;
+                delegate.didRequestRange(chunk);
+            }
+        }
+        try {
+            wait(WAIT_TIME);
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+        if (failed) {
+            throw new IOException("file load failed");
+        }
+        return finished || opened && isLoaded(offset, length);
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Keeps released buffers bucketed by their size for reuse, within a byte
+ * budget. A request takes the smallest buffer that is large enough and
+ * wastes at most half of it; when the budget is exceeded the buffers
+ * released first are freed. Knows nothing about the buffers but what the
+ * allocator tells, so it can be used with plain objects off the device.
+ */
+public class ReusePool<T> {
+
+    public interface Allocator<T> {
+        int getSize(T item);
+        boolean canReuse(T item);
+        void free(T item);
+    }
+
+    private final static int MAX_WASTE = 2;
+
+    private Allocator<T> allocator;
+    private int maxBytes;
+    private TreeMap<Integer, ArrayDeque<T>> buckets = new TreeMap<>();
+    private LinkedHashMap<T, Integer> items = new LinkedHashMap<>();
+    private long totalBytes;
+
+    private long hits;
+    private long misses;
+    private long puts;
+    private long rejected;
+    private long evicted;
+    private long reusedBytes;
+
+    public ReusePool(int maxBytes, Allocator<T> allocator) {
+        this.maxBytes = maxBytes;
+        this.allocator = allocator;
+    }
+
+    /**
+     * Takes a released buffer; frees it right away if it cannot be reused
+     * or does not fit the budget.
+     */
+    public synchronized boolean put(T item) {
+        if (item == null || items.containsKey(item)) {
+            return false;
+        }
+        int size = allocator.getSize(item);
+        if (size <= 0 || size > maxBytes / 2 || !allocator.canReuse(item)) {
+            rejected++;
+            allocator.free(item);
+            return false;
+        }
+        ArrayDeque<T> bucket = buckets.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<>();
+            buckets.put(size, bucket);
+        }
+        bucket.add(item);
+        items.put(item, size);
+        totalBytes += size;
+        puts++;
+        trim(maxBytes);
+        return true;
+    }
+
+    /**
+     * Returns a buffer of at least {@code size} bytes removed from the pool,
+     * or null.
+     */
+    public synchronized T get(int size) {
+        Map.Entry<Integer, ArrayDeque<T>> entry = buckets.ceilingEntry(size);
+        while (entry != null && entry.getKey() <= (long) size * MAX_WASTE) {
+            ArrayDeque<T> bucket = entry.getValue();
+            T item = bucket.pollLast();
+            if (bucket.isEmpty()) {
+                buckets.remove(entry.getKey());
+            }
+            if (item != null) {
+                items.remove(item);
+                totalBytes -= entry.getKey();
+                if (allocator.canReuse(item)) {
+                    hits++;
+                    reusedBytes += entry.getKey();
+                    return item;
+                }
+                allocator.free(item);
+            }
+            entry = buckets.ceilingEntry(size);
+        }
+        misses++;
+        return null;
+    }
+
+    /**
+     * Frees the oldest buffers until at most {@code bytes} are kept.
+     */
+    public synchronized void trim(long bytes) {
+        Iterator<Map.Entry<T, Integer>> iterator = items.entrySet().iterator();
+        while (totalBytes > bytes && iterator.hasNext()) {
+            Map.Entry<T, Integer> entry = iterator.next();
+            T item = entry.getKey();
+            int size = entry.getValue();
+            iterator.remove();
+            ArrayDeque<T> bucket = buckets.get(size);
+            if (bucket != null) {
+                bucket.remove(item);
+                if (bucket.isEmpty()) {
+                    buckets.remove(size);
+                }
+            }
+            totalBytes -= size;
+            evicted++;
+            allocator.free(item);
+        }
+    }
+
+    public void clear() {
+        trim(0);
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    public synchronized int getCount() {
+        return items.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized String getStats() {
+        return String.format(Locale.US, "%d items %d of %d bytes, %d hits %d misses (%d bytes reused), %d puts %d rejected %d evicted", items.size(), totalBytes, maxBytes, hits, misses, reusedBytes, puts, rejected, evicted);
+    }
+}
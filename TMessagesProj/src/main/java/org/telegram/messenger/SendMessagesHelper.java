@@ -283,7 +283,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                                     }
                                 });
                             }
-                        });
+                        }, Utilities.QUEUE_KEY_MEDIA, DispatchQueue.PRIORITY_NORMAL);
                     } else if (message.type == 2) {
                         String md5 = Utilities.MD5(message.httpLocation) + ".gif";
                         final File cacheFile = new File(FileLoader.getInstance().getDirectory(FileLoader.MEDIA_DIR_CACHE), md5);
@@ -320,7 +320,7 @@ public class SendMessagesHelper implements NotificationCenter.NotificationCenter
                                     }
                                 });
                             }
-                        });
+                        }, Utilities.QUEUE_KEY_MEDIA, DispatchQueue.PRIORITY_NORMAL);
                     }
                 }
                 delayedMessages.remove(path);
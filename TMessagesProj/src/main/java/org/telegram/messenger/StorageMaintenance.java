@@ -0,0 +1,424 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import android.text.TextUtils;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+import org.telegram.SQLite.SQLitePreparedStatement;
+import org.telegram.messenger.query.SharedMediaQuery;
+import org.telegram.tgnet.ConnectionsManager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Keeps the database small while the app is idle: trims old messages and
+ * media rows of dialogs by their retention policy, returns free pages to
+ * the file system with incremental vacuum and refreshes the planner
+ * statistics. Every turn does a bounded slice of work and is skipped while
+ * anything else is writing. Databases created before incremental vacuum was
+ * enabled are converted with a full VACUUM when MessagesStorage opens them,
+ * as that can't be split into slices. Must only be used on the storage queue.
+ */
+public class StorageMaintenance {
+
+    public static class Stats {
+        public long fileSize;
+        public int pageSize;
+        public int pageCount;
+        public int freePages;
+        public int autoVacuum;
+        public long reclaimedBytes;
+        public int deletedMessages;
+        public int deletedMedia;
+
+        public float getFragmentation() {
+            return pageCount == 0 ? 0 : freePages / (float) pageCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "file %d bytes, %d pages of %d, %d free (%.1f%%), auto_vacuum %d, reclaimed %d bytes, trimmed %d messages %d media", fileSize, pageCount, pageSize, freePages, getFragmentation() * 100, autoVacuum, reclaimedBytes, deletedMessages, deletedMedia);
+        }
+    }
+
+    public final static int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final static int INTERVAL = 60000;
+    private final static int SLICE_DELAY = 1000;
+    private final static int IDLE_TIME = 15000;
+    private final static int SLICE_TIME = 150;
+    private final static int VACUUM_PAGES = 256;
+    private final static int RETENTION_DIALOGS = 16;
+    private final static int MIN_KEEP_MESSAGES = 50;
+    private final static long RETENTION_INTERVAL = 6 * 60 * 60 * 1000L;
+    private final static long ANALYZE_INTERVAL = 24 * 60 * 60 * 1000L;
+    private final static String RETENTION_KEY = "maintenance_retention";
+    private final static String ANALYZE_KEY = "maintenance_analyze";
+    private final static String[] ANALYZE_TABLES = new String[] {"messages", "media_v2", "dialogs", "messages_holes", "media_holes_v2", "randoms", "users", "chats"};
+
+    private HashMap<Long, int[]> policies = new HashMap<>();
+    private File file;
+    private boolean running;
+    private int generation;
+    private long ownCommitTime;
+    private long retentionDid = Long.MIN_VALUE;
+    private long lastRetentionTime;
+    private long lastAnalyzeTime;
+    private int analyzeTable;
+    private long reclaimedBytes;
+    private int deletedMessages;
+    private int deletedMedia;
+
+    public void createTable(SQLiteDatabase database) {
+        try {
+            database.executeFast("CREATE TABLE IF NOT EXISTS dialog_retention(did INTEGER PRIMARY KEY, max_messages INTEGER, max_media_days INTEGER)").stepThis().dispose();
+            policies.clear();
+            SQLiteCursor cursor = database.queryFinalized("SELECT did, max_messages, max_media_days FROM dialog_retention");
+            while (cursor.next()) {
+                policies.put(cursor.longValue(0), new int[] {cursor.intValue(1), cursor.intValue(2)});
+            }
+            cursor.dispose();
+            lastRetentionTime = getTime(database, RETENTION_KEY);
+            lastAnalyzeTime = getTime(database, ANALYZE_KEY);
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    public void clear() {
+        running = false;
+        generation++;
+        policies.clear();
+        ownCommitTime = 0;
+        retentionDid = Long.MIN_VALUE;
+        lastRetentionTime = 0;
+        lastAnalyzeTime = 0;
+        analyzeTable = 0;
+        reclaimedBytes = 0;
+        deletedMessages = 0;
+        deletedMedia = 0;
+    }
+
+    /**
+     * Keeps only the last {@code maxMessages} messages and the media rows of
+     * the last {@code maxMediaDays} days of {@code did}, 0 meaning no limit.
+     * The policy of {@code did} 0 applies to every dialog without its own.
+     */
+    public void setPolicy(SQLiteDatabase database, long did, int maxMessages, int maxMediaDays) {
+        try {
+            if (maxMessages > 0) {
+                maxMessages = Math.max(maxMessages, MIN_KEEP_MESSAGES);
+            }
+            if (maxMessages <= 0 && maxMediaDays <= 0) {
+                database.executeFast("DELETE FROM dialog_retention WHERE did = " + did).stepThis().dispose();
+                policies.remove(did);
+            } else {
+                SQLitePreparedStatement state = database.executeFast("REPLACE INTO dialog_retention VALUES(?, ?, ?)");
+                state.bindLong(1, did);
+                state.bindInteger(2, Math.max(maxMessages, 0));
+                state.bindInteger(3, Math.max(maxMediaDays, 0));
+                state.step();
+                state.dispose();
+                policies.put(did, new int[] {Math.max(maxMessages, 0), Math.max(maxMediaDays, 0)});
+            }
+            retentionDid = Long.MIN_VALUE;
+            lastRetentionTime = 0;
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    public void start(DispatchQueue queue, SQLiteDatabase database, File file) {
+        if (running) {
+            return;
+        }
+        running = true;
+        this.file = file;
+        next(queue, database, generation, INTERVAL);
+    }
+
+    public Stats getStats(SQLiteDatabase database) {
+        Stats stats = new Stats();
+        try {
+            stats.pageSize = database.executeInt("PRAGMA page_size");
+            stats.pageCount = database.executeInt("PRAGMA page_count");
+            stats.freePages = database.executeInt("PRAGMA freelist_count");
+            stats.autoVacuum = database.executeInt("PRAGMA auto_vacuum");
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+        }
+        stats.fileSize = file != null ? file.length() : 0;
+        stats.reclaimedBytes = reclaimedBytes;
+        stats.deletedMessages = deletedMessages;
+        stats.deletedMedia = deletedMedia;
+        return stats;
+    }
+
+    private void next(final DispatchQueue queue, final SQLiteDatabase database, final int currentGeneration, int delay) {
+        queue.postRunnable(new Runnable() {
+            @Override
+            public void run() {
+                if (!running || currentGeneration != generation) {
+                    return;
+                }
+                boolean more = false;
+                long lastCommitTime = database.getLastCommitTime();
+                long time = System.currentTimeMillis();
+                if (lastCommitTime == ownCommitTime || time - lastCommitTime >= IDLE_TIME) {
+                    try {
+                        more = runSlice(database, time);
+                    } catch (Exception e) {
+                        FileLog.e("tmessages", e);
+                    }
+                }
+                next(queue, database, currentGeneration, more ? SLICE_DELAY : INTERVAL);
+            }
+        }, delay);
+    }
+
+    private boolean runSlice(SQLiteDatabase database, long time) throws Exception {
+        if (database.executeInt("PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL && vacuum(database, time + SLICE_TIME)) {
+            return true;
+        }
+        if (!policies.isEmpty() && time - lastRetentionTime >= RETENTION_INTERVAL) {
+            return trimDialogs(database, time);
+        }
+        if (ApplicationLoader.mainInterfacePaused && time - lastAnalyzeTime >= ANALYZE_INTERVAL) {
+            return analyze(database, time);
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if {@code database} still has to be converted to
+     * incremental vacuum and there is room for the copy VACUUM makes.
+     */
+    public boolean needsConversion(SQLiteDatabase database, File file) {
+        try {
+            if (database.executeInt("PRAGMA auto_vacuum") == AUTO_VACUUM_INCREMENTAL) {
+                return false;
+            }
+        } catch (Exception e) {
+            FileLog.e("tmessages", e);
+            return false;
+        }
+        return file != null && file.getParentFile().getUsableSpace() >= file.length() * 2;
+    }
+
+    public void convert(SQLiteDatabase database, File file) throws Exception {
+        long size = file.length();
+        long start = System.currentTimeMillis();
+        database.executeFast("PRAGMA auto_vacuum = INCREMENTAL").stepThis().dispose();
+        database.executeFast("VACUUM").stepThis().dispose();
+        long reclaimed = size - (long) database.executeInt("PRAGMA page_count") * database.executeInt("PRAGMA page_size");
+        if (reclaimed > 0) {
+            reclaimedBytes += reclaimed;
+        }
+        FileLog.e("tmessages", "converted database to incremental vacuum in " + (System.currentTimeMillis() - start) + " ms, reclaimed " + reclaimed + " bytes");
+    }
+
+    private boolean vacuum(SQLiteDatabase database, long deadline) throws Exception {
+        int pageSize = database.executeInt("PRAGMA page_size");
+        int freePages = database.executeInt("PRAGMA freelist_count");
+        if (freePages == 0) {
+            return false;
+        }
+        int left = freePages;
+        while (left > 0 && System.currentTimeMillis() < deadline) {
+            SQLiteCursor cursor = database.queryFinalized("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")");
+            while (cursor.next()) {
+                //every step frees one page
+            }
+            cursor.dispose();
+            left = database.executeInt("PRAGMA freelist_count");
+        }
+        reclaimedBytes += (long) (freePages - left) * pageSize;
+        if (left == 0) {
+            FileLog.e("tmessages", "incremental vacuum done, reclaimed " + reclaimedBytes + " bytes");
+        }
+        return left > 0;
+    }
+
+    private boolean analyze(SQLiteDatabase database, long time) throws Exception {
+        if (analyzeTable < ANALYZE_TABLES.length) {
+            long start = System.currentTimeMillis();
+            database.executeFast("ANALYZE " + ANALYZE_TABLES[analyzeTable]).stepThis().dispose();
+            FileLog.e("tmessages", "analyze " + ANALYZE_TABLES[analyzeTable] + " took " + (System.currentTimeMillis() - start) + " ms");
+            analyzeTable++;
+            return true;
+        }
+        analyzeTable = 0;
+        lastAnalyzeTime = time;
+        setTime(database, ANALYZE_KEY, time);
+        return false;
+    }
+
+    private boolean trimDialogs(SQLiteDatabase database, long time) throws Exception {
+        String condition;
+        if (policies.containsKey(0L)) {
+            condition = "";
+        } else {
+            condition = " AND did IN(" + TextUtils.join(",", policies.keySet()) + ")";
+        }
+        ArrayList<Long> dids = new ArrayList<>();
+        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT did FROM dialogs WHERE did > %d%s ORDER BY did ASC LIMIT %d", retentionDid, condition, RETENTION_DIALOGS));
+        while (cursor.next()) {
+            dids.add(cursor.longValue(0));
+        }
+        cursor.dispose();
+        if (dids.isEmpty()) {
+            retentionDid = Long.MIN_VALUE;
+            lastRetentionTime = time;
+            setTime(database, RETENTION_KEY, time);
+            FileLog.e("tmessages", "retention pass done, trimmed " + deletedMessages + " messages " + deletedMedia + " media");
+            return false;
+        }
+        database.beginTransaction();
+        try {
+            for (int a = 0; a < dids.size(); a++) {
+                long did = dids.get(a);
+                retentionDid = did;
+                if ((int) did == 0) {
+                    continue;
+                }
+                int[] policy = policies.get(did);
+                if (policy == null) {
+                    policy = policies.get(0L);
+                }
+                if (policy[0] > 0) {
+                    deletedMessages += trimMessages(database, did, policy[0]);
+                }
+                if (policy[1] > 0) {
+                    deletedMedia += trimMedia(database, did, policy[1]);
+                }
+            }
+        } finally {
+            database.commitTransaction();
+            ownCommitTime = database.getLastCommitTime();
+        }
+        return true;
+    }
+
+    private int trimMessages(SQLiteDatabase database, long did, int maxMessages) throws Exception {
+        long keepFrom = 0;
+        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT mid FROM messages WHERE uid = %d AND mid > 0 ORDER BY mid DESC LIMIT 1 OFFSET %d", did, maxMessages - 1));
+        if (cursor.next()) {
+            keepFrom = cursor.longValue(0);
+        }
+        cursor.dispose();
+        if (keepFrom == 0) {
+            return 0;
+        }
+        cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM messages WHERE uid = %d AND mid > 0 AND out = 0 AND read_state IN(0,2)", did));
+        if (cursor.next() && !cursor.isNull(0)) {
+            keepFrom = Math.min(keepFrom, cursor.longValue(0));
+        }
+        cursor.dispose();
+        cursor = database.queryFinalized("SELECT last_mid, last_mid_i FROM dialogs WHERE did = " + did);
+        if (cursor.next()) {
+            for (int a = 0; a < 2; a++) {
+                long mid = cursor.longValue(a);
+                if (mid > 0) {
+                    keepFrom = Math.min(keepFrom, mid);
+                }
+            }
+        }
+        cursor.dispose();
+
+        String condition = "mid > 0 AND mid < " + keepFrom;
+        int count = database.executeInt(String.format(Locale.US, "SELECT COUNT(mid) FROM messages WHERE uid = %d AND %s", did, condition));
+        if (count == 0) {
+            return 0;
+        }
+        database.executeFast(String.format(Locale.US, "DELETE FROM randoms WHERE mid IN(SELECT mid FROM messages WHERE uid = %d AND %s)", did, condition)).stepThis().dispose();
+        database.executeFast(String.format(Locale.US, "DELETE FROM messages WHERE uid = %d AND %s", did, condition)).stepThis().dispose();
+        int keepId = (int) keepFrom;
+        database.executeFast(String.format(Locale.US, "DELETE FROM channel_group WHERE uid = %d AND end < %d", did, keepId)).stepThis().dispose();
+        trimHoles(database, HolesIndex.MESSAGES, did, 0, keepId);
+        trimHoles(database, HolesIndex.MESSAGES_IMP, did, 0, keepId);
+        return count;
+    }
+
+    private int trimMedia(SQLiteDatabase database, long did, int maxMediaDays) throws Exception {
+        int date = ConnectionsManager.getInstance().getCurrentTime() - maxMediaDays * 24 * 60 * 60;
+        int total = 0;
+        for (int type = 0; type < SharedMediaQuery.MEDIA_TYPES_COUNT; type++) {
+            long keepFrom = 0;
+            SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM media_v2 WHERE uid = %d AND type = %d AND mid > 0 AND date >= %d", did, type, date));
+            if (cursor.next() && !cursor.isNull(0)) {
+                keepFrom = cursor.longValue(0);
+            }
+            cursor.dispose();
+            String condition = keepFrom != 0 ? "mid > 0 AND mid < " + keepFrom : "mid > 0";
+            int count = database.executeInt(String.format(Locale.US, "SELECT COUNT(mid) FROM media_v2 WHERE uid = %d AND type = %d AND %s", did, type, condition));
+            if (count == 0) {
+                continue;
+            }
+            database.executeFast(String.format(Locale.US, "DELETE FROM media_v2 WHERE uid = %d AND type = %d AND %s", did, type, condition)).stepThis().dispose();
+            if (keepFrom != 0) {
+                trimHoles(database, HolesIndex.MEDIA, did, type, (int) keepFrom);
+            } else {
+                database.executeFast(String.format(Locale.US, "DELETE FROM media_holes_v2 WHERE uid = %d AND type = %d", did, type)).stepThis().dispose();
+                MessagesStorage.getInstance().getHolesIndex().invalidate(did);
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * Replaces the holes starting below {@code keepId} with a single hole
+     * from the beginning of the history, as everything below it is gone.
+     */
+    private void trimHoles(SQLiteDatabase database, String table, long did, int type, int keepId) throws Exception {
+        String where;
+        if (HolesIndex.MEDIA.equals(table)) {
+            where = String.format(Locale.US, "uid = %d AND type = %d", did, type);
+        } else {
+            where = String.format(Locale.US, "uid = %d", did);
+        }
+        int count = 0;
+        int end = keepId;
+        SQLiteCursor cursor = database.queryFinalized(String.format(Locale.US, "SELECT COUNT(start), max(end) FROM %s WHERE %s AND start < %d", table, where, keepId));
+        if (cursor.next()) {
+            count = cursor.intValue(0);
+            end = Math.max(end, cursor.intValue(1));
+        }
+        cursor.dispose();
+        if (count == 0) {
+            return;
+        }
+        database.executeFast(String.format(Locale.US, "DELETE FROM %s WHERE %s AND start < %d", table, where, keepId)).stepThis().dispose();
+        MessagesStorage.getInstance().getHolesIndex().invalidate(did);
+        MessagesStorage.getInstance().getHolesIndex().put(database, table, did, type, 0, end);
+    }
+
+    private long getTime(SQLiteDatabase database, String key) throws Exception {
+        long time = 0;
+        SQLiteCursor cursor = database.queryFinalized("SELECT value FROM keyvalue WHERE id = '" + key + "'");
+        if (cursor.next()) {
+            time = Utilities.parseLong(cursor.stringValue(0));
+        }
+        cursor.dispose();
+        return time;
+    }
+
+    private void setTime(SQLiteDatabase database, String key, long time) throws Exception {
+        SQLitePreparedStatement state = database.executeFast("REPLACE INTO keyvalue VALUES(?, ?)");
+        state.bindString(1, key);
+        state.bindString(2, String.valueOf(time));
+        state.step();
+        state.dispose();
+    }
+}
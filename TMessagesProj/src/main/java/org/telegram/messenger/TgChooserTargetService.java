@@ -24,7 +24,6 @@ import android.os.Build;
 import android.os.Bundle;
 import android.service.chooser.ChooserTarget;
 import android.service.chooser.ChooserTargetService;
-import android.text.TextUtils;
 
 import org.telegram.SQLite.SQLiteCursor;
 import org.telegram.tgnet.TLRPC;
@@ -91,10 +90,10 @@ public class TgChooserTargetService extends ChooserTargetService {
                     }
                     cursor.dispose();
                     if (!chatsToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                        MessagesStorage.getInstance().getChatsInternal(chatsToLoad, chats);
                     }
                     if (!usersToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                        MessagesStorage.getInstance().getUsersInternal(usersToLoad, users);
                     }
                 } catch (Exception e) {
                     FileLog.e("tmessages", e);
@@ -143,11 +142,7 @@ public class TgChooserTargetService extends ChooserTargetService {
                 semaphore.release();
             }
         });
-        try {
-            semaphore.acquire();
-        } catch (Exception e) {
-            FileLog.e("tmessages", e);
-        }
+        MessagesStorage.getInstance().waitForStorage(semaphore, "TgChooserTargetService");
         return targets;
     }
 
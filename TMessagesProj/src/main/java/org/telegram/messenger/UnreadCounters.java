@@ -0,0 +1,105 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.telegram.SQLite.SQLiteCursor;
+import org.telegram.SQLite.SQLiteDatabase;
+
+import java.util.Locale;
+
+/**
+ * Per-dialog count of incoming unread messages, kept in the unread_counters
+ * table by triggers on messages, so every insert, delete and read state
+ * change updates it in the same transaction. Needs recursive_triggers on
+ * the writing connection, otherwise rows dropped by REPLACE are not
+ * subtracted.
+ */
+public class UnreadCounters {
+
+    private final static String UNREAD = "out = 0 AND read_state IN(0,2)";
+
+    private static String unread(String row) {
+        return row + ".out = 0 AND " + row + ".read_state IN(0,2)";
+    }
+
+    private boolean available;
+
+    public void clear() {
+        available = false;
+    }
+
+    public boolean isAvailable() {
+        return available;
+    }
+
+    public void createTable(SQLiteDatabase database) {
+        try {
+            boolean exists = database.tableExists("unread_counters");
+            database.executeFast("CREATE TABLE IF NOT EXISTS unread_counters(did INTEGER PRIMARY KEY, count INTEGER, count_imp INTEGER)").stepThis().dispose();
+            database.executeFast("CREATE TRIGGER IF NOT EXISTS unread_counters_insert AFTER INSERT ON messages WHEN " + unread("NEW") + " BEGIN " +
+                    "INSERT OR IGNORE INTO unread_counters VALUES(NEW.uid, 0, 0); " +
+                    "UPDATE unread_counters SET count = count + 1, count_imp = count_imp + (CASE WHEN NEW.imp = 1 THEN 1 ELSE 0 END) WHERE did = NEW.uid; " +
+                    "END").stepThis().dispose();
+            database.executeFast("CREATE TRIGGER IF NOT EXISTS unread_counters_delete AFTER DELETE ON messages WHEN " + unread("OLD") + " BEGIN " +
+                    "UPDATE unread_counters SET count = count - 1, count_imp = count_imp - (CASE WHEN OLD.imp = 1 THEN 1 ELSE 0 END) WHERE did = OLD.uid; " +
+                    "END").stepThis().dispose();
+            database.executeFast("CREATE TRIGGER IF NOT EXISTS unread_counters_update AFTER UPDATE OF uid, out, read_state, imp ON messages BEGIN " +
+                    "UPDATE unread_counters SET count = count - 1, count_imp = count_imp - (CASE WHEN OLD.imp = 1 THEN 1 ELSE 0 END) WHERE did = OLD.uid AND " + unread("OLD") + "; " +
+                    "INSERT OR IGNORE INTO unread_counters SELECT NEW.uid, 0, 0 WHERE " + unread("NEW") + "; " +
+                    "UPDATE unread_counters SET count = count + 1, count_imp = count_imp + (CASE WHEN NEW.imp = 1 THEN 1 ELSE 0 END) WHERE did = NEW.uid AND " + unread("NEW") + "; " +
+                    "END").stepThis().dispose();
+            if (!exists) {
+                rebuild(database, 0);
+            }
+            available = true;
+        } catch (Exception e) {
+            available = false;
+            FileLog.e("tmessages", e);
+        }
+    }
+
+    /**
+     * Recounts unread messages from the messages table for {@code did}, or
+     * for all dialogs if it is 0.
+     */
+    public void rebuild(SQLiteDatabase database, long did) throws Exception {
+        if (did == 0) {
+            database.executeFast("DELETE FROM unread_counters").stepThis().dispose();
+            database.executeFast("INSERT INTO unread_counters SELECT uid, COUNT(*), SUM(CASE WHEN imp = 1 THEN 1 ELSE 0 END) FROM messages WHERE " + UNREAD + " GROUP BY uid").stepThis().dispose();
+        } else {
+            database.executeFast(String.format(Locale.US, "DELETE FROM unread_counters WHERE did = %d", did)).stepThis().dispose();
+            database.executeFast(String.format(Locale.US, "INSERT INTO unread_counters SELECT uid, COUNT(*), SUM(CASE WHEN imp = 1 THEN 1 ELSE 0 END) FROM messages WHERE uid = %d AND " + UNREAD + " GROUP BY uid", did)).stepThis().dispose();
+        }
+    }
+
+    /**
+     * Returns the number of incoming unread messages in {@code did}, only
+     * counting important ones if {@code important} is set. Returns -1 if
+     * the counters are not available and the caller has to count itself.
+     */
+    public int getUnreadCount(SQLiteDatabase database, long did, boolean important) throws Exception {
+        if (!available) {
+            return -1;
+        }
+        int count = 0;
+        int countImportant = 0;
+        SQLiteCursor cursor = database.queryCached("SELECT count, count_imp FROM unread_counters WHERE did = ?", did);
+        if (cursor.next()) {
+            count = cursor.intValue(0);
+            countImportant = cursor.intValue(1);
+        }
+        cursor.dispose();
+        if (count < 0 || countImportant < 0 || countImportant > count) {
+            FileLog.e("tmessages", "unread counters for " + did + " are broken, rebuilding");
+            rebuild(database, did);
+            return getUnreadCount(database, did, important);
+        }
+        return important ? countImportant : count;
+    }
+}
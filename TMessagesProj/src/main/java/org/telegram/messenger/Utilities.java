@@ -25,11 +25,19 @@ public class Utilities {
     public static Pattern pattern = Pattern.compile("[0-9]+");
     public static SecureRandom random = new SecureRandom();
 
-    public static volatile DispatchQueue stageQueue = new DispatchQueue("stageQueue");
-    public static volatile DispatchQueue globalQueue = new DispatchQueue("globalQueue");
-    public static volatile DispatchQueue searchQueue = new DispatchQueue("searchQueue");
+    public static volatile DispatchQueue stageQueue = new DispatchQueue("stageQueue", 2);
+    public static volatile DispatchQueue globalQueue = new DispatchQueue("globalQueue", 2);
+    public static volatile DispatchQueue searchQueue = new DispatchQueue("searchQueue", 2);
+    //single lane, bulk phone book writes and per-contact adds/deletes must not overtake each other
     public static volatile DispatchQueue phoneBookQueue = new DispatchQueue("photoBookQueue");
 
+    //lanes of globalQueue and searchQueue, work of one owner stays in order
+    public final static long QUEUE_KEY_CONTACTS = 1;
+    public final static long QUEUE_KEY_EMOJI = 2;
+    public final static long QUEUE_KEY_MEDIA = 3;
+    public final static long QUEUE_KEY_CACHE = 4;
+    public final static long QUEUE_KEY_WALLPAPER = 5;
+
     final protected static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
     static {
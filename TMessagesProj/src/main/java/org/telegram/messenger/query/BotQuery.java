@@ -19,7 +19,6 @@ import org.telegram.tgnet.TLRPC;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Locale;
 
 public class BotQuery {
 
@@ -63,12 +62,12 @@ public class BotQuery {
             public void run() {
                 try {
                     TLRPC.Message botKeyboard = null;
-                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT info FROM bot_keyboard WHERE uid = %d", did));
+                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryCached("SELECT info FROM bot_keyboard WHERE uid = ?", did);
                     if (cursor.next()) {
                         NativeByteBuffer data;
 
                         if (!cursor.isNull(0)) {
-                            data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                            data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                             if (data != null && cursor.byteBufferValue(0, data) != 0) {
                                 botKeyboard = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             }
@@ -106,12 +105,12 @@ public class BotQuery {
             public void run() {
                 try {
                     TLRPC.BotInfo botInfo = null;
-                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT info FROM bot_info WHERE uid = %d", uid));
+                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryCached("SELECT info FROM bot_info WHERE uid = ?", uid);
                     if (cursor.next()) {
                         NativeByteBuffer data;
 
                         if (!cursor.isNull(0)) {
-                            data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                            data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                             if (data != null && cursor.byteBufferValue(0, data) != 0) {
                                 botInfo = TLRPC.BotInfo.TLdeserialize(data, data.readInt32(false), false);
                             }
@@ -142,7 +141,7 @@ public class BotQuery {
         }
         try {
             int mid = 0;
-            SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT mid FROM bot_keyboard WHERE uid = %d", did));
+            SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryCached("SELECT mid FROM bot_keyboard WHERE uid = ?", did);
             if (cursor.next()) {
                 mid = cursor.intValue(0);
             }
@@ -151,7 +150,7 @@ public class BotQuery {
                 return;
             }
 
-            SQLitePreparedStatement state = MessagesStorage.getInstance().getDatabase().executeFast("REPLACE INTO bot_keyboard VALUES(?, ?, ?)");
+            SQLitePreparedStatement state = MessagesStorage.getInstance().getDatabase().executeCached("REPLACE INTO bot_keyboard VALUES(?, ?, ?)");
             state.requery();
             NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
             message.serializeToStream(data);
@@ -187,7 +186,7 @@ public class BotQuery {
             @Override
             public void run() {
                 try {
-                    SQLitePreparedStatement state = MessagesStorage.getInstance().getDatabase().executeFast("REPLACE INTO bot_info(uid, info) VALUES(?, ?)");
+                    SQLitePreparedStatement state = MessagesStorage.getInstance().getDatabase().executeCached("REPLACE INTO bot_info(uid, info) VALUES(?, ?)");
                     state.requery();
                     NativeByteBuffer data = new NativeByteBuffer(botInfo.getObjectSize());
                     botInfo.serializeToStream(data);
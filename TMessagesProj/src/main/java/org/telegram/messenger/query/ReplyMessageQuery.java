@@ -8,11 +8,10 @@
 
 package org.telegram.messenger.query;
 
-import android.text.TextUtils;
-
 import org.telegram.SQLite.SQLiteCursor;
 import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.AndroidUtilities;
+import org.telegram.messenger.BlobCodec;
 import org.telegram.messenger.ImageLoader;
 import org.telegram.messenger.MessageObject;
 import org.telegram.messenger.MessagesController;
@@ -27,14 +26,13 @@ import org.telegram.tgnet.TLRPC;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Locale;
 
 public class ReplyMessageQuery {
 
     public static void loadReplyMessagesForMessages(final ArrayList<MessageObject> messages, final long dialog_id) {
         final ArrayList<Integer> replyMessages = new ArrayList<>();
         final HashMap<Integer, ArrayList<MessageObject>> replyMessageOwners = new HashMap<>();
-        final StringBuilder stringBuilder = new StringBuilder();
+        final ArrayList<Long> messageIds = new ArrayList<>();
         int channelId = 0;
         for (MessageObject messageObject : messages) {
             if (messageObject.getId() > 0 && messageObject.isReply() && messageObject.replyMessageObject == null) {
@@ -44,10 +42,7 @@ public class ReplyMessageQuery {
                     messageId |= ((long) messageObject.messageOwner.to_id.channel_id) << 32;
                     channelId = messageObject.messageOwner.to_id.channel_id;
                 }
-                if (stringBuilder.length() > 0) {
-                    stringBuilder.append(',');
-                }
-                stringBuilder.append(messageId);
+                messageIds.add(messageId);
                 ArrayList<MessageObject> messageObjects = replyMessageOwners.get(id);
                 if (messageObjects == null) {
                     messageObjects = new ArrayList<>();
@@ -74,10 +69,11 @@ public class ReplyMessageQuery {
                     ArrayList<Integer> usersToLoad = new ArrayList<>();
                     ArrayList<Integer> chatsToLoad = new ArrayList<>();
 
-                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid, date FROM messages WHERE mid IN(%s)", stringBuilder.toString()));
+                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryIn("SELECT data, mid, date FROM messages WHERE mid IN(%s)", messageIds);
                     while (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                            data = BlobCodec.unpack(data);
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             message.id = cursor.intValue(1);
                             message.date = cursor.intValue(2);
@@ -91,10 +87,10 @@ public class ReplyMessageQuery {
                     cursor.dispose();
 
                     if (!usersToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                        MessagesStorage.getInstance().getUsersInternal(usersToLoad, users);
                     }
                     if (!chatsToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                        MessagesStorage.getInstance().getChatsInternal(chatsToLoad, chats);
                     }
                     broadcastReplyMessages(result, replyMessageOwners, users, chats, dialog_id, true);
 
@@ -151,6 +147,7 @@ public class ReplyMessageQuery {
                         if (messageObjects != null) {
                             NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
                             message.serializeToStream(data);
+                            data = BlobCodec.pack(data);
                             for (MessageObject messageObject : messageObjects) {
                                 state.requery();
                                 long messageId = messageObject.getId();
@@ -8,12 +8,11 @@
 
 package org.telegram.messenger.query;
 
-import android.text.TextUtils;
-
 import org.telegram.SQLite.SQLiteCursor;
 import org.telegram.SQLite.SQLiteDatabase;
 import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.AndroidUtilities;
+import org.telegram.messenger.BlobCodec;
 import org.telegram.messenger.ChatObject;
 import org.telegram.messenger.ImageLoader;
 import org.telegram.messenger.MessageObject;
@@ -21,6 +20,7 @@ import org.telegram.messenger.MessagesController;
 import org.telegram.messenger.MessagesStorage;
 import org.telegram.messenger.NotificationCenter;
 import org.telegram.messenger.FileLog;
+import org.telegram.messenger.HolesIndex;
 import org.telegram.tgnet.ConnectionsManager;
 import org.telegram.tgnet.NativeByteBuffer;
 import org.telegram.tgnet.RequestDelegate;
@@ -311,54 +311,36 @@ public class SharedMediaQuery {
                             messageMaxId |= ((long) channelId) << 32;
                         }
 
-                        cursor = database.queryFinalized(String.format(Locale.US, "SELECT start FROM media_holes_v2 WHERE uid = %d AND type = %d AND start IN (0, 1)", uid, type));
-                        if (cursor.next()) {
-                            isEnd = cursor.intValue(0) == 1;
-                            cursor.dispose();
+                        HolesIndex holesIndex = MessagesStorage.getInstance().getHolesIndex();
+                        int firstStart = holesIndex.getFirstStart(database, HolesIndex.MEDIA, uid, type);
+                        if (firstStart != -1) {
+                            isEnd = firstStart == 1;
                         } else {
-                            cursor.dispose();
                             cursor = database.queryFinalized(String.format(Locale.US, "SELECT min(mid) FROM media_v2 WHERE uid = %d AND type = %d AND mid > 0", uid, type));
                             if (cursor.next()) {
                                 int mid = cursor.intValue(0);
                                 if (mid != 0) {
-                                    SQLitePreparedStatement state = database.executeFast("REPLACE INTO media_holes_v2 VALUES(?, ?, ?, ?)");
-                                    state.requery();
-                                    state.bindLong(1, uid);
-                                    state.bindInteger(2, type);
-                                    state.bindInteger(3, 0);
-                                    state.bindInteger(4, mid);
-                                    state.step();
-                                    state.dispose();
+                                    holesIndex.put(database, HolesIndex.MEDIA, uid, type, 0, mid);
                                 }
                             }
                             cursor.dispose();
                         }
 
                         if (messageMaxId != 0) {
-                            long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT end FROM media_holes_v2 WHERE uid = %d AND type = %d AND end <= %d ORDER BY end DESC LIMIT 1", uid, type, max_id));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
-                                if (channelId != 0) {
-                                    holeMessageId |= ((long) channelId) << 32;
-                                }
+                            long holeMessageId = holesIndex.getEndBelow(database, HolesIndex.MEDIA, uid, type, max_id);
+                            if (holeMessageId != 0 && channelId != 0) {
+                                holeMessageId |= ((long) channelId) << 32;
                             }
-                            cursor.dispose();
                             if (holeMessageId > 1) {
                                 cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid > 0 AND mid < %d AND mid >= %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d", uid, messageMaxId, holeMessageId, type, countToLoad));
                             } else {
                                 cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid > 0 AND mid < %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d", uid, messageMaxId, type, countToLoad));
                             }
                         } else {
-                            long holeMessageId = 0;
-                            cursor = database.queryFinalized(String.format(Locale.US, "SELECT max(end) FROM media_holes_v2 WHERE uid = %d AND type = %d", uid, type));
-                            if (cursor.next()) {
-                                holeMessageId = cursor.intValue(0);
-                                if (channelId != 0) {
-                                    holeMessageId |= ((long) channelId) << 32;
-                                }
+                            long holeMessageId = holesIndex.getMaxEnd(database, HolesIndex.MEDIA, uid, type);
+                            if (holeMessageId != 0 && channelId != 0) {
+                                holeMessageId |= ((long) channelId) << 32;
                             }
-                            cursor.dispose();
                             if (holeMessageId > 1) {
                                 cursor = database.queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid >= %d AND type = %d ORDER BY date DESC, mid DESC LIMIT %d,%d", uid, holeMessageId, type, offset, countToLoad));
                             } else {
@@ -375,8 +357,9 @@ public class SharedMediaQuery {
                     }
 
                     while (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                            data = BlobCodec.unpack(data);
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             message.id = cursor.intValue(1);
                             message.dialog_id = uid;
@@ -399,10 +382,10 @@ public class SharedMediaQuery {
                     cursor.dispose();
 
                     if (!usersToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), res.users);
+                        MessagesStorage.getInstance().getUsersInternal(usersToLoad, res.users);
                     }
                     if (!chatsToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), res.chats);
+                        MessagesStorage.getInstance().getChatsInternal(chatsToLoad, res.chats);
                     }
                     if (res.messages.size() > count) {
                         topReached = false;
@@ -446,6 +429,7 @@ public class SharedMediaQuery {
                             state2.requery();
                             NativeByteBuffer data = new NativeByteBuffer(message.getObjectSize());
                             message.serializeToStream(data);
+                            data = BlobCodec.pack(data);
                             state2.bindLong(1, messageId);
                             state2.bindLong(2, uid);
                             state2.bindInteger(3, message.date);
@@ -481,8 +465,9 @@ public class SharedMediaQuery {
                     SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, mid FROM media_v2 WHERE uid = %d AND mid < %d AND type = %d ORDER BY date DESC, mid DESC LIMIT 1000", uid, max_id, MEDIA_MUSIC));
 
                     while (cursor.next()) {
-                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                            data = BlobCodec.unpack(data);
                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                             if (MessageObject.isMusicMessage(message)) {
                                 message.id = cursor.intValue(1);
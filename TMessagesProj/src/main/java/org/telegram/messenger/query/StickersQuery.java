@@ -169,7 +169,7 @@ public class StickersQuery {
                     try {
                         cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT data, date, hash FROM stickers_v2 WHERE 1");
                         if (cursor.next()) {
-                            NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                             if (data != null && cursor.byteBufferValue(0, data) != 0) {
                                 newStickerArray = new ArrayList<>();
                                 int count = data.readInt32(false);
@@ -13,6 +13,7 @@ import android.os.PowerManager;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.BuildVars;
 import org.telegram.messenger.ContactsController;
+import org.telegram.messenger.DispatchQueue;
 import org.telegram.messenger.ApplicationLoader;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.MessagesController;
@@ -53,6 +54,8 @@ public class ConnectionsManager {
 
     public final static int DEFAULT_DATACENTER_ID = Integer.MAX_VALUE;
 
+    private final static long STAGE_KEY_SEND_REQUEST = Long.MIN_VALUE;
+
     private long lastPauseTime = System.currentTimeMillis();
     private boolean appPaused = true;
     private int lastClassGuid = 1;
@@ -116,14 +119,14 @@ public class ConnectionsManager {
 
     public int sendRequest(final TLObject object, final RequestDelegate onComplete, final QuickAckDelegate onQuickAck, final int flags, final int datacenterId, final int connetionType, final boolean immediate) {
         final int requestToken = lastRequestToken.getAndIncrement();
+        //serialized on the calling thread, so later changes to the request can't race the send lane
+        final NativeByteBuffer buffer = new NativeByteBuffer(object.getObjectSize());
+        object.serializeToStream(buffer);
+        object.freeResources();
         Utilities.stageQueue.postRunnable(new Runnable() {
             @Override
             public void run() {
                 FileLog.d("tmessages", "send request " + object + " with token = " + requestToken);
-                NativeByteBuffer buffer = new NativeByteBuffer(object.getObjectSize());
-                object.serializeToStream(buffer);
-                object.freeResources();
-
                 native_sendRequest(buffer.address, new RequestDelegateInternal() {
                     @Override
                     public void run(int response, int errorCode, String errorText) {
@@ -157,7 +160,7 @@ public class ConnectionsManager {
                     }
                 }, onQuickAck, flags, datacenterId, connetionType, immediate, requestToken);
             }
-        });
+        }, STAGE_KEY_SEND_REQUEST, DispatchQueue.PRIORITY_HIGH);
         return requestToken;
     }
 
@@ -4,6 +4,8 @@ import org.telegram.messenger.FileLog;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 
 public class NativeByteBuffer extends AbstractSerializedData {
 
@@ -11,6 +13,25 @@ public class NativeByteBuffer extends AbstractSerializedData {
     public ByteBuffer buffer;
     private boolean justCalc = false;
     private int len = 0;
+    private boolean pooled;
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+    private static final int MAX_STRING_BUFFER = 64 * 1024;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ThreadLocal<ArrayDeque<NativeByteBuffer>> buffersPool = new ThreadLocal<ArrayDeque<NativeByteBuffer>>() {
+        @Override
+        protected ArrayDeque<NativeByteBuffer> initialValue() {
+            return new ArrayDeque<>();
+        }
+    };
+
+    private static final ThreadLocal<byte[][]> stringBuffer = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] {new byte[256]};
+        }
+    };
 
     private static final ThreadLocal<NativeByteBuffer> addressWrapper = new ThreadLocal<NativeByteBuffer>() {
         @Override
@@ -36,11 +57,30 @@ public class NativeByteBuffer extends AbstractSerializedData {
         return result;
     }
 
+    /**
+     * Same as {@code new NativeByteBuffer(size)}, but the wrapper object is
+     * taken from a per-thread pool and goes back there on {@link #reuse()},
+     * so it must not be touched after that call.
+     */
+    public static NativeByteBuffer obtain(int size) {
+        NativeByteBuffer result = buffersPool.get().poll();
+        if (result == null) {
+            result = new NativeByteBuffer(0, true);
+            result.pooled = true;
+        }
+        result.init(size);
+        return result;
+    }
+
     private NativeByteBuffer(int address, boolean wrap) {
 
     }
 
     public NativeByteBuffer(int size) {
+        init(size);
+    }
+
+    private void init(int size) {
         address = native_getFreeBuffer(size);
         if (address != 0) {
             buffer = native_getJavaByteBuffer(address);
@@ -401,14 +441,15 @@ public class NativeByteBuffer extends AbstractSerializedData {
                 l = getIntFromByte(buffer.get()) | (getIntFromByte(buffer.get()) << 8) | (getIntFromByte(buffer.get()) << 16);
                 sl = 4;
             }
-            byte[] b = new byte[l];
-            buffer.get(b);
+            byte[] b = getStringBuffer(l);
+            buffer.get(b, 0, l);
+            String result = new String(b, 0, l, UTF8);
             int i = sl;
             while((l + i) % 4 != 0) {
                 buffer.get();
                 i++;
             }
-            return new String(b, "UTF-8");
+            return result;
         } catch (Exception e) {
             if (exception) {
                 throw new RuntimeException("read string error", e);
@@ -475,6 +516,17 @@ public class NativeByteBuffer extends AbstractSerializedData {
         return null;
     }
 
+    private static byte[] getStringBuffer(int length) {
+        if (length > MAX_STRING_BUFFER) {
+            return new byte[length];
+        }
+        byte[][] holder = stringBuffer.get();
+        if (holder[0].length < length) {
+            holder[0] = new byte[Math.max(length, holder[0].length * 2)];
+        }
+        return holder[0];
+    }
+
     public double readDouble(boolean exception) {
         try {
             return Double.longBitsToDouble(readInt64(exception));
@@ -491,6 +543,14 @@ public class NativeByteBuffer extends AbstractSerializedData {
     public void reuse() {
         if (address != 0) {
             native_reuse(address);
+            if (pooled) {
+                address = 0;
+                buffer = null;
+                ArrayDeque<NativeByteBuffer> pool = buffersPool.get();
+                if (pool.size() < MAX_POOLED_BUFFERS) {
+                    pool.add(this);
+                }
+            }
         }
     }
 
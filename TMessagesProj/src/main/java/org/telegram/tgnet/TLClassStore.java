@@ -8,62 +8,270 @@
 
 package org.telegram.tgnet;
 
-import org.telegram.messenger.FileLog;
-
-import java.util.HashMap;
+import android.util.SparseArray;
 
 public class TLClassStore {
-    private HashMap<Integer, Class> classStore;
+
+    private interface Factory {
+        TLObject create();
+    }
+
+    private SparseArray<Factory> classStore;
 
     public TLClassStore() {
-        classStore = new HashMap<>();
+        classStore = new SparseArray<>();
 
-        classStore.put(TLRPC.TL_error.constructor, TLRPC.TL_error.class);
-        classStore.put(TLRPC.TL_decryptedMessageService.constructor, TLRPC.TL_decryptedMessageService.class);
-        classStore.put(TLRPC.TL_decryptedMessage.constructor, TLRPC.TL_decryptedMessage.class);
-        classStore.put(TLRPC.TL_config.constructor, TLRPC.TL_config.class);
-        classStore.put(TLRPC.TL_decryptedMessageLayer.constructor, TLRPC.TL_decryptedMessageLayer.class);
-        classStore.put(TLRPC.TL_decryptedMessageService_old.constructor, TLRPC.TL_decryptedMessageService_old.class);
-        classStore.put(TLRPC.TL_decryptedMessage_old.constructor, TLRPC.TL_decryptedMessage_old.class);
-        classStore.put(TLRPC.TL_message_secret.constructor, TLRPC.TL_message_secret.class);
-        classStore.put(TLRPC.TL_messageEncryptedAction.constructor, TLRPC.TL_messageEncryptedAction.class);
-        classStore.put(TLRPC.TL_decryptedMessageHolder.constructor, TLRPC.TL_decryptedMessageHolder.class);
-        classStore.put(TLRPC.TL_null.constructor, TLRPC.TL_null.class);
+        classStore.put(TLRPC.TL_error.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_error();
+            }
+        });
+        classStore.put(TLRPC.TL_decryptedMessageService.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_decryptedMessageService();
+            }
+        });
+        classStore.put(TLRPC.TL_decryptedMessage.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_decryptedMessage();
+            }
+        });
+        classStore.put(TLRPC.TL_config.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_config();
+            }
+        });
+        classStore.put(TLRPC.TL_decryptedMessageLayer.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_decryptedMessageLayer();
+            }
+        });
+        classStore.put(TLRPC.TL_decryptedMessageService_old.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_decryptedMessageService_old();
+            }
+        });
+        classStore.put(TLRPC.TL_decryptedMessage_old.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_decryptedMessage_old();
+            }
+        });
+        classStore.put(TLRPC.TL_message_secret.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_message_secret();
+            }
+        });
+        classStore.put(TLRPC.TL_messageEncryptedAction.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_messageEncryptedAction();
+            }
+        });
+        classStore.put(TLRPC.TL_decryptedMessageHolder.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_decryptedMessageHolder();
+            }
+        });
+        classStore.put(TLRPC.TL_null.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_null();
+            }
+        });
 
-        classStore.put(TLRPC.TL_updateShortChatMessage.constructor, TLRPC.TL_updateShortChatMessage.class);
-        classStore.put(TLRPC.TL_updates.constructor, TLRPC.TL_updates.class);
-        classStore.put(TLRPC.TL_updateShortMessage.constructor, TLRPC.TL_updateShortMessage.class);
-        classStore.put(TLRPC.TL_updateShort.constructor, TLRPC.TL_updateShort.class);
-        classStore.put(TLRPC.TL_updatesCombined.constructor, TLRPC.TL_updatesCombined.class);
-        classStore.put(TLRPC.TL_updateShortSentMessage.constructor, TLRPC.TL_updateShortSentMessage.class);
-        classStore.put(TLRPC.TL_updatesTooLong.constructor, TLRPC.TL_updatesTooLong.class);
+        classStore.put(TLRPC.TL_updateShortChatMessage.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_updateShortChatMessage();
+            }
+        });
+        classStore.put(TLRPC.TL_updates.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_updates();
+            }
+        });
+        classStore.put(TLRPC.TL_updateShortMessage.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_updateShortMessage();
+            }
+        });
+        classStore.put(TLRPC.TL_updateShort.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_updateShort();
+            }
+        });
+        classStore.put(TLRPC.TL_updatesCombined.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_updatesCombined();
+            }
+        });
+        classStore.put(TLRPC.TL_updateShortSentMessage.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_updateShortSentMessage();
+            }
+        });
+        classStore.put(TLRPC.TL_updatesTooLong.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_updatesTooLong();
+            }
+        });
 
-        classStore.put(TLRPC.TL_video.constructor, TLRPC.TL_video.class);
-        classStore.put(TLRPC.TL_videoEmpty.constructor, TLRPC.TL_videoEmpty.class);
-        classStore.put(TLRPC.TL_video_old2.constructor, TLRPC.TL_video_old2.class);
-        classStore.put(TLRPC.TL_video_old.constructor, TLRPC.TL_video_old.class);
-        classStore.put(TLRPC.TL_videoEncrypted.constructor, TLRPC.TL_videoEncrypted.class);
-        classStore.put(TLRPC.TL_video_old3.constructor, TLRPC.TL_video_old3.class);
+        classStore.put(TLRPC.TL_video.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_video();
+            }
+        });
+        classStore.put(TLRPC.TL_videoEmpty.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_videoEmpty();
+            }
+        });
+        classStore.put(TLRPC.TL_video_old2.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_video_old2();
+            }
+        });
+        classStore.put(TLRPC.TL_video_old.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_video_old();
+            }
+        });
+        classStore.put(TLRPC.TL_videoEncrypted.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_videoEncrypted();
+            }
+        });
+        classStore.put(TLRPC.TL_video_old3.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_video_old3();
+            }
+        });
 
-        classStore.put(TLRPC.TL_audio.constructor, TLRPC.TL_audio.class);
-        classStore.put(TLRPC.TL_audioEncrypted.constructor, TLRPC.TL_audioEncrypted.class);
-        classStore.put(TLRPC.TL_audioEmpty.constructor, TLRPC.TL_audioEmpty.class);
-        classStore.put(TLRPC.TL_audio_old.constructor, TLRPC.TL_audio_old.class);
-        classStore.put(TLRPC.TL_audio_old2.constructor, TLRPC.TL_audio_old2.class);
+        classStore.put(TLRPC.TL_audio.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_audio();
+            }
+        });
+        classStore.put(TLRPC.TL_audioEncrypted.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_audioEncrypted();
+            }
+        });
+        classStore.put(TLRPC.TL_audioEmpty.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_audioEmpty();
+            }
+        });
+        classStore.put(TLRPC.TL_audio_old.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_audio_old();
+            }
+        });
+        classStore.put(TLRPC.TL_audio_old2.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_audio_old2();
+            }
+        });
 
-        classStore.put(TLRPC.TL_document.constructor, TLRPC.TL_document.class);
-        classStore.put(TLRPC.TL_documentEmpty.constructor, TLRPC.TL_documentEmpty.class);
-        classStore.put(TLRPC.TL_documentEncrypted_old.constructor, TLRPC.TL_documentEncrypted_old.class);
-        classStore.put(TLRPC.TL_documentEncrypted.constructor, TLRPC.TL_documentEncrypted.class);
-        classStore.put(TLRPC.TL_document_old.constructor, TLRPC.TL_document_old.class);
+        classStore.put(TLRPC.TL_document.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_document();
+            }
+        });
+        classStore.put(TLRPC.TL_documentEmpty.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_documentEmpty();
+            }
+        });
+        classStore.put(TLRPC.TL_documentEncrypted_old.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_documentEncrypted_old();
+            }
+        });
+        classStore.put(TLRPC.TL_documentEncrypted.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_documentEncrypted();
+            }
+        });
+        classStore.put(TLRPC.TL_document_old.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_document_old();
+            }
+        });
 
-        classStore.put(TLRPC.TL_photo.constructor, TLRPC.TL_photo.class);
-        classStore.put(TLRPC.TL_photoEmpty.constructor, TLRPC.TL_photoEmpty.class);
-        classStore.put(TLRPC.TL_photoSize.constructor, TLRPC.TL_photoSize.class);
-        classStore.put(TLRPC.TL_photoSizeEmpty.constructor, TLRPC.TL_photoSizeEmpty.class);
-        classStore.put(TLRPC.TL_photoCachedSize.constructor, TLRPC.TL_photoCachedSize.class);
-        classStore.put(TLRPC.TL_photo_old.constructor, TLRPC.TL_photo_old.class);
-        classStore.put(TLRPC.TL_photo_old2.constructor, TLRPC.TL_photo_old2.class);
+        classStore.put(TLRPC.TL_photo.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_photo();
+            }
+        });
+        classStore.put(TLRPC.TL_photoEmpty.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_photoEmpty();
+            }
+        });
+        classStore.put(TLRPC.TL_photoSize.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_photoSize();
+            }
+        });
+        classStore.put(TLRPC.TL_photoSizeEmpty.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_photoSizeEmpty();
+            }
+        });
+        classStore.put(TLRPC.TL_photoCachedSize.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_photoCachedSize();
+            }
+        });
+        classStore.put(TLRPC.TL_photo_old.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_photo_old();
+            }
+        });
+        classStore.put(TLRPC.TL_photo_old2.constructor, new Factory() {
+            @Override
+            public TLObject create() {
+                return new TLRPC.TL_photo_old2();
+            }
+        });
     }
 
     static TLClassStore store = null;
@@ -76,15 +284,9 @@ public class TLClassStore {
     }
 
     public TLObject TLdeserialize(NativeByteBuffer stream, int constructor, boolean exception) {
-        Class objClass = classStore.get(constructor);
-        if (objClass != null) {
-            TLObject response;
-            try {
-                response = (TLObject) objClass.newInstance();
-            } catch (Throwable e) {
-                FileLog.e("tmessages", e);
-                return null;
-            }
+        Factory factory = classStore.get(constructor);
+        if (factory != null) {
+            TLObject response = factory.create();
             response.readParams(stream, exception);
             return response;
         }
@@ -9,15 +9,16 @@
 package org.telegram.ui.Adapters;
 
 import android.content.Context;
-import android.text.TextUtils;
 import android.view.View;
 import android.view.ViewGroup;
 
 import org.telegram.SQLite.SQLiteCursor;
 import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.AndroidUtilities;
+import org.telegram.messenger.BlobCodec;
 import org.telegram.messenger.ChatObject;
 import org.telegram.messenger.ContactsController;
+import org.telegram.messenger.DialogsSearchIndex;
 import org.telegram.messenger.LocaleController;
 import org.telegram.messenger.MessageObject;
 import org.telegram.messenger.MessagesController;
@@ -40,7 +41,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -62,6 +62,8 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
     private int lastSearchId = 0;
     private int dialogsType;
 
+    private final static int MAX_LOCAL_RESULTS = 100;
+
     private ArrayList<RecentSearchObject> recentSearchObjects = new ArrayList<>();
     private HashMap<Long, RecentSearchObject> recentSearchObjectsById = new HashMap<>();
 
@@ -76,6 +78,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
         public TLObject object;
         public int date;
         public CharSequence name;
+        public DialogsSearchIndex.Match match;
     }
 
     protected static class RecentSearchObject {
@@ -256,7 +259,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
 
                     if (!encryptedToLoad.isEmpty()) {
                         ArrayList<TLRPC.EncryptedChat> encryptedChats = new ArrayList<>();
-                        MessagesStorage.getInstance().getEncryptedChatsInternal(TextUtils.join(",", encryptedToLoad), encryptedChats, usersToLoad);
+                        MessagesStorage.getInstance().getEncryptedChatsInternal(encryptedToLoad, encryptedChats, usersToLoad);
                         for (int a = 0; a < encryptedChats.size(); a++) {
                             hashMap.get((long) encryptedChats.get(a).id << 32).object = encryptedChats.get(a);
                         }
@@ -264,7 +267,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
 
                     if (!chatsToLoad.isEmpty()) {
                         ArrayList<TLRPC.Chat> chats = new ArrayList<>();
-                        MessagesStorage.getInstance().getChatsInternal(TextUtils.join(",", chatsToLoad), chats);
+                        MessagesStorage.getInstance().getChatsInternal(chatsToLoad, chats);
                         for (int a = 0; a < chats.size(); a++) {
                             TLRPC.Chat chat = chats.get(a);
                             long did;
@@ -285,7 +288,7 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
                     }
 
                     if (!usersToLoad.isEmpty()) {
-                        MessagesStorage.getInstance().getUsersInternal(TextUtils.join(",", usersToLoad), users);
+                        MessagesStorage.getInstance().getUsersInternal(usersToLoad, users);
                         for (int a = 0; a < users.size(); a++) {
                             TLRPC.User user = users.get(a);
                             RecentSearchObject recentSearchObject = hashMap.get((long) user.id);
@@ -412,181 +415,120 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
                     ArrayList<TLRPC.User> encUsers = new ArrayList<>();
                     int resultCount = 0;
 
+                    DialogsSearchIndex searchIndex = MessagesStorage.getInstance().getDialogsSearchIndex();
                     HashMap<Long, DialogSearchResult> dialogsResult = new HashMap<>();
-                    SQLiteCursor cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT did, date FROM dialogs ORDER BY date DESC LIMIT 400");
-                    while (cursor.next()) {
-                        long id = cursor.longValue(0);
+                    ArrayList<DialogsSearchIndex.Match> matches = searchIndex.searchDialogs(MessagesStorage.getInstance().getDatabase(), search, dialogsType, MAX_LOCAL_RESULTS);
+                    for (int a = 0; a < matches.size(); a++) {
+                        DialogsSearchIndex.Match match = matches.get(a);
                         DialogSearchResult dialogSearchResult = new DialogSearchResult();
-                        dialogSearchResult.date = cursor.intValue(1);
-                        dialogsResult.put(id, dialogSearchResult);
-
-                        int lower_id = (int) id;
-                        int high_id = (int) (id >> 32);
-                        if (lower_id != 0) {
-                            if (high_id == 1) {
-                                if (dialogsType == 0 && !chatsToLoad.contains(lower_id)) {
-                                    chatsToLoad.add(lower_id);
-                                }
-                            } else {
-                                if (lower_id > 0) {
-                                    if (dialogsType != 2 && !usersToLoad.contains(lower_id)) {
-                                        usersToLoad.add(lower_id);
-                                    }
-                                } else {
-                                    if (!chatsToLoad.contains(-lower_id)) {
-                                        chatsToLoad.add(-lower_id);
-                                    }
-                                }
-                            }
-                        } else if (dialogsType == 0) {
-                            if (!encryptedToLoad.contains(high_id)) {
-                                encryptedToLoad.add(high_id);
-                            }
+                        dialogSearchResult.date = match.date;
+                        dialogSearchResult.match = match;
+                        dialogsResult.put(match.did, dialogSearchResult);
+                        if (match.type == DialogsSearchIndex.TYPE_USER) {
+                            usersToLoad.add(match.id);
+                        } else if (match.type == DialogsSearchIndex.TYPE_ENCRYPTED) {
+                            encryptedToLoad.add(match.id);
+                        } else {
+                            chatsToLoad.add(match.id);
                         }
                     }
-                    cursor.dispose();
 
+                    SQLiteCursor cursor;
                     if (!usersToLoad.isEmpty()) {
-                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status, name FROM users WHERE uid IN(%s)", TextUtils.join(",", usersToLoad)));
+                        cursor = MessagesStorage.getInstance().getDatabase().queryIn("SELECT data, status FROM users WHERE uid IN(%s)", usersToLoad);
                         while (cursor.next()) {
-                            String name = cursor.stringValue(2);
-                            String tName = LocaleController.getInstance().getTranslitString(name);
-                            if (name.equals(tName)) {
-                                tName = null;
-                            }
-                            String username = null;
-                            int usernamePos = name.lastIndexOf(";;;");
-                            if (usernamePos != -1) {
-                                username = name.substring(usernamePos + 3);
-                            }
-                            int found = 0;
-                            for (String q : search) {
-                                if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                    found = 1;
-                                } else if (username != null && username.startsWith(q)) {
-                                    found = 2;
-                                }
-                                if (found != 0) {
-                                    NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                                    if (data != null && cursor.byteBufferValue(0, data) != 0) {
-                                        TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
-                                        DialogSearchResult dialogSearchResult = dialogsResult.get((long) user.id);
-                                        if (user.status != null) {
-                                            user.status.expires = cursor.intValue(1);
-                                        }
-                                        if (found == 1) {
-                                            dialogSearchResult.name = AndroidUtilities.generateSearchName(user.first_name, user.last_name, q);
-                                        } else {
-                                            dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + q);
-                                        }
-                                        dialogSearchResult.object = user;
-                                        resultCount++;
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
+                            if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                data = BlobCodec.unpack(data);
+                                TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+                                DialogSearchResult dialogSearchResult = dialogsResult.get((long) user.id);
+                                if (dialogSearchResult != null) {
+                                    if (user.status != null) {
+                                        user.status.expires = cursor.intValue(1);
+                                    }
+                                    if (dialogSearchResult.match.found == DialogsSearchIndex.FOUND_NAME) {
+                                        dialogSearchResult.name = AndroidUtilities.generateSearchName(user.first_name, user.last_name, dialogSearchResult.match.query);
+                                    } else {
+                                        dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + dialogSearchResult.match.query);
                                     }
-                                    data.reuse();
-                                    break;
+                                    dialogSearchResult.object = user;
+                                    resultCount++;
                                 }
                             }
+                            data.reuse();
                         }
                         cursor.dispose();
                     }
 
                     if (!chatsToLoad.isEmpty()) {
-                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, name FROM chats WHERE uid IN(%s)", TextUtils.join(",", chatsToLoad)));
+                        cursor = MessagesStorage.getInstance().getDatabase().queryIn("SELECT data FROM chats WHERE uid IN(%s)", chatsToLoad);
                         while (cursor.next()) {
-                            String name = cursor.stringValue(1);
-                            String tName = LocaleController.getInstance().getTranslitString(name);
-                            if (name.equals(tName)) {
-                                tName = null;
-                            }
-                            for (String q : search) {
-                                if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                    NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                                    if (data != null && cursor.byteBufferValue(0, data) != 0) {
-                                        TLRPC.Chat chat = TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
-                                        if (!(chat == null || chat.deactivated || ChatObject.isChannel(chat) && ChatObject.isNotInChat(chat))) {
-                                            long dialog_id;
-                                            if (chat.id > 0) {
-                                                dialog_id = -chat.id;
-                                            } else {
-                                                dialog_id = AndroidUtilities.makeBroadcastId(chat.id);
-                                            }
-                                            DialogSearchResult dialogSearchResult = dialogsResult.get(dialog_id);
-                                            dialogSearchResult.name = AndroidUtilities.generateSearchName(chat.title, null, q);
-                                            dialogSearchResult.object = chat;
-                                            resultCount++;
-                                        }
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
+                            if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                data = BlobCodec.unpack(data);
+                                TLRPC.Chat chat = TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
+                                if (!(chat == null || chat.deactivated || ChatObject.isChannel(chat) && ChatObject.isNotInChat(chat))) {
+                                    long dialog_id;
+                                    if (chat.id > 0) {
+                                        dialog_id = -chat.id;
+                                    } else {
+                                        dialog_id = AndroidUtilities.makeBroadcastId(chat.id);
+                                    }
+                                    DialogSearchResult dialogSearchResult = dialogsResult.get(dialog_id);
+                                    if (dialogSearchResult != null) {
+                                        dialogSearchResult.name = AndroidUtilities.generateSearchName(chat.title, null, dialogSearchResult.match.query);
+                                        dialogSearchResult.object = chat;
+                                        resultCount++;
                                     }
-                                    data.reuse();
-                                    break;
                                 }
                             }
+                            data.reuse();
                         }
                         cursor.dispose();
                     }
 
                     if (!encryptedToLoad.isEmpty()) {
-                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT q.data, u.name, q.user, q.g, q.authkey, q.ttl, u.data, u.status, q.layer, q.seq_in, q.seq_out, q.use_count, q.exchange_id, q.key_date, q.fprint, q.fauthkey, q.khash FROM enc_chats as q INNER JOIN users as u ON q.user = u.uid WHERE q.uid IN(%s)", TextUtils.join(",", encryptedToLoad)));
+                        cursor = MessagesStorage.getInstance().getDatabase().queryIn("SELECT q.data, u.name, q.user, q.g, q.authkey, q.ttl, u.data, u.status, q.layer, q.seq_in, q.seq_out, q.use_count, q.exchange_id, q.key_date, q.fprint, q.fauthkey, q.khash FROM enc_chats as q INNER JOIN users as u ON q.user = u.uid WHERE q.uid IN(%s)", encryptedToLoad);
                         while (cursor.next()) {
-                            String name = cursor.stringValue(1);
-                            String tName = LocaleController.getInstance().getTranslitString(name);
-                            if (name.equals(tName)) {
-                                tName = null;
-                            }
-
-                            String username = null;
-                            int usernamePos = name.lastIndexOf(";;;");
-                            if (usernamePos != -1) {
-                                username = name.substring(usernamePos + 2);
-                            }
-                            int found = 0;
-                            for (String q : search) {
-                                if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                    found = 1;
-                                } else if (username != null && username.startsWith(q)) {
-                                    found = 2;
-                                }
-
-                                if (found != 0) {
-                                    NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                                    NativeByteBuffer data2 = new NativeByteBuffer(cursor.byteArrayLength(6));
-                                    if (data != null && cursor.byteBufferValue(0, data) != 0 && cursor.byteBufferValue(6, data2) != 0) {
-                                        TLRPC.EncryptedChat chat = TLRPC.EncryptedChat.TLdeserialize(data, data.readInt32(false), false);
-                                        DialogSearchResult dialogSearchResult = dialogsResult.get((long) chat.id << 32);
-
-                                        chat.user_id = cursor.intValue(2);
-                                        chat.a_or_b = cursor.byteArrayValue(3);
-                                        chat.auth_key = cursor.byteArrayValue(4);
-                                        chat.ttl = cursor.intValue(5);
-                                        chat.layer = cursor.intValue(8);
-                                        chat.seq_in = cursor.intValue(9);
-                                        chat.seq_out = cursor.intValue(10);
-                                        int use_count = cursor.intValue(11);
-                                        chat.key_use_count_in = (short) (use_count >> 16);
-                                        chat.key_use_count_out = (short) (use_count);
-                                        chat.exchange_id = cursor.longValue(12);
-                                        chat.key_create_date = cursor.intValue(13);
-                                        chat.future_key_fingerprint = cursor.longValue(14);
-                                        chat.future_auth_key = cursor.byteArrayValue(15);
-                                        chat.key_hash = cursor.byteArrayValue(16);
-
-                                        TLRPC.User user = TLRPC.User.TLdeserialize(data2, data2.readInt32(false), false);
-                                        if (user.status != null) {
-                                            user.status.expires = cursor.intValue(7);
-                                        }
-                                        if (found == 1) {
-                                            dialogSearchResult.name = AndroidUtilities.replaceTags("<c#ff00a60e>" + ContactsController.formatName(user.first_name, user.last_name) + "</c>");
-                                        } else {
-                                            dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + q);
-                                        }
-                                        dialogSearchResult.object = chat;
-                                        encUsers.add(user);
-                                        resultCount++;
+                            NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
+                            NativeByteBuffer data2 = NativeByteBuffer.obtain(cursor.byteArrayLength(6));
+                            if (data != null && cursor.byteBufferValue(0, data) != 0 && cursor.byteBufferValue(6, data2) != 0) {
+                                data2 = BlobCodec.unpack(data2);
+                                TLRPC.EncryptedChat chat = TLRPC.EncryptedChat.TLdeserialize(data, data.readInt32(false), false);
+                                DialogSearchResult dialogSearchResult = dialogsResult.get((long) chat.id << 32);
+                                if (dialogSearchResult != null) {
+                                    chat.user_id = cursor.intValue(2);
+                                    chat.a_or_b = cursor.byteArrayValue(3);
+                                    chat.auth_key = cursor.byteArrayValue(4);
+                                    chat.ttl = cursor.intValue(5);
+                                    chat.layer = cursor.intValue(8);
+                                    chat.seq_in = cursor.intValue(9);
+                                    chat.seq_out = cursor.intValue(10);
+                                    int use_count = cursor.intValue(11);
+                                    chat.key_use_count_in = (short) (use_count >> 16);
+                                    chat.key_use_count_out = (short) (use_count);
+                                    chat.exchange_id = cursor.longValue(12);
+                                    chat.key_create_date = cursor.intValue(13);
+                                    chat.future_key_fingerprint = cursor.longValue(14);
+                                    chat.future_auth_key = cursor.byteArrayValue(15);
+                                    chat.key_hash = cursor.byteArrayValue(16);
+
+                                    TLRPC.User user = TLRPC.User.TLdeserialize(data2, data2.readInt32(false), false);
+                                    if (user.status != null) {
+                                        user.status.expires = cursor.intValue(7);
+                                    }
+                                    if (dialogSearchResult.match.found == DialogsSearchIndex.FOUND_NAME) {
+                                        dialogSearchResult.name = AndroidUtilities.replaceTags("<c#ff00a60e>" + ContactsController.formatName(user.first_name, user.last_name) + "</c>");
+                                    } else {
+                                        dialogSearchResult.name = AndroidUtilities.generateSearchName("@" + user.username, null, "@" + dialogSearchResult.match.query);
                                     }
-                                    data.reuse();
-                                    data2.reuse();
-                                    break;
+                                    dialogSearchResult.object = chat;
+                                    encUsers.add(user);
+                                    resultCount++;
                                 }
                             }
+                            data.reuse();
+                            data2.reuse();
                         }
                         cursor.dispose();
                     }
@@ -620,49 +562,36 @@ public class DialogsSearchAdapter extends BaseSearchAdapterRecycler {
                     }
 
                     if (dialogsType != 2) {
-                        cursor = MessagesStorage.getInstance().getDatabase().queryFinalized("SELECT u.data, u.status, u.name, u.uid FROM users as u INNER JOIN contacts as c ON u.uid = c.uid");
-                        while (cursor.next()) {
-                            int uid = cursor.intValue(3);
-                            if (dialogsResult.containsKey((long) uid)) {
-                                continue;
-                            }
-                            String name = cursor.stringValue(2);
-                            String tName = LocaleController.getInstance().getTranslitString(name);
-                            if (name.equals(tName)) {
-                                tName = null;
+                        ArrayList<DialogsSearchIndex.Match> contactMatches = searchIndex.searchContacts(MessagesStorage.getInstance().getDatabase(), search, MAX_LOCAL_RESULTS);
+                        if (!contactMatches.isEmpty()) {
+                            HashMap<Integer, DialogsSearchIndex.Match> contactsResult = new HashMap<>();
+                            for (int a = 0; a < contactMatches.size(); a++) {
+                                DialogsSearchIndex.Match match = contactMatches.get(a);
+                                contactsResult.put(match.id, match);
                             }
-                            String username = null;
-                            int usernamePos = name.lastIndexOf(";;;");
-                            if (usernamePos != -1) {
-                                username = name.substring(usernamePos + 3);
-                            }
-                            int found = 0;
-                            for (String q : search) {
-                                if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                    found = 1;
-                                } else if (username != null && username.startsWith(q)) {
-                                    found = 2;
-                                }
-                                if (found != 0) {
-                                    NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
-                                    if (data != null && cursor.byteBufferValue(0, data) != 0) {
-                                        TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+                            cursor = MessagesStorage.getInstance().getDatabase().queryIn("SELECT data, status FROM users WHERE uid IN(%s)", new ArrayList<>(contactsResult.keySet()));
+                            while (cursor.next()) {
+                                NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
+                                if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                    data = BlobCodec.unpack(data);
+                                    TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
+                                    DialogsSearchIndex.Match match = contactsResult.get(user.id);
+                                    if (match != null) {
                                         if (user.status != null) {
                                             user.status.expires = cursor.intValue(1);
                                         }
-                                        if (found == 1) {
-                                            resultArrayNames.add(AndroidUtilities.generateSearchName(user.first_name, user.last_name, q));
+                                        if (match.found == DialogsSearchIndex.FOUND_NAME) {
+                                            resultArrayNames.add(AndroidUtilities.generateSearchName(user.first_name, user.last_name, match.query));
                                         } else {
-                                            resultArrayNames.add(AndroidUtilities.generateSearchName("@" + user.username, null, "@" + q));
+                                            resultArrayNames.add(AndroidUtilities.generateSearchName("@" + user.username, null, "@" + match.query));
                                         }
                                         resultArray.add(user);
                                     }
-                                    data.reuse();
-                                    break;
                                 }
+                                data.reuse();
                             }
+                            cursor.dispose();
                         }
-                        cursor.dispose();
                     }
 
                     updateSearchResults(resultArray, resultArrayNames, encUsers, searchId);
@@ -30,6 +30,7 @@ import org.telegram.messenger.FileLog;
 import org.telegram.messenger.R;
 import org.telegram.tgnet.TLRPC;
 import org.telegram.messenger.UserConfig;
+import org.telegram.messenger.DispatchQueue;
 import org.telegram.messenger.Utilities;
 import org.telegram.ui.ActionBar.ActionBar;
 import org.telegram.ui.ActionBar.BaseFragment;
@@ -270,7 +271,7 @@ public class AudioSelectActivity extends BaseFragment implements NotificationCen
                     }
                 });
             }
-        });
+        }, Utilities.QUEUE_KEY_MEDIA, DispatchQueue.PRIORITY_NORMAL);
     }
 
     private class ListAdapter extends BaseFragmentAdapter {
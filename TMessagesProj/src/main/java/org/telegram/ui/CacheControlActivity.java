@@ -29,13 +29,16 @@ import org.telegram.SQLite.SQLiteDatabase;
 import org.telegram.SQLite.SQLitePreparedStatement;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.ApplicationLoader;
+import org.telegram.messenger.BlobCodec;
 import org.telegram.messenger.ClearCacheService;
 import org.telegram.messenger.FileLoader;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.ImageLoader;
 import org.telegram.messenger.LocaleController;
+import org.telegram.messenger.MediaCacheIndex;
 import org.telegram.messenger.MessagesStorage;
 import org.telegram.messenger.R;
+import org.telegram.messenger.DispatchQueue;
 import org.telegram.messenger.Utilities;
 import org.telegram.messenger.query.BotQuery;
 import org.telegram.tgnet.NativeByteBuffer;
@@ -60,6 +63,8 @@ public class CacheControlActivity extends BaseFragment {
     private int databaseInfoRow;
     private int keepMediaRow;
     private int keepMediaInfoRow;
+    private int cacheBudgetRow;
+    private int cacheBudgetInfoRow;
     private int cacheRow;
     private int cacheInfoRow;
     private int rowCount;
@@ -77,6 +82,8 @@ public class CacheControlActivity extends BaseFragment {
 
     private volatile boolean canceled = false;
 
+    private final static long[] CACHE_BUDGETS = new long[] {1024L * 1024 * 1024, 2048L * 1024 * 1024, 5120L * 1024 * 1024, 0};
+
     @Override
     public boolean onFragmentCreate() {
         super.onFragmentCreate();
@@ -84,6 +91,8 @@ public class CacheControlActivity extends BaseFragment {
         rowCount = 0;
         keepMediaRow = rowCount++;
         keepMediaInfoRow = rowCount++;
+        cacheBudgetRow = rowCount++;
+        cacheBudgetInfoRow = rowCount++;
         cacheRow = rowCount++;
         cacheInfoRow = rowCount++;
 
@@ -128,7 +137,7 @@ public class CacheControlActivity extends BaseFragment {
                     }
                 });
             }
-        });
+        }, Utilities.QUEUE_KEY_CACHE, DispatchQueue.PRIORITY_LOW);
 
         return true;
     }
@@ -201,6 +210,24 @@ public class CacheControlActivity extends BaseFragment {
         return size;
     }
 
+    private String formatCacheBudget(long budget) {
+        if (budget <= 0) {
+            return LocaleController.getString("CacheBudgetNone", R.string.CacheBudgetNone);
+        }
+        return AndroidUtilities.formatFileSize(budget);
+    }
+
+    private void updateClearCacheAlarm() {
+        SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+        PendingIntent pintent = PendingIntent.getService(ApplicationLoader.applicationContext, 0, new Intent(ApplicationLoader.applicationContext, ClearCacheService.class), 0);
+        AlarmManager alarmManager = (AlarmManager) ApplicationLoader.applicationContext.getSystemService(Context.ALARM_SERVICE);
+        if (preferences.getInt("keep_media", 2) == 2 && preferences.getLong("cache_budget", 0) <= 0) {
+            alarmManager.cancel(pintent);
+        } else {
+            alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP, AlarmManager.INTERVAL_DAY, AlarmManager.INTERVAL_DAY, pintent);
+        }
+    }
+
     private void cleanupFolders() {
         final ProgressDialog progressDialog = new ProgressDialog(getParentActivity());
         progressDialog.setMessage(LocaleController.getString("Loading", R.string.Loading));
@@ -259,6 +286,7 @@ public class CacheControlActivity extends BaseFragment {
                         } catch (Throwable e) {
                             FileLog.e("tmessages", e);
                         }
+                        MediaCacheIndex.getInstance().removeMissing(file);
                     }
                     if (type == FileLoader.MEDIA_DIR_CACHE) {
                         cacheSize = getDirectorySize(FileLoader.getInstance().checkDirectory(FileLoader.MEDIA_DIR_CACHE), documentsMusicType);
@@ -297,7 +325,7 @@ public class CacheControlActivity extends BaseFragment {
                     }
                 });
             }
-        });
+        }, Utilities.QUEUE_KEY_CACHE, DispatchQueue.PRIORITY_LOW);
     }
 
     @Override
@@ -340,13 +368,26 @@ public class CacheControlActivity extends BaseFragment {
                             if (listAdapter != null) {
                                 listAdapter.notifyDataSetChanged();
                             }
-                            PendingIntent pintent = PendingIntent.getService(ApplicationLoader.applicationContext, 0, new Intent(ApplicationLoader.applicationContext, ClearCacheService.class), 0);
-                            AlarmManager alarmManager = (AlarmManager) ApplicationLoader.applicationContext.getSystemService(Context.ALARM_SERVICE);
-                            if (which == 2) {
-                                alarmManager.cancel(pintent);
-                            } else {
-                                alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP, AlarmManager.INTERVAL_DAY, AlarmManager.INTERVAL_DAY, pintent);
+                            updateClearCacheAlarm();
+                        }
+                    });
+                    showDialog(builder.create());
+                } else if (i == cacheBudgetRow) {
+                    BottomSheet.Builder builder = new BottomSheet.Builder(getParentActivity());
+                    CharSequence[] items = new CharSequence[CACHE_BUDGETS.length];
+                    for (int a = 0; a < CACHE_BUDGETS.length; a++) {
+                        items[a] = formatCacheBudget(CACHE_BUDGETS[a]);
+                    }
+                    builder.setItems(items, new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, final int which) {
+                            SharedPreferences.Editor editor = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE).edit();
+                            editor.putLong("cache_budget", CACHE_BUDGETS[which]).commit();
+                            MediaCacheIndex.getInstance().setBudget(CACHE_BUDGETS[which]);
+                            if (listAdapter != null) {
+                                listAdapter.notifyDataSetChanged();
                             }
+                            updateClearCacheAlarm();
                         }
                     });
                     showDialog(builder.create());
@@ -407,8 +448,9 @@ public class CacheControlActivity extends BaseFragment {
                                                 SQLiteCursor cursor2 = database.queryFinalized("SELECT data FROM messages WHERE uid = " + did + " AND mid IN (" + last_mid_i + "," + last_mid + ")");
                                                 try {
                                                     while (cursor2.next()) {
-                                                        NativeByteBuffer data = new NativeByteBuffer(cursor2.byteArrayLength(0));
+                                                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor2.byteArrayLength(0));
                                                         if (data != null && cursor2.byteBufferValue(0, data) != 0) {
+                                                            data = BlobCodec.unpack(data);
                                                             TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                                                             if (message == null) {
                                                                 continue;
@@ -441,6 +483,7 @@ public class CacheControlActivity extends BaseFragment {
                                         state8.dispose();
                                         database.commitTransaction();
                                         database.executeFast("VACUUM").stepThis().dispose();
+                                        database.checkpoint(true);
                                     } catch (Exception e) {
                                         FileLog.e("tmessages", e);
                                     } finally {
@@ -564,7 +607,7 @@ public class CacheControlActivity extends BaseFragment {
 
         @Override
         public boolean isEnabled(int i) {
-            return i == databaseRow || i == cacheRow && totalSize > 0 || i == keepMediaRow;
+            return i == databaseRow || i == cacheRow && totalSize > 0 || i == keepMediaRow || i == cacheBudgetRow;
         }
 
         @Override
@@ -616,6 +659,9 @@ public class CacheControlActivity extends BaseFragment {
                         value = LocaleController.getString("KeepMediaForever", R.string.KeepMediaForever);
                     }
                     textCell.setTextAndValue(LocaleController.getString("KeepMedia", R.string.KeepMedia), value, false);
+                } else if (i == cacheBudgetRow) {
+                    SharedPreferences preferences = ApplicationLoader.applicationContext.getSharedPreferences("mainconfig", Activity.MODE_PRIVATE);
+                    textCell.setTextAndValue(LocaleController.getString("CacheBudget", R.string.CacheBudget), formatCacheBudget(preferences.getLong("cache_budget", 0)), false);
                 }
             } else if (type == 1) {
                 if (view == null) {
@@ -630,6 +676,9 @@ public class CacheControlActivity extends BaseFragment {
                 } else if (i == keepMediaInfoRow) {
                     ((TextInfoPrivacyCell) view).setText(AndroidUtilities.replaceTags(LocaleController.getString("KeepMediaInfo", R.string.KeepMediaInfo)));
                     view.setBackgroundResource(R.drawable.greydivider);
+                } else if (i == cacheBudgetInfoRow) {
+                    ((TextInfoPrivacyCell) view).setText(LocaleController.getString("CacheBudgetInfo", R.string.CacheBudgetInfo));
+                    view.setBackgroundResource(R.drawable.greydivider);
                 }
             }
             return view;
@@ -637,9 +686,9 @@ public class CacheControlActivity extends BaseFragment {
 
         @Override
         public int getItemViewType(int i) {
-            if (i == databaseRow || i == cacheRow || i == keepMediaRow) {
+            if (i == databaseRow || i == cacheRow || i == keepMediaRow || i == cacheBudgetRow) {
                 return 0;
-            } else if (i == databaseInfoRow || i == cacheInfoRow || i == keepMediaInfoRow) {
+            } else if (i == databaseInfoRow || i == cacheInfoRow || i == keepMediaInfoRow || i == cacheBudgetInfoRow) {
                 return 1;
             }
             return 0;
@@ -55,7 +55,6 @@ import org.telegram.ui.Components.BackupImageView;
 import org.telegram.ui.Components.FrameLayoutFixed;
 import org.telegram.ui.Components.LayoutHelper;
 
-import java.util.concurrent.Semaphore;
 
 public class ChannelEditActivity extends BaseFragment implements AvatarUpdater.AvatarUpdaterDelegate, NotificationCenter.NotificationCenterDelegate {
 
@@ -99,35 +98,16 @@ public class ChannelEditActivity extends BaseFragment implements AvatarUpdater.A
     public boolean onFragmentCreate() {
         currentChat = MessagesController.getInstance().getChat(chatId);
         if (currentChat == null) {
-            final Semaphore semaphore = new Semaphore(0);
-            MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                @Override
-                public void run() {
-                    currentChat = MessagesStorage.getInstance().getChat(chatId);
-                    semaphore.release();
-                }
-            });
-            try {
-                semaphore.acquire();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
-            }
+            currentChat = MessagesStorage.getInstance().getChatSync(chatId);
             if (currentChat != null) {
                 MessagesController.getInstance().putChat(currentChat, true);
             } else {
                 return false;
             }
-            if (info == null) {
-                MessagesStorage.getInstance().loadChatInfo(chatId, semaphore, false, false);
-                try {
-                    semaphore.acquire();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
-                if (info == null) {
-                    return false;
-                }
-            }
+        }
+        if (info == null) {
+            NotificationCenter.getInstance().addObserver(this, NotificationCenter.chatInfoDidLoaded);
+            MessagesStorage.getInstance().loadChatInfo(chatId, null, false, false);
         }
         wasPrivate = currentChat.username == null || currentChat.username.length() == 0;
         avatarUpdater.parentFragment = this;
@@ -143,6 +123,7 @@ public class ChannelEditActivity extends BaseFragment implements AvatarUpdater.A
     @Override
     public void onFragmentDestroy() {
         super.onFragmentDestroy();
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.chatInfoDidLoaded);
         if (avatarUpdater != null) {
             avatarUpdater.clear();
         }
@@ -572,7 +553,7 @@ public class ChannelEditActivity extends BaseFragment implements AvatarUpdater.A
         if (id == NotificationCenter.chatInfoDidLoaded) {
             TLRPC.ChatFull chatFull = (TLRPC.ChatFull) args[0];
             if (chatFull.id == chatId) {
-                if (info == null) {
+                if (info == null && descriptionTextView != null) {
                     descriptionTextView.setText(chatFull.about);
                 }
                 info = chatFull;
@@ -55,6 +55,7 @@ import org.telegram.PhoneFormat.PhoneFormat;
 import org.telegram.messenger.ChatObject;
 import org.telegram.messenger.Emoji;
 import org.telegram.messenger.LocaleController;
+import org.telegram.messenger.MediaCacheIndex;
 import org.telegram.messenger.MediaController;
 import org.telegram.messenger.MessagesStorage;
 import org.telegram.messenger.NotificationsController;
@@ -135,7 +136,6 @@ import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.Semaphore;
 import java.util.regex.Matcher;
 
 @SuppressWarnings("unchecked")
@@ -373,19 +373,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         if (chatId != 0) {
             currentChat = MessagesController.getInstance().getChat(chatId);
             if (currentChat == null) {
-                final Semaphore semaphore = new Semaphore(0);
-                MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        currentChat = MessagesStorage.getInstance().getChat(chatId);
-                        semaphore.release();
-                    }
-                });
-                try {
-                    semaphore.acquire();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
+                currentChat = MessagesStorage.getInstance().getChatSync(chatId);
                 if (currentChat != null) {
                     MessagesController.getInstance().putChat(currentChat, true);
                 } else {
@@ -410,19 +398,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         } else if (userId != 0) {
             currentUser = MessagesController.getInstance().getUser(userId);
             if (currentUser == null) {
-                final Semaphore semaphore = new Semaphore(0);
-                MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        currentUser = MessagesStorage.getInstance().getUser(userId);
-                        semaphore.release();
-                    }
-                });
-                try {
-                    semaphore.acquire();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
+                currentUser = MessagesStorage.getInstance().getUserSync(userId);
                 if (currentUser != null) {
                     MessagesController.getInstance().putUser(currentUser, true);
                 } else {
@@ -434,19 +410,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         } else if (encId != 0) {
             currentEncryptedChat = MessagesController.getInstance().getEncryptedChat(encId);
             if (currentEncryptedChat == null) {
-                final Semaphore semaphore = new Semaphore(0);
-                MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        currentEncryptedChat = MessagesStorage.getInstance().getEncryptedChat(encId);
-                        semaphore.release();
-                    }
-                });
-                try {
-                    semaphore.acquire();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
+                currentEncryptedChat = MessagesStorage.getInstance().getEncryptedChatSync(encId);
                 if (currentEncryptedChat != null) {
                     MessagesController.getInstance().putEncryptedChat(currentEncryptedChat, true);
                 } else {
@@ -455,19 +419,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
             }
             currentUser = MessagesController.getInstance().getUser(currentEncryptedChat.user_id);
             if (currentUser == null) {
-                final Semaphore semaphore = new Semaphore(0);
-                MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
-                    @Override
-                    public void run() {
-                        currentUser = MessagesStorage.getInstance().getUser(currentEncryptedChat.user_id);
-                        semaphore.release();
-                    }
-                });
-                try {
-                    semaphore.acquire();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
+                currentUser = MessagesStorage.getInstance().getUserSync(currentEncryptedChat.user_id);
                 if (currentUser != null) {
                     MessagesController.getInstance().putUser(currentUser, true);
                 } else {
@@ -541,18 +493,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
         }
 
         if (currentChat != null) {
-            Semaphore semaphore = null;
-            if (isBroadcast) {
-                semaphore = new Semaphore(0);
-            }
-            MessagesController.getInstance().loadChatInfo(currentChat.id, semaphore, ChatObject.isChannel(currentChat));
-            if (isBroadcast && semaphore != null) {
-                try {
-                    semaphore.acquire();
-                } catch (Exception e) {
-                    FileLog.e("tmessages", e);
-                }
-            }
+            MessagesController.getInstance().loadChatInfo(currentChat.id, null, ChatObject.isChannel(currentChat));
         }
 
         URLSpanBotCommand.enabled = false;
@@ -5712,7 +5653,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                         SerializedData data = new SerializedData(bytes);
                         TLRPC.Message message = TLRPC.Message.TLdeserialize(data, data.readInt32(false), false);
                         if (message != null) {
-                            replyingMessageObject = new MessageObject(message, MessagesController.getInstance().getUsers(), false);
+                            replyingMessageObject = new MessageObject(message, null, false);
                             showReplyPanel(true, replyingMessageObject, null, null, false, false);
                         }
                     }
@@ -6820,6 +6761,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                                 if (f == null || !f.exists()) {
                                     f = FileLoader.getPathToMessage(message.messageOwner);
                                 }
+                                MediaCacheIndex.getInstance().touch(f);
                                 Intent intent = new Intent(Intent.ACTION_VIEW);
                                 intent.setDataAndType(Uri.fromFile(f), "video/mp4");
                                 getParentActivity().startActivityForResult(intent, 500);
@@ -6843,6 +6785,7 @@ public class ChatActivity extends BaseFragment implements NotificationCenter.Not
                                 f = FileLoader.getPathToMessage(message.messageOwner);
                             }
                             if (f != null && f.exists()) {
+                                MediaCacheIndex.getInstance().touch(f);
                                 String realMimeType = null;
                                 try {
                                     Intent intent = new Intent(Intent.ACTION_VIEW);
@@ -11,7 +11,6 @@ package org.telegram.ui.Components;
 import android.content.Context;
 import android.text.Editable;
 import android.text.InputType;
-import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -29,6 +28,7 @@ import android.widget.TextView;
 
 import org.telegram.SQLite.SQLiteCursor;
 import org.telegram.messenger.AndroidUtilities;
+import org.telegram.messenger.BlobCodec;
 import org.telegram.messenger.ChatObject;
 import org.telegram.messenger.FileLog;
 import org.telegram.messenger.LocaleController;
@@ -48,7 +48,6 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -391,7 +390,7 @@ public class ShareFrameLayout extends FrameLayout {
                         cursor.dispose();
 
                         if (!usersToLoad.isEmpty()) {
-                            cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, status, name FROM users WHERE uid IN(%s)", TextUtils.join(",", usersToLoad)));
+                            cursor = MessagesStorage.getInstance().getDatabase().queryIn("SELECT data, status, name FROM users WHERE uid IN(%s)", usersToLoad);
                             while (cursor.next()) {
                                 String name = cursor.stringValue(2);
                                 String tName = LocaleController.getInstance().getTranslitString(name);
@@ -411,8 +410,9 @@ public class ShareFrameLayout extends FrameLayout {
                                         found = 2;
                                     }
                                     if (found != 0) {
-                                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                            data = BlobCodec.unpack(data);
                                             TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
                                             DialogSearchResult dialogSearchResult = dialogsResult.get((long) user.id);
                                             if (user.status != null) {
@@ -436,7 +436,7 @@ public class ShareFrameLayout extends FrameLayout {
                         }
 
                         if (!chatsToLoad.isEmpty()) {
-                            cursor = MessagesStorage.getInstance().getDatabase().queryFinalized(String.format(Locale.US, "SELECT data, name FROM chats WHERE uid IN(%s)", TextUtils.join(",", chatsToLoad)));
+                            cursor = MessagesStorage.getInstance().getDatabase().queryIn("SELECT data, name FROM chats WHERE uid IN(%s)", chatsToLoad);
                             while (cursor.next()) {
                                 String name = cursor.stringValue(1);
                                 String tName = LocaleController.getInstance().getTranslitString(name);
@@ -446,8 +446,9 @@ public class ShareFrameLayout extends FrameLayout {
                                 for (int a = 0; a < search.length; a++) {
                                     String q = search[a];
                                     if (name.startsWith(q) || name.contains(" " + q) || tName != null && (tName.startsWith(q) || tName.contains(" " + q))) {
-                                        NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                                        NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                                         if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                            data = BlobCodec.unpack(data);
                                             TLRPC.Chat chat = TLRPC.Chat.TLdeserialize(data, data.readInt32(false), false);
                                             if (!(chat == null || ChatObject.isNotInChat(chat) || ChatObject.isChannel(chat) && !chat.creator && !chat.editor && !chat.megagroup)) {
                                                 DialogSearchResult dialogSearchResult = dialogsResult.get(-(long) chat.id);
@@ -496,8 +497,9 @@ public class ShareFrameLayout extends FrameLayout {
                                     found = 2;
                                 }
                                 if (found != 0) {
-                                    NativeByteBuffer data = new NativeByteBuffer(cursor.byteArrayLength(0));
+                                    NativeByteBuffer data = NativeByteBuffer.obtain(cursor.byteArrayLength(0));
                                     if (data != null && cursor.byteBufferValue(0, data) != 0) {
+                                        data = BlobCodec.unpack(data);
                                         TLRPC.User user = TLRPC.User.TLdeserialize(data, data.readInt32(false), false);
                                         DialogSearchResult dialogSearchResult = new DialogSearchResult();
                                         if (user.status != null) {
@@ -51,7 +51,6 @@ import org.telegram.ui.Components.FrameLayoutFixed;
 import org.telegram.ui.Components.LayoutHelper;
 
 import java.util.ArrayList;
-import java.util.concurrent.Semaphore;
 
 public class GroupCreateFinalActivity extends BaseFragment implements NotificationCenter.NotificationCenterDelegate, AvatarUpdater.AvatarUpdaterDelegate {
 
@@ -65,6 +64,7 @@ public class GroupCreateFinalActivity extends BaseFragment implements Notificati
     private AvatarDrawable avatarDrawable;
     private boolean createAfterUpload;
     private boolean donePressed;
+    private boolean loadingUsers;
     private AvatarUpdater avatarUpdater = new AvatarUpdater();
     private ProgressDialog progressDialog = null;
     private String nameToSet = null;
@@ -94,30 +94,23 @@ public class GroupCreateFinalActivity extends BaseFragment implements Notificati
             }
         }
         if (!usersToLoad.isEmpty()) {
-            final Semaphore semaphore = new Semaphore(0);
-            final ArrayList<TLRPC.User> users = new ArrayList<>();
-            MessagesStorage.getInstance().getStorageQueue().postRunnable(new Runnable() {
+            loadingUsers = true;
+            MessagesStorage.getInstance().getUsersAsync(usersToLoad, null, new MessagesStorage.ResultCallback<ArrayList<TLRPC.User>>() {
                 @Override
-                public void run() {
-                    users.addAll(MessagesStorage.getInstance().getUsers(usersToLoad));
-                    semaphore.release();
+                public void run(ArrayList<TLRPC.User> users) {
+                    loadingUsers = false;
+                    if (usersToLoad.size() != users.size()) {
+                        finishFragment();
+                        return;
+                    }
+                    for (TLRPC.User user : users) {
+                        MessagesController.getInstance().putUser(user, true);
+                    }
+                    if (listAdapter != null) {
+                        listAdapter.notifyDataSetChanged();
+                    }
                 }
             });
-            try {
-                semaphore.acquire();
-            } catch (Exception e) {
-                FileLog.e("tmessages", e);
-            }
-            if (usersToLoad.size() != users.size()) {
-                return false;
-            }
-            if (!users.isEmpty()) {
-                for (TLRPC.User user : users) {
-                    MessagesController.getInstance().putUser(user, true);
-                }
-            } else {
-                return false;
-            }
         }
         return super.onFragmentCreate();
     }
@@ -155,7 +148,7 @@ public class GroupCreateFinalActivity extends BaseFragment implements Notificati
                 if (id == -1) {
                     finishFragment();
                 } else if (id == done_button) {
-                    if (donePressed) {
+                    if (donePressed || loadingUsers) {
                         return;
                     }
                     if (nameTextView.getText().length() == 0) {
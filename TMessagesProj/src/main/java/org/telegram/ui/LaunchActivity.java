@@ -104,6 +104,7 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
     private DrawerLayoutAdapter drawerLayoutAdapter;
     private PasscodeView passcodeView;
     private AlertDialog visibleDialog;
+    private ProgressDialog conversionProgressDialog;
 
     private Intent passcodeSaveIntent;
     private boolean passcodeSaveIntentIsNew;
@@ -360,9 +361,11 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.closeOtherAppActivities);
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.didUpdatedConnectionState);
         NotificationCenter.getInstance().addObserver(this, NotificationCenter.needShowAlert);
+        NotificationCenter.getInstance().addObserver(this, NotificationCenter.databaseConversionStateChanged);
         if (Build.VERSION.SDK_INT < 14) {
             NotificationCenter.getInstance().addObserver(this, NotificationCenter.screenStateChanged);
         }
+        updateDatabaseConversionProgress();
 
         if (actionBarLayout.fragmentsStack.isEmpty()) {
             if (!UserConfig.isClientActivated()) {
@@ -986,6 +989,29 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
         return false;
     }
 
+    private void updateDatabaseConversionProgress() {
+        if (MessagesStorage.getInstance().isConvertingDatabase()) {
+            if (conversionProgressDialog == null) {
+                conversionProgressDialog = new ProgressDialog(this);
+                conversionProgressDialog.setMessage(LocaleController.getString("OptimizingDatabase", R.string.OptimizingDatabase));
+                conversionProgressDialog.setCanceledOnTouchOutside(false);
+                conversionProgressDialog.setCancelable(false);
+                try {
+                    conversionProgressDialog.show();
+                } catch (Exception e) {
+                    FileLog.e("tmessages", e);
+                }
+            }
+        } else if (conversionProgressDialog != null) {
+            try {
+                conversionProgressDialog.dismiss();
+            } catch (Exception e) {
+                FileLog.e("tmessages", e);
+            }
+            conversionProgressDialog = null;
+        }
+    }
+
     private void runLinkRequest(final String username, final String group, final String sticker, final String botUser, final String botChat, final String message, final boolean hasUrl, final int state) {
         final ProgressDialog progressDialog = new ProgressDialog(this);
         progressDialog.setMessage(LocaleController.getString("Loading", R.string.Loading));
@@ -1359,9 +1385,14 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.closeOtherAppActivities);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.didUpdatedConnectionState);
         NotificationCenter.getInstance().removeObserver(this, NotificationCenter.needShowAlert);
+        NotificationCenter.getInstance().removeObserver(this, NotificationCenter.databaseConversionStateChanged);
         if (Build.VERSION.SDK_INT < 14) {
             NotificationCenter.getInstance().removeObserver(this, NotificationCenter.screenStateChanged);
         }
+        if (conversionProgressDialog != null) {
+            conversionProgressDialog.dismiss();
+            conversionProgressDialog = null;
+        }
     }
 
     public void presentFragment(BaseFragment fragment) {
@@ -1669,6 +1700,8 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
                     onPasscodeResume();
                 }
             }
+        } else if (id == NotificationCenter.databaseConversionStateChanged) {
+            updateDatabaseConversionProgress();
         } else if (id == NotificationCenter.needShowAlert) {
             final Integer reason = (Integer) args[0];
             AlertDialog.Builder builder = new AlertDialog.Builder(this);
@@ -1838,6 +1871,7 @@ public class LaunchActivity extends Activity implements ActionBarLayout.ActionBa
     @Override
     public void onLowMemory() {
         super.onLowMemory();
+        MessagesStorage.getInstance().trimCaches();
         actionBarLayout.onLowMemory();
         if (AndroidUtilities.isTablet()) {
             rightActionBarLayout.onLowMemory();
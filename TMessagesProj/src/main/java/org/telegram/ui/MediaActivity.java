@@ -41,6 +41,7 @@ import android.widget.TextView;
 import org.telegram.messenger.AndroidUtilities;
 import org.telegram.messenger.ChatObject;
 import org.telegram.messenger.LocaleController;
+import org.telegram.messenger.MediaCacheIndex;
 import org.telegram.messenger.MediaController;
 import org.telegram.messenger.MessagesController;
 import org.telegram.messenger.query.SharedMediaQuery;
@@ -1048,6 +1049,7 @@ public class MediaActivity extends BaseFragment implements NotificationCenter.No
                             f = FileLoader.getPathToMessage(message.messageOwner);
                         }
                         if (f != null && f.exists()) {
+                            MediaCacheIndex.getInstance().touch(f);
                             String realMimeType = null;
                             try {
                                 Intent intent = new Intent(Intent.ACTION_VIEW);
@@ -0,0 +1,92 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlobCodecTest {
+
+    private static byte[] message() {
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0xc06b9607);
+        for (int a = 0; a < 8; a++) {
+            buffer.putInt(a);
+            buffer.putInt(0x15590068);
+            buffer.put("image/jpeghttps://t.me/".getBytes());
+        }
+        byte[] result = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(result);
+        return result;
+    }
+
+    @Test
+    public void packedBlobRoundTrips() throws Exception {
+        byte[] raw = message();
+        byte[] packed = BlobCodec.pack(raw);
+
+        assertNotNull(packed);
+        assertTrue(packed.length <= raw.length - raw.length / 8);
+        assertArrayEquals(raw, BlobCodec.unpack(packed));
+    }
+
+    @Test
+    public void packedBlobHasHeader() {
+        byte[] raw = message();
+        ByteBuffer buffer = ByteBuffer.wrap(BlobCodec.pack(raw));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        assertEquals(BlobCodec.MAGIC, buffer.getInt());
+        assertEquals(BlobCodec.VERSION, buffer.get());
+        assertEquals(raw.length, buffer.getInt());
+    }
+
+    @Test
+    public void smallOrIncompressibleBlobsStayPlain() {
+        assertNull(BlobCodec.pack(new byte[95]));
+
+        byte[] random = new byte[4096];
+        new Random(1).nextBytes(random);
+        assertNull(BlobCodec.pack(random));
+    }
+
+    @Test
+    public void plainBlobIsNotUnpacked() throws Exception {
+        assertNull(BlobCodec.unpack(message()));
+        assertNull(BlobCodec.unpack(new byte[4]));
+    }
+
+    @Test
+    public void unknownVersionIsNotUnpacked() throws Exception {
+        byte[] packed = BlobCodec.pack(message());
+        packed[4] = (byte) (BlobCodec.VERSION + 1);
+
+        assertNull(BlobCodec.unpack(packed));
+    }
+
+    @Test
+    public void truncatedBlobIsNotUnpacked() throws Exception {
+        byte[] packed = BlobCodec.pack(message());
+        byte[] truncated = new byte[packed.length - 4];
+        System.arraycopy(packed, 0, truncated, 0, truncated.length);
+
+        assertNull(BlobCodec.unpack(truncated));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DialogsSearchIndexTest {
+
+    @Test
+    public void tokensAreUniqueWordsOfNameTranslitAndUsername() {
+        ArrayList<String> tokens = DialogsSearchIndex.getTokens("иван  петров;;;ivan", "ivan  petrov;;;ivan", "ivan");
+
+        assertEquals(Arrays.asList("иван", "петров;;;ivan", "ivan", "petrov;;;ivan"), tokens);
+    }
+
+    @Test
+    public void usernameIsAddedAsToken() {
+        ArrayList<String> tokens = DialogsSearchIndex.getTokens("john smith;;;jsmith", null, "jsmith");
+
+        assertEquals(Arrays.asList("john", "smith;;;jsmith", "jsmith"), tokens);
+    }
+
+    @Test
+    public void emptyNameHasNoTokens() {
+        assertTrue(DialogsSearchIndex.getTokens(" ", null, "").isEmpty());
+    }
+
+    @Test
+    public void usernameIsParsedForUsersAndSecretChatsOnly() {
+        assertEquals("jsmith", DialogsSearchIndex.getUsername(DialogsSearchIndex.TYPE_USER, "john smith;;;jsmith"));
+        assertEquals("", DialogsSearchIndex.getUsername(DialogsSearchIndex.TYPE_ENCRYPTED, "john smith;;;"));
+        assertNull(DialogsSearchIndex.getUsername(DialogsSearchIndex.TYPE_CHAT, "a;;;b"));
+        assertNull(DialogsSearchIndex.getUsername(DialogsSearchIndex.TYPE_USER, "john smith"));
+    }
+
+    @Test
+    public void upperBoundClosesPrefixRange() {
+        String upper = DialogsSearchIndex.getUpperBound("jo");
+
+        assertEquals("jp", upper);
+        assertTrue("jo".compareTo(upper) < 0);
+        assertTrue("jozzz".compareTo(upper) < 0);
+        assertTrue("jp".compareTo(upper) >= 0);
+    }
+
+    @Test
+    public void prefixIsFirstWordOfQuery() {
+        assertEquals("john", DialogsSearchIndex.getPrefix("john sm"));
+        assertEquals("john", DialogsSearchIndex.getPrefix("john"));
+        assertNull(DialogsSearchIndex.getPrefix(" smith"));
+    }
+
+    @Test
+    public void matchPrefersNameOverUsername() {
+        String name = "john smith;;;jsmith";
+
+        assertEquals(DialogsSearchIndex.FOUND_NAME, DialogsSearchIndex.getFound(name, null, "jsmith", "jo"));
+        assertEquals(DialogsSearchIndex.FOUND_NAME, DialogsSearchIndex.getFound(name, null, "jsmith", "smi"));
+        assertEquals(DialogsSearchIndex.FOUND_NAME, DialogsSearchIndex.getFound(name, null, "jsmith", "john sm"));
+        assertEquals(DialogsSearchIndex.FOUND_USERNAME, DialogsSearchIndex.getFound(name, null, "jsmith", "jsm"));
+        assertEquals(0, DialogsSearchIndex.getFound(name, null, "jsmith", "mith"));
+    }
+
+    @Test
+    public void matchUsesTranslit() {
+        assertEquals(DialogsSearchIndex.FOUND_NAME, DialogsSearchIndex.getFound("иван петров", "ivan petrov", null, "pet"));
+        assertEquals(0, DialogsSearchIndex.getFound("иван петров", null, null, "pet"));
+    }
+}
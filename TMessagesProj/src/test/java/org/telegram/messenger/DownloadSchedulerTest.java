@@ -0,0 +1,128 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.tgnet.TLRPC;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadSchedulerTest {
+
+    private final static int MB = 1024 * 1024;
+
+    private DownloadScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new DownloadScheduler();
+    }
+
+    private static FileLoadOperation operation() {
+        return new FileLoadOperation(new TLRPC.TL_fileLocation(), "jpg", 0);
+    }
+
+    @Test
+    public void backgroundLoadsRunOneAtATimePerClass() {
+        FileLoadOperation first = operation();
+        FileLoadOperation second = operation();
+        FileLoadOperation audio = operation();
+
+        assertTrue(scheduler.add(first, DownloadScheduler.CLASS_PHOTO, false));
+        assertFalse(scheduler.add(second, DownloadScheduler.CLASS_PHOTO, false));
+        assertTrue(scheduler.add(audio, DownloadScheduler.CLASS_AUDIO, false));
+        assertSame(second, scheduler.onFinished(first));
+        assertNull(scheduler.onFinished(second));
+    }
+
+    @Test
+    public void visibleLoadsGetMoreSlots() {
+        assertTrue(scheduler.add(operation(), DownloadScheduler.CLASS_FILE, true));
+        assertTrue(scheduler.add(operation(), DownloadScheduler.CLASS_FILE, true));
+        assertTrue(scheduler.add(operation(), DownloadScheduler.CLASS_FILE, true));
+        assertFalse(scheduler.add(operation(), DownloadScheduler.CLASS_FILE, true));
+        assertFalse(scheduler.add(operation(), DownloadScheduler.CLASS_FILE, false));
+    }
+
+    @Test
+    public void latestVisibleLoadStartsFirst() {
+        FileLoadOperation running = operation();
+        FileLoadOperation background = operation();
+        FileLoadOperation olderVisible = operation();
+        FileLoadOperation newerVisible = operation();
+        scheduler.add(running, DownloadScheduler.CLASS_PHOTO, false);
+        scheduler.add(background, DownloadScheduler.CLASS_PHOTO, false);
+        assertTrue(scheduler.add(operation(), DownloadScheduler.CLASS_PHOTO, true));
+        assertTrue(scheduler.add(operation(), DownloadScheduler.CLASS_PHOTO, true));
+        assertFalse(scheduler.add(olderVisible, DownloadScheduler.CLASS_PHOTO, true));
+        assertFalse(scheduler.add(newerVisible, DownloadScheduler.CLASS_PHOTO, true));
+
+        assertSame(newerVisible, scheduler.onFinished(running));
+        assertNull(scheduler.onFinished(olderVisible));
+        assertNull(scheduler.onFinished(newerVisible));
+    }
+
+    @Test
+    public void bumpMovesQueuedLoadToFront() {
+        FileLoadOperation running = operation();
+        FileLoadOperation first = operation();
+        FileLoadOperation second = operation();
+        scheduler.add(running, DownloadScheduler.CLASS_PHOTO, false);
+        scheduler.add(first, DownloadScheduler.CLASS_PHOTO, false);
+        scheduler.add(second, DownloadScheduler.CLASS_PHOTO, false);
+
+        assertTrue(scheduler.bump(second));
+        assertFalse(scheduler.bump(running));
+        assertSame(second, scheduler.onFinished(running));
+    }
+
+    @Test
+    public void removedLoadIsNotStarted() {
+        FileLoadOperation running = operation();
+        FileLoadOperation queued = operation();
+        scheduler.add(running, DownloadScheduler.CLASS_AUDIO, false);
+        scheduler.add(queued, DownloadScheduler.CLASS_AUDIO, false);
+
+        scheduler.remove(queued);
+        assertNull(scheduler.onFinished(running));
+    }
+
+    @Test
+    public void firstRequestIgnoresBudget() {
+        FileLoadOperation big = operation();
+        FileLoadOperation small = operation();
+        scheduler.add(big, DownloadScheduler.CLASS_FILE, false);
+        scheduler.add(small, DownloadScheduler.CLASS_PHOTO, false);
+
+        assertTrue(scheduler.acquire(big, 3 * MB, true));
+        assertTrue(scheduler.acquire(small, 128 * 1024, true));
+        assertFalse(scheduler.acquire(big, 512 * 1024, false));
+    }
+
+    @Test
+    public void releasedBytesCanBeAcquiredAgain() {
+        FileLoadOperation operation = operation();
+        scheduler.add(operation, DownloadScheduler.CLASS_FILE, false);
+
+        assertTrue(scheduler.acquire(operation, 2 * MB, true));
+        assertTrue(scheduler.acquire(operation, MB, false));
+        scheduler.release(operation, 2 * MB);
+        assertTrue(scheduler.acquire(operation, 2 * MB, false));
+    }
+
+    @Test
+    public void unknownOperationsAreNotThrottled() {
+        assertTrue(scheduler.acquire(operation(), 16 * MB, false));
+        assertNull(scheduler.onFinished(operation()));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.telegram.tgnet.AbstractSerializedData;
+import org.telegram.tgnet.SerializedData;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class EntityCacheTest {
+
+    private static class Value {
+        int value;
+        int extra;
+    }
+
+    private EntityCache<Value> cache;
+
+    @Before
+    public void setUp() {
+        cache = new EntityCache<>(new EntityCache.Reader<Value>() {
+            @Override
+            public Value read(AbstractSerializedData data, int extra) {
+                Value value = new Value();
+                value.value = data.readInt32(false);
+                value.extra = extra;
+                return value;
+            }
+        }, 2, 100, 1024 * 16);
+    }
+
+    private static byte[] row(int value) {
+        SerializedData data = new SerializedData();
+        data.writeInt32(value);
+        byte[] bytes = data.toByteArray();
+        data.cleanup();
+        return bytes;
+    }
+
+    @Test
+    public void pendingWriteHidesRowUntilEnded() {
+        cache.put(1, row(10), 0);
+        cache.beginWrite(1);
+        cache.beginWrite(1);
+
+        assertNull(cache.get(1));
+        cache.endWrite(1);
+        assertNull(cache.get(1));
+        cache.endWrite(1);
+        assertEquals(10, cache.get(1).value);
+    }
+
+    @Test
+    public void loadedRowIsDroppedWhilePendingWrite() {
+        cache.beginWrite(1);
+        cache.putLoaded(1, row(10), 0, cache.getVersion());
+        cache.endWrite(1);
+
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void loadedRowIsDroppedAfterConcurrentWrite() {
+        int version = cache.getVersion();
+        cache.put(2, row(20), 0);
+        cache.putLoaded(1, row(10), 0, version);
+        assertNull(cache.get(1));
+
+        version = cache.getVersion();
+        cache.beginWrite(3);
+        cache.endWrite(3);
+        cache.putLoaded(1, row(10), 0, version);
+        assertNull(cache.get(1));
+
+        cache.putLoaded(1, row(10), 0, cache.getVersion());
+        assertEquals(10, cache.get(1).value);
+    }
+
+    @Test
+    public void loadedRowNeverReplacesCachedOne() {
+        cache.put(1, row(11), 0);
+        cache.putLoaded(1, row(10), 0, cache.getVersion());
+
+        assertEquals(11, cache.get(1).value);
+    }
+
+    @Test
+    public void endWriteWithoutBeginIsIgnored() {
+        cache.put(1, row(10), 0);
+        cache.endWrite(1);
+        cache.beginWrite(1);
+
+        assertNull(cache.get(1));
+    }
+}
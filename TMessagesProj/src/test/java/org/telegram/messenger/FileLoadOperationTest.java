@@ -0,0 +1,57 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class FileLoadOperationTest {
+
+    private final static int KB = 1024;
+
+    @Test
+    public void chunkSizeGrowsWhileWindowHoldsFourChunks() {
+        assertEquals(256 * KB, FileLoadOperation.adaptChunkSize(128 * KB, 512 * KB));
+        assertEquals(128 * KB, FileLoadOperation.adaptChunkSize(128 * KB, 512 * KB - 1));
+        assertEquals(512 * KB, FileLoadOperation.adaptChunkSize(256 * KB, 4096 * KB));
+        assertEquals(512 * KB, FileLoadOperation.adaptChunkSize(512 * KB, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void chunkSizeShrinksWhenWindowCannotHoldOne() {
+        assertEquals(64 * KB, FileLoadOperation.adaptChunkSize(128 * KB, 128 * KB - 1));
+        assertEquals(128 * KB, FileLoadOperation.adaptChunkSize(128 * KB, 128 * KB));
+        assertEquals(32 * KB, FileLoadOperation.adaptChunkSize(32 * KB, 0));
+    }
+
+    @Test
+    public void requestsCoverOneAndHalfWindow() {
+        assertEquals(3, FileLoadOperation.getMaxDownloadRequests(256 * KB, 400 * KB));
+        assertEquals(7, FileLoadOperation.getMaxDownloadRequests(128 * KB, 512 * KB));
+    }
+
+    @Test
+    public void requestsStayWithinLimits() {
+        assertEquals(2, FileLoadOperation.getMaxDownloadRequests(128 * KB, 0));
+        assertEquals(8, FileLoadOperation.getMaxDownloadRequests(128 * KB, 1024 * KB));
+        assertEquals(4, FileLoadOperation.getMaxDownloadRequests(512 * KB, 4096 * KB));
+        assertEquals(4, FileLoadOperation.getMaxDownloadRequests(512 * KB, Integer.MAX_VALUE));
+        assertEquals(8, FileLoadOperation.getMaxDownloadRequests(32 * KB, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void chunksAreAlignedToTheirSize() {
+        assertEquals(512 * KB, FileLoadOperation.alignChunkSize(512 * KB, 0));
+        assertEquals(128 * KB, FileLoadOperation.alignChunkSize(512 * KB, 128 * KB));
+        assertEquals(32 * KB, FileLoadOperation.alignChunkSize(512 * KB, 96 * KB));
+        assertEquals(256 * KB, FileLoadOperation.alignChunkSize(512 * KB, 1280 * KB));
+        assertEquals(512 * KB, FileLoadOperation.alignChunkSize(512 * KB, 1536 * KB));
+    }
+}
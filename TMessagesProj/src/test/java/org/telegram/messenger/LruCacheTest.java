@@ -0,0 +1,156 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import android.graphics.drawable.BitmapDrawable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LruCacheTest {
+
+    private static class SizedCache extends LruCache {
+        HashMap<BitmapDrawable, Integer> sizes = new HashMap<>();
+        ArrayList<String> evicted = new ArrayList<>();
+        ArrayList<String> removed = new ArrayList<>();
+
+        SizedCache(int maxSize) {
+            super(maxSize);
+        }
+
+        BitmapDrawable put(String key, int size) {
+            BitmapDrawable value = new BitmapDrawable();
+            sizes.put(value, size);
+            put(key, value);
+            return value;
+        }
+
+        @Override
+        protected int sizeOf(String key, BitmapDrawable value) {
+            Integer size = sizes.get(value);
+            return size != null ? size : 1;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, BitmapDrawable oldValue, BitmapDrawable newValue) {
+            (evicted ? this.evicted : removed).add(key);
+        }
+    }
+
+    @Test
+    public void getCountsHitsAndMisses() {
+        SizedCache cache = new SizedCache(10);
+        BitmapDrawable value = cache.put("a", 1);
+
+        assertSame(value, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.hitCount());
+        assertEquals(1, cache.missCount());
+        assertEquals(1, cache.putCount());
+    }
+
+    @Test
+    public void putEvictsOldestUnreferencedEntry() {
+        SizedCache cache = new SizedCache(3);
+        cache.put("a", 1);
+        cache.put("b", 1);
+        cache.put("c", 1);
+        cache.put("d", 1);
+
+        assertEquals(Collections.singletonList("a"), cache.evicted);
+        assertFalse(cache.contains("a"));
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.evictionCount());
+    }
+
+    @Test
+    public void readEntryGetsSecondChance() {
+        SizedCache cache = new SizedCache(3);
+        cache.put("a", 1);
+        cache.put("b", 1);
+        cache.put("c", 1);
+        cache.get("a");
+        cache.put("d", 1);
+
+        assertEquals(Collections.singletonList("b"), cache.evicted);
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+        assertTrue(cache.contains("d"));
+    }
+
+    @Test
+    public void justAddedEntryIsNotEvicted() {
+        SizedCache cache = new SizedCache(10);
+        cache.put("a", 4);
+        cache.put("b", 4);
+        BitmapDrawable value = cache.put("c", 8);
+
+        assertEquals(2, cache.evicted.size());
+        assertSame(value, cache.get("c"));
+        assertEquals(8, cache.size());
+    }
+
+    @Test
+    public void replaceAndRemoveAdjustSize() {
+        SizedCache cache = new SizedCache(10);
+        cache.put("a", 3);
+        BitmapDrawable second = cache.put("a", 5);
+
+        assertEquals(5, cache.size());
+        assertEquals(Collections.singletonList("a"), cache.removed);
+        assertSame(second, cache.remove("a"));
+        assertNull(cache.remove("a"));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.removed.size());
+        assertTrue(cache.evicted.isEmpty());
+    }
+
+    @Test
+    public void filterKeysFollowEntries() {
+        SizedCache cache = new SizedCache(10);
+        cache.put("photo@50_50", 1);
+        cache.put("photo@100_100@b", 1);
+        cache.put("other", 1);
+
+        ArrayList<String> filters = cache.getFilterKeys("photo");
+        Collections.sort(filters);
+        assertEquals(2, filters.size());
+        assertEquals("100_100", filters.get(0));
+        assertEquals("50_50", filters.get(1));
+        assertNull(cache.getFilterKeys("other"));
+
+        cache.remove("photo@50_50");
+        assertEquals(Collections.singletonList("100_100"), cache.getFilterKeys("photo"));
+        cache.remove("photo@100_100@b");
+        assertNull(cache.getFilterKeys("photo"));
+    }
+
+    @Test
+    public void evictAllRemovesZeroSizedEntries() {
+        SizedCache cache = new SizedCache(10);
+        cache.put("a", 0);
+        cache.put("b", 2);
+        cache.get("b");
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertFalse(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertEquals(2, cache.evicted.size());
+    }
+}
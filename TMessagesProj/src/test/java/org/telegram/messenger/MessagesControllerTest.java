@@ -0,0 +1,76 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Test;
+import org.telegram.tgnet.TLRPC;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class MessagesControllerTest {
+
+    private static TLRPC.Dialog dialog(long id, int date) {
+        TLRPC.Dialog dialog = new TLRPC.TL_dialog();
+        dialog.id = id;
+        dialog.last_message_date = date;
+        return dialog;
+    }
+
+    @Test
+    public void insertKeepsNewestFirst() {
+        ArrayList<TLRPC.Dialog> dialogs = new ArrayList<>();
+        TLRPC.Dialog old = dialog(1, 100);
+        TLRPC.Dialog recent = dialog(2, 300);
+        TLRPC.Dialog middle = dialog(3, 200);
+        MessagesController.insertDialogSorted(dialogs, old);
+        MessagesController.insertDialogSorted(dialogs, recent);
+        MessagesController.insertDialogSorted(dialogs, middle);
+
+        assertEquals(3, dialogs.size());
+        assertSame(recent, dialogs.get(0));
+        assertSame(middle, dialogs.get(1));
+        assertSame(old, dialogs.get(2));
+    }
+
+    @Test
+    public void equalDatesAreOrderedById() {
+        ArrayList<TLRPC.Dialog> dialogs = new ArrayList<>();
+        TLRPC.Dialog low = dialog(-5, 100);
+        TLRPC.Dialog high = dialog(7, 100);
+        MessagesController.insertDialogSorted(dialogs, low);
+        MessagesController.insertDialogSorted(dialogs, high);
+
+        assertSame(high, dialogs.get(0));
+        assertSame(low, dialogs.get(1));
+    }
+
+    @Test
+    public void repositioningMatchesFullSort() {
+        Random random = new Random(42);
+        ArrayList<TLRPC.Dialog> dialogs = new ArrayList<>();
+        for (int a = 0; a < 200; a++) {
+            MessagesController.insertDialogSorted(dialogs, dialog(a + 1, random.nextInt(50)));
+        }
+        for (int a = 0; a < 1000; a++) {
+            TLRPC.Dialog dialog = dialogs.get(random.nextInt(dialogs.size()));
+            dialogs.remove(dialog);
+            dialog.last_message_date += random.nextInt(20);
+            MessagesController.insertDialogSorted(dialogs, dialog);
+        }
+
+        ArrayList<TLRPC.Dialog> sorted = new ArrayList<>(dialogs);
+        Collections.sort(sorted, MessagesController.dialogComparator);
+        assertEquals(sorted, dialogs);
+    }
+}
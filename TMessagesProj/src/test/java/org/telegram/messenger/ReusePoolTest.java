@@ -0,0 +1,165 @@
+/*
+ * This is the source code of Telegram for Android v. 3.x.x.
+ * It is licensed under GNU GPL v. 2 or later.
+ * You should have received a copy of the license in this archive (see LICENSE).
+ *
+ * Copyright Nikolai Kudashov, 2013-2016.
+ */
+
+package org.telegram.messenger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReusePoolTest {
+
+    private static class Buffer {
+        int size;
+
+        Buffer(int size) {
+            this.size = size;
+        }
+    }
+
+    private HashSet<Buffer> recycled = new HashSet<>();
+    private ArrayList<Buffer> freed = new ArrayList<>();
+    private ReusePool<Buffer> pool;
+
+    @Before
+    public void setUp() {
+        recycled.clear();
+        freed.clear();
+        pool = new ReusePool<>(1000, new ReusePool.Allocator<Buffer>() {
+            @Override
+            public int getSize(Buffer item) {
+                return item.size;
+            }
+
+            @Override
+            public boolean canReuse(Buffer item) {
+                return !recycled.contains(item);
+            }
+
+            @Override
+            public void free(Buffer item) {
+                freed.add(item);
+            }
+        });
+    }
+
+    @Test
+    public void getReturnsSmallestBufferThatFits() {
+        Buffer small = new Buffer(100);
+        Buffer medium = new Buffer(150);
+        Buffer large = new Buffer(190);
+        pool.put(large);
+        pool.put(small);
+        pool.put(medium);
+
+        assertSame(medium, pool.get(120));
+        assertSame(large, pool.get(120));
+        assertSame(small, pool.get(100));
+        assertEquals(0, pool.getCount());
+        assertEquals(0, pool.getTotalBytes());
+    }
+
+    @Test
+    public void getSkipsBuffersWastingMoreThanHalf() {
+        Buffer buffer = new Buffer(201);
+        pool.put(buffer);
+
+        assertNull(pool.get(100));
+        assertEquals(1, pool.getMisses());
+        assertSame(buffer, pool.get(101));
+        assertEquals(1, pool.getHits());
+    }
+
+    @Test
+    public void putRejectsBuffersOverHalfTheBudget() {
+        Buffer buffer = new Buffer(501);
+
+        assertFalse(pool.put(buffer));
+        assertEquals(0, pool.getCount());
+        assertEquals(1, freed.size());
+        assertSame(buffer, freed.get(0));
+    }
+
+    @Test
+    public void putRejectsBuffersThatCannotBeReused() {
+        Buffer buffer = new Buffer(100);
+        recycled.add(buffer);
+
+        assertFalse(pool.put(buffer));
+        assertEquals(0, pool.getCount());
+        assertSame(buffer, freed.get(0));
+    }
+
+    @Test
+    public void putIgnoresBuffersAlreadyInPool() {
+        Buffer buffer = new Buffer(100);
+
+        assertTrue(pool.put(buffer));
+        assertFalse(pool.put(buffer));
+        assertEquals(1, pool.getCount());
+        assertEquals(100, pool.getTotalBytes());
+    }
+
+    @Test
+    public void budgetFreesBuffersReleasedFirst() {
+        Buffer first = new Buffer(400);
+        Buffer second = new Buffer(300);
+        Buffer third = new Buffer(200);
+        Buffer fourth = new Buffer(300);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+        assertEquals(0, freed.size());
+
+        pool.put(fourth);
+        assertEquals(1, freed.size());
+        assertSame(first, freed.get(0));
+        assertEquals(800, pool.getTotalBytes());
+
+        pool.trim(300);
+        assertEquals(3, freed.size());
+        assertSame(second, freed.get(1));
+        assertSame(third, freed.get(2));
+        assertEquals(300, pool.getTotalBytes());
+        assertSame(fourth, pool.get(300));
+    }
+
+    @Test
+    public void getFreesBuffersThatCannotBeReusedAnymore() {
+        Buffer stale = new Buffer(100);
+        Buffer fresh = new Buffer(120);
+        pool.put(fresh);
+        pool.put(stale);
+        recycled.add(stale);
+
+        assertSame(fresh, pool.get(100));
+        assertEquals(1, freed.size());
+        assertSame(stale, freed.get(0));
+        assertEquals(0, pool.getCount());
+        assertEquals(0, pool.getTotalBytes());
+    }
+
+    @Test
+    public void clearFreesEverything() {
+        pool.put(new Buffer(100));
+        pool.put(new Buffer(200));
+
+        pool.clear();
+        assertEquals(2, freed.size());
+        assertEquals(0, pool.getCount());
+        assertNull(pool.get(100));
+    }
+}